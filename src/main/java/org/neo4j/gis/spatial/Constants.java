@@ -38,6 +38,7 @@ public interface Constants {
     String PROP_GEOMENCODER_CONFIG = "geomencoder_config";
     String PROP_INDEX_CONFIG = "index_config";
     String PROP_LAYER_CLASS = "layer_class";
+    String PROP_GEOMETRY_CACHE = "geometry_cache";
 
     String PROP_TYPE = "gtype";
     String PROP_QUERY = "query";
@@ -70,7 +70,9 @@ public class DefaultLayer implements Constants, Layer, SpatialDataset {
      * Add the geometry encoded in the given Node. This causes the geometry to appear in the index.
      */
     public SpatialDatabaseRecord add(Transaction tx, Node geomNode) {
-        Geometry geometry = getGeometryEncoder().decodeGeometry(geomNode);
+        // the geometry might have been written in this transaction, so it must not be cached before it commits
+        geometryWritten(geomNode.getId());
+        Geometry geometry = decodeGeometry(geomNode);
 
         // add BBOX to Node if it's missing
         getGeometryEncoder().ensureIndexable(geometry, geomNode);
@@ -87,6 +89,7 @@ public class DefaultLayer implements Constants, Layer, SpatialDataset {
             Geometry geometry = geometryEncoder.decodeGeometry(geomNode);
             // add BBOX to Node if it's missing
             geometryEncoder.encodeGeometry(tx, geometry, geomNode);
+            geometryWritten(geomNode.getId());
         }
         indexWriter.add(tx, geomNodes);
         return geomNodes.size();
@@ -222,6 +225,10 @@ public class DefaultLayer implements Constants, Layer, SpatialDataset {
         }
         this.geometryEncoder.init(this);
 
+        if (layerNode.hasProperty(PROP_GEOMETRY_CACHE)) {
+            this.geometryCache = GeometryCache.fromConfiguration((String) layerNode.getProperty(PROP_GEOMETRY_CACHE), this.geometryEncoder);
+        }
+
         // index must be created *after* geometryEncoder
         if (layerNode.hasProperty(PROP_INDEX_CLASS)) {
             String indexClass = (String) layerNode.getProperty(PROP_INDEX_CLASS);
@@ -276,6 +283,7 @@ public class DefaultLayer implements Constants, Layer, SpatialDataset {
     private String name;
     protected Long layerNodeId = -1L;
     private GeometryEncoder geometryEncoder;
+    private GeometryCache geometryCache;
     private GeometryFactory geometryFactory;
     protected LayerIndexReader indexReader;
     protected SpatialIndexWriter indexWriter;
@@ -318,7 +326,7 @@ public class DefaultLayer implements Constants, Layer, SpatialDataset {
             }
 
             public Geometry next() {
-                return geometryEncoder.decodeGeometry(NodeToGeometryIterable.this.allGeometryNodeIterator.next());
+                return decodeGeometry(NodeToGeometryIterable.this.allGeometryNodeIterator.next());
             }
 
             public void remove() {
@@ -346,6 +354,29 @@ public class DefaultLayer implements Constants, Layer, SpatialDataset {
         return geometryEncoder;
     }
 
+    @Override
+    public Geometry decodeGeometry(Node geomNode) {
+        if (geometryCache == null) {
+            return geometryEncoder.decodeGeometry(geomNode);
+        }
+        return geometryCache.decode(geometryEncoder, geomNode);
+    }
+
+    @Override
+    public GeometryCache getGeometryCache() {
+        return geometryCache;
+    }
+
+    /**
+     * Must be called after writing the geometry of a geometry node through this layer, so that the cached geometry
+     * is dropped.
+     */
+    protected void geometryWritten(long geomNodeId) {
+        if (geometryCache != null) {
+            geometryCache.written(geomNodeId);
+        }
+    }
+
     /**
      * This dataset contains only one layer, itself.
      *
@@ -367,13 +398,10 @@ public class DefaultLayer implements Constants, Layer, SpatialDataset {
         return null;
     }
 
-    private PropertyMappingManager propertyMappingManager;
+    private final PropertyMappingManager propertyMappingManager = new PropertyMappingManager(this);
 
     @Override
     public PropertyMappingManager getPropertyMappingManager() {
-        if (propertyMappingManager == null) {
-            propertyMappingManager = new PropertyMappingManager(this);
-        }
         return propertyMappingManager;
     }
 
@@ -274,13 +274,10 @@ public class DynamicLayerConfig implements Layer, Constants {
         return getName();
     }
 
-    private PropertyMappingManager propertyMappingManager;
+    private final PropertyMappingManager propertyMappingManager = new PropertyMappingManager(this);
 
     @Override
     public PropertyMappingManager getPropertyMappingManager() {
-        if (propertyMappingManager == null) {
-            propertyMappingManager = new PropertyMappingManager(this);
-        }
         return propertyMappingManager;
     }
 
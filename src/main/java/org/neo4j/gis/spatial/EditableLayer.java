@@ -24,6 +24,8 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import org.locationtech.jts.geom.Geometry;
 
+import java.util.Collection;
+
 /**
  * Instances of Layer provide the ability for developers to add/remove and edit geometries
  * associated with a single dataset (or layer). This includes support for several storage
@@ -60,4 +62,10 @@ public interface EditableLayer extends Layer {
 	void setCoordinateReferenceSystem(Transaction tx, CoordinateReferenceSystem coordinateReferenceSystem);
 
     void removeFromIndex(Transaction tx, long geomNodeId);
+
+    /**
+     * Remove many geometries from the index in one operation, which for an RTree is much cheaper than removing
+     * them one at a time. The geometry nodes themselves are not deleted.
+     */
+    void removeFromIndex(Transaction tx, Collection<Long> geomNodeIds);
 }
@@ -24,6 +24,8 @@ import org.neo4j.graphdb.Transaction;
 
 import org.locationtech.jts.geom.Geometry;
 
+import java.util.Collection;
+
 public class EditableLayerImpl extends DefaultLayer implements EditableLayer {
 
 	/**
@@ -48,12 +50,14 @@ public class EditableLayerImpl extends DefaultLayer implements EditableLayer {
 		indexWriter.remove(tx, geomNodeId, false, true);
 		Node geomNode = tx.getNodeById(geomNodeId);
 		getGeometryEncoder().encodeGeometry(tx, geometry, geomNode);
+		geometryWritten(geomNode.getId());
 		indexWriter.add(tx, geomNode);
 	}
 
 	@Override
 	public void delete(Transaction tx, long geomNodeId) {
 		indexWriter.remove(tx, geomNodeId, true, false);
+		geometryWritten(geomNodeId);
 	}
 
 	@Override
@@ -62,6 +66,12 @@ public class EditableLayerImpl extends DefaultLayer implements EditableLayer {
 		indexWriter.remove(tx, geomNodeId, deleteGeomNode, false);
 	}
 
+	@Override
+	public void removeFromIndex(Transaction tx, Collection<Long> geomNodeIds) {
+		final boolean deleteGeomNodes = false;
+		indexWriter.remove(tx, geomNodeIds, deleteGeomNodes, false);
+	}
+
 	protected Node addGeomNode(Transaction tx, Geometry geom, String[] fieldsName, Object[] fields) {
 		Node geomNode = tx.createNode();
 		// other properties
@@ -73,6 +83,7 @@ public class EditableLayerImpl extends DefaultLayer implements EditableLayer {
 			}
 		}
 		getGeometryEncoder().encodeGeometry(tx, geom, geomNode);
+		geometryWritten(geomNode.getId());
 
 		return geomNode;
 	}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2010-2020 "Neo4j,"
+ * Neo4j Sweden AB [http://neo4j.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.locationtech.jts.geom.Geometry;
+import org.neo4j.gis.spatial.encoders.AbstractSinglePropertyEncoder;
+import org.neo4j.gis.spatial.encoders.NativePointEncoder;
+import org.neo4j.gis.spatial.encoders.SimplePointEncoder;
+import org.neo4j.gis.spatial.encoders.SimplePropertyEncoder;
+import org.neo4j.graphdb.Node;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded least-recently-used cache of the geometries decoded from the geometry nodes of one layer, so that a
+ * geometry that is read several times, for example by a search filter and then again by the search result, is only
+ * decoded once. The cache is configured with the JSON string in the layer node property
+ * {@link Constants#PROP_GEOMETRY_CACHE}, limiting the number of cached geometries with "maxEntries" and optionally
+ * their total number of vertices with "maxVertices".
+ * <p>
+ * Writes through the layer invalidate the geometry immediately, and stop it from being cached again until the
+ * writing transaction has ended, so that other transactions never see uncommitted geometries. All other changes are
+ * only seen when they are committed, when the transaction event listener of the
+ * {@link org.neo4j.gis.spatial.utilities.LayerHandleRegistry} invalidates the changed nodes. Encoders that read the
+ * geometry from a sub-graph instead of the geometry node alone cannot tell which geometries a change affects, so
+ * their whole cache is dropped on every committed change.
+ * <p>
+ * Cached geometries are shared between callers and must not be modified.
+ */
+public class GeometryCache {
+
+    public static final String KEY_MAX_ENTRIES = "maxEntries";
+    public static final String KEY_MAX_VERTICES = "maxVertices";
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final int maxEntries;
+    private final long maxVertices;
+    private final boolean singleNode;
+    private final LinkedHashMap<Long, Geometry> geometries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<Long> pending = new HashSet<>();
+    private long vertices = 0;
+    // changes whenever entries are invalidated, so that geometries decoded before that are not cached afterwards
+    private long stamp = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    public GeometryCache(int maxEntries, long maxVertices, GeometryEncoder encoder) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Geometry cache must hold at least one geometry: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.maxVertices = maxVertices;
+        this.singleNode = isSingleNodeEncoder(encoder);
+    }
+
+    /**
+     * Create the cache from the JSON configuration stored on a layer node, for example
+     * <code>{"maxEntries":10000,"maxVertices":1000000}</code>.
+     */
+    public static GeometryCache fromConfiguration(String jsonConfig, GeometryEncoder encoder) {
+        JSONObject config = (JSONObject) JSONValue.parse(jsonConfig);
+        if (config == null) {
+            throw new IllegalArgumentException("Invalid geometry cache configuration: " + jsonConfig);
+        }
+        Object maxEntries = config.get(KEY_MAX_ENTRIES);
+        Object maxVertices = config.get(KEY_MAX_VERTICES);
+        return new GeometryCache(
+                maxEntries == null ? DEFAULT_MAX_ENTRIES : ((Number) maxEntries).intValue(),
+                maxVertices == null ? 0 : ((Number) maxVertices).longValue(),
+                encoder);
+    }
+
+    public String getConfiguration() {
+        HashMap<String, Object> config = new HashMap<>();
+        config.put(KEY_MAX_ENTRIES, maxEntries);
+        config.put(KEY_MAX_VERTICES, maxVertices);
+        return JSONObject.toJSONString(config);
+    }
+
+    private static boolean isSingleNodeEncoder(GeometryEncoder encoder) {
+        return encoder instanceof AbstractSinglePropertyEncoder
+                || encoder instanceof NativePointEncoder
+                || encoder instanceof SimplePointEncoder
+                || encoder instanceof SimplePropertyEncoder;
+    }
+
+    /**
+     * Return the cached geometry of the node, decoding and caching it if it is not cached yet.
+     */
+    public Geometry decode(GeometryEncoder encoder, Node geomNode) {
+        long nodeId = geomNode.getId();
+        long decodeStamp;
+        synchronized (this) {
+            Geometry geometry = geometries.get(nodeId);
+            if (geometry != null) {
+                hits++;
+                return geometry;
+            }
+            misses++;
+            if (pending.contains(nodeId)) {
+                return encoder.decodeGeometry(geomNode);
+            }
+            decodeStamp = stamp;
+        }
+        Geometry geometry = encoder.decodeGeometry(geomNode);
+        synchronized (this) {
+            if (decodeStamp == stamp && geometry != null) {
+                Geometry previous = geometries.put(nodeId, geometry);
+                if (previous != null) {
+                    vertices -= previous.getNumPoints();
+                }
+                vertices += geometry.getNumPoints();
+                evict();
+            }
+        }
+        return geometry;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Long, Geometry>> eldest = geometries.entrySet().iterator();
+        while (eldest.hasNext() && (geometries.size() > maxEntries || (maxVertices > 0 && vertices > maxVertices))) {
+            vertices -= eldest.next().getValue().getNumPoints();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Called when the geometry of the node is written through the layer. The geometry is not cached again until the
+     * writing transaction has ended.
+     */
+    public synchronized void written(long nodeId) {
+        pending.add(nodeId);
+        invalidate(nodeId);
+    }
+
+    public synchronized void invalidate(long nodeId) {
+        stamp++;
+        Geometry previous = geometries.remove(nodeId);
+        if (previous != null) {
+            vertices -= previous.getNumPoints();
+            invalidations++;
+        }
+    }
+
+    /**
+     * Called by the transaction event listener with the nodes changed by a committed transaction.
+     */
+    public synchronized void committed(Collection<Long> changedNodeIds) {
+        if (changedNodeIds.isEmpty()) {
+            return;
+        }
+        for (long nodeId : changedNodeIds) {
+            pending.remove(nodeId);
+            invalidate(nodeId);
+        }
+        if (!singleNode) {
+            invalidateAll();
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        stamp++;
+        invalidations += geometries.size();
+        geometries.clear();
+        vertices = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized int size() {
+        return geometries.size();
+    }
+
+    public synchronized long getVertices() {
+        return vertices;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxVertices() {
+        return maxVertices;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "GeometryCache[size=" + geometries.size() + ", vertices=" + vertices + ", hits=" + hits + ", misses="
+                + misses + ", evictions=" + evictions + ", invalidations=" + invalidations + "]";
+    }
+}
@@ -27,6 +27,7 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 
 import java.util.List;
@@ -108,6 +109,21 @@ public interface Layer {
      */
     GeometryEncoder getGeometryEncoder();
 
+    /**
+     * Decode the geometry of a geometry node of this layer. Layers with a cache of decoded geometries return the
+     * cached geometry, which must not be modified.
+     */
+    default Geometry decodeGeometry(Node geomNode) {
+        return getGeometryEncoder().decodeGeometry(geomNode);
+    }
+
+    /**
+     * @return the cache of decoded geometries of this layer, or null if the layer has none
+     */
+    default GeometryCache getGeometryCache() {
+        return null;
+    }
+
     /**
      * Each layer can represent data stored in a specific coordinate refernece system, or
      * projection.
@@ -77,7 +77,7 @@ public class SpatialDatabaseRecord implements Constants, SpatialRecord {
     @Override
     public Geometry getGeometry() {
         if (geometry == null)
-            geometry = layer.getGeometryEncoder().decodeGeometry(geomNode);
+            geometry = layer.decodeGeometry(geomNode);
         return geometry;
     }
 
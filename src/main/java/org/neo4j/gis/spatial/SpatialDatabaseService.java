@@ -29,6 +29,7 @@ import org.neo4j.gis.spatial.index.*;
 import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
 import org.neo4j.gis.spatial.osm.OSMLayer;
 import org.neo4j.gis.spatial.rtree.Listener;
+import org.neo4j.gis.spatial.utilities.LayerHandleRegistry;
 import org.neo4j.gis.spatial.utilities.LayerUtilities;
 import org.neo4j.gis.spatial.utilities.ReferenceNodes;
 import org.neo4j.graphdb.*;
@@ -48,9 +49,11 @@ import java.util.Map;
 public class SpatialDatabaseService implements Constants {
 
     public final IndexManager indexManager;
+    private final LayerHandleRegistry layerRegistry;
 
     public SpatialDatabaseService(IndexManager indexManager) {
         this.indexManager = indexManager;
+        this.layerRegistry = LayerHandleRegistry.forDatabase(indexManager.getDatabase());
     }
 
     public static void assertNotOldModel(Transaction tx) {
@@ -106,11 +109,21 @@ public class SpatialDatabaseService implements Constants {
 
     public Layer getLayer(Transaction tx, String name) {
         assertNotOldModel(tx);
+        if (layerRegistry != null) {
+            Layer layer = layerRegistry.getLayer(tx, name);
+            if (layer != null) {
+                return layer;
+            }
+        }
         ResourceIterator<Node> layers = tx.findNodes(LABEL_LAYER);
         while (layers.hasNext()) {
             Node node = layers.next();
             if (name.equals(node.getProperty(PROP_LAYER))) {
-                return LayerUtilities.makeLayerFromNode(tx, indexManager, node);
+                Layer layer = LayerUtilities.makeLayerFromNode(tx, indexManager, node);
+                if (layerRegistry != null) {
+                    layerRegistry.register(tx, node, layer);
+                }
+                return layer;
             }
         }
         return getDynamicLayer(tx, name);
@@ -151,6 +164,9 @@ public class SpatialDatabaseService implements Constants {
         } else {
             Node node = layer.getLayerNode(tx);
             node.setProperty(PROP_LAYER_CLASS, DynamicLayer.class.getCanonicalName());
+            if (layerRegistry != null) {
+                layerRegistry.invalidate(layer.getName());
+            }
             return (DynamicLayer) LayerUtilities.makeLayerFromNode(tx, indexManager, node);
         }
     }
@@ -349,6 +365,9 @@ public class SpatialDatabaseService implements Constants {
     public void deleteLayer(Transaction tx, String name, Listener monitor) {
         Layer layer = getLayer(tx, name);
         if (layer == null) throw new SpatialDatabaseException("Layer " + name + " does not exist");
+        if (layerRegistry != null) {
+            layerRegistry.invalidate(name);
+        }
         layer.delete(tx, monitor);
     }
 
@@ -27,26 +27,33 @@ import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
 
+/**
+ * Manages the property mappers stored on a layer. Layers may be cached and shared between transactions, so the
+ * mappers are loaded once per transaction, and changes made in one transaction are never seen by another before
+ * they are committed.
+ */
 public class PropertyMappingManager {
     private final Layer layer;
-    private LinkedHashMap<String, PropertyMapper> propertyMappers;
+    private final Map<Transaction, LinkedHashMap<String, PropertyMapper>> propertyMappers = Collections.synchronizedMap(new WeakHashMap<>());
 
     public PropertyMappingManager(Layer layer) {
         this.layer = layer;
     }
 
     private LinkedHashMap<String, PropertyMapper> getPropertyMappers(Transaction tx) {
-        if (propertyMappers == null) {
-            propertyMappers = new LinkedHashMap<>();
-            for (PropertyMapper mapper : loadMappers(tx).values()) {
-                addPropertyMapper(tx, mapper);
+        return propertyMappers.computeIfAbsent(tx, t -> {
+            LinkedHashMap<String, PropertyMapper> mappers = new LinkedHashMap<>();
+            for (PropertyMapper mapper : loadMappers(t).values()) {
+                mappers.put(mapper.to(), mapper);
             }
-        }
-        return propertyMappers;
+            return mappers;
+        });
     }
 
     private Map<Node, PropertyMapper> loadMappers(Transaction tx) {
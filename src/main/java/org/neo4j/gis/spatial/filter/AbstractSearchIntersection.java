@@ -22,9 +22,12 @@ package org.neo4j.gis.spatial.filter;
 import org.neo4j.gis.spatial.rtree.filter.AbstractSearchEnvelopeIntersection;
 import org.neo4j.gis.spatial.Layer;
 import org.neo4j.gis.spatial.Utilities;
+import org.neo4j.gis.spatial.rtree.Envelope;
 import org.neo4j.graphdb.Node;
 
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 
 /**
  * @author Craig Taverner
@@ -32,16 +35,29 @@ import org.locationtech.jts.geom.Geometry;
 public abstract class AbstractSearchIntersection extends AbstractSearchEnvelopeIntersection {
 	
 	protected Geometry referenceGeometry;
+	protected PreparedGeometry preparedReference;
+	protected boolean referenceIsRectangle;
 	protected Layer layer;
 
 	public AbstractSearchIntersection(Layer layer, Geometry referenceGeometry) {
 		super(layer.getGeometryEncoder(), Utilities.fromJtsToNeo4j(referenceGeometry.getEnvelopeInternal()));
 		this.referenceGeometry = referenceGeometry;
+		this.preparedReference = PreparedGeometryFactory.prepare(referenceGeometry);
+		this.referenceIsRectangle = referenceGeometry.isRectangle();
 		this.layer = layer;
 	}
 
+	/**
+	 * @return true if the reference geometry covers the whole envelope, so that it also covers every geometry inside
+	 * an index node with this bounding box
+	 */
+	protected boolean referenceCovers(Envelope envelope) {
+		return referenceEnvelope.contains(envelope)
+				&& (referenceIsRectangle || preparedReference.covers(layer.getGeometryFactory().toGeometry(Utilities.fromNeo4jToJts(envelope))));
+	}
+
 	protected Geometry decode(Node geomNode) {
-		return layer.getGeometryEncoder().decodeGeometry(geomNode);
+		return layer.decodeGeometry(geomNode);
 	}
 
 }
\ No newline at end of file
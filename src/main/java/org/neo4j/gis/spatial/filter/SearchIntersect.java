@@ -38,9 +38,20 @@ public class SearchIntersect extends AbstractSearchIntersection {
 		super(layer, other);
 	}
 
+	/**
+	 * Every geometry inside an index node that the reference geometry covers intersects it.
+	 */
+	@Override
+	public boolean matchesAll(Envelope indexNodeEnvelope) {
+		return referenceCovers(indexNodeEnvelope);
+	}
+
 	protected boolean onEnvelopeIntersection(Node geomNode, Envelope geomEnvelope) {
-		Geometry geometry = decode(geomNode);
-		return geometry.intersects(referenceGeometry);
+		// a rectangle intersects everything inside its envelope, so only decode when needed
+		if (referenceIsRectangle && referenceEnvelope.contains(geomEnvelope)) {
+			return true;
+		}
+		return preparedReference.intersects(decode(geomNode));
 	}
 
 }
\ No newline at end of file
@@ -26,6 +26,8 @@ import org.neo4j.gis.spatial.Utilities;
 import org.neo4j.graphdb.Node;
 
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 
 /**
  * Find geometries that intersect with the specified search window.
@@ -35,7 +37,7 @@ import org.locationtech.jts.geom.Geometry;
 public class SearchIntersectWindow extends AbstractSearchEnvelopeIntersection {
 
 	private Layer layer;
-	private Geometry windowGeom;
+	private PreparedGeometry windowGeom;
 
     public SearchIntersectWindow(Layer layer, Envelope envelope) {
         this(layer, Utilities.fromNeo4jToJts(envelope));
@@ -44,16 +46,28 @@ public class SearchIntersectWindow extends AbstractSearchEnvelopeIntersection {
 	public SearchIntersectWindow(Layer layer, org.locationtech.jts.geom.Envelope other) {
 		super(layer.getGeometryEncoder(), Utilities.fromJtsToNeo4j(other));
 		this.layer = layer;
-		this.windowGeom = layer.getGeometryFactory().toGeometry(other);
+		this.windowGeom = PreparedGeometryFactory.prepare(layer.getGeometryFactory().toGeometry(other));
+	}
+
+	/**
+	 * Every geometry inside the window intersects it.
+	 */
+	@Override
+	public boolean matchesAll(org.neo4j.gis.spatial.rtree.Envelope indexNodeEnvelope) {
+		return referenceEnvelope.contains(indexNodeEnvelope);
 	}
 
 	@Override
 	protected boolean onEnvelopeIntersection(Node geomNode, org.neo4j.gis.spatial.rtree.Envelope geomEnvelope) {
-		Geometry geometry = layer.getGeometryEncoder().decodeGeometry(geomNode);
+		// everything inside the window intersects it, so only decode when needed
+		if (referenceEnvelope.contains(geomEnvelope)) {
+			return true;
+		}
+		Geometry geometry = layer.decodeGeometry(geomNode);
 		// The next line just calls the method that is causing exceptions on OSM data for testing
 		// TODO: Remove when OSM is working properly
 		geometry.getEnvelopeInternal();
-		return geometry.intersects(windowGeom);
+		return windowGeom.intersects(geometry);
 	}
 
 }
\ No newline at end of file
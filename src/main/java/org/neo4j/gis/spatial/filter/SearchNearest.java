@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2010-2020 "Neo4j,"
+ * Neo4j Sweden AB [http://neo4j.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.filter;
+
+import org.locationtech.jts.geom.Geometry;
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.Utilities;
+import org.neo4j.gis.spatial.rtree.Envelope;
+import org.neo4j.gis.spatial.rtree.filter.SearchDistanceFilter;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Find geometries in order of their distance to the reference geometry. Distances are cartesian and in the units of
+ * the layer coordinate system. The distance between the envelopes is used as the lower bound, and the geometry is
+ * only decoded once the search reaches its envelope.
+ */
+public class SearchNearest implements SearchDistanceFilter {
+
+	private final Layer layer;
+	private final Geometry referenceGeometry;
+	private final org.locationtech.jts.geom.Envelope referenceEnvelope;
+	private final double maxDistance;
+
+	public SearchNearest(Layer layer, Geometry referenceGeometry) {
+		this(layer, referenceGeometry, Double.POSITIVE_INFINITY);
+	}
+
+	public SearchNearest(Layer layer, Geometry referenceGeometry, double maxDistance) {
+		this.layer = layer;
+		this.referenceGeometry = referenceGeometry;
+		this.referenceEnvelope = referenceGeometry.getEnvelopeInternal();
+		this.maxDistance = maxDistance;
+	}
+
+	@Override
+	public boolean needsToVisit(Envelope envelope) {
+		return minDistance(envelope) <= maxDistance;
+	}
+
+	@Override
+	public boolean geometryMatches(Transaction tx, Node geomNode) {
+		return true;
+	}
+
+	@Override
+	public double minDistance(Envelope envelope) {
+		return referenceEnvelope.distance(Utilities.fromNeo4jToJts(envelope));
+	}
+
+	@Override
+	public double distance(Transaction tx, Node geomNode) {
+		return layer.decodeGeometry(geomNode).distance(referenceGeometry);
+	}
+
+	@Override
+	public double maxDistance() {
+		return maxDistance;
+	}
+
+}
@@ -28,14 +28,14 @@ import java.util.Iterator;
 
 public class SearchRecords implements Iterable<SpatialDatabaseRecord>, Iterator<SpatialDatabaseRecord> {
 
-    private final SearchResults results;
-    private final Iterator<Node> nodeIterator;
+    private SearchResults results;
+    private Iterator<Node> nodeIterator;
     private final Layer layer;
+    private boolean started = false;
 
     public SearchRecords(Layer layer, SearchResults results) {
         this.layer = layer;
         this.results = results;
-        nodeIterator = results.iterator();
     }
 
     @Override
@@ -45,12 +45,37 @@ public class SearchRecords implements Iterable<SpatialDatabaseRecord>, Iterator<
 
     @Override
     public boolean hasNext() {
-        return nodeIterator.hasNext();
+        started = true;
+        return nodeIterator().hasNext();
     }
 
     @Override
     public SpatialDatabaseRecord next() {
-        return new SpatialDatabaseRecord(layer, nodeIterator.next());
+        started = true;
+        return new SpatialDatabaseRecord(layer, nodeIterator().next());
+    }
+
+    private Iterator<Node> nodeIterator() {
+        if (nodeIterator == null) {
+            nodeIterator = results.iterator();
+        }
+        return nodeIterator;
+    }
+
+    /**
+     * Restrict the records to the positions low up to and including high, where -1 is a wildcard for either, by
+     * passing the range on to the index search.
+     *
+     * @return false if the records are already being iterated, and the range could not be applied
+     */
+    public boolean applyRange(long low, long high) {
+        if (started) {
+            return false;
+        }
+        int offset = low < 0 ? 0 : (int) low;
+        int limit = high < 0 ? -1 : (int) Math.max(0, high - offset + 1);
+        results = results.range(offset, limit);
+        return true;
     }
 
     @Override
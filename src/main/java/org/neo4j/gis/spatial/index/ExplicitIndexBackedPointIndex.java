@@ -30,6 +30,7 @@ import org.neo4j.gis.spatial.rtree.filter.SearchResults;
 import org.neo4j.graphdb.*;
 import org.neo4j.kernel.api.KernelTransaction;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -110,6 +111,13 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
         }
     }
 
+    @Override
+    public void remove(Transaction tx, Collection<Long> geomNodeIds, boolean deleteGeomNodes, boolean throwExceptionIfNotFound) {
+        for (long geomNodeId : geomNodeIds) {
+            remove(tx, geomNodeId, deleteGeomNodes, throwExceptionIfNotFound);
+        }
+    }
+
     @Override
     public void removeAll(Transaction tx, boolean deleteGeomNodes, Listener monitor) {
         if (deleteGeomNodes) {
@@ -157,30 +165,39 @@ public abstract class ExplicitIndexBackedPointIndex<E> implements LayerIndexRead
 
     @Override
     public SearchResults searchIndex(Transaction tx, SearchFilter filter) {
-        Iterator<Node> indexHits = index.query(tx, searcherFor(tx, filter));
-        return new SearchResults(() -> new FilteredIndexIterator(tx, indexHits, filter));
+        return new SearchResults((offset, limit) -> () -> new FilteredIndexIterator(tx, index.query(tx, searcherFor(tx, filter)), filter, offset, limit));
     }
 
     private class FilteredIndexIterator implements Iterator<Node> {
         private final Transaction tx;
         private final Iterator<Node> inner;
         private final SearchFilter filter;
+        private int toSkip;
+        private int remaining;
         private Node next = null;
 
-        private FilteredIndexIterator(Transaction tx, Iterator<Node> inner, SearchFilter filter) {
+        private FilteredIndexIterator(Transaction tx, Iterator<Node> inner, SearchFilter filter, int offset, int limit) {
             this.tx = tx;
             this.inner = inner;
             this.filter = filter;
+            this.toSkip = offset;
+            this.remaining = limit < 0 ? Integer.MAX_VALUE : limit;
             prefetch();
         }
 
         private void prefetch() {
             next = null;
-            while (inner.hasNext()) {
+            // stop reading the index once the limit is reached
+            while (remaining > 0 && inner.hasNext()) {
                 Node node = inner.next();
                 if (filter.geometryMatches(tx, node)) {
-                    next = node;
                     monitor.hit();
+                    if (toSkip > 0) {
+                        toSkip--;
+                        continue;
+                    }
+                    next = node;
+                    remaining--;
                     break;
                 } else {
                     monitor.miss();
@@ -48,6 +48,10 @@ public class IndexManager {
         this.securityContext = IndexAccessMode.withIndexCreate(securityContext);
     }
 
+    public GraphDatabaseAPI getDatabase() {
+        return db;
+    }
+
     /**
      * Blocking call that spawns a thread to create an index and then waits for that thread to finish.
      * This is highly likely to cause deadlocks on index checks, so be careful where it is used.
@@ -43,7 +43,7 @@ public class LayerGeohashPointIndex extends ExplicitIndexBackedPointIndex<String
     @Override
     protected String getIndexValueFor(Transaction tx, Node geomNode) {
         //TODO: Make this code projection aware - currently it assumes lat/lon
-        Geometry geom = layer.getGeometryEncoder().decodeGeometry(geomNode);
+        Geometry geom = layer.decodeGeometry(geomNode);
         Point point = geom.getCentroid();   // Other code is ensuring only point layers use this, but just in case we encode the centroid
         long encoded = MortonEncoder.encode(point.getY(), point.getX());
         return MortonEncoder.geoTermToString(encoded);
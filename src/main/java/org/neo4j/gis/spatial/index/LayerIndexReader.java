@@ -38,5 +38,13 @@ public interface LayerIndexReader extends SpatialIndexReader {
 	Layer getLayer();
 
 	SearchRecords search(Transaction tx, SearchFilter filter);
+
+	/**
+	 * Search the index, skipping the first offset matching geometries and returning at most limit geometries, or all
+	 * remaining geometries if limit is negative.
+	 */
+	default SearchRecords search(Transaction tx, SearchFilter filter, int offset, int limit) {
+		return new SearchRecords(getLayer(), searchIndex(tx, filter, offset, limit));
+	}
 	
 }
\ No newline at end of file
@@ -96,7 +96,7 @@ public abstract class LayerSpaceFillingCurvePointIndex extends ExplicitIndexBack
     @Override
     protected Long getIndexValueFor(Transaction tx, Node geomNode) {
         //TODO: Make this code projection aware - currently it assumes lat/lon
-        Geometry geom = layer.getGeometryEncoder().decodeGeometry(geomNode);
+        Geometry geom = layer.decodeGeometry(geomNode);
         Point point = geom.getCentroid();   // Other code is ensuring only point layers use this, but just in case we encode the centroid
         return getCurve(tx).derivedValueFor(new double[]{point.getX(), point.getY()});
     }
@@ -19,10 +19,14 @@
  */
 package org.neo4j.gis.spatial.index;
 
+import org.neo4j.gis.spatial.rtree.RTreeIndex;
 import org.neo4j.gis.spatial.rtree.SpatialIndexVisitor;
+import org.neo4j.gis.spatial.rtree.filter.SearchDistanceFilter;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
 
+import java.util.Iterator;
+
 /**
  * Spatial Indexes based on tree structures can implement the following methods common to maintaining and searching tree structures.
  */
@@ -31,5 +35,10 @@ public interface LayerTreeIndexReader extends LayerIndexReader {
 	Node getIndexRoot(Transaction tx);
 	
 	void visit(Transaction tx, SpatialIndexVisitor visitor, Node indexNode);
+
+	/**
+	 * Search the tree in order of increasing distance, as defined by the distance bounds of the filter.
+	 */
+	Iterator<RTreeIndex.NodeWithDistance> searchNearest(Transaction tx, SearchDistanceFilter filter);
 	
 }
@@ -45,6 +45,15 @@ public interface SpatialIndexReader {
 
     SearchResults searchIndex(Transaction tx, SearchFilter filter);
 
+    /**
+     * Search the index, skipping the first offset matching geometries and returning at most limit geometries, or all
+     * remaining geometries if limit is negative. Indexes that support it stop searching once enough geometries were
+     * found.
+     */
+    default SearchResults searchIndex(Transaction tx, SearchFilter filter, int offset, int limit) {
+        return searchIndex(tx, filter).range(offset, limit);
+    }
+
     void addMonitor(TreeMonitor monitor);
 
     void configure(Map<String, Object> config);
@@ -23,6 +23,7 @@ import org.neo4j.gis.spatial.rtree.Listener;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
 
+import java.util.Collection;
 import java.util.List;
 
 
@@ -32,6 +33,8 @@ public interface SpatialIndexWriter extends SpatialIndexReader {
 	void add(Transaction tx, List<Node> geomNodes);
 
 	void remove(Transaction tx, long geomNodeId, boolean deleteGeomNode, boolean throwExceptionIfNotFound);
+
+	void remove(Transaction tx, Collection<Long> geomNodeIds, boolean deleteGeomNodes, boolean throwExceptionIfNotFound);
 	
 	void removeAll(Transaction tx, boolean deleteGeomNodes, Listener monitor);
 	
@@ -182,7 +182,7 @@ public class OSMDataset implements SpatialDataset, Iterator<OSMDataset.Way> {
 
         public Geometry getGeometry() {
             if (geometry == null && geomNode != null) {
-                geometry = layer.getGeometryEncoder().decodeGeometry(geomNode);
+                geometry = layer.decodeGeometry(geomNode);
             }
             return geometry;
         }
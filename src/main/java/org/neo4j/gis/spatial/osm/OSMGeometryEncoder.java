@@ -27,6 +27,8 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.neo4j.gis.spatial.rtree.Envelope;
 import org.neo4j.gis.spatial.AbstractGeometryEncoder;
@@ -46,14 +48,14 @@ import org.neo4j.kernel.impl.traversal.MonoDirectionalTraversalDescription;
 
 public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 
-	private static int decodedCount = 0;
-	private static int overrunCount = 0;
-	private static int nodeId = 0;
-	private static int wayId = 0;
-	private static int relationId = 0;
-	private DateFormat dateTimeFormatter;
-	private int vertices;
-	private int vertexMistmaches = 0;
+	// encoders are shared between transactions once their layer is cached, so all mutable state is thread-safe
+	private static final AtomicInteger decodedCount = new AtomicInteger();
+	private static final AtomicInteger overrunCount = new AtomicInteger();
+	private static final AtomicInteger nodeId = new AtomicInteger();
+	private static final AtomicInteger wayId = new AtomicInteger();
+	private static final AtomicInteger relationId = new AtomicInteger();
+	private static final ThreadLocal<DateFormat> dateTimeFormatter = ThreadLocal.withInitial(() -> new java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ"));
+	private final AtomicInteger vertexMistmaches = new AtomicInteger();
 
 	/**
 	 * This class allows for OSM to avoid having empty tags nodes when there are
@@ -316,21 +318,22 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 				// + (index + 1) +
 				// " > " + vertices);
 				overrun = true;
-				overrunCount++;
+				overrunCount.incrementAndGet();
 				break;
 			}
 			coordinates.add(new Coordinate((Double) node.getProperty("lon"), (Double) node.getProperty("lat")));
 		}
-		decodedCount++;
+		int decoded = decodedCount.incrementAndGet();
 		if (overrun) {
-			System.out.println("Overran expected number of way nodes: " + wayNode + " (" + overrunCount + "/" + decodedCount + ")");
+			System.out.println("Overran expected number of way nodes: " + wayNode + " (" + overrunCount.get() + "/" + decoded + ")");
 		}
 		if (coordinates.size() != vertices) {
-			if (vertexMistmaches++ < 10) {
+			int mismatches = vertexMistmaches.getAndIncrement();
+			if (mismatches < 10) {
 				System.err.println("Mismatching vertices size for " + SpatialDatabaseService.convertGeometryTypeToName(gtype) + ":"
 						+ wayNode + ": " + coordinates.size() + " != " + vertices);
-			} else if (vertexMistmaches % 100 == 0) {
-				System.err.println("Mismatching vertices found " + vertexMistmaches + " times");
+			} else if (mismatches % 100 == 0) {
+				System.err.println("Mismatching vertices found " + mismatches + " times");
 			}
 		}
 		switch (coordinates.size()) {
@@ -357,7 +360,6 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 	@Override
 	protected void encodeGeometryShape(Transaction tx, Geometry geometry, Entity container) {
 		Node geomNode = testIsNode(container);
-		vertices = 0;
 		int gtype = SpatialDatabaseService.convertJtsClassToGeometryType(geometry.getClass());
 		switch (gtype) {
 		case GTYPE_POINT:
@@ -382,7 +384,8 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 		default:
 			throw new SpatialDatabaseException("Unsupported geometry: " + geometry.getClass());
 		}
-		geomNode.setProperty("vertices", vertices);
+		// one OSM node is created for every coordinate of the geometry
+		geomNode.setProperty("vertices", geometry.getNumPoints());
 	}
 
 	private Node makeOSMNode(Transaction tx, Geometry geometry, Node geomNode) {
@@ -392,11 +395,9 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 	}
 
 	private Node makeOSMNode(Transaction tx, Coordinate coordinate) {
-		vertices++;
-		nodeId++;
 		Node node = tx.createNode();
 		// TODO: Generate a valid osm id
-		node.setProperty(OSMId.NODE.toString(), nodeId);
+		node.setProperty(OSMId.NODE.toString(), nodeId.incrementAndGet());
 		node.setProperty("lat", coordinate.y);
 		node.setProperty("lon", coordinate.x);
 		node.setProperty("timestamp", getTimestamp());
@@ -405,10 +406,9 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 	}
 
 	private Node makeOSMWay(Transaction tx, Geometry geometry, Node geomNode, int gtype) {
-		wayId++;
 		Node way = tx.createNode();
 		// TODO: Generate a valid osm id
-		way.setProperty(OSMId.WAY.toString(), wayId);
+		way.setProperty(OSMId.WAY.toString(), wayId.incrementAndGet());
 		way.setProperty("timestamp", getTimestamp());
 		// TODO: Add other common properties, like changeset, uid, user,
 		// version, name
@@ -432,26 +432,25 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 	}
 
 	private Node makeOSMRelation(Geometry geometry, Node geomNode) {
-		relationId++;
+		relationId.incrementAndGet();
 		throw new SpatialDatabaseException("Unimplemented: makeOSMRelation()");
 	}
 
 	private String getTimestamp() {
-		if (dateTimeFormatter == null)
-			dateTimeFormatter = new java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-		return dateTimeFormatter.format(new Date(System.currentTimeMillis()));
+		return dateTimeFormatter.get().format(new Date(System.currentTimeMillis()));
 	}
 
-	private Node lastGeom = null;
-	private CombinedAttributes lastAttr = null;
-	private long missingTags = 0;
+	private final ThreadLocal<CombinedAttributes> lastAttr = new ThreadLocal<>();
+	private final AtomicLong missingTags = new AtomicLong();
 
 	private class CombinedAttributes {
+		private final Node geomNode;
 		private Node node;
 		private Entity properties;
 		private HashMap<String, Object> extra = new HashMap<>();
 
 		CombinedAttributes(Node geomNode) {
+			this.geomNode = geomNode;
 			try {
 				node = geomNode.getSingleRelationship(OSMRelation.GEOM, Direction.INCOMING).getStartNode();
 				properties = node.getSingleRelationship(OSMRelation.TAGS, Direction.OUTGOING).getEndNode();
@@ -465,10 +464,11 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 					}
 				}
 			} catch (NullPointerException e) {
-				if (missingTags++ < 10) {
+				long missing = missingTags.getAndIncrement();
+				if (missing < 10) {
                     System.err.println("Geometry has no related tags node: " + geomNode);
-				} else if (missingTags % 100 == 0) {
-					System.err.println("Geometries without tags found " + missingTags + " times");
+				} else if (missing % 100 == 0) {
+					System.err.println("Geometries without tags found " + missing + " times");
 				}
 				properties = new NullProperties();
 			}
@@ -486,11 +486,12 @@ public class OSMGeometryEncoder extends AbstractGeometryEncoder {
 	}
 
 	private CombinedAttributes getProperties(Node geomNode) {
-		if (geomNode != lastGeom) {
-			lastGeom = geomNode;
-			lastAttr = new CombinedAttributes(geomNode);
+		CombinedAttributes attributes = lastAttr.get();
+		if (attributes == null || attributes.geomNode != geomNode) {
+			attributes = new CombinedAttributes(geomNode);
+			lastAttr.set(attributes);
 		}
-		return lastAttr;
+		return attributes;
 	}
 
 	/**
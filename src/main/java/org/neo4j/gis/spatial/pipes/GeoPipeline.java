@@ -33,10 +33,14 @@ import org.neo4j.gis.spatial.SpatialDatabaseRecord;
 import org.neo4j.gis.spatial.SpatialRecord;
 import org.neo4j.gis.spatial.SpatialTopologyUtils;
 import org.neo4j.gis.spatial.filter.SearchIntersectWindow;
+import org.neo4j.gis.spatial.filter.SearchNearest;
 import org.neo4j.gis.spatial.filter.SearchRecords;
+import org.neo4j.gis.spatial.index.LayerIndexReader;
+import org.neo4j.gis.spatial.index.LayerTreeIndexReader;
 import org.neo4j.gis.spatial.pipes.filtering.*;
 import org.neo4j.gis.spatial.pipes.impl.*;
 import org.neo4j.gis.spatial.pipes.processing.*;
+import org.neo4j.gis.spatial.rtree.RTreeIndex;
 import org.neo4j.gis.spatial.rtree.filter.SearchAll;
 import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
 import org.neo4j.graphdb.Node;
@@ -60,7 +64,38 @@ public class GeoPipeline extends Pipeline<GeoPipeFlow, GeoPipeFlow> {
     }
 
     protected static IdentityPipe<GeoPipeFlow> createStartPipe(final Iterator<SpatialDatabaseRecord> records) {
-        final Iterator<GeoPipeFlow> start = new Iterator<>() {
+        final Iterator<GeoPipeFlow> start = toFlows(records);
+        return new IdentityPipe<>() {
+            {
+                super.setStarts(start);
+            }
+        };
+    }
+
+    /**
+     * The start pipe for search results passes the range of a following RangeFilterPipe on to the index search, so
+     * that the records outside the range are not decoded.
+     */
+    protected static IdentityPipe<GeoPipeFlow> createStartPipe(final SearchRecords records) {
+        return new SearchStartPipe(records);
+    }
+
+    private static class SearchStartPipe extends IdentityPipe<GeoPipeFlow> implements RangeBoundable {
+        private final SearchRecords records;
+
+        private SearchStartPipe(SearchRecords records) {
+            this.records = records;
+            super.setStarts(toFlows(records));
+        }
+
+        @Override
+        public boolean applyRange(long low, long high) {
+            return records.applyRange(low, high);
+        }
+    }
+
+    private static Iterator<GeoPipeFlow> toFlows(final Iterator<SpatialDatabaseRecord> records) {
+        return new Iterator<>() {
             @Override
             public boolean hasNext() {
                 return records.hasNext();
@@ -76,11 +111,6 @@ public class GeoPipeline extends Pipeline<GeoPipeFlow, GeoPipeFlow> {
                 records.remove();
             }
         };
-        return new IdentityPipe<>() {
-            {
-                super.setStarts(start);
-            }
-        };
     }
 
     /**
@@ -276,6 +306,52 @@ public class GeoPipeline extends Pipeline<GeoPipeFlow, GeoPipeFlow> {
                 .propertyFilter("Distance", maxDistance, FilterPipe.Filter.LESS_THAN_EQUAL);
     }
 
+    /**
+     * Extracts the k Layer items nearest to the given point, streamed in order of increasing distance. Layers with a
+     * tree index use an incremental best-first search, so no search window needs to be guessed. Other layers fall
+     * back to the density based search window of startNearestNeighborSearch, which could lead to fewer results.
+     * The distance is stored in the "Distance" property, as for calculateDistance.
+     *
+     * @param layer
+     * @param point
+     * @param k     the number of items to find
+     * @return geoPipeline
+     */
+    public static GeoPipeline startKNearest(final Transaction tx, Layer layer, Coordinate point, int k) {
+        Geometry reference = layer.getGeometryFactory().createPoint(point);
+        LayerIndexReader index = layer.getIndex();
+        if (!(index instanceof LayerTreeIndexReader)) {
+            return startNearestNeighborSearch(tx, layer, point, k).sort("Distance").range(0, k - 1);
+        }
+        final Iterator<RTreeIndex.NodeWithDistance> nearest = ((LayerTreeIndexReader) index).searchNearest(tx, new SearchNearest(layer, reference));
+        final Iterator<GeoPipeFlow> start = new Iterator<>() {
+            private int count = 0;
+
+            @Override
+            public boolean hasNext() {
+                return count < k && nearest.hasNext();
+            }
+
+            @Override
+            public GeoPipeFlow next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                count++;
+                RTreeIndex.NodeWithDistance result = nearest.next();
+                GeoPipeFlow flow = new GeoPipeFlow(new SpatialDatabaseRecord(layer, result.node));
+                flow.getProperties().put("Distance", result.distance);
+                return flow;
+            }
+        };
+        GeoPipeline pipeline = new GeoPipeline(layer);
+        return pipeline.add(new IdentityPipe<GeoPipeFlow>() {
+            {
+                super.setStarts(start);
+            }
+        });
+    }
+
     /**
      * Adds a pipe at the end of this pipeline
      *
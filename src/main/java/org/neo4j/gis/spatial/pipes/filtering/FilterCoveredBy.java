@@ -24,6 +24,8 @@ import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 
 
 /**
@@ -33,17 +35,24 @@ public class FilterCoveredBy extends AbstractFilterGeoPipe {
 
 	private Geometry other;
 	private Envelope otherEnvelope;
+	private PreparedGeometry prepared;
+	private boolean otherIsRectangle;
 	
 	public FilterCoveredBy(Geometry other) {
 		this.other = other;
 		this.otherEnvelope = other.getEnvelopeInternal();
+		this.prepared = PreparedGeometryFactory.prepare(other);
+		this.otherIsRectangle = other.isRectangle();
 	}
 
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
 		// check if every point of this geometry is a point of the other geometry
-	    return otherEnvelope.covers(flow.getEnvelope()) 
-	    		&& flow.getGeometry().coveredBy(other);		
+	    if (!otherEnvelope.covers(flow.getEnvelope())) {
+	    	return false;
+	    }
+	    // a rectangle covers everything inside its envelope
+	    return otherIsRectangle || prepared.covers(flow.getGeometry());
 	}
 
 }
\ No newline at end of file
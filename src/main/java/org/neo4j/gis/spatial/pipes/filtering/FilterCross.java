@@ -22,7 +22,10 @@ package org.neo4j.gis.spatial.pipes.filtering;
 import org.neo4j.gis.spatial.pipes.AbstractFilterGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 
 
 /**
@@ -31,13 +34,18 @@ import org.locationtech.jts.geom.Geometry;
 public class FilterCross extends AbstractFilterGeoPipe {
 
 	private Geometry other;
+	private Envelope otherEnvelope;
+	private PreparedGeometry prepared;
 	
 	public FilterCross(Geometry other) {
 		this.other = other;
+		this.otherEnvelope = other.getEnvelopeInternal();
+		this.prepared = PreparedGeometryFactory.prepare(other);
 	}
 
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
-		return flow.getGeometry().crosses(other);
+		return flow.getEnvelope().intersects(otherEnvelope)
+				&& prepared.crosses(flow.getGeometry());
 	}
 }
\ No newline at end of file
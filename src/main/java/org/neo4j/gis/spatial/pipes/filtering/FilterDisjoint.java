@@ -24,6 +24,8 @@ import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 
 
 /**
@@ -33,15 +35,17 @@ public class FilterDisjoint extends AbstractFilterGeoPipe {
 
 	private Geometry other;
 	private Envelope otherEnvelope;
+	private PreparedGeometry prepared;
 	
 	public FilterDisjoint(Geometry other) {
 		this.other = other;
 		this.otherEnvelope = other.getEnvelopeInternal();
+		this.prepared = PreparedGeometryFactory.prepare(other);
 	}
 	
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
 		return !flow.getEnvelope().intersects(otherEnvelope)
-				|| flow.getGeometry().disjoint(other);
+				|| prepared.disjoint(flow.getGeometry());
 	}
 }
\ No newline at end of file
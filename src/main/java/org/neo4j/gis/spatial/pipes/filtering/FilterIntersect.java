@@ -22,7 +22,10 @@ package org.neo4j.gis.spatial.pipes.filtering;
 import org.neo4j.gis.spatial.pipes.AbstractFilterGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 
 
 /**
@@ -31,13 +34,27 @@ import org.locationtech.jts.geom.Geometry;
 public class FilterIntersect extends AbstractFilterGeoPipe {
 
 	private Geometry geometry;
+	private Envelope envelope;
+	private PreparedGeometry prepared;
+	private boolean geometryIsRectangle;
 	
 	public FilterIntersect(Geometry geometry) {
 		this.geometry = geometry;
+		this.envelope = geometry.getEnvelopeInternal();
+		this.prepared = PreparedGeometryFactory.prepare(geometry);
+		this.geometryIsRectangle = geometry.isRectangle();
 	}	
 	
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
-		return geometry.intersects(flow.getGeometry());
+		Envelope flowEnvelope = flow.getEnvelope();
+		if (!envelope.intersects(flowEnvelope)) {
+			return false;
+		}
+		// a rectangle intersects everything inside its envelope
+		if (geometryIsRectangle && envelope.covers(flowEnvelope)) {
+			return true;
+		}
+		return prepared.intersects(flow.getGeometry());
 	}
 }
\ No newline at end of file
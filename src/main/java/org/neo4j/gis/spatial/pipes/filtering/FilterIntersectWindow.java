@@ -25,6 +25,8 @@ import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 
 
 /**
@@ -33,7 +35,7 @@ import org.locationtech.jts.geom.GeometryFactory;
 public class FilterIntersectWindow extends AbstractFilterGeoPipe {
 
 	private Envelope envelope;
-	private Geometry envelopeGeom;
+	private PreparedGeometry envelopeGeom;
 	
 	public FilterIntersectWindow(GeometryFactory geomFactory, double xmin, double ymin, double xmax, double ymax) {
 		this(geomFactory, new Envelope(xmin, xmax, ymin, ymax));
@@ -41,12 +43,16 @@ public class FilterIntersectWindow extends AbstractFilterGeoPipe {
 	
 	public FilterIntersectWindow(GeometryFactory geomFactory, Envelope envelope) {
 		this.envelope = envelope;
-		this.envelopeGeom = geomFactory.toGeometry(envelope);
+		this.envelopeGeom = PreparedGeometryFactory.prepare(geomFactory.toGeometry(envelope));
 	}	
 	
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
-		return envelope.intersects(flow.getEnvelope()) 
-				&& envelopeGeom.intersects(flow.getGeometry());
+		Envelope flowEnvelope = flow.getEnvelope();
+		if (!envelope.intersects(flowEnvelope)) {
+			return false;
+		}
+		// everything inside the window intersects it
+		return envelope.covers(flowEnvelope) || envelopeGeom.intersects(flow.getGeometry());
 	}
 }
\ No newline at end of file
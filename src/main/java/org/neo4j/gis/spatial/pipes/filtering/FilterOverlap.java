@@ -22,7 +22,10 @@ package org.neo4j.gis.spatial.pipes.filtering;
 import org.neo4j.gis.spatial.pipes.AbstractFilterGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 
 
 /**
@@ -31,9 +34,13 @@ import org.locationtech.jts.geom.Geometry;
 public class FilterOverlap extends AbstractFilterGeoPipe {
 
 	private Geometry other;
+	private Envelope otherEnvelope;
+	private PreparedGeometry prepared;
 	
 	public FilterOverlap(Geometry other) {
 		this.other = other;
+		this.otherEnvelope = other.getEnvelopeInternal();
+		this.prepared = PreparedGeometryFactory.prepare(other);
 	}
 
 	@Override
@@ -42,6 +49,7 @@ public class FilterOverlap extends AbstractFilterGeoPipe {
 		// they have the same dimension,
 		// and the intersection of the interiors of the two geometries has
 		// the same dimension as the geometries themselves
-		return flow.getGeometry().overlaps(other);
+		return flow.getEnvelope().intersects(otherEnvelope)
+				&& prepared.overlaps(flow.getGeometry());
 	}
 }
\ No newline at end of file
@@ -22,7 +22,10 @@ package org.neo4j.gis.spatial.pipes.filtering;
 import org.neo4j.gis.spatial.pipes.AbstractFilterGeoPipe;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 
 
 /**
@@ -31,14 +34,19 @@ import org.locationtech.jts.geom.Geometry;
 public class FilterTouch extends AbstractFilterGeoPipe {
 
 	private Geometry other;
+	private Envelope otherEnvelope;
+	private PreparedGeometry prepared;
 	
 	public FilterTouch(Geometry other) {
 		this.other = other;
+		this.otherEnvelope = other.getEnvelopeInternal();
+		this.prepared = PreparedGeometryFactory.prepare(other);
 	}
 
 	@Override
 	protected boolean validate(GeoPipeFlow flow) {
 		// if the geometries have at least one point in common, but their interiors do not intersect
-		return flow.getGeometry().touches(other);
+		return flow.getEnvelope().intersects(otherEnvelope)
+				&& prepared.touches(flow.getGeometry());
 	}
 }
\ No newline at end of file
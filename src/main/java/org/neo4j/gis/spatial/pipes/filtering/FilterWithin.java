@@ -24,6 +24,8 @@ import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 
 
 /**
@@ -33,10 +35,12 @@ public class FilterWithin extends AbstractFilterGeoPipe {
 
 	private Geometry other;
 	private Envelope otherEnvelope;
+	private PreparedGeometry prepared;
 	
 	public FilterWithin(Geometry other) {
 		this.other = other;
 		this.otherEnvelope = other.getEnvelopeInternal();
+		this.prepared = PreparedGeometryFactory.prepare(other);
 	}
 
 	@Override
@@ -44,6 +48,6 @@ public class FilterWithin extends AbstractFilterGeoPipe {
 		// check if every point of this geometry is a point of the other geometry,
 		// and the interiors of the two geometries have at least one point in common
 		return otherEnvelope.contains(flow.getEnvelope()) 
-				&& flow.getGeometry().within(other);
+				&& prepared.contains(flow.getGeometry());
 	}
 }
\ No newline at end of file
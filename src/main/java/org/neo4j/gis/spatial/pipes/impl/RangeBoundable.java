@@ -0,0 +1,16 @@
+package org.neo4j.gis.spatial.pipes.impl;
+
+/**
+ * A RangeBoundable pipe can apply the range of a RangeFilterPipe that directly follows it itself, so that objects
+ * outside the range are never produced instead of being produced and then discarded.
+ */
+public interface RangeBoundable {
+
+    /**
+     * Only emit the objects from position low up to and including position high, where -1 is a wildcard as in
+     * RangeFilterPipe. This is only possible before the first object was emitted.
+     *
+     * @return true if the range was applied, false if the RangeFilterPipe has to apply it
+     */
+    boolean applyRange(long low, long high);
+}
@@ -1,11 +1,13 @@
 package org.neo4j.gis.spatial.pipes.impl;
 
+import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
  * The RangeFilterPipe will only allow a sequential subset of its incoming objects to be emitted to its output.
  * This pipe can be provided -1 for both its high and low range to denote a wildcard for high and/or low.
  * Note that -1 for both high and low is equivalent to the IdentityPipe.
+ * If the pipe before it is RangeBoundable, the range is pushed up to that pipe instead.
  *
  * @author Marko A. Rodriguez (http://markorodriguez.com)
  */
@@ -14,6 +16,7 @@ public class RangeFilterPipe<S> extends AbstractPipe<S, S> implements FilterPipe
     private final long low;
     private final long high;
     private int counter = -1;
+    private boolean appliedUpstream = false;
 
     public RangeFilterPipe(final long low, final long high) {
         this.low = low;
@@ -23,7 +26,30 @@ public class RangeFilterPipe<S> extends AbstractPipe<S, S> implements FilterPipe
         }
     }
 
+    public void setStarts(final Pipe<?, S> starts) {
+        super.setStarts(starts);
+        pushUpstream(starts);
+    }
+
+    public void setStarts(final Iterator<S> starts) {
+        super.setStarts(starts);
+        pushUpstream(starts);
+    }
+
+    private void pushUpstream(final Iterator<S> starts) {
+        if (!this.appliedUpstream && starts instanceof RangeBoundable) {
+            this.appliedUpstream = ((RangeBoundable) starts).applyRange(this.low, this.high);
+        }
+    }
+
     protected S processNextStart() {
+        if (this.appliedUpstream) {
+            return this.starts.next();
+        }
+        if (this.high != -1 && this.counter >= this.high) {
+            // do not pull another object from upstream once the range is complete
+            throw new NoSuchElementException();
+        }
         while (true) {
             final S s = this.starts.next();
             this.counter++;
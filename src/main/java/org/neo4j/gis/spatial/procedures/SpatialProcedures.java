@@ -31,9 +31,13 @@ import org.neo4j.gis.spatial.encoders.SimplePropertyEncoder;
 import org.neo4j.gis.spatial.encoders.neo4j.Neo4jCRS;
 import org.neo4j.gis.spatial.encoders.neo4j.Neo4jGeometry;
 import org.neo4j.gis.spatial.encoders.neo4j.Neo4jPoint;
+import org.neo4j.gis.spatial.filter.SearchCoveredBy;
+import org.neo4j.gis.spatial.filter.SearchIntersect;
+import org.neo4j.gis.spatial.filter.SearchIntersectWindow;
 import org.neo4j.gis.spatial.index.IndexManager;
 import org.neo4j.gis.spatial.index.LayerGeohashPointIndex;
 import org.neo4j.gis.spatial.index.LayerHilbertPointIndex;
+import org.neo4j.gis.spatial.index.LayerIndexReader;
 import org.neo4j.gis.spatial.index.LayerZOrderPointIndex;
 import org.neo4j.gis.spatial.osm.OSMGeometryEncoder;
 import org.neo4j.gis.spatial.osm.OSMImporter;
@@ -41,11 +45,15 @@ import org.neo4j.gis.spatial.osm.OSMLayer;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 import org.neo4j.gis.spatial.pipes.GeoPipeline;
 import org.neo4j.gis.spatial.pipes.processing.OrthodromicDistance;
+import org.neo4j.gis.spatial.rtree.AttributeSummary;
+import org.neo4j.gis.spatial.rtree.CoveredEntry;
 import org.neo4j.gis.spatial.rtree.ProgressLoggingListener;
+import org.neo4j.gis.spatial.rtree.RTreeIndex;
 import org.neo4j.graphdb.Entity;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.internal.helpers.collection.Iterables;
 import org.neo4j.internal.kernel.api.exceptions.ProcedureException;
 import org.neo4j.internal.kernel.api.procs.ProcedureSignature;
 import org.neo4j.internal.kernel.api.security.SecurityContext;
@@ -123,6 +131,48 @@ public class SpatialProcedures {
         }
     }
 
+    public static class AggregateResult {
+        public final Number value;
+
+        public AggregateResult(Number value) {
+            this.value = value;
+        }
+    }
+
+    public static class CoveredEntryResult {
+        public final long nodeId;
+        public final List<Double> bbox;
+        public final Map<String, Object> properties;
+
+        public CoveredEntryResult(long nodeId, org.neo4j.gis.spatial.index.Envelope envelope, Map<String, Object> properties) {
+            this.nodeId = nodeId;
+            this.bbox = Arrays.asList(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY());
+            this.properties = properties;
+        }
+
+        public CoveredEntryResult(CoveredEntry entry) {
+            this(entry.getNodeId(), entry.getEnvelope(), entry.getValues());
+        }
+    }
+
+    public static class GeometryCacheResult {
+        public final long size;
+        public final long vertices;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final long invalidations;
+
+        public GeometryCacheResult(GeometryCache cache) {
+            this.size = cache.size();
+            this.vertices = cache.getVertices();
+            this.hits = cache.getHits();
+            this.misses = cache.getMisses();
+            this.evictions = cache.getEvictions();
+            this.invalidations = cache.getInvalidations();
+        }
+    }
+
     public static class NameResult {
         public final String name;
         public final String signature;
@@ -530,6 +580,13 @@ public class SpatialProcedures {
         return streamNode(getLayerOrThrow(tx, spatial(), name).getLayerNode(tx));
     }
 
+    @Procedure(value="spatial.geometryCacheStats", mode=WRITE)
+    @Description("Returns the size and hit and miss counts of the cache of decoded geometries of the given layer, or nothing if the layer has no cache")
+    public Stream<GeometryCacheResult> geometryCacheStats(@Name("name") String name) {
+        GeometryCache cache = getLayerOrThrow(tx, spatial(), name).getGeometryCache();
+        return cache == null ? Stream.empty() : Stream.of(new GeometryCacheResult(cache));
+    }
+
     @Procedure(value="spatial.getFeatureAttributes", mode=WRITE)
     @Description("Returns feature attributes of the given layer")
     public Stream<StringResult> getFeatureAttributes(@Name("name") String name) {
@@ -594,11 +651,8 @@ public class SpatialProcedures {
     @Description("Removes the given nodes from the layer, returns the count of nodes removed")
     public Stream<CountResult> removeNodesFromLayer(@Name("layerName") String name, @Name("nodes") List<Node> nodes) {
         EditableLayer layer = getEditableLayerOrThrow(tx, spatial(), name);
-        //TODO optimize bulk node removal from RTree like we have done for node additions
         int before = layer.getIndex().count(tx);
-        for (Node node : nodes) {
-            layer.removeFromIndex(tx, node.getId());
-        }
+        layer.removeFromIndex(tx, nodes.stream().map(Node::getId).collect(Collectors.toList()));
         int after = layer.getIndex().count(tx);
         return Stream.of(new CountResult(before - after));
     }
@@ -615,11 +669,8 @@ public class SpatialProcedures {
     @Description("Removes the given nodes from the layer, returns the count of nodes removed")
     public Stream<CountResult> removeNodeIdsFromLayer(@Name("layerName") String name, @Name("nodeIds") List<Long> nodeIds) {
         EditableLayer layer = getEditableLayerOrThrow(tx, spatial(), name);
-        //TODO optimize bulk node removal from RTree like we have done for node additions
         int before = layer.getIndex().count(tx);
-        for (long nodeId : nodeIds) {
-            layer.removeFromIndex(tx, nodeId);
-        }
+        layer.removeFromIndex(tx, nodeIds);
         int after = layer.getIndex().count(tx);
         return Stream.of(new CountResult(before - after));
     }
@@ -766,17 +817,50 @@ public class SpatialProcedures {
     }
 
     @Procedure(value="spatial.bbox", mode=WRITE)
-    @Description("Finds all geometry nodes in the given layer within the lower left and upper right coordinates of a box")
+    @Description("Finds all geometry nodes in the given layer within the lower left and upper right coordinates of a box, or only the first limit ones")
     public Stream<NodeResult> findGeometriesInBBox(
             @Name("layerName") String name,
             @Name("min") Object min,
-            @Name("max") Object max) {
+            @Name("max") Object max,
+            @Name(value = "limit", defaultValue = "-1") long limit) {
         Layer layer = getLayerOrThrow(tx, spatial(), name);
         // TODO why a SearchWithin and not a SearchIntersectWindow?
         Envelope envelope = new Envelope(toCoordinate(min), toCoordinate(max));
-        return GeoPipeline
-                .startWithinSearch(tx, layer, layer.getGeometryFactory().toGeometry(envelope))
-                .stream().map(GeoPipeFlow::getGeomNode).map(NodeResult::new);
+        return limited(GeoPipeline.startWithinSearch(tx, layer, layer.getGeometryFactory().toGeometry(envelope)), limit)
+                .map(GeoPipeFlow::getGeomNode).map(NodeResult::new);
+    }
+
+    @Procedure(value="spatial.bboxCovered", mode=WRITE)
+    @Description("Finds the ids, bounding boxes and the given attributes of all geometry nodes in the layer whose bounding box intersects the box, reading covered attributes from the index instead of the geometry nodes")
+    public Stream<CoveredEntryResult> findCoveredEntriesInBBox(
+            @Name("layerName") String name,
+            @Name("min") Object min,
+            @Name("max") Object max,
+            @Name(value = "attributes", defaultValue = "[]") List<String> attributes) {
+        Layer layer = getLayerOrThrow(tx, spatial(), name);
+        Envelope envelope = new Envelope(toCoordinate(min), toCoordinate(max));
+        LayerIndexReader index = layer.getIndex();
+        if (index instanceof RTreeIndex) {
+            org.neo4j.gis.spatial.rtree.Envelope window = new org.neo4j.gis.spatial.rtree.Envelope(envelope.getMinX(), envelope.getMaxX(), envelope.getMinY(), envelope.getMaxY());
+            return Iterables.stream(((RTreeIndex) index).searchCovered(tx, window, attributes)).map(CoveredEntryResult::new);
+        }
+        String[] keys = attributes.toArray(new String[0]);
+        return Iterables.stream(index.searchIndex(tx, new SearchIntersectWindow(layer, envelope)))
+                .map(geomNode -> new CoveredEntryResult(geomNode.getId(), index.getEnvelopeDecoder().decodeEnvelope(geomNode), geomNode.getProperties(keys)));
+    }
+
+    /**
+     * Stream the first limit results of the pipeline, or all results if limit is negative. The pipeline stops
+     * searching once enough results were found, and if the limit directly follows an index search it is passed on
+     * to the index.
+     */
+    private static Stream<GeoPipeFlow> limited(GeoPipeline pipeline, long limit) {
+        if (limit < 0) {
+            return pipeline.stream();
+        } else if (limit == 0) {
+            return Stream.empty();
+        }
+        return pipeline.range(0, (int) Math.min(limit, Integer.MAX_VALUE) - 1).stream();
     }
 
     @Procedure(value="spatial.closest", mode=WRITE)
@@ -793,22 +877,36 @@ public class SpatialProcedures {
     }
 
     @Procedure(value="spatial.withinDistance", mode=WRITE)
-    @Description("Returns all geometry nodes and their ordered distance in the layer within the distance to the given coordinate")
+    @Description("Returns all geometry nodes and their ordered distance in the layer within the distance to the given coordinate, or only the first limit ones")
     public Stream<NodeDistanceResult> findGeometriesWithinDistance(
             @Name("layerName") String name,
             @Name("coordinate") Object coordinate,
-            @Name("distanceInKm") double distanceInKm) {
+            @Name("distanceInKm") double distanceInKm,
+            @Name(value = "limit", defaultValue = "-1") long limit) {
 
         Layer layer = getLayerOrThrow(tx, spatial(), name);
-        return GeoPipeline
+        return limited(GeoPipeline
                 .startNearestNeighborLatLonSearch(tx, layer, toCoordinate(coordinate), distanceInKm)
-                .sort(OrthodromicDistance.DISTANCE)
-                .stream().map(r -> {
+                .sort(OrthodromicDistance.DISTANCE), limit)
+                .map(r -> {
                     double distance = r.hasProperty(tx, OrthodromicDistance.DISTANCE) ? ((Number) r.getProperty(tx, OrthodromicDistance.DISTANCE)).doubleValue() : -1;
                     return new NodeDistanceResult(r.getGeomNode(), distance);
                 });
     }
 
+    @Procedure(value="spatial.nearest", mode=WRITE)
+    @Description("Returns the k geometry nodes nearest to the given coordinate, ordered by their distance in the units of the layer")
+    public Stream<NodeDistanceResult> findNearestGeometries(
+            @Name("layerName") String name,
+            @Name("coordinate") Object coordinate,
+            @Name("k") long k) {
+
+        Layer layer = getLayerOrThrow(tx, spatial(), name);
+        return GeoPipeline
+                .startKNearest(tx, layer, toCoordinate(coordinate), (int) k)
+                .stream().map(r -> new NodeDistanceResult(r.getGeomNode(), ((Number) r.getProperty(tx, "Distance")).doubleValue()));
+    }
+
     @UserFunction("spatial.decodeGeometry")
     @Description("Returns a geometry of a layer node as the Neo4j geometry type, to be passed to other procedures or returned to a client")
     public Object decodeGeometry(
@@ -816,7 +914,7 @@ public class SpatialProcedures {
             @Name("node") Node node) {
 
         Layer layer = getLayerOrThrow(tx, spatial(), name);
-        GeometryResult result = new GeometryResult(toNeo4jGeometry(layer, layer.getGeometryEncoder().decodeGeometry(node)));
+        GeometryResult result = new GeometryResult(toNeo4jGeometry(layer, layer.decodeGeometry(node)));
         return result.geometry;
     }
 
@@ -854,15 +952,40 @@ public class SpatialProcedures {
     }
 
     @Procedure(value="spatial.intersects", mode=WRITE)
-    @Description("Returns all geometry nodes that intersect the given geometry (shape, polygon) in the layer")
+    @Description("Returns all geometry nodes that intersect the given geometry (shape, polygon) in the layer, or only the first limit ones")
     public Stream<NodeResult> findGeometriesIntersecting(
             @Name("layerName") String name,
-            @Name("geometry") Object geometry) {
+            @Name("geometry") Object geometry,
+            @Name(value = "limit", defaultValue = "-1") long limit) {
 
         Layer layer = getLayerOrThrow(tx, spatial(), name);
-        return GeoPipeline
-                .startIntersectSearch(tx, layer, toJTSGeometry(layer, geometry))
-                .stream().map(GeoPipeFlow::getGeomNode).map(NodeResult::new);
+        // the intersection is tested by the index search, so that a limit is applied while searching the index
+        return limited(GeoPipeline.start(tx, layer, new SearchIntersect(layer, toJTSGeometry(layer, geometry))), limit)
+                .map(GeoPipeFlow::getGeomNode).map(NodeResult::new);
+    }
+
+    @Procedure(value="spatial.aggregate", mode=WRITE)
+    @Description("Returns the count, sum, min, max or avg of a numeric attribute of the geometry nodes in the layer covered by the given geometry (shape, polygon)")
+    public Stream<AggregateResult> aggregateGeometries(
+            @Name("layerName") String name,
+            @Name("window") Object window,
+            @Name("attribute") String attribute,
+            @Name("fn") String fn) {
+
+        Layer layer = getLayerOrThrow(tx, spatial(), name);
+        SearchCoveredBy filter = new SearchCoveredBy(layer, toJTSGeometry(layer, window));
+        LayerIndexReader index = layer.getIndex();
+        AttributeSummary summary;
+        if (index instanceof RTreeIndex) {
+            // summaries of the aggregated attributes of the index are used for the subtrees inside the window
+            summary = ((RTreeIndex) index).aggregate(tx, attribute, filter);
+        } else {
+            summary = new AttributeSummary();
+            for (Node geomNode : index.searchIndex(tx, filter)) {
+                summary.add(geomNode.getProperty(attribute, null));
+            }
+        }
+        return Stream.of(new AggregateResult(summary.get(fn)));
     }
 
     private Geometry toJTSGeometry(Layer layer, Object value) {
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010-2020 "Neo4j,"
+ * Neo4j Sweden AB [http://neo4j.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+/**
+ * Count, sum, minimum and maximum of the numeric values of one attribute over a set of geometries. Index nodes of an
+ * RTreeIndex with aggregated attributes store one of these per attribute for all geometries below them, as a double
+ * array of {count, sum, min, max}.
+ */
+public class AttributeSummary {
+
+    public static final String COUNT = "count";
+    public static final String SUM = "sum";
+    public static final String MIN = "min";
+    public static final String MAX = "max";
+    public static final String AVG = "avg";
+
+    private long count = 0;
+    private double sum = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Add the value of the attribute of one geometry, which is ignored unless it is a number.
+     */
+    public void add(Object value) {
+        if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            count++;
+            sum += number;
+            min = Math.min(min, number);
+            max = Math.max(max, number);
+        }
+    }
+
+    public void add(AttributeSummary other) {
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * @return the smallest value, or null if there were no values
+     */
+    public Double getMin() {
+        return count == 0 ? null : min;
+    }
+
+    /**
+     * @return the largest value, or null if there were no values
+     */
+    public Double getMax() {
+        return count == 0 ? null : max;
+    }
+
+    /**
+     * @return the mean of the values, or null if there were no values
+     */
+    public Double getAverage() {
+        return count == 0 ? null : sum / count;
+    }
+
+    /**
+     * @return the value of one of the aggregate functions count, sum, min, max and avg
+     */
+    public Number get(String function) {
+        switch (function.toLowerCase()) {
+            case COUNT:
+                return count;
+            case SUM:
+                return sum;
+            case MIN:
+                return getMin();
+            case MAX:
+                return getMax();
+            case AVG:
+                return getAverage();
+            default:
+                throw new IllegalArgumentException("No such aggregate function: " + function);
+        }
+    }
+
+    double[] toArray() {
+        return new double[]{count, sum, min, max};
+    }
+
+    static AttributeSummary fromArray(double[] values) {
+        AttributeSummary summary = new AttributeSummary();
+        summary.count = (long) values[0];
+        summary.sum = values[1];
+        summary.min = values[2];
+        summary.max = values[3];
+        return summary;
+    }
+
+    @Override
+    public String toString() {
+        return "AttributeSummary[count=" + count + ", sum=" + sum + ", min=" + getMin() + ", max=" + getMax() + "]";
+    }
+}
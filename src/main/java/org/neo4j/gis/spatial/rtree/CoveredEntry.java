@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2010-2020 "Neo4j,"
+ * Neo4j Sweden AB [http://neo4j.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+import org.json.simple.JSONValue;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One geometry found by an index-only search of an RTreeIndex: the id of the geometry node, its bounding box and the
+ * values of the requested attributes, read from the leaf of the index wherever the attribute is one of the covered
+ * attributes of the index.
+ * <p>
+ * Packed leaves store each covered attribute as a string array parallel to the entry ids, with every value encoded
+ * as JSON, so integers are returned as Long and other numbers as Double. An empty string means that the geometry node
+ * has no value, and {@link #UNKNOWN} that the value could not be copied into the leaf, in which case it is read from
+ * the geometry node.
+ */
+public class CoveredEntry {
+
+    static final String MISSING = "";
+    static final String UNKNOWN = "?";
+
+    private final long nodeId;
+    private final Envelope envelope;
+    private final Map<String, Object> values;
+
+    CoveredEntry(long nodeId, Envelope envelope, Map<String, Object> values) {
+        this.nodeId = nodeId;
+        this.envelope = envelope;
+        this.values = Collections.unmodifiableMap(values);
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    public Node getNode(Transaction tx) {
+        return tx.getNodeById(nodeId);
+    }
+
+    public Envelope getEnvelope() {
+        return envelope;
+    }
+
+    /**
+     * @return the requested attributes that have a value
+     */
+    public Map<String, Object> getValues() {
+        return values;
+    }
+
+    public Object getValue(String attribute) {
+        return values.get(attribute);
+    }
+
+    /**
+     * Encode an attribute value for a packed leaf. Only strings, booleans and finite numbers can be copied, other
+     * values are stored as {@link #UNKNOWN}.
+     */
+    static String encode(Object value) {
+        if (value == null) {
+            return MISSING;
+        } else if (value instanceof String || value instanceof Boolean || value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return JSONValue.toJSONString(value);
+        } else if ((value instanceof Double || value instanceof Float) && Double.isFinite(((Number) value).doubleValue())) {
+            return JSONValue.toJSONString(((Number) value).doubleValue());
+        }
+        return UNKNOWN;
+    }
+
+    static Object decode(String encoded) {
+        return encoded.equals(MISSING) ? null : JSONValue.parse(encoded);
+    }
+
+    @Override
+    public String toString() {
+        return "CoveredEntry[" + nodeId + ", " + envelope + ", " + values + "]";
+    }
+}
@@ -97,4 +97,24 @@ public class EmptyMonitor implements TreeMonitor
     public List<Node> getMatchedTreeNodes(int level) {
         return new ArrayList();
     }
+
+    @Override
+    public void setQuality(TreeQuality quality) {
+
+    }
+
+    @Override
+    public TreeQuality getQuality() {
+        return null;
+    }
+
+    @Override
+    public void reorganizeFailed(RuntimeException e) {
+
+    }
+
+    @Override
+    public RuntimeException getReorganizeFailure() {
+        return null;
+    }
 }
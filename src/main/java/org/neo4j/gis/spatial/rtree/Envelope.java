@@ -49,6 +49,17 @@ public class Envelope extends org.neo4j.gis.spatial.index.Envelope {
         super(xmin, xmax, ymin, ymax);
     }
 
+    /**
+     * Overwrite the bounds of this 2D envelope in place, so that search code can reuse a single instance
+     * instead of allocating one per visited index node.
+     */
+    void setBounds(double xmin, double xmax, double ymin, double ymax) {
+        min[0] = xmin;
+        min[1] = ymin;
+        max[0] = xmax;
+        max[1] = ymax;
+    }
+
     /**
      * Note that this doesn't exclude the envelope boundary.
      * See JTS Envelope.
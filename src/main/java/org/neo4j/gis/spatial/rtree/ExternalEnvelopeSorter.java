@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2010-2020 "Neo4j,"
+ * Neo4j Sweden AB [http://neo4j.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+import org.neo4j.gis.spatial.index.curves.HilbertSpaceFillingCurve2D;
+import org.neo4j.gis.spatial.index.curves.SpaceFillingCurve;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Stream;
+
+/**
+ * Sorts (node id, bounding box) records in Hilbert curve order of the box centres without holding them all in memory.
+ * Records are appended to a spill file, which is then cut into runs of a fixed length that are sorted in memory and
+ * written back to disk, and the runs are merged through memory mapped readers. The same record files are used for
+ * the levels of a tree packed bottom-up from the sorted records, see {@link #newLevel()}.
+ * <p>
+ * All files live in a temporary directory that is deleted again by {@link #close()}.
+ */
+class ExternalEnvelopeSorter implements AutoCloseable {
+
+    // hilbert key, node id, minx, miny, maxx, maxy
+    private static final int RECORD_SIZE = 6 * Long.BYTES;
+    private static final int WRITE_BUFFER_RECORDS = 8192;
+    private static final int READ_WINDOW_RECORDS = 1 << 17;
+    private static final int MAX_MERGE_FAN_IN = 64;
+    // the keys must leave 31 bits for the position of a record in its run, see sortRun
+    private static final int HILBERT_LEVELS = 16;
+
+    private final Path directory;
+    private final int runLength;
+    private final RecordWriter input;
+    private final double[] extent = new double[]{Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+    private int fileCount = 0;
+
+    /**
+     * @param runLength the number of records sorted in memory at a time, which bounds the heap used to
+     *                  about 48 bytes per record
+     */
+    ExternalEnvelopeSorter(int runLength) throws IOException {
+        if (runLength < 2) {
+            throw new IllegalArgumentException("Run length must be at least 2: " + runLength);
+        }
+        this.directory = Files.createTempDirectory("rtree-bulk-load");
+        this.runLength = runLength;
+        this.input = new RecordWriter(nextFile());
+    }
+
+    void add(long nodeId, Envelope envelope) throws IOException {
+        double minX = envelope.getMinX();
+        double minY = envelope.getMinY();
+        double maxX = envelope.getMaxX();
+        double maxY = envelope.getMaxY();
+        extent[0] = Math.min(extent[0], minX);
+        extent[1] = Math.min(extent[1], minY);
+        extent[2] = Math.max(extent[2], maxX);
+        extent[3] = Math.max(extent[3], maxY);
+        input.write(0, nodeId, minX, minY, maxX, maxY);
+    }
+
+    long size() {
+        return input.count;
+    }
+
+    /**
+     * @return all records added so far, ordered by the position of their centre on a Hilbert curve covering all of them
+     */
+    Records sort() throws IOException {
+        RecordFile unsorted = input.finish();
+        SpaceFillingCurve curve = makeCurve();
+        List<RecordFile> runs = new ArrayList<>();
+        try (RecordReader reader = new RecordReader(unsorted)) {
+            long[] keyed = new long[(int) Math.min(runLength, Math.max(1, unsorted.count))];
+            long[] ids = new long[keyed.length];
+            double[] boxes = new double[keyed.length * 4];
+            while (reader.position < unsorted.count) {
+                int length = 0;
+                while (length < keyed.length && reader.next()) {
+                    ids[length] = reader.id;
+                    boxes[length * 4] = reader.minX;
+                    boxes[length * 4 + 1] = reader.minY;
+                    boxes[length * 4 + 2] = reader.maxX;
+                    boxes[length * 4 + 3] = reader.maxY;
+                    long key = curve.derivedValueFor(new double[]{(reader.minX + reader.maxX) / 2, (reader.minY + reader.maxY) / 2});
+                    keyed[length] = key << 31 | length;
+                    length++;
+                }
+                runs.add(sortRun(keyed, ids, boxes, length));
+            }
+        }
+        Files.delete(unsorted.path);
+
+        while (runs.size() > MAX_MERGE_FAN_IN) {
+            List<RecordFile> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += MAX_MERGE_FAN_IN) {
+                List<RecordFile> group = runs.subList(i, Math.min(i + MAX_MERGE_FAN_IN, runs.size()));
+                RecordWriter writer = new RecordWriter(nextFile());
+                try (Records records = new MergedRecords(group)) {
+                    while (records.next()) {
+                        writer.write(records.key, records.id, records.minX, records.minY, records.maxX, records.maxY);
+                    }
+                }
+                merged.add(writer.finish());
+                for (RecordFile run : group) {
+                    Files.delete(run.path);
+                }
+            }
+            runs = merged;
+        }
+        return new MergedRecords(runs);
+    }
+
+    /**
+     * @return a writer for the index nodes of the next level of a tree being packed, whose records are read back in
+     * the order they were written
+     */
+    LevelWriter newLevel() throws IOException {
+        return new LevelWriter(new RecordWriter(nextFile()));
+    }
+
+    private SpaceFillingCurve makeCurve() {
+        double[] min = new double[]{extent[0], extent[1]};
+        double[] max = new double[]{extent[2], extent[3]};
+        for (int i = 0; i < min.length; i++) {
+            if (!(max[i] > min[i])) {
+                // empty input or all records in a line, the curve needs a non-empty range
+                min[i] = Double.isInfinite(min[i]) ? 0 : min[i];
+                max[i] = min[i] + 1;
+            }
+        }
+        return new HilbertSpaceFillingCurve2D(new Envelope(min, max), HILBERT_LEVELS);
+    }
+
+    private RecordFile sortRun(long[] keyed, long[] ids, double[] boxes, int length) throws IOException {
+        // the position in the run is packed into the low bits of the key, so a primitive sort orders the positions
+        Arrays.sort(keyed, 0, length);
+        RecordWriter writer = new RecordWriter(nextFile());
+        for (int i = 0; i < length; i++) {
+            int position = (int) (keyed[i] & Integer.MAX_VALUE);
+            writer.write(keyed[i] >>> 31, ids[position], boxes[position * 4], boxes[position * 4 + 1], boxes[position * 4 + 2], boxes[position * 4 + 3]);
+        }
+        return writer.finish();
+    }
+
+    private Path nextFile() {
+        return directory.resolve("records-" + (fileCount++));
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * A cursor over records, positioned before the first record.
+     */
+    abstract static class Records implements AutoCloseable {
+        long key;
+        long id;
+        double minX;
+        double minY;
+        double maxX;
+        double maxY;
+
+        abstract boolean next() throws IOException;
+
+        Envelope envelope() {
+            return new Envelope(minX, maxX, minY, maxY);
+        }
+
+        @Override
+        public abstract void close() throws IOException;
+    }
+
+    static class LevelWriter {
+        private final RecordWriter writer;
+
+        private LevelWriter(RecordWriter writer) {
+            this.writer = writer;
+        }
+
+        void add(long nodeId, Envelope envelope) throws IOException {
+            writer.write(0, nodeId, envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY());
+        }
+
+        void add(long nodeId) throws IOException {
+            writer.write(0, nodeId, 0, 0, 0, 0);
+        }
+
+        Records finish() throws IOException {
+            RecordFile file = writer.finish();
+            return new RecordReader(file) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    Files.deleteIfExists(file.path);
+                }
+            };
+        }
+    }
+
+    private static class RecordFile {
+        private final Path path;
+        private final long count;
+
+        private RecordFile(Path path, long count) {
+            this.path = path;
+            this.count = count;
+        }
+    }
+
+    private static class RecordWriter implements AutoCloseable {
+        private final Path path;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_RECORDS * RECORD_SIZE);
+        private long count = 0;
+
+        private RecordWriter(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        private void write(long key, long id, double minX, double minY, double maxX, double maxY) throws IOException {
+            if (buffer.remaining() < RECORD_SIZE) {
+                flush();
+            }
+            buffer.putLong(key).putLong(id).putDouble(minX).putDouble(minY).putDouble(maxX).putDouble(maxY);
+            count++;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private RecordFile finish() throws IOException {
+            flush();
+            channel.close();
+            return new RecordFile(path, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads a record file sequentially through a window that is memory mapped a part of the file at a time.
+     */
+    private static class RecordReader extends Records {
+        private final RecordFile file;
+        private final FileChannel channel;
+        private MappedByteBuffer window;
+        private long position = 0;
+
+        private RecordReader(RecordFile file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.path, StandardOpenOption.READ);
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (position >= file.count) {
+                return false;
+            }
+            if (window == null || !window.hasRemaining()) {
+                long records = Math.min(READ_WINDOW_RECORDS, file.count - position);
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position * RECORD_SIZE, records * RECORD_SIZE);
+            }
+            key = window.getLong();
+            id = window.getLong();
+            minX = window.getDouble();
+            minY = window.getDouble();
+            maxX = window.getDouble();
+            maxY = window.getDouble();
+            position++;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            channel.close();
+        }
+    }
+
+    private static class MergedRecords extends Records {
+        private final List<RecordReader> readers = new ArrayList<>();
+        private final PriorityQueue<RecordReader> queue = new PriorityQueue<>(Comparator.comparingLong((RecordReader r) -> r.key));
+        private RecordReader current;
+
+        private MergedRecords(List<RecordFile> runs) throws IOException {
+            for (RecordFile run : runs) {
+                RecordReader reader = new RecordReader(run);
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (current != null && current.next()) {
+                queue.add(current);
+            }
+            current = queue.poll();
+            if (current == null) {
+                return false;
+            }
+            key = current.key;
+            id = current.id;
+            minX = current.minX;
+            minY = current.minY;
+            maxX = current.maxX;
+            maxY = current.maxY;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (RecordReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+}
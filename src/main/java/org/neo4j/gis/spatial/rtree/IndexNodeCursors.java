@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2010-2020 "Neo4j,"
+ * Neo4j Sweden AB [http://neo4j.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.internal.kernel.api.CursorFactory;
+import org.neo4j.internal.kernel.api.NodeCursor;
+import org.neo4j.internal.kernel.api.PropertyCursor;
+import org.neo4j.internal.kernel.api.Read;
+import org.neo4j.internal.kernel.api.RelationshipTraversalCursor;
+import org.neo4j.internal.kernel.api.TokenRead;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.impl.coreapi.InternalTransaction;
+import org.neo4j.storageengine.api.PropertySelection;
+import org.neo4j.storageengine.api.RelationshipSelection;
+import org.neo4j.values.storable.DoubleArray;
+import org.neo4j.values.storable.FloatingPointArray;
+import org.neo4j.values.storable.LongArray;
+import org.neo4j.values.storable.Value;
+
+import java.util.Arrays;
+
+/**
+ * Kernel cursors for reading the structure of the RTree: the bounding box of an index node and the ids of the nodes
+ * at the end of its outgoing RTREE_CHILD or RTREE_REFERENCE relationships, or the packed entries of a leaf. The
+ * cursors are only valid in the transaction they were allocated in and must be closed before that transaction ends.
+ */
+class IndexNodeCursors implements AutoCloseable {
+
+    private final Read read;
+    private final NodeCursor nodeCursor;
+    private final RelationshipTraversalCursor relationshipCursor;
+    private final PropertyCursor propertyCursor;
+
+    private final int childType;
+    private final int referenceType;
+    private final int bboxKey;
+    private final int entryIdsKey;
+    private final int entryBBoxesKey;
+
+    private long[] related = new long[64];
+    private double[] entryBBoxes = new double[256];
+    private boolean packedEntries;
+
+    IndexNodeCursors(Transaction tx) {
+        KernelTransaction ktx = ((InternalTransaction) tx).kernelTransaction();
+        TokenRead tokenRead = ktx.tokenRead();
+        childType = tokenRead.relationshipType(RTreeRelationshipTypes.RTREE_CHILD.name());
+        referenceType = tokenRead.relationshipType(RTreeRelationshipTypes.RTREE_REFERENCE.name());
+        bboxKey = tokenRead.propertyKey(RTreeIndex.INDEX_PROP_BBOX);
+        entryIdsKey = tokenRead.propertyKey(RTreeIndex.INDEX_PROP_ENTRY_IDS);
+        entryBBoxesKey = tokenRead.propertyKey(RTreeIndex.INDEX_PROP_ENTRY_BBOXES);
+        read = ktx.dataRead();
+        CursorFactory cursors = ktx.cursors();
+        nodeCursor = cursors.allocateNodeCursor(ktx.cursorContext());
+        relationshipCursor = cursors.allocateRelationshipTraversalCursor(ktx.cursorContext());
+        propertyCursor = cursors.allocatePropertyCursor(ktx.cursorContext(), ktx.memoryTracker());
+    }
+
+    /**
+     * @return false if there are no reference relationships and no packed leaves in the database at all, in which case
+     * every RTree is empty
+     */
+    boolean hasReferences() {
+        return referenceType != TokenRead.NO_TOKEN || entryIdsKey != TokenRead.NO_TOKEN;
+    }
+
+    /**
+     * Read the ids of the child index nodes, which are available from {@link #related()} until the next read.
+     *
+     * @return the number of children, or -1 if the node does not exist
+     */
+    int readChildren(long indexNodeId) {
+        return readRelated(indexNodeId, childType);
+    }
+
+    /**
+     * Read the ids of the geometry nodes referenced by a leaf, which are available from {@link #related()} until the
+     * next read. If the leaf is packed, the bounding boxes of the geometry nodes are read as well and are available
+     * from {@link #entryBBoxes()}.
+     *
+     * @return the number of references, or -1 if the node does not exist
+     */
+    int readReferences(long indexNodeId) {
+        packedEntries = false;
+        if (entryIdsKey != TokenRead.NO_TOKEN) {
+            int count = readPackedEntries(indexNodeId);
+            if (count >= 0) {
+                packedEntries = true;
+                return count;
+            }
+        }
+        return readRelated(indexNodeId, referenceType);
+    }
+
+    long[] related() {
+        return related;
+    }
+
+    /**
+     * @return the bounding boxes of the entries of the last leaf read, in the layout of the bbox property, or null
+     * if that leaf was not packed
+     */
+    double[] entryBBoxes() {
+        return packedEntries ? entryBBoxes : null;
+    }
+
+    /**
+     * @return the number of entries, or -1 if the node does not exist or is not a packed leaf
+     */
+    private int readPackedEntries(long leafId) {
+        read.singleNode(leafId, nodeCursor);
+        if (!nodeCursor.next()) {
+            return -1;
+        }
+        int count = -1;
+        boolean hasBBoxes = false;
+        nodeCursor.properties(propertyCursor, PropertySelection.selection(entryIdsKey, entryBBoxesKey));
+        while (propertyCursor.next()) {
+            Value value = propertyCursor.propertyValue();
+            if (propertyCursor.propertyKey() == entryIdsKey && value instanceof LongArray) {
+                LongArray ids = (LongArray) value;
+                count = ids.length();
+                if (related.length < count) {
+                    related = new long[Math.max(count, related.length * 2)];
+                }
+                for (int i = 0; i < count; i++) {
+                    related[i] = ids.longValue(i);
+                }
+            } else if (propertyCursor.propertyKey() == entryBBoxesKey && value instanceof FloatingPointArray) {
+                FloatingPointArray bboxes = (FloatingPointArray) value;
+                if (entryBBoxes.length < bboxes.length()) {
+                    entryBBoxes = new double[Math.max(bboxes.length(), entryBBoxes.length * 2)];
+                }
+                for (int i = 0; i < bboxes.length(); i++) {
+                    entryBBoxes[i] = bboxes.doubleValue(i);
+                }
+                hasBBoxes = true;
+            }
+        }
+        return hasBBoxes ? count : -1;
+    }
+
+    private int readRelated(long nodeId, int type) {
+        read.singleNode(nodeId, nodeCursor);
+        if (!nodeCursor.next()) {
+            return -1;
+        }
+        if (type == TokenRead.NO_TOKEN) {
+            return 0;
+        }
+        int count = 0;
+        nodeCursor.relationships(relationshipCursor, RelationshipSelection.selection(type, Direction.OUTGOING));
+        while (relationshipCursor.next()) {
+            if (count == related.length) {
+                related = Arrays.copyOf(related, count * 2);
+            }
+            related[count++] = relationshipCursor.otherNodeReference();
+        }
+        return count;
+    }
+
+    /**
+     * Copy the bounding box of the index node into the target array at the given offset, in the layout of the bbox
+     * property: xmin, ymin, xmax, ymax.
+     *
+     * @return false if the node does not exist or has no bounding box
+     */
+    boolean readBBox(long indexNodeId, double[] target, int offset) {
+        if (bboxKey == TokenRead.NO_TOKEN) {
+            return false;
+        }
+        read.singleNode(indexNodeId, nodeCursor);
+        if (!nodeCursor.next()) {
+            return false;
+        }
+        nodeCursor.properties(propertyCursor, PropertySelection.selection(bboxKey));
+        while (propertyCursor.next()) {
+            if (propertyCursor.propertyKey() == bboxKey) {
+                Value value = propertyCursor.propertyValue();
+                if (!(value instanceof DoubleArray) || ((DoubleArray) value).length() < 4) {
+                    return false;
+                }
+                DoubleArray bbox = (DoubleArray) value;
+                for (int i = 0; i < 4; i++) {
+                    target[offset + i] = bbox.doubleValue(i);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        propertyCursor.close();
+        relationshipCursor.close();
+        nodeCursor.close();
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2010-2020 "Neo4j,"
+ * Neo4j Sweden AB [http://neo4j.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.impl.coreapi.InternalTransaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.LongToIntFunction;
+
+/**
+ * Depth-first search of the RTree that reads the index directly through kernel cursors instead of the traversal
+ * framework. The traversal framework allocates a Path, a Relationship and a Node for every step and decodes every
+ * bounding box into a new Envelope, which dominates the cost of selective window queries. Here the pending index
+ * nodes are kept on an explicit stack and bounding boxes are read into one reused Envelope, so only the geometry
+ * nodes handed to the filter and returned to the caller are materialized.
+ * <p>
+ * If a {@link RTreeDirectory} is given, the index nodes are pruned using the directory and the store is only read
+ * for the references of the leaves that were not pruned. The stack then holds positions in the directory instead of
+ * node ids. If the directory is a {@link RTreeSnapshot}, the references of the leaves are read from the snapshot too,
+ * and the store is only read for the geometries the filter has to decode.
+ * <p>
+ * The buckets of the ingest buffer of the index, if any, are searched like packed leaves after the tree.
+ * <p>
+ * Index nodes that the filter matches as a whole are expanded without asking the filter about anything below them,
+ * so all geometries in such a subtree are returned without being decoded.
+ * <p>
+ * The search can skip a number of results and stop after a limited number of results. Matching geometries are only
+ * counted instead of being returned while results are skipped, and if the index maintains subtree counts, subtrees
+ * that match as a whole are skipped using their stored count without being read. Once the limit is reached nothing
+ * more is read.
+ * <p>
+ * Cursors are opened and closed again for every leaf worth of results, so an iterator that is abandoned before it
+ * is exhausted does not leave any cursors open in the transaction.
+ */
+class RTreeCursorSearch implements Iterable<Node> {
+
+    private final Transaction tx;
+    private final long rootId;
+    private final RTreeDirectory directory;
+    private final long[] bufferBuckets;
+    private final SearchFilter filter;
+    private final TreeMonitor monitor;
+    private final boolean recordsMatchedNodes;
+    private final int offset;
+    private final int limit;
+    private final LongToIntFunction subtreeCount;
+
+    /**
+     * @param offset       the number of matching geometries to skip
+     * @param limit        the maximum number of geometries to return, or a negative number for no limit
+     * @param subtreeCount the stored number of geometries below an index node, or null if counts are not maintained
+     */
+    RTreeCursorSearch(Transaction tx, Node root, RTreeDirectory directory, long[] bufferBuckets, SearchFilter filter, TreeMonitor monitor,
+                      int offset, int limit, LongToIntFunction subtreeCount) {
+        this.tx = tx;
+        this.rootId = root.getId();
+        this.directory = directory;
+        this.bufferBuckets = bufferBuckets;
+        this.filter = filter;
+        this.monitor = monitor;
+        // index nodes are only materialized for a monitor that records them
+        this.recordsMatchedNodes = !(monitor instanceof EmptyMonitor);
+        this.offset = offset;
+        this.limit = limit;
+        this.subtreeCount = subtreeCount;
+    }
+
+    @Override
+    public Iterator<Node> iterator() {
+        return new SearchIterator();
+    }
+
+    private class SearchIterator implements Iterator<Node> {
+        private final InternalTransaction internalTx = (InternalTransaction) tx;
+
+        private long[] stackNodes = new long[64];
+        private int[] stackDepths = new int[64];
+        private boolean[] stackMatchAll = new boolean[64];
+        private int stackSize = 0;
+        private int bufferPosition = 0;
+
+        private long[] accepted = new long[64];
+        private boolean[] acceptedMatchAll = new boolean[64];
+        private final Envelope envelope = new Envelope(0, 0, 0, 0);
+        private final double[] bbox = new double[4];
+
+        private final ArrayList<Node> results = new ArrayList<>();
+        private int resultPosition = 0;
+        private int toSkip = offset;
+        private int remaining = limit < 0 ? Integer.MAX_VALUE : limit;
+
+        private SearchIterator() {
+            if (directory == null) {
+                push(rootId, 0, false);
+            } else if (directory.size() > 0) {
+                push(0, 0, false);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (resultPosition < results.size()) {
+                return true;
+            }
+            results.clear();
+            resultPosition = 0;
+            if (remaining > 0 && (stackSize > 0 || bufferPosition < bufferBuckets.length)) {
+                refill();
+            }
+            return !results.isEmpty();
+        }
+
+        @Override
+        public Node next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            remaining--;
+            return results.get(resultPosition++);
+        }
+
+        private void push(long node, int depth, boolean matchAll) {
+            if (stackSize == stackNodes.length) {
+                stackNodes = Arrays.copyOf(stackNodes, stackSize * 2);
+                stackDepths = Arrays.copyOf(stackDepths, stackSize * 2);
+                stackMatchAll = Arrays.copyOf(stackMatchAll, stackSize * 2);
+            }
+            stackNodes[stackSize] = node;
+            stackDepths[stackSize] = depth;
+            stackMatchAll[stackSize] = matchAll;
+            stackSize++;
+        }
+
+        /**
+         * Expand index nodes from the stack until at least one geometry matched or the whole tree was searched.
+         */
+        private void refill() {
+            try (IndexNodeCursors cursors = new IndexNodeCursors(tx)) {
+                if (!cursors.hasReferences()) {
+                    // without any reference relationships in the database there can be no results
+                    stackSize = 0;
+                    bufferPosition = bufferBuckets.length;
+                    return;
+                }
+                while (results.isEmpty() && stackSize > 0) {
+                    stackSize--;
+                    if (skipSubtree()) {
+                        continue;
+                    }
+                    if (directory == null) {
+                        expand(cursors, stackNodes[stackSize], stackDepths[stackSize], stackMatchAll[stackSize]);
+                    } else {
+                        expandMirrored(cursors, (int) stackNodes[stackSize], stackDepths[stackSize], stackMatchAll[stackSize]);
+                    }
+                }
+                while (results.isEmpty() && bufferPosition < bufferBuckets.length) {
+                    long bucketId = bufferBuckets[bufferPosition++];
+                    if (cursors.readBBox(bucketId, bbox, 0)) {
+                        envelope.setBounds(bbox[0], bbox[2], bbox[1], bbox[3]);
+                        if (filter.needsToVisit(envelope)) {
+                            // buffered geometries are not in the tree, so they are matched at depth 0
+                            matchGeometries(cursors, bucketId, 0, filter.matchesAll(envelope));
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Skip the subtree on top of the stack if it matches as a whole and all geometries in it are to be skipped.
+         */
+        private boolean skipSubtree() {
+            if (toSkip == 0 || subtreeCount == null || !stackMatchAll[stackSize]) {
+                return false;
+            }
+            long nodeId = directory == null ? stackNodes[stackSize] : directory.nodeId((int) stackNodes[stackSize]);
+            int count = subtreeCount.applyAsInt(nodeId);
+            if (count > toSkip) {
+                return false;
+            }
+            toSkip -= count;
+            monitor.addCase("Subtree Skipped");
+            return true;
+        }
+
+        /**
+         * Add a matching geometry to the results, unless it is still to be skipped.
+         *
+         * @return false if no more results are needed from the current leaf
+         */
+        private boolean found(Node geomNode, int depth) {
+            if (depth > 0) {
+                monitor.setHeight(depth);
+            }
+            if (toSkip > 0) {
+                toSkip--;
+            } else {
+                results.add(geomNode);
+            }
+            return results.size() < remaining;
+        }
+
+        private void expand(IndexNodeCursors cursors, long nodeId, int depth, boolean matchAll) {
+            int childCount = cursors.readChildren(nodeId);
+            if (childCount > 0) {
+                long[] children = accept(cursors.related(), childCount);
+                int acceptedCount = 0;
+                for (int i = 0; i < childCount; i++) {
+                    long childId = children[i];
+                    if (matchAll) {
+                        // the bounding boxes below a subtree that matches as a whole do not need to be read
+                        acceptedMatchAll[acceptedCount] = true;
+                        children[acceptedCount++] = childId;
+                        accepted(childId, depth + 1);
+                        continue;
+                    }
+                    if (!cursors.readBBox(childId, bbox, 0)) {
+                        // this is ok after an index node split
+                        continue;
+                    }
+                    envelope.setBounds(bbox[0], bbox[2], bbox[1], bbox[3]);
+                    if (visit(childId, depth + 1)) {
+                        acceptedMatchAll[acceptedCount] = filter.matchesAll(envelope);
+                        children[acceptedCount++] = childId;
+                    }
+                }
+                pushInOrder(children, acceptedCount, depth + 1);
+            } else if (childCount == 0) {
+                matchGeometries(cursors, nodeId, depth + 1, matchAll);
+            }
+        }
+
+        private void expandMirrored(IndexNodeCursors cursors, int node, int depth, boolean matchAll) {
+            if (directory.isLeaf(node)) {
+                if (directory instanceof RTreeSnapshot) {
+                    matchSnapshotGeometries((RTreeSnapshot) directory, node, depth + 1, matchAll);
+                } else {
+                    matchGeometries(cursors, directory.nodeId(node), depth + 1, matchAll);
+                }
+                return;
+            }
+            int first = directory.firstChild(node);
+            int childCount = directory.childCount(node);
+            long[] children = accept(null, childCount);
+            int acceptedCount = 0;
+            for (int child = first; child < first + childCount; child++) {
+                if (!directory.hasBBox(child)) {
+                    continue;
+                }
+                if (matchAll) {
+                    acceptedMatchAll[acceptedCount] = true;
+                    children[acceptedCount++] = child;
+                    accepted(directory.nodeId(child), depth + 1);
+                    continue;
+                }
+                directory.readEnvelope(child, envelope);
+                if (visit(directory.nodeId(child), depth + 1)) {
+                    acceptedMatchAll[acceptedCount] = filter.matchesAll(envelope);
+                    children[acceptedCount++] = child;
+                }
+            }
+            pushInOrder(children, acceptedCount, depth + 1);
+        }
+
+        /**
+         * Copy the children into the buffer for accepted children, which is safe since a child is only accepted
+         * after it was read.
+         */
+        private long[] accept(long[] children, int count) {
+            if (accepted.length < count) {
+                accepted = new long[Math.max(count, accepted.length * 2)];
+                acceptedMatchAll = new boolean[accepted.length];
+            }
+            if (children != null) {
+                System.arraycopy(children, 0, accepted, 0, count);
+            }
+            return accepted;
+        }
+
+        private boolean visit(long childId, int depth) {
+            boolean shouldContinue = filter.needsToVisit(envelope);
+            if (shouldContinue) {
+                accepted(childId, depth);
+            } else {
+                monitor.addCase("Index Does NOT Match");
+            }
+            return shouldContinue;
+        }
+
+        private void accepted(long childId, int depth) {
+            if (recordsMatchedNodes) {
+                monitor.matchedTreeNode(depth, internalTx.newNodeEntity(childId));
+            }
+            monitor.addCase("Index Matches");
+        }
+
+        /**
+         * Push in reverse so that children are visited in relationship order, as the traversal did.
+         */
+        private void pushInOrder(long[] children, int count, int depth) {
+            for (int i = count - 1; i >= 0; i--) {
+                push(children[i], depth, acceptedMatchAll[i]);
+            }
+        }
+
+        private void matchSnapshotGeometries(RTreeSnapshot snapshot, int leaf, int depth, boolean matchAll) {
+            int first = snapshot.firstEntry(leaf);
+            int count = snapshot.leafEntryCount(leaf);
+            for (int entry = first; entry < first + count; entry++) {
+                if (!matchAll) {
+                    snapshot.readEntryEnvelope(entry, envelope);
+                    if (!filter.needsToVisit(envelope)) {
+                        monitor.addCase("Geometry Does NOT Match");
+                        continue;
+                    }
+                }
+                Node geomNode = internalTx.newNodeEntity(snapshot.entryId(entry));
+                boolean matches = matchAll || filter.geometryMatches(tx, geomNode);
+                monitor.addCase(matches ? "Geometry Matches" : "Geometry Does NOT Match");
+                if (matches && !found(geomNode, depth)) {
+                    return;
+                }
+            }
+        }
+
+        private void matchGeometries(IndexNodeCursors cursors, long leafId, int depth, boolean matchAll) {
+            int referenceCount = cursors.readReferences(leafId);
+            long[] references = cursors.related();
+            double[] entryBBoxes = cursors.entryBBoxes();
+            for (int i = 0; i < referenceCount; i++) {
+                if (matchAll) {
+                    monitor.addCase("Geometry Matches");
+                    if (!found(internalTx.newNodeEntity(references[i]), depth)) {
+                        return;
+                    }
+                    continue;
+                }
+                if (entryBBoxes != null) {
+                    // entries of packed leaves are filtered by their bounding box before the geometry node is read
+                    envelope.setBounds(entryBBoxes[i * 4], entryBBoxes[i * 4 + 2], entryBBoxes[i * 4 + 1], entryBBoxes[i * 4 + 3]);
+                    if (!filter.needsToVisit(envelope)) {
+                        monitor.addCase("Geometry Does NOT Match");
+                        continue;
+                    }
+                }
+                Node geomNode = internalTx.newNodeEntity(references[i]);
+                boolean matches = filter.geometryMatches(tx, geomNode);
+                monitor.addCase(matches ? "Geometry Matches" : "Geometry Does NOT Match");
+                if (matches && !found(geomNode, depth)) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2010-2020 "Neo4j,"
+ * Neo4j Sweden AB [http://neo4j.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+/**
+ * Read-only copy of the index nodes of an RTree at one structure version, that searches can prune the tree with
+ * instead of reading the index nodes from the store. The index nodes are numbered breadth first from the root, so the
+ * children of each index node are numbered consecutively.
+ */
+interface RTreeDirectory {
+
+    /**
+     * @return the structure version of the tree this is a copy of
+     */
+    long version();
+
+    int size();
+
+    long nodeId(int node);
+
+    boolean hasBBox(int node);
+
+    /**
+     * Copy the bounding box of the node into the envelope.
+     */
+    void readEnvelope(int node, Envelope envelope);
+
+    int firstChild(int node);
+
+    int childCount(int node);
+
+    default boolean isLeaf(int node) {
+        return childCount(node) == 0;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2010-2020 "Neo4j,"
+ * Neo4j Sweden AB [http://neo4j.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only copy of the directory of an RTree: the ids, bounding boxes and child lists of all index nodes, but not
+ * the references from the leaves to the geometry nodes. Searches can prune the tree with this copy and only need to
+ * read the store for the references of the leaves that were not pruned.
+ * <p>
+ * The index nodes are numbered breadth first from the root, so the children of each index node are numbered
+ * consecutively and a child list is just the number of the first child and the count. A mirror describes the tree
+ * as it was at a specific structure version of the index, and is never modified once built. Changes to the tree are
+ * applied by building a new mirror, which re-reads only the index nodes that were changed and copies the rest from
+ * the previous mirror.
+ */
+class RTreeDirectoryMirror implements RTreeDirectory {
+
+    final long version;
+    private final int size;
+    private final long[] nodeIds;
+    private final double[] bboxes;
+    private final boolean[] hasBBox;
+    private final int[] firstChild;
+    private final int[] childCount;
+    private Map<Long, Integer> positions;
+
+    private RTreeDirectoryMirror(long version, int size, long[] nodeIds, double[] bboxes, boolean[] hasBBox, int[] firstChild, int[] childCount) {
+        this.version = version;
+        this.size = size;
+        this.nodeIds = nodeIds;
+        this.bboxes = bboxes;
+        this.hasBBox = hasBBox;
+        this.firstChild = firstChild;
+        this.childCount = childCount;
+    }
+
+    /**
+     * Read the whole directory below the given index root from the store.
+     */
+    static RTreeDirectoryMirror build(IndexNodeCursors cursors, long rootId, long version) {
+        return new Builder(cursors, null, null).build(rootId, version);
+    }
+
+    /**
+     * Create a mirror for a newer version of the tree, reading only the changed index nodes from the store. Index
+     * nodes that are not known to this mirror are always read from the store, so new nodes need not be reported.
+     */
+    RTreeDirectoryMirror patch(IndexNodeCursors cursors, long rootId, Set<Long> changedNodes, long newVersion) {
+        return new Builder(cursors, this, changedNodes).build(rootId, newVersion);
+    }
+
+    @Override
+    public long version() {
+        return version;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long nodeId(int node) {
+        return nodeIds[node];
+    }
+
+    @Override
+    public boolean hasBBox(int node) {
+        return hasBBox[node];
+    }
+
+    @Override
+    public void readEnvelope(int node, Envelope envelope) {
+        int offset = node * 4;
+        envelope.setBounds(bboxes[offset], bboxes[offset + 2], bboxes[offset + 1], bboxes[offset + 3]);
+    }
+
+    Envelope getEnvelope(int node) {
+        int offset = node * 4;
+        return new Envelope(bboxes[offset], bboxes[offset + 2], bboxes[offset + 1], bboxes[offset + 3]);
+    }
+
+    @Override
+    public int firstChild(int node) {
+        return firstChild[node];
+    }
+
+    @Override
+    public int childCount(int node) {
+        return childCount[node];
+    }
+
+    boolean contains(long nodeId) {
+        return positions().containsKey(nodeId);
+    }
+
+    private synchronized Map<Long, Integer> positions() {
+        if (positions == null) {
+            Map<Long, Integer> map = new HashMap<>(size * 2);
+            for (int i = 0; i < size; i++) {
+                map.put(nodeIds[i], i);
+            }
+            positions = map;
+        }
+        return positions;
+    }
+
+    private static class Builder {
+        private final IndexNodeCursors cursors;
+        private final RTreeDirectoryMirror previous;
+        private final Map<Long, Integer> previousPositions;
+        private final Set<Long> changedNodes;
+
+        private int size = 0;
+        private long[] nodeIds = new long[64];
+        private double[] bboxes = new double[256];
+        private boolean[] hasBBox = new boolean[64];
+        private int[] firstChild = new int[64];
+        private int[] childCount = new int[64];
+
+        private Builder(IndexNodeCursors cursors, RTreeDirectoryMirror previous, Set<Long> changedNodes) {
+            this.cursors = cursors;
+            this.previous = previous;
+            this.previousPositions = previous == null ? null : previous.positions();
+            this.changedNodes = changedNodes;
+        }
+
+        private RTreeDirectoryMirror build(long rootId, long version) {
+            append(rootId);
+            // breadth first, so the children of every node are appended as one consecutive block
+            for (int node = 0; node < size; node++) {
+                long nodeId = nodeIds[node];
+                Integer old = previousPositions == null || changedNodes.contains(nodeId) ? null : previousPositions.get(nodeId);
+                firstChild[node] = size;
+                if (old == null) {
+                    hasBBox[node] = cursors.readBBox(nodeId, bboxes, node * 4);
+                    int count = Math.max(0, cursors.readChildren(nodeId));
+                    long[] children = cursors.related();
+                    for (int i = 0; i < count; i++) {
+                        append(children[i]);
+                    }
+                    childCount[node] = count;
+                } else {
+                    hasBBox[node] = previous.hasBBox[old];
+                    System.arraycopy(previous.bboxes, old * 4, bboxes, node * 4, 4);
+                    int first = previous.firstChild[old];
+                    int count = previous.childCount[old];
+                    for (int i = 0; i < count; i++) {
+                        append(previous.nodeIds[first + i]);
+                    }
+                    childCount[node] = count;
+                }
+            }
+            return new RTreeDirectoryMirror(version, size,
+                    Arrays.copyOf(nodeIds, size), Arrays.copyOf(bboxes, size * 4), Arrays.copyOf(hasBBox, size),
+                    Arrays.copyOf(firstChild, size), Arrays.copyOf(childCount, size));
+        }
+
+        private void append(long nodeId) {
+            if (size == nodeIds.length) {
+                int capacity = size * 2;
+                nodeIds = Arrays.copyOf(nodeIds, capacity);
+                bboxes = Arrays.copyOf(bboxes, capacity * 4);
+                hasBBox = Arrays.copyOf(hasBBox, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                childCount = Arrays.copyOf(childCount, capacity);
+            }
+            nodeIds[size++] = nodeId;
+        }
+    }
+}
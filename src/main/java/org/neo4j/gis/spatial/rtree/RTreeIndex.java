@@ -18,27 +18,45 @@
  */
 package org.neo4j.gis.spatial.rtree;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongToIntFunction;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 import org.neo4j.gis.spatial.index.SpatialIndexWriter;
+import org.neo4j.gis.spatial.index.curves.HilbertSpaceFillingCurve2D;
+import org.neo4j.gis.spatial.index.curves.SpaceFillingCurve;
 import org.neo4j.gis.spatial.encoders.Configurable;
+import org.neo4j.gis.spatial.rtree.filter.SearchCoveredByEnvelope;
+import org.neo4j.gis.spatial.rtree.filter.SearchDistanceFilter;
 import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
 import org.neo4j.gis.spatial.rtree.filter.SearchResults;
 import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.NotFoundException;
-import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.traversal.Evaluation;
-import org.neo4j.graphdb.traversal.Evaluator;
 import org.neo4j.graphdb.traversal.Evaluators;
 import org.neo4j.graphdb.traversal.TraversalDescription;
-import org.neo4j.graphdb.traversal.Traverser;
+import org.neo4j.internal.helpers.collection.Iterables;
+import org.neo4j.kernel.impl.coreapi.InternalTransaction;
 import org.neo4j.kernel.impl.traversal.MonoDirectionalTraversalDescription;
 
 /**
@@ -50,16 +68,63 @@ import org.neo4j.kernel.impl.traversal.MonoDirectionalTraversalDescription;
 public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
     public static final String INDEX_PROP_BBOX = "bbox";
+    public static final String INDEX_PROP_GEOMETRY_COUNT = "totalGeometryCount";
+    public static final String INDEX_PROP_STRUCTURE_VERSION = "structureVersion";
+    public static final String INDEX_PROP_CHILD_IDS = "childIds";
+    public static final String INDEX_PROP_CHILD_BBOXES = "childBBoxes";
+    public static final String INDEX_PROP_CHILD_COUNT = "childCount";
+    public static final String INDEX_PROP_ENTRY_IDS = "entryIds";
+    public static final String INDEX_PROP_ENTRY_BBOXES = "entryBBoxes";
+    public static final String INDEX_PROP_LEAF = "rtreeLeaf";
+    public static final String INDEX_PROP_COUNT_DELTA = "countDelta";
+    public static final String INDEX_PROP_BUFFER = "rtreeBuffer";
+    public static final String INDEX_PROP_BUFFERED_COUNT = "bufferedCount";
+    public static final String INDEX_PROP_BUFFERED_SINCE = "bufferedSince";
+    public static final String INDEX_PROP_SUBTREE_COUNT = "subtreeCount";
+    public static final String INDEX_PROP_AGGREGATE_PREFIX = "aggregate_";
+    public static final String INDEX_PROP_COVERED_PREFIX = "covered_";
+    public static final String INDEX_PROP_LOG_REMOVED = "logRemoved";
+    public static final String INDEX_PROP_LOG_SCANNING = "logScanning";
 
     public static final String KEY_SPLIT = "splitMode";
     public static final String QUADRATIC_SPLIT = "quadratic";
     public static final String GREENES_SPLIT = "greene";
+    public static final String RSTAR_SPLIT = "rstar";
 
     public static final String KEY_MAX_NODE_REFERENCES = "maxNodeReferences";
     public static final String KEY_SHOULD_MERGE_TREES = "shouldMergeTrees";
     public static final int MIN_MAX_NODE_REFERENCES = 10;
     public static final int MAX_MAX_NODE_REFERENCES = 1000000;
     public static final int DEFAULT_MAX_NODE_REFERENCES = 100;
+    public static final String KEY_DIRECTORY_MIRROR = "directoryMirror";
+    public static final String KEY_BULK_LOAD = "bulkLoad";
+    public static final String OMT_BULK_LOAD = "omt";
+    public static final String STR_BULK_LOAD = "str";
+    public static final String HILBERT_BULK_LOAD = "hilbert";
+    public static final String EXTERNAL_BULK_LOAD = "external";
+    public static final String KEY_PACKED_CHILDREN = "packedChildren";
+    public static final String KEY_LEAF_STORAGE = "leafStorage";
+    public static final String RELATIONSHIP_LEAF_STORAGE = "relationships";
+    public static final String PACKED_LEAF_STORAGE = "packed";
+    public static final String KEY_LEAF_PRECISION = "leafPrecision";
+    public static final String DOUBLE_LEAF_PRECISION = "double";
+    public static final String FLOAT_LEAF_PRECISION = "float";
+    public static final String KEY_BBOX_MAINTENANCE = "bboxMaintenance";
+    public static final String IMMEDIATE_BBOX_MAINTENANCE = "immediate";
+    public static final String DEFERRED_BBOX_MAINTENANCE = "deferred";
+    public static final String KEY_CONCURRENT_WRITERS = "concurrentWriters";
+    public static final String KEY_INGEST_BUFFER_SIZE = "ingestBufferSize";
+    public static final String KEY_INGEST_BUFFER_MAX_AGE = "ingestBufferMaxAge";
+    public static final String KEY_SUBTREE_COUNTS = "subtreeCounts";
+    public static final String KEY_AGGREGATES = "aggregates";
+    public static final String KEY_COVERED_ATTRIBUTES = "coveredAttributes";
+    public static final String KEY_SNAPSHOT_FILE = "snapshotFile";
+    public static final String KEY_REORGANIZE_MIN_FILL = "reorganizeMinFill";
+    public static final String KEY_REORGANIZE_MAX_OVERLAP = "reorganizeMaxOverlap";
+    public static final String KEY_REORGANIZE_MAX_DEAD_SPACE = "reorganizeMaxDeadSpace";
+    public static final String KEY_REORGANIZE_SUBTREE_SIZE = "reorganizeSubtreeSize";
+    public static final String KEY_REORGANIZE_INTERVAL = "reorganizeInterval";
+    public static final int DEFAULT_REORGANIZE_SUBTREE_SIZE = 10000;
 
     private TreeMonitor monitor;
     private long rootNodeId;
@@ -67,9 +132,58 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
     private int maxNodeReferences;
     private String splitMode = GREENES_SPLIT;
     private boolean shouldMergeTrees = false;
-
-    private int totalGeometryCount = 0;
-    private boolean countSaved = false;
+    private boolean useDirectoryMirror = false;
+    private String bulkLoadMode = OMT_BULK_LOAD;
+    private boolean usePackedChildren = false;
+    private String leafStorage = RELATIONSHIP_LEAF_STORAGE;
+    private String leafPrecision = DOUBLE_LEAF_PRECISION;
+    private String bboxMaintenance = IMMEDIATE_BBOX_MAINTENANCE;
+    private boolean concurrentWriters = false;
+    private int ingestBufferSize = 0;
+    private long ingestBufferMaxAge = 0;
+    private boolean subtreeCounts = false;
+    private List<String> aggregates = Collections.emptyList();
+    private List<String> coveredAttributes = Collections.emptyList();
+    private String snapshotFile = null;
+    private double reorganizeMinFill = 0;
+    private double reorganizeMaxOverlap = 0;
+    private double reorganizeMaxDeadSpace = 0;
+    private int reorganizeSubtreeSize = DEFAULT_REORGANIZE_SUBTREE_SIZE;
+    private int reorganizeInterval = 0;
+
+    private volatile RTreeDirectoryMirror directoryMirror;
+    private volatile RTreeSnapshot snapshot;
+    private volatile long snapshotModified;
+    private final Map<Transaction, DirectoryChanges> changesByTransaction = Collections.synchronizedMap(new WeakHashMap<>());
+    private final Map<Long, DirectoryChanges> changesByVersion = Collections.synchronizedMap(new LinkedHashMap<Long, DirectoryChanges>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, DirectoryChanges> eldest) {
+            return size() > MAX_TRACKED_VERSIONS;
+        }
+    });
+    private final ThreadLocal<DirectoryChanges> currentChanges = new ThreadLocal<>();
+    private final AtomicInteger writesSinceReorganize = new AtomicInteger();
+    private final AtomicBoolean reorganizing = new AtomicBoolean();
+    // set while this thread writes the new tree of an online rebuild, which getIndexRoot then returns
+    private final ThreadLocal<Boolean> writingShadowTree = new ThreadLocal<>();
+    private static final Map<Transaction, Set<RTreeIndex>> deferredIndexesByTransaction = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final int MAX_TRACKED_VERSIONS = 64;
+    private static final double RSTAR_REINSERT_FACTOR = 0.3;
+    private static final double RSTAR_MIN_FILL_FACTOR = 0.4;
+    private static final double CONDENSE_MIN_FILL_FACTOR = 0.4;
+    private static final int HILBERT_BULK_LOAD_LEVELS = 16;
+    private static final int COUNT_STRIPES = 16;
+    private static final int EXTERNAL_SORT_RUN_LENGTH = 1 << 20;
+    private static final int PARALLEL_PLANNING_THRESHOLD = 10000;
+    private static final int ESTIMATE_COUNT_LEVELS = 2;
+    private static final Random versionGenerator = new Random();
+    private static final int REORGANIZE_SUBTREES_PER_RUN = 16;
+    // background reorganizations and the deletion of trees replaced by a rebuild
+    private static final ExecutorService maintenance = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RTreeIndex maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public void addMonitor(TreeMonitor monitor) {
         this.monitor = monitor;
@@ -108,6 +222,24 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         config.put(KEY_SPLIT, this.splitMode);
         config.put(KEY_MAX_NODE_REFERENCES, this.maxNodeReferences);
         config.put(KEY_SHOULD_MERGE_TREES, this.shouldMergeTrees);
+        config.put(KEY_DIRECTORY_MIRROR, this.useDirectoryMirror);
+        config.put(KEY_BULK_LOAD, this.bulkLoadMode);
+        config.put(KEY_PACKED_CHILDREN, this.usePackedChildren);
+        config.put(KEY_LEAF_STORAGE, this.leafStorage);
+        config.put(KEY_LEAF_PRECISION, this.leafPrecision);
+        config.put(KEY_BBOX_MAINTENANCE, this.bboxMaintenance);
+        config.put(KEY_CONCURRENT_WRITERS, this.concurrentWriters);
+        config.put(KEY_INGEST_BUFFER_SIZE, this.ingestBufferSize);
+        config.put(KEY_INGEST_BUFFER_MAX_AGE, this.ingestBufferMaxAge);
+        config.put(KEY_SUBTREE_COUNTS, this.subtreeCounts);
+        config.put(KEY_AGGREGATES, String.join(",", this.aggregates));
+        config.put(KEY_COVERED_ATTRIBUTES, String.join(",", this.coveredAttributes));
+        config.put(KEY_SNAPSHOT_FILE, this.snapshotFile == null ? "" : this.snapshotFile);
+        config.put(KEY_REORGANIZE_MIN_FILL, this.reorganizeMinFill);
+        config.put(KEY_REORGANIZE_MAX_OVERLAP, this.reorganizeMaxOverlap);
+        config.put(KEY_REORGANIZE_MAX_DEAD_SPACE, this.reorganizeMaxDeadSpace);
+        config.put(KEY_REORGANIZE_SUBTREE_SIZE, this.reorganizeSubtreeSize);
+        config.put(KEY_REORGANIZE_INTERVAL, this.reorganizeInterval);
         return JSONObject.toJSONString(config);
     }
 
@@ -119,6 +251,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
                     switch (value) {
                         case QUADRATIC_SPLIT:
                         case GREENES_SPLIT:
+                        case RSTAR_SPLIT:
                             splitMode = value;
                             break;
                         default:
@@ -138,19 +271,191 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
                 case KEY_SHOULD_MERGE_TREES:
                     this.shouldMergeTrees = Boolean.parseBoolean(config.get(key).toString());
                     break;
+                case KEY_DIRECTORY_MIRROR:
+                    this.useDirectoryMirror = Boolean.parseBoolean(config.get(key).toString());
+                    if (!useDirectoryMirror) {
+                        directoryMirror = null;
+                    }
+                    break;
+                case KEY_BULK_LOAD:
+                    String bulkLoad = config.get(key).toString();
+                    switch (bulkLoad) {
+                        case OMT_BULK_LOAD:
+                        case STR_BULK_LOAD:
+                        case HILBERT_BULK_LOAD:
+                        case EXTERNAL_BULK_LOAD:
+                            bulkLoadMode = bulkLoad;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("No such RTreeIndex value for '" + key + "': " + bulkLoad);
+                    }
+                    break;
+                case KEY_PACKED_CHILDREN:
+                    this.usePackedChildren = Boolean.parseBoolean(config.get(key).toString());
+                    break;
+                case KEY_LEAF_STORAGE:
+                    String storage = config.get(key).toString();
+                    switch (storage) {
+                        case RELATIONSHIP_LEAF_STORAGE:
+                        case PACKED_LEAF_STORAGE:
+                            leafStorage = storage;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("No such RTreeIndex value for '" + key + "': " + storage);
+                    }
+                    break;
+                case KEY_LEAF_PRECISION:
+                    String precision = config.get(key).toString();
+                    switch (precision) {
+                        case DOUBLE_LEAF_PRECISION:
+                        case FLOAT_LEAF_PRECISION:
+                            leafPrecision = precision;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("No such RTreeIndex value for '" + key + "': " + precision);
+                    }
+                    break;
+                case KEY_BBOX_MAINTENANCE:
+                    String maintenance = config.get(key).toString();
+                    switch (maintenance) {
+                        case IMMEDIATE_BBOX_MAINTENANCE:
+                        case DEFERRED_BBOX_MAINTENANCE:
+                            bboxMaintenance = maintenance;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("No such RTreeIndex value for '" + key + "': " + maintenance);
+                    }
+                    break;
+                case KEY_CONCURRENT_WRITERS:
+                    boolean writers = Boolean.parseBoolean(config.get(key).toString());
+                    if (writers && maintainsSubtreeSummaries()) {
+                        throw new IllegalArgumentException("RTreeIndex does not allow " + key + " together with " + KEY_SUBTREE_COUNTS + " or " + KEY_AGGREGATES);
+                    }
+                    this.concurrentWriters = writers;
+                    if (concurrentWriters) {
+                        directoryMirror = null;
+                    }
+                    break;
+                case KEY_INGEST_BUFFER_SIZE:
+                    int bufferSize = Integer.parseInt(config.get(key).toString());
+                    if (bufferSize < 0) {
+                        throw new IllegalArgumentException("RTreeIndex does not allow " + key + " less than 0");
+                    }
+                    this.ingestBufferSize = bufferSize;
+                    break;
+                case KEY_INGEST_BUFFER_MAX_AGE:
+                    long maxAge = Long.parseLong(config.get(key).toString());
+                    if (maxAge < 0) {
+                        throw new IllegalArgumentException("RTreeIndex does not allow " + key + " less than 0");
+                    }
+                    this.ingestBufferMaxAge = maxAge;
+                    break;
+                case KEY_SUBTREE_COUNTS:
+                    boolean counts = Boolean.parseBoolean(config.get(key).toString());
+                    if (counts && concurrentWriters) {
+                        // every write would update the count of the root, which serializes the writers again
+                        throw new IllegalArgumentException("RTreeIndex does not allow " + key + " together with " + KEY_CONCURRENT_WRITERS);
+                    }
+                    this.subtreeCounts = counts;
+                    break;
+                case KEY_AGGREGATES:
+                    List<String> attributes = parseAttributes(config.get(key));
+                    if (!attributes.isEmpty() && concurrentWriters) {
+                        throw new IllegalArgumentException("RTreeIndex does not allow " + key + " together with " + KEY_CONCURRENT_WRITERS);
+                    }
+                    this.aggregates = attributes;
+                    break;
+                case KEY_COVERED_ATTRIBUTES:
+                    this.coveredAttributes = parseAttributes(config.get(key));
+                    break;
+                case KEY_SNAPSHOT_FILE:
+                    Object file = config.get(key);
+                    this.snapshotFile = file == null || file.toString().isEmpty() ? null : file.toString();
+                    this.snapshot = null;
+                    this.snapshotModified = 0;
+                    break;
+                case KEY_REORGANIZE_MIN_FILL:
+                    this.reorganizeMinFill = parseThreshold(key, config.get(key));
+                    if (reorganizeMinFill > 1) {
+                        throw new IllegalArgumentException("RTreeIndex does not allow " + key + " greater than 1");
+                    }
+                    break;
+                case KEY_REORGANIZE_MAX_OVERLAP:
+                    this.reorganizeMaxOverlap = parseThreshold(key, config.get(key));
+                    break;
+                case KEY_REORGANIZE_MAX_DEAD_SPACE:
+                    this.reorganizeMaxDeadSpace = parseThreshold(key, config.get(key));
+                    break;
+                case KEY_REORGANIZE_SUBTREE_SIZE:
+                    int subtreeSize = Integer.parseInt(config.get(key).toString());
+                    if (subtreeSize < 1) {
+                        throw new IllegalArgumentException("RTreeIndex does not allow " + key + " less than 1");
+                    }
+                    this.reorganizeSubtreeSize = subtreeSize;
+                    break;
+                case KEY_REORGANIZE_INTERVAL:
+                    int interval = Integer.parseInt(config.get(key).toString());
+                    if (interval < 0) {
+                        throw new IllegalArgumentException("RTreeIndex does not allow " + key + " less than 0");
+                    }
+                    this.reorganizeInterval = interval;
+                    break;
                 default:
                     throw new IllegalArgumentException("No such RTreeIndex configuration key: " + key);
             }
         }
     }
 
+    private static double parseThreshold(String key, Object value) {
+        double threshold = Double.parseDouble(value.toString());
+        if (threshold < 0) {
+            throw new IllegalArgumentException("RTreeIndex does not allow " + key + " less than 0");
+        }
+        return threshold;
+    }
+
+    /**
+     * @return the attribute names in a list, or in a comma separated string
+     */
+    private static List<String> parseAttributes(Object declared) {
+        List<String> attributes = new ArrayList<>();
+        for (Object attribute : declared instanceof Collection ? (Collection<?>) declared : Arrays.asList(declared.toString().split(","))) {
+            if (!attribute.toString().trim().isEmpty()) {
+                attributes.add(attribute.toString().trim());
+            }
+        }
+        return attributes;
+    }
+
     @Override
     public void add(Transaction tx, Node geomNode) {
-        // initialize the search with root
-        Node parent = getIndexRoot(tx);
-        addBelow(tx, parent, geomNode);
-        countSaved = false;
-        totalGeometryCount++;
+        if (ingestBufferSize > 0) {
+            // the buffer is kept on the metadata node, so buffered adds take the exclusive lock even with concurrentWriters
+            trackDirectoryChanges(tx);
+            bufferGeometry(tx, geomNode);
+            adjustCount(tx, 1);
+            if (isIngestBufferDue(getMetadataNode(tx))) {
+                flushIngestBuffer(tx);
+            }
+            return;
+        }
+        trackSharedChanges(tx);
+        insertGeometry(tx, geomNode);
+        logChanges(tx, Collections.singletonList(geomNode), false);
+        adjustCount(tx, 1);
+        flushSubtreeSummaries(tx);
+    }
+
+    private void insertGeometry(Transaction tx, Node geomNode) {
+        if (isSharedWriter()) {
+            addBelowConcurrently(tx, geomNode);
+        } else if (splitMode.equals(RSTAR_SPLIT)) {
+            insertRStar(tx, geomNode, 0, new HashSet<>());
+        } else {
+            // initialize the search with root
+            Node parent = getIndexRoot(tx);
+            addBelow(tx, parent, geomNode);
+        }
     }
 
     /**
@@ -158,8 +463,9 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
      */
     private void addBelow(Transaction tx, Node parent, Node geomNode) {
         // choose a path down to a leaf
+        Envelope geomEnvelope = getLeafNodeEnvelope(geomNode);
         while (!nodeIsLeaf(parent)) {
-            parent = chooseSubTree(parent, geomNode);
+            parent = chooseSubTree(tx, parent, geomEnvelope);
         }
         if (countChildren(parent, RTreeRelationshipTypes.RTREE_REFERENCE) >= maxNodeReferences) {
             insertInLeaf(parent, geomNode);
@@ -173,6 +479,117 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
     }
 
 
+    /**
+     * Insert a geometry while other transactions may be inserting into the same tree. The path down to a leaf is
+     * chosen without taking any locks, and only the index nodes that are actually changed are locked, from the leaf
+     * upwards: the leaf is locked first and checked again, parents are only locked when their bounding box has to
+     * grow or they receive the new node of a split. R*-tree forced reinsertion is not done here, since it would
+     * lock large parts of the tree.
+     * <p>
+     * Neo4j keeps locks until the transaction ends, so the locks cannot be released again while descending as in
+     * classic lock-coupling. Transactions that insert many geometries can therefore still deadlock each other. Neo4j
+     * detects this and fails one of them with a transient error, and it should be retried.
+     */
+    private void addBelowConcurrently(Transaction tx, Node geomNode) {
+        Envelope geomEnvelope = getLeafNodeEnvelope(geomNode);
+        Node leaf = lockLeafForInsert(tx, geomEnvelope);
+        lockForBoundingBoxChange(tx, leaf);
+        if (countChildren(leaf, RTreeRelationshipTypes.RTREE_REFERENCE) >= maxNodeReferences) {
+            insertInLeaf(leaf, geomNode);
+            splitAndAdjustPathBoundingBox(tx, leaf);
+        } else {
+            if (insertInLeaf(leaf, geomNode)) {
+                growPathBoundingBox(tx, leaf);
+            }
+        }
+    }
+
+    private Node lockLeafForInsert(Transaction tx, Envelope geomEnvelope) {
+        while (true) {
+            Node leaf = getIndexRoot(tx);
+            while (!nodeIsLeaf(leaf)) {
+                leaf = chooseSubTree(tx, leaf, geomEnvelope);
+            }
+            try {
+                tx.acquireWriteLock(leaf);
+                // now that no other transaction can change it, check the leaf is still part of the tree
+                if (nodeIsLeaf(leaf) && isIndexNodeInThisIndex(tx, leaf)) {
+                    return leaf;
+                }
+            } catch (NotFoundException e) {
+                // deleted by a transaction that committed while we were descending
+            }
+        }
+    }
+
+    /**
+     * Lock an index node before changing its bounding box or children. With packed children the bounding box is
+     * also stored in the parent, which is then locked too.
+     */
+    private void lockForBoundingBoxChange(Transaction tx, Node indexNode) {
+        tx.acquireWriteLock(indexNode);
+        if (usePackedChildren) {
+            Node parent = getIndexNodeParent(indexNode);
+            if (parent != null) {
+                tx.acquireWriteLock(parent);
+            }
+        }
+    }
+
+    /**
+     * Lock an index node before recomputing its bounding box from its children. The child index nodes are read
+     * locked, so that a concurrent insert that has grown one of them, but not yet its parent, is committed first.
+     */
+    private void lockForRecompute(Transaction tx, Node indexNode, RelationshipType relationshipType) {
+        lockForBoundingBoxChange(tx, indexNode);
+        if (relationshipType == RTreeRelationshipTypes.RTREE_CHILD) {
+            for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+                tx.acquireReadLock(relationship.getEndNode());
+            }
+        }
+    }
+
+    /**
+     * Grow the bounding boxes above an index node whose bounding box has grown. With concurrent writers each parent
+     * is first checked without a lock, and only locked and written if it really has to grow, so inserts into
+     * different parts of the tree do not all lock the root.
+     */
+    private void growPathBoundingBox(Transaction tx, Node indexNode) {
+        if (!isSharedWriter() || bboxMaintenance.equals(DEFERRED_BBOX_MAINTENANCE)) {
+            adjustPathBoundingBox(indexNode);
+            return;
+        }
+        double[] bbox = (double[]) indexNode.getProperty(INDEX_PROP_BBOX);
+        for (Node parent = getIndexNodeParent(indexNode); parent != null; parent = getIndexNodeParent(parent)) {
+            double[] parentBBox = (double[]) parent.getProperty(INDEX_PROP_BBOX, null);
+            if (parentBBox != null && parentBBox[0] <= bbox[0] && parentBBox[1] <= bbox[1] && parentBBox[2] >= bbox[2] && parentBBox[3] >= bbox[3]) {
+                return;
+            }
+            lockForBoundingBoxChange(tx, parent);
+            if (!expandParentBoundingBoxAfterNewChild(parent, bbox)) {
+                return;
+            }
+            bbox = (double[]) parent.getProperty(INDEX_PROP_BBOX);
+        }
+    }
+
+    /**
+     * Recompute the bounding boxes above an index node that lost a child or whose bounding box has shrunk, locking
+     * every index node before it is recomputed if there are concurrent writers.
+     */
+    private void shrinkPathBoundingBox(Transaction tx, Node indexNode) {
+        if (!isSharedWriter() || bboxMaintenance.equals(DEFERRED_BBOX_MAINTENANCE)) {
+            adjustPathBoundingBox(indexNode);
+            return;
+        }
+        for (Node parent = getIndexNodeParent(indexNode); parent != null; parent = getIndexNodeParent(parent)) {
+            lockForRecompute(tx, parent, RTreeRelationshipTypes.RTREE_CHILD);
+            if (!adjustParentBoundingBox(parent, RTreeRelationshipTypes.RTREE_CHILD)) {
+                return;
+            }
+        }
+    }
+
     /**
      * Use this method if you want to insert an index node as a child of a given index node. This will recursively
      * update the bounding boxes above the parent to keep the tree consistent.
@@ -193,8 +610,8 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
     /**
      * Depending on the size of the incumbent tree, this will either attempt to rebuild the entire index from scratch
      * (strategy used if the insert larger than 40% of the current tree size - may give heap out of memory errors for
-     * large inserts as has O(n) space complexity in the total tree size. It has n*log(n) time complexity. See function
-     * partition for more details.) or it will insert using the method of seeded clustering, where you attempt to use the
+     * large inserts as has O(n) space complexity in the total tree size. It has n*log(n) time complexity. See
+     * PartitionPlanner for more details.) or it will insert using the method of seeded clustering, where you attempt to use the
      * existing tree structure to partition your data.
      * <p>
      * This is based on the Paper "Bulk Insertion for R-trees by seeded clustering" by T.Lee, S.Lee & B Moon.
@@ -204,9 +621,39 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
      */
     @Override
     public void add(Transaction tx, List<Node> geomNodes) {
+        flushBoundingBoxes(tx);
+        // bulk loading restructures whole subtrees, so the directory mirror is rebuilt rather than patched
+        trackDirectoryChanges(tx).rebuild = true;
+        List<Node> buffered = drainIngestBuffer(tx);
+        if (!buffered.isEmpty()) {
+            adjustCount(tx, -buffered.size());
+            buffered.addAll(geomNodes);
+            geomNodes = buffered;
+        }
+        if (geomNodes.isEmpty()) {
+            return;
+        }
+        logChanges(tx, geomNodes, false);
+        int totalGeometryCount = count(tx);
 
         //If the insertion is large relative to the size of the tree, simply rebuild the whole tree.
-        if (geomNodes.size() > totalGeometryCount * 0.4) {
+        if (geomNodes.size() > totalGeometryCount * 0.4 && bulkLoadMode.equals(EXTERNAL_BULK_LOAD)) {
+            try (ExternalEnvelopeSorter sorter = new ExternalEnvelopeSorter(EXTERNAL_SORT_RUN_LENGTH)) {
+                for (Node n : getAllIndexedNodes(tx)) {
+                    sorter.add(n.getId(), getLeafNodeEnvelope(n));
+                }
+                for (Node n : geomNodes) {
+                    sorter.add(n.getId(), getLeafNodeEnvelope(n));
+                }
+                detachGeometryNodes(tx, false, getIndexRoot(tx), new NullListener());
+                deleteTreeBelow(tx, getIndexRoot(tx));
+                packExternally(new BatchTransaction(tx), sorter, getIndexRoot(tx).getId(), 0.7);
+                setCount(tx, (int) sorter.size());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            monitor.addNbrRebuilt(this, tx);
+        } else if (geomNodes.size() > totalGeometryCount * 0.4) {
             List<Node> nodesToAdd = new ArrayList<>(geomNodes.size() + totalGeometryCount);
             for (Node n : getAllIndexedNodes(tx)) {
                 nodesToAdd.add(n);
@@ -215,128 +662,959 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
             detachGeometryNodes(tx, false, getIndexRoot(tx), new NullListener());
             deleteTreeBelow(tx, getIndexRoot(tx));
             buildRtreeFromScratch(tx, getIndexRoot(tx), decodeGeometryNodeEnvelopes(nodesToAdd), 0.7);
-            countSaved = false;
-            totalGeometryCount = nodesToAdd.size();
+            setCount(tx, nodesToAdd.size());
             monitor.addNbrRebuilt(this, tx);
         } else {
 
             List<NodeWithEnvelope> outliers = bulkInsertion(tx, getIndexRoot(tx), getHeight(getIndexRoot(tx), 0), decodeGeometryNodeEnvelopes(geomNodes), 0.7);
-            countSaved = false;
-            totalGeometryCount = totalGeometryCount + (geomNodes.size() - outliers.size());
             for (NodeWithEnvelope n : outliers) {
-                add(tx, n.node);
+                insertGeometry(tx, n.node);
             }
+            adjustCount(tx, geomNodes.size());
         }
+        flushSubtreeSummaries(tx);
     }
 
-    private List<NodeWithEnvelope> decodeGeometryNodeEnvelopes(List<Node> nodes) {
-        return nodes.stream().map(GeometryNodeWithEnvelope::new).collect(Collectors.toList());
-    }
+    /**
+     * Rebuild the whole tree from the geometries already in the tree and the given geometry nodes, which must not be
+     * indexed yet, with the external memory bulk loader, while the index stays in use. The (node id, bounding box)
+     * records are sorted on disk, so the heap used does not grow with the size of the index, and the work is split
+     * into transactions of about batchSize changes each:
+     * <ol>
+     * <li>Under the exclusive lock of the index, a shadow root is linked to the layer node with RTREE_SHADOW_ROOT and
+     * a change log is started on the metadata node. From now on, every geometry added to or removed from the old tree
+     * is also appended to the change log.</li>
+     * <li>The geometries in the old tree are read without the lock. Since writers may move geometries between the
+     * nodes being read, every geometry they attach to the old tree meanwhile is logged as well.</li>
+     * <li>The new tree is packed below the shadow root. Searches and writes keep using the old tree.</li>
+     * <li>The logged changes are applied to the new tree, until few enough are left for one transaction, which
+     * applies the rest and swaps the RTREE_ROOT and RTREE_SHADOW_ROOT relationships of the two trees.</li>
+     * <li>The old tree is deleted on a background thread.</li>
+     * </ol>
+     * Writers wait for the first step and for each batch, but not for the whole rebuild, or the read of the old tree. Geometries in the ingest
+     * buffer are not part of either tree and stay in the buffer. The index cannot be cleared, or rebuilt again, until
+     * the old tree is deleted.
+     *
+     * @return completes when the old tree has been deleted
+     */
+    public Future<?> rebuild(GraphDatabaseService db, Iterable<Long> geomNodeIds, int batchSize) {
+        try (ExternalEnvelopeSorter sorter = new ExternalEnvelopeSorter(EXTERNAL_SORT_RUN_LENGTH)) {
+            // the old tree of the previous rebuild, if its deletion did not finish
+            deleteRetiredTree(db, batchSize);
+
+            long newRootId;
+            try (Transaction tx = db.beginTx()) {
+                Node metadataNode = getMetadataNode(tx);
+                // writers check for the change log under this lock, so each write is either committed before the read
+                // of the old tree starts or logged
+                tx.acquireWriteLock(metadataNode);
+                if (hasShadowTree(tx)) {
+                    throw new IllegalStateException("RTreeIndex is already being rebuilt");
+                }
+                Node newRoot = tx.createNode();
+                getRootNode(tx).createRelationshipTo(newRoot, RTreeRelationshipTypes.RTREE_SHADOW_ROOT);
+                Node logNode = tx.createNode();
+                logNode.setProperty(INDEX_PROP_LOG_SCANNING, true);
+                metadataNode.createRelationshipTo(logNode, RTreeRelationshipTypes.RTREE_CHANGE_LOG);
+                newRootId = newRoot.getId();
+                tx.commit();
+            }
 
-    public static class NodeWithEnvelope {
-        public Envelope envelope;
-        Node node;
+            try {
+                int added = 0;
+                try (Transaction tx = db.beginTx()) {
+                    scanTreeForRebuild(tx, sorter);
+                    for (long id : geomNodeIds) {
+                        sorter.add(id, getLeafNodeEnvelope(tx.getNodeById(id)));
+                        added++;
+                    }
+                    tx.commit();
+                }
+                try (Transaction tx = db.beginTx()) {
+                    // writers that start from now on no longer log the geometries they move, the log node lock waits for those that do
+                    getMetadataNode(tx).getSingleRelationship(RTreeRelationshipTypes.RTREE_CHANGE_LOG, Direction.OUTGOING).getEndNode().removeProperty(INDEX_PROP_LOG_SCANNING);
+                    tx.commit();
+                }
 
-        public NodeWithEnvelope(Node node, Envelope envelope) {
-            this.node = node;
-            this.envelope = envelope;
-        }
+                writingShadowTree.set(true);
+                try (BatchTransaction batch = new BatchTransaction(db, batchSize)) {
+                    // geometries removed and deleted meanwhile are skipped, their removal is in the change log
+                    batch.lockEach(getMetadataNode(batch.tx()));
+                    packExternally(batch, sorter, newRootId, 0.7);
+                    batch.commit();
+                } finally {
+                    writingShadowTree.remove();
+                }
 
-        /** Ensure this node is valid in the specified transaction */
-        public NodeWithEnvelope refresh(Transaction tx) {
-            this.node = tx.getNodeById(this.node.getId());
-            return this;
+                int remaining = Integer.MAX_VALUE;
+                while (true) {
+                    int left;
+                    try (Transaction tx = db.beginTx()) {
+                        left = applyChangeLog(tx, batchSize);
+                        tx.commit();
+                    }
+                    // stop when the rest fits in one batch, or the writers log faster than it is applied
+                    if (left <= batchSize || left >= remaining) {
+                        break;
+                    }
+                    remaining = left;
+                }
+
+                try (Transaction tx = db.beginTx()) {
+                    applyChangeLog(tx, Integer.MAX_VALUE);
+                    deleteChangeLog(getMetadataNode(tx));
+                    Node layerNode = getRootNode(tx);
+                    Relationship rootRelationship = layerNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_ROOT, Direction.OUTGOING);
+                    Relationship shadowRelationship = layerNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_SHADOW_ROOT, Direction.OUTGOING);
+                    Node oldRoot = rootRelationship.getEndNode();
+                    Node newRoot = shadowRelationship.getEndNode();
+                    rootRelationship.delete();
+                    shadowRelationship.delete();
+                    layerNode.createRelationshipTo(newRoot, RTreeRelationshipTypes.RTREE_ROOT);
+                    // the old tree stays linked until it is deleted, so lookups can tell its leaves from the new ones
+                    layerNode.createRelationshipTo(oldRoot, RTreeRelationshipTypes.RTREE_SHADOW_ROOT);
+                    adjustCount(tx, added);
+                    monitor.addNbrRebuilt(this, tx);
+                    tx.commit();
+                }
+            } catch (RuntimeException | IOException e) {
+                abortRebuild(db, batchSize, e);
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        return maintenance.submit(() -> {
+            deleteRetiredTree(db, batchSize);
+            return null;
+        });
     }
 
-    public class GeometryNodeWithEnvelope extends NodeWithEnvelope {
-        GeometryNodeWithEnvelope(Node node) {
-            super(node, envelopeDecoder.decodeEnvelope(node));
+    /**
+     * Read the geometries in the tree in use for a rebuild, without its lock. Index nodes deleted meanwhile are skipped,
+     * since their geometries were either removed, or moved to other index nodes, and both is in the change log. So is
+     * any geometry moved to a node that was already read, or away from a node not read yet, which the change log
+     * replaces with a single entry for each of them.
+     */
+    private void scanTreeForRebuild(Transaction tx, ExternalEnvelopeSorter sorter) throws IOException {
+        long rootId = getIndexRoot(tx).getId();
+        Deque<Long> pending = new ArrayDeque<>();
+        pending.push(rootId);
+        while (!pending.isEmpty()) {
+            long indexNodeId = pending.pop();
+            List<Long> childIds = new ArrayList<>();
+            long[] entryIds;
+            try {
+                Node indexNode = tx.getNodeById(indexNodeId);
+                for (Relationship child : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+                    childIds.add(child.getEndNodeId());
+                }
+                entryIds = getLeafEntryIds(indexNode);
+                if (entryIds == null) {
+                    List<Long> referenced = new ArrayList<>();
+                    for (Relationship reference : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+                        referenced.add(reference.getEndNodeId());
+                    }
+                    entryIds = referenced.stream().mapToLong(Long::longValue).toArray();
+                }
+            } catch (NotFoundException e) {
+                if (indexNodeId == rootId) {
+                    // the root was replaced by its only child before it was read
+                    rootId = getIndexRoot(tx).getId();
+                    pending.push(rootId);
+                }
+                continue;
+            }
+            childIds.forEach(pending::push);
+            for (long id : entryIds) {
+                try {
+                    sorter.add(id, getLeafNodeEnvelope(tx.getNodeById(id)));
+                } catch (NotFoundException e) {
+                    // deleted after its removal was logged
+                }
+            }
         }
     }
 
     /**
-     * Returns the height of the tree, starting with the rootNode and adding one for each subsequent level. Relies on the
-     * balanced property of the RTree that all leaves are on the same level and no index nodes are empty. In the convention
-     * the index is level 0, so if there is just the index and the leaf nodes, the leaf nodes are level one and the height is one.
-     * Thus the lowest level is 1.
+     * While a rebuild reads the tree in use without its lock, an entry moved from an index node it has not read yet to
+     * one it has already read would be missed, and one moved the other way read twice. So every geometry attached to
+     * the tree in use meanwhile, on its own or in a subtree, is logged as added, which the rebuild replays by keeping
+     * exactly one entry for it.
      */
-    int getHeight(Node rootNode, int height) {
-        Iterator<Relationship> rels = rootNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD).iterator();
-        if (rels.hasNext()) {
-            return getHeight(rels.next().getEndNode(), height + 1);
+    private void logAttachedEntries(RelationshipType type, Collection<Node> children) {
+        DirectoryChanges changes = currentChanges.get();
+        if (changes == null || changes.scanningTx == null || writingShadowTree.get() != null) {
+            return;
+        }
+        Transaction tx = changes.scanningTx;
+        List<Node> geomNodes = new ArrayList<>();
+        if (type == RTreeRelationshipTypes.RTREE_REFERENCE) {
+            geomNodes.addAll(children);
         } else {
-            // Add one to account for the step to leaf nodes.
-            return height + 1; // todo should this really be +1 ?
+            long rootId = getIndexRoot(tx).getId();
+            TraversalDescription subtree = new MonoDirectionalTraversalDescription()
+                    .breadthFirst()
+                    .relationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)
+                    .evaluator(Evaluators.all());
+            for (Node child : children) {
+                // the old root only gets a new parent when the root is split, and is not moved
+                if (child.getId() != rootId) {
+                    for (Node geomNode : new IndexNodeToGeometryNodeIterable(tx, subtree.traverse(child).nodes())) {
+                        geomNodes.add(geomNode);
+                    }
+                }
+            }
         }
+        geomNodes.removeIf(geomNode -> !changes.loggedEntries.add(geomNode.getId()));
+        logChanges(tx, geomNodes, false);
     }
 
-    List<NodeWithEnvelope> getIndexChildren(Node rootNode) {
-        List<NodeWithEnvelope> result = new ArrayList<>();
-        for (Relationship r : rootNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
-            Node child = r.getEndNode();
-            result.add(new NodeWithEnvelope(child, getIndexNodeEnvelope(child)));
-        }
-        return result;
+    private static boolean isScanningForRebuild(Relationship log) {
+        return log != null && log.getEndNode().hasProperty(INDEX_PROP_LOG_SCANNING);
     }
 
-    private List<NodeWithEnvelope> getIndexChildren(Node rootNode, int depth) {
-        if (depth < 1) {
-            throw new IllegalArgumentException("Depths must be at least one");
+    /**
+     * While a rebuild is building the new tree, every geometry added to or removed from the tree in use is also
+     * appended to a change log, which the rebuild applies to the new tree before swapping it in. The log is a chain of
+     * buckets like the ingest buffer, from the newest to the oldest, below a log node on the metadata node. Writers
+     * lock the log node while appending, since concurrent writers only hold the shared lock on the metadata node.
+     */
+    private void logChanges(Transaction tx, Collection<Node> geomNodes, boolean removed) {
+        Relationship log = getMetadataNode(tx).getSingleRelationship(RTreeRelationshipTypes.RTREE_CHANGE_LOG, Direction.OUTGOING);
+        if (log == null || geomNodes.isEmpty()) {
+            return;
+        }
+        Node logNode = log.getEndNode();
+        tx.acquireWriteLock(logNode);
+        Relationship newest = logNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHANGE_LOG, Direction.OUTGOING);
+        Node bucket = newest == null ? null : newest.getEndNode();
+        long[] ids = bucket == null ? null : getLeafEntryIds(bucket);
+        double[] bboxes = bucket == null ? null : getLeafEntryBBoxes(bucket);
+        boolean[] removals = bucket == null ? null : (boolean[]) bucket.getProperty(INDEX_PROP_LOG_REMOVED);
+        for (Node geomNode : geomNodes) {
+            if (bucket == null || ids.length >= maxNodeReferences) {
+                if (bucket != null) {
+                    setChangeLogEntries(bucket, ids, bboxes, removals);
+                    newest.delete();
+                }
+                Node newBucket = tx.createNode();
+                if (bucket != null) {
+                    newBucket.createRelationshipTo(bucket, RTreeRelationshipTypes.RTREE_CHANGE_LOG);
+                }
+                newest = logNode.createRelationshipTo(newBucket, RTreeRelationshipTypes.RTREE_CHANGE_LOG);
+                bucket = newBucket;
+                ids = new long[0];
+                bboxes = new double[0];
+                removals = new boolean[0];
+            }
+            Envelope envelope = getLeafNodeEnvelope(geomNode);
+            ids = Arrays.copyOf(ids, ids.length + 1);
+            bboxes = Arrays.copyOf(bboxes, bboxes.length + 4);
+            removals = Arrays.copyOf(removals, removals.length + 1);
+            ids[ids.length - 1] = geomNode.getId();
+            bboxes[bboxes.length - 4] = envelope.getMinX();
+            bboxes[bboxes.length - 3] = envelope.getMinY();
+            bboxes[bboxes.length - 2] = envelope.getMaxX();
+            bboxes[bboxes.length - 1] = envelope.getMaxY();
+            removals[removals.length - 1] = removed;
         }
+        setChangeLogEntries(bucket, ids, bboxes, removals);
+    }
 
-        List<NodeWithEnvelope> rootChildren = getIndexChildren(rootNode);
-        if (depth == 1) {
-            return rootChildren;
-        } else {
-            List<NodeWithEnvelope> result = new ArrayList<>(rootChildren.size() * 5);
-            for (NodeWithEnvelope child : rootChildren) {
-                result.addAll(getIndexChildren(child.node, depth - 1));
+    private static void setChangeLogEntries(Node bucket, long[] ids, double[] bboxes, boolean[] removals) {
+        setBucketEntries(bucket, ids, bboxes);
+        bucket.setProperty(INDEX_PROP_LOG_REMOVED, removals);
+    }
+
+    /**
+     * Apply the oldest buckets of the change log to the new tree of a rebuild, until at least maxEntries changes are
+     * applied or the log is empty, and delete the applied buckets. This takes the exclusive lock, so the log does not
+     * change meanwhile.
+     *
+     * @return the number of changes left in the log
+     */
+    private int applyChangeLog(Transaction tx, int maxEntries) {
+        trackDirectoryChanges(tx).rebuild = true;
+        Node logNode = getMetadataNode(tx).getSingleRelationship(RTreeRelationshipTypes.RTREE_CHANGE_LOG, Direction.OUTGOING).getEndNode();
+        List<Node> buckets = getBucketChain(logNode, RTreeRelationshipTypes.RTREE_CHANGE_LOG);
+        int applied = 0;
+        writingShadowTree.set(true);
+        try {
+            while (!buckets.isEmpty() && applied < maxEntries) {
+                Node bucket = buckets.remove(buckets.size() - 1);
+                long[] ids = getLeafEntryIds(bucket);
+                double[] bboxes = getLeafEntryBBoxes(bucket);
+                boolean[] removals = (boolean[]) bucket.getProperty(INDEX_PROP_LOG_REMOVED);
+                for (int i = 0; i < ids.length; i++) {
+                    applyLoggedChange(tx, ids[i], packedEnvelope(bboxes, i), removals[i]);
+                }
+                applied += ids.length;
+                // the oldest bucket has no older one, only the relationship from the next newer bucket or the log node
+                bucket.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHANGE_LOG, Direction.INCOMING).delete();
+                bucket.delete();
             }
-            return result;
+            // the bounding boxes below the new root are not recomputed at commit, when it is not the root yet
+            flushBoundingBoxes(tx);
+            flushSubtreeSummaries(tx);
+        } finally {
+            writingShadowTree.remove();
         }
+        int remaining = 0;
+        for (Node bucket : buckets) {
+            remaining += getLeafEntryIds(bucket).length;
+        }
+        return remaining;
     }
 
-    private List<NodeWithEnvelope> bulkInsertion(Transaction tx, Node rootNode, int rootNodeHeight, final List<NodeWithEnvelope> geomNodes, final double loadingFactor) {
-        List<NodeWithEnvelope> children = getIndexChildren(rootNode);
-        if (children.isEmpty()) {
-            return geomNodes;
+    /**
+     * Since the old tree was read while it changed, a logged geometry might be in the new tree any number of times, so
+     * all its entries are removed before an added geometry is inserted once.
+     */
+    private void applyLoggedChange(Transaction tx, long geomNodeId, Envelope envelope, boolean removed) {
+        Node leaf;
+        while ((leaf = searchLeafContaining(getIndexRoot(tx), geomNodeId, envelope)) != null) {
+            if (isPackedLeaf(leaf)) {
+                // not removeLeafEntry, which would also remove the pointer of the geometry node to its leaf in the old tree
+                List<NodeWithEnvelope> entries = getLeafEntries(tx, leaf);
+                entries.removeIf(entry -> entry.node.getId() == geomNodeId);
+                setLeafEntries(leaf, entries);
+            } else {
+                List<Relationship> references = new ArrayList<>();
+                for (Relationship reference : leaf.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+                    if (reference.getEndNodeId() == geomNodeId) {
+                        references.add(reference);
+                    }
+                }
+                references.forEach(Relationship::delete);
+                indexNodeChanged(leaf);
+            }
+            condenseTree(tx, Collections.singletonList(leaf));
         }
-        children.sort(new IndexNodeAreaComparator());
+        if (!removed) {
+            try {
+                insertGeometry(tx, tx.getNodeById(geomNodeId));
+            } catch (NotFoundException e) {
+                // deleted after it was added
+            }
+        }
+    }
 
-        Map<NodeWithEnvelope, List<NodeWithEnvelope>> map = new HashMap<>(children.size());
-        int nodesPerRootSubTree = Math.max(16, geomNodes.size() / children.size());
-        for (NodeWithEnvelope n : children) {
-            map.put(n, new ArrayList<>(nodesPerRootSubTree));
+    private static void deleteChangeLog(Node metadataNode) {
+        Relationship log = metadataNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHANGE_LOG, Direction.OUTGOING);
+        if (log != null) {
+            Node logNode = log.getEndNode();
+            for (Node bucket : getBucketChain(logNode, RTreeRelationshipTypes.RTREE_CHANGE_LOG)) {
+                bucket.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHANGE_LOG, Direction.INCOMING).delete();
+                bucket.delete();
+            }
+            log.delete();
+            logNode.delete();
         }
+    }
 
-        // The outliers are those nodes which do not fit into the existing tree hierarchy.
-        List<NodeWithEnvelope> outliers = new ArrayList<>(geomNodes.size() / 10); // 10% outliers
-        for (NodeWithEnvelope n : geomNodes) {
-            Envelope env = n.envelope;
-            boolean flag = true;
+    /**
+     * Stop logging the writes of a rebuild that failed before the swap, and delete what was built of the new tree.
+     */
+    private void abortRebuild(GraphDatabaseService db, int batchSize, Exception cause) {
+        try {
+            long newRootId;
+            try (Transaction tx = db.beginTx()) {
+                Node metadataNode = getMetadataNode(tx);
+                tx.acquireWriteLock(metadataNode);
+                deleteChangeLog(metadataNode);
+                Relationship shadow = getRootNode(tx).getSingleRelationship(RTreeRelationshipTypes.RTREE_SHADOW_ROOT, Direction.OUTGOING);
+                if (shadow == null) {
+                    return;
+                }
+                newRootId = shadow.getEndNodeId();
+                shadow.delete();
+                tx.commit();
+            }
+            try (ExternalEnvelopeSorter sorter = new ExternalEnvelopeSorter(EXTERNAL_SORT_RUN_LENGTH)) {
+                deleteTreeInBatches(db, sorter, newRootId, batchSize);
+            }
+        } catch (RuntimeException | IOException e) {
+            cause.addSuppressed(e);
+        }
+    }
 
-            //exploits that the iterator returns the list inorder, which is sorted by size, as above. Thus child
-            //is always added to the smallest existing envelope which contains it.
-            for (NodeWithEnvelope c : children) {
-                if (c.envelope.contains(env)) {
-                    map.get(c).add(n); //add to smallest area envelope which contains the child;
-                    flag = false;
-                    break;
+    /**
+     * Delete the old tree left linked with RTREE_SHADOW_ROOT by a rebuild. The geometry nodes in packed leaves are
+     * first pointed back at their leaves in the new tree, which the rebuild did not do, so that they are never left
+     * pointing at deleted leaves. Does nothing if there is no old tree, or a rebuild is still building its new tree.
+     */
+    private void deleteRetiredTree(GraphDatabaseService db, int batchSize) throws IOException {
+        List<Long> leafIds = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            if (!hasShadowTree(tx) || getMetadataNode(tx).hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHANGE_LOG)) {
+                return;
+            }
+            for (Node indexNode : getAllIndexInternalNodes(tx)) {
+                if (isPackedLeaf(indexNode)) {
+                    leafIds.add(indexNode.getId());
                 }
             }
-            // else add to outliers.
-            if (flag) {
-                outliers.add(n);
+            tx.commit();
+        }
+        try (BatchTransaction batch = new BatchTransaction(db, batchSize)) {
+            batch.lockEach(getMetadataNode(batch.tx()));
+            for (long leafId : leafIds) {
+                Node leaf;
+                try {
+                    leaf = batch.tx().getNodeById(leafId);
+                } catch (NotFoundException e) {
+                    // dissolved by a write meanwhile, which pointed its geometry nodes at their new leaves
+                    continue;
+                }
+                long[] ids = getLeafEntryIds(leaf);
+                int changes = 1;
+                for (long id : ids == null ? new long[0] : ids) {
+                    Node geomNode = batch.tx().getNodeById(id);
+                    if (!Long.valueOf(leafId).equals(geomNode.getProperty(INDEX_PROP_LEAF, null))) {
+                        geomNode.setProperty(INDEX_PROP_LEAF, leafId);
+                        changes++;
+                    }
+                }
+                batch.changed(changes);
             }
+            batch.commit();
         }
-        for (NodeWithEnvelope child : children) {
-            List<NodeWithEnvelope> cluster = map.get(child);
+        long oldRootId;
+        try (Transaction tx = db.beginTx()) {
+            tx.acquireWriteLock(getMetadataNode(tx));
+            Relationship shadow = getRootNode(tx).getSingleRelationship(RTreeRelationshipTypes.RTREE_SHADOW_ROOT, Direction.OUTGOING);
+            if (shadow == null) {
+                // deleted by another call
+                return;
+            }
+            oldRootId = shadow.getEndNodeId();
+            shadow.delete();
+            tx.commit();
+        }
+        try (ExternalEnvelopeSorter sorter = new ExternalEnvelopeSorter(EXTERNAL_SORT_RUN_LENGTH)) {
+            deleteTreeInBatches(db, sorter, oldRootId, batchSize);
+        }
+    }
 
-            if (cluster.isEmpty()) continue;
+    /**
+     * Measure the fill factor, overlap and dead space of every level of the tree, and pass them on to the monitor.
+     * This reads every index node and, for leaves that are not packed, the envelopes of all geometry nodes.
+     */
+    public TreeQuality measureQuality(Transaction tx) {
+        TreeQuality quality = measureQuality(tx, getIndexRoot(tx));
+        monitor.setQuality(quality);
+        return quality;
+    }
 
-            // todo move each branch into a named method
-            int expectedHeight = expectedHeight(loadingFactor, cluster.size());
+    private TreeQuality measureQuality(Transaction tx, Node indexNode) {
+        TreeQuality quality = new TreeQuality(maxNodeReferences);
+        measureSubtree(tx, indexNode, 0, quality);
+        return quality;
+    }
+
+    private void measureSubtree(Transaction tx, Node indexNode, int level, TreeQuality quality) {
+        List<NodeWithEnvelope> entries = nodeIsLeaf(indexNode) ? getLeafEntries(tx, indexNode) : getIndexChildren(indexNode);
+        List<Envelope> envelopes = new ArrayList<>(entries.size());
+        for (NodeWithEnvelope entry : entries) {
+            envelopes.add(entry.envelope);
+        }
+        quality.addNode(level, getIndexNodeEnvelope(indexNode), envelopes);
+        if (!nodeIsLeaf(indexNode)) {
+            for (NodeWithEnvelope child : entries) {
+                measureSubtree(tx, child.node, level + 1, quality);
+            }
+        }
+    }
+
+    /**
+     * @return true if any of the thresholds reorganizeMinFill, reorganizeMaxOverlap and reorganizeMaxDeadSpace is set
+     */
+    public boolean hasReorganizePolicy() {
+        return reorganizeMinFill > 0 || reorganizeMaxOverlap > 0 || reorganizeMaxDeadSpace > 0;
+    }
+
+    /**
+     * @return true if the index reorganizes itself in the background every reorganizeInterval committed writes
+     */
+    public boolean reorganizesInBackground() {
+        return reorganizeInterval > 0 && hasReorganizePolicy();
+    }
+
+    /**
+     * Re-partition the subtrees of the tree that cross the thresholds of the reorganization policy the most. The tree
+     * is divided into the highest subtrees with at most reorganizeSubtreeSize geometries, which are measured like
+     * measureQuality does for the whole tree, and each of the worst ones is then planned again with the configured
+     * bulk load and rewritten in a transaction of its own. The rewritten subtree keeps its root and its height, so the
+     * rest of the tree is not touched, and readers and writers are only blocked for the duration of one subtree.
+     *
+     * @return the number of subtrees reorganized
+     */
+    public int reorganize(GraphDatabaseService db, int maxSubtrees) {
+        if (!hasReorganizePolicy() || maxSubtrees < 1) {
+            return 0;
+        }
+        Map<Long, Double> excessBySubtree = new HashMap<>();
+        try (Transaction tx = db.beginTx()) {
+            List<Node> subtrees = new ArrayList<>();
+            collectReorganizeCandidates(getIndexRoot(tx), subtrees);
+            for (Node subtree : subtrees) {
+                double excess = thresholdExcess(measureQuality(tx, subtree));
+                if (excess > 0) {
+                    excessBySubtree.put(subtree.getId(), excess);
+                }
+            }
+            tx.commit();
+        }
+        List<Long> worst = excessBySubtree.entrySet().stream()
+                .sorted(Map.Entry.<Long, Double>comparingByValue().reversed())
+                .limit(maxSubtrees)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        int reorganized = 0;
+        for (long subtreeId : worst) {
+            try (Transaction tx = db.beginTx()) {
+                if (reorganizeSubtree(tx, subtreeId)) {
+                    tx.commit();
+                    reorganized++;
+                }
+            }
+        }
+        return reorganized;
+    }
+
+    /**
+     * Called by the transaction event listener of the LayerHandleRegistry after a committed transaction wrote to the
+     * index. Every reorganizeInterval of these, a reorganization of at most REORGANIZE_SUBTREES_PER_RUN subtrees is
+     * started on a background thread, unless the previous one is still running. A failed reorganization is reported
+     * to the monitor, see TreeMonitor.getReorganizeFailure(), and tried again after the next interval.
+     */
+    public void writeCommitted(GraphDatabaseService db) {
+        if (!reorganizesInBackground() || reorganizing.get()) {
+            // the writes of the reorganization itself are not counted
+            return;
+        }
+        if (writesSinceReorganize.incrementAndGet() >= reorganizeInterval && reorganizing.compareAndSet(false, true)) {
+            writesSinceReorganize.set(0);
+            maintenance.execute(() -> {
+                try {
+                    reorganize(db, REORGANIZE_SUBTREES_PER_RUN);
+                } catch (RuntimeException e) {
+                    // for example a deadlock with a writer, or the database shutting down
+                    monitor.reorganizeFailed(e);
+                } finally {
+                    reorganizing.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Collect the highest subtrees below the index node with at most reorganizeSubtreeSize geometries. Subtrees
+     * without a stored count are counted from the bottom up while collecting, so that each index node is only read
+     * once.
+     *
+     * @return the number of geometries below the index node
+     */
+    private int collectReorganizeCandidates(Node indexNode, List<Node> subtrees) {
+        if (nodeIsLeaf(indexNode)) {
+            // a single leaf has nothing to re-partition
+            return getSubtreeCount(indexNode, false);
+        }
+        Object stored = maintainsSubtreeSummaries() ? indexNode.getProperty(INDEX_PROP_SUBTREE_COUNT, null) : null;
+        if (stored != null && (Integer) stored <= reorganizeSubtreeSize) {
+            subtrees.add(indexNode);
+            return (Integer) stored;
+        }
+        List<Node> below = new ArrayList<>();
+        int count = 0;
+        for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+            count += collectReorganizeCandidates(relationship.getEndNode(), below);
+        }
+        if (count <= reorganizeSubtreeSize) {
+            subtrees.add(indexNode);
+        } else {
+            subtrees.addAll(below);
+        }
+        return count;
+    }
+
+    /**
+     * @return how far the subtree is beyond the thresholds of the reorganization policy, relative to each threshold,
+     * or 0 if it is within all of them
+     */
+    private double thresholdExcess(TreeQuality quality) {
+        double excess = 0;
+        if (reorganizeMinFill > 0 && quality.getFillFactor() < reorganizeMinFill) {
+            excess += (reorganizeMinFill - quality.getFillFactor()) / reorganizeMinFill;
+        }
+        if (reorganizeMaxOverlap > 0 && quality.getOverlapRatio() > reorganizeMaxOverlap) {
+            excess += (quality.getOverlapRatio() - reorganizeMaxOverlap) / reorganizeMaxOverlap;
+        }
+        if (reorganizeMaxDeadSpace > 0 && quality.getDeadSpaceRatio() > reorganizeMaxDeadSpace) {
+            excess += (quality.getDeadSpaceRatio() - reorganizeMaxDeadSpace) / reorganizeMaxDeadSpace;
+        }
+        return excess;
+    }
+
+    /**
+     * Replace the index nodes below the root of the subtree with a newly planned layout of the same height. The
+     * subtree is checked again under the exclusive lock, since a write may have changed the tree after it was measured.
+     *
+     * @return false if the subtree is gone or cannot be planned at its height, in which case nothing was changed
+     */
+    private boolean reorganizeSubtree(Transaction tx, long subtreeId) {
+        trackDirectoryChanges(tx).rebuild = true;
+        Node subtreeRoot;
+        try {
+            subtreeRoot = tx.getNodeById(subtreeId);
+        } catch (NotFoundException e) {
+            return false;
+        }
+        if (nodeIsLeaf(subtreeRoot) || !isIndexNodeInThisIndex(tx, subtreeRoot)) {
+            return false;
+        }
+        int height = getHeight(subtreeRoot, 0);
+        List<NodeWithEnvelope> entries = new ArrayList<>();
+        collectSubtreeEntries(tx, subtreeRoot, entries);
+        if (entries.size() > reorganizeSubtreeSize) {
+            return false;
+        }
+        PlannedNode plan = planSubtree(entries, height);
+        if (plan == null) {
+            return false;
+        }
+        detachGeometryNodes(tx, false, subtreeRoot, new NullListener());
+        deleteTreeBelow(tx, subtreeRoot);
+        writePlannedEntries(tx, subtreeRoot, plan);
+        setIndexNodeEnvelope(subtreeRoot, plan.envelope);
+        adjustPathBoundingBox(subtreeRoot);
+        flushSubtreeSummaries(tx);
+        monitor.addCase("Reorganized subtree");
+        return true;
+    }
+
+    private void collectSubtreeEntries(Transaction tx, Node indexNode, List<NodeWithEnvelope> entries) {
+        if (nodeIsLeaf(indexNode)) {
+            entries.addAll(getLeafEntries(tx, indexNode));
+        } else {
+            for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+                collectSubtreeEntries(tx, relationship.getEndNode(), entries);
+            }
+        }
+    }
+
+    /**
+     * Plan a subtree of the given height for the entries, at the target loading closest to the usual loading factor
+     * of 0.7 that still gives that height, so that the subtree can replace the old one without unbalancing the tree.
+     *
+     * @return the plan, or null if no loading gives a balanced subtree of that height
+     */
+    private PlannedNode planSubtree(List<NodeWithEnvelope> entries, int height) {
+        int lowest = Math.max(2, (int) Math.ceil(Math.pow(entries.size(), 1.0 / height)));
+        int highest = Math.min(maxNodeReferences, (int) Math.ceil(Math.pow(entries.size(), 1.0 / (height - 1))) - 1);
+        if (lowest > highest) {
+            return null;
+        }
+        int targetLoading = Math.max(lowest, Math.min(highest, (int) Math.round(maxNodeReferences * 0.7)));
+        // a little above the target loading, so that the planners that round and those that floor both arrive at it
+        PlannedNode plan = planRtree(entries, (targetLoading + 0.25) / maxNodeReferences);
+        return isPlannedSubtreeBalanced(plan, height) ? plan : null;
+    }
+
+    private boolean isPlannedSubtreeBalanced(PlannedNode planned, int height) {
+        if (planned.children.isEmpty()) {
+            return height == 1 && !planned.entries.isEmpty() && planned.entries.size() <= maxNodeReferences;
+        }
+        if (height == 1 || planned.children.size() > maxNodeReferences) {
+            return false;
+        }
+        for (PlannedNode child : planned.children) {
+            if (!isPlannedSubtreeBalanced(child, height - 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pack a tree bottom-up from records in Hilbert order, in the same way as planPackedRtree, but reading the
+     * entries of each level from disk and writing the index nodes created for the next level back to disk, so that
+     * only the current batch of changes is held in memory.
+     */
+    private void packExternally(BatchTransaction batch, ExternalEnvelopeSorter sorter, long rootNodeId, double loadingFactor) throws IOException {
+        final int targetLoading = Math.max(2, (int) Math.floor(maxNodeReferences * loadingFactor));
+        RelationshipType relationshipType = RTreeRelationshipTypes.RTREE_REFERENCE;
+        long levelSize = sorter.size();
+        ExternalEnvelopeSorter.Records entries = sorter.sort();
+        try {
+            while (levelSize > targetLoading) {
+                long groupCount = (levelSize + targetLoading - 1) / targetLoading;
+                long parentCount = 0;
+                ExternalEnvelopeSorter.LevelWriter parents = sorter.newLevel();
+                for (long group = 0; group < groupCount; group++) {
+                    long groupSize = levelSize / groupCount + (group < levelSize % groupCount ? 1 : 0);
+                    Node indexNode = batch.tx().createNode();
+                    Envelope bbox = addChildrenExternally(batch.tx(), indexNode, entries, groupSize, relationshipType);
+                    if (bbox == null) {
+                        // all its geometry nodes were deleted during an online rebuild
+                        indexNode.delete();
+                        continue;
+                    }
+                    parentCount++;
+                    setIndexNodeEnvelope(indexNode, bbox);
+                    if (maintainsSubtreeSummaries()) {
+                        // the batches are committed along the way, so the summaries are written here and not on flush
+                        storeSubtreeSummaries(batch.tx(), indexNode);
+                    }
+                    parents.add(indexNode.getId(), bbox);
+                    batch.changed((int) groupSize + 1);
+                }
+                entries.close();
+                entries = parents.finish();
+                levelSize = parentCount;
+                relationshipType = RTreeRelationshipTypes.RTREE_CHILD;
+            }
+            Node rootNode = batch.tx().getNodeById(rootNodeId);
+            Envelope bbox = addChildrenExternally(batch.tx(), rootNode, entries, levelSize, relationshipType);
+            if (bbox != null) {
+                setIndexNodeEnvelope(rootNode, bbox);
+            }
+            if (maintainsSubtreeSummaries()) {
+                storeSubtreeSummaries(batch.tx(), rootNode);
+            }
+            batch.changed((int) levelSize + 1);
+        } finally {
+            entries.close();
+        }
+    }
+
+    private Envelope addChildrenExternally(Transaction tx, Node parent, ExternalEnvelopeSorter.Records entries, long count, RelationshipType relationshipType) throws IOException {
+        Envelope bbox = null;
+        List<NodeWithEnvelope> children = new ArrayList<>();
+        for (long i = 0; i < count && entries.next(); i++) {
+            Node child;
+            try {
+                child = tx.getNodeById(entries.id);
+            } catch (NotFoundException e) {
+                // a geometry node deleted while an online rebuild was reading the others
+                continue;
+            }
+            children.add(new NodeWithEnvelope(child, entries.envelope()));
+            if (bbox == null) {
+                bbox = entries.envelope();
+            } else {
+                bbox.expandToInclude(entries.envelope());
+            }
+        }
+        connectEntries(parent, children, relationshipType);
+        return bbox;
+    }
+
+    /**
+     * Delete a detached tree top-down, one level at a time, keeping the ids of the next level on disk. Each batch
+     * holds the exclusive lock of the index, since the leaves may still reference geometry nodes that writers change.
+     */
+    private void deleteTreeInBatches(GraphDatabaseService db, ExternalEnvelopeSorter sorter, long rootNodeId, int batchSize) throws IOException {
+        ExternalEnvelopeSorter.LevelWriter level = sorter.newLevel();
+        level.add(rootNodeId);
+        ExternalEnvelopeSorter.Records indexNodes = level.finish();
+        try (BatchTransaction batch = new BatchTransaction(db, batchSize)) {
+            batch.lockEach(getMetadataNode(batch.tx()));
+            boolean hasChildren = true;
+            while (hasChildren) {
+                hasChildren = false;
+                ExternalEnvelopeSorter.LevelWriter children = sorter.newLevel();
+                while (indexNodes.next()) {
+                    Node indexNode;
+                    try {
+                        indexNode = batch.tx().getNodeById(indexNodes.id);
+                    } catch (NotFoundException e) {
+                        // already deleted by another call
+                        continue;
+                    }
+                    int changes = 1;
+                    for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+                        children.add(relationship.getEndNodeId());
+                        relationship.delete();
+                        hasChildren = true;
+                        changes++;
+                    }
+                    for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+                        relationship.delete();
+                        changes++;
+                    }
+                    indexNode.delete();
+                    batch.changed(changes);
+                }
+                indexNodes.close();
+                indexNodes = children.finish();
+            }
+            batch.commit();
+        } finally {
+            indexNodes.close();
+        }
+    }
+
+    /**
+     * A transaction that is committed and replaced by a new one after about batchSize changes. Without a database to
+     * begin new transactions on it wraps the transaction of the caller, which is never committed here.
+     */
+    private static class BatchTransaction implements AutoCloseable {
+        private final GraphDatabaseService db;
+        private final int batchSize;
+        private Transaction tx;
+        private int changes = 0;
+        private long lockedNodeId = -1;
+
+        private BatchTransaction(Transaction tx) {
+            this.db = null;
+            this.batchSize = Integer.MAX_VALUE;
+            this.tx = tx;
+        }
+
+        private BatchTransaction(GraphDatabaseService db, int batchSize) {
+            this.db = db;
+            this.batchSize = batchSize;
+            this.tx = db.beginTx();
+        }
+
+        private Transaction tx() {
+            return tx;
+        }
+
+        /**
+         * Take the exclusive lock on the node in this transaction and in every one that replaces it.
+         */
+        private void lockEach(Node node) {
+            lockedNodeId = node.getId();
+            tx.acquireWriteLock(node);
+        }
+
+        private void changed(int count) {
+            changes += count;
+            if (db != null && changes >= batchSize) {
+                commit();
+                tx = db.beginTx();
+                if (lockedNodeId >= 0) {
+                    tx.acquireWriteLock(tx.getNodeById(lockedNodeId));
+                }
+            }
+        }
+
+        private void commit() {
+            if (db != null) {
+                tx.commit();
+                tx.close();
+                changes = 0;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (db != null) {
+                tx.close();
+            }
+        }
+    }
+
+    private List<NodeWithEnvelope> decodeGeometryNodeEnvelopes(List<Node> nodes) {
+        return nodes.stream().map(GeometryNodeWithEnvelope::new).collect(Collectors.toList());
+    }
+
+    public static class NodeWithEnvelope {
+        public Envelope envelope;
+        Node node;
+
+        public NodeWithEnvelope(Node node, Envelope envelope) {
+            this.node = node;
+            this.envelope = envelope;
+        }
+
+        /** Ensure this node is valid in the specified transaction */
+        public NodeWithEnvelope refresh(Transaction tx) {
+            this.node = tx.getNodeById(this.node.getId());
+            return this;
+        }
+    }
+
+    public class GeometryNodeWithEnvelope extends NodeWithEnvelope {
+        GeometryNodeWithEnvelope(Node node) {
+            super(node, envelopeDecoder.decodeEnvelope(node));
+        }
+    }
+
+    /**
+     * Returns the height of the tree, starting with the rootNode and adding one for each subsequent level. Relies on the
+     * balanced property of the RTree that all leaves are on the same level and no index nodes are empty. In the convention
+     * the index is level 0, so if there is just the index and the leaf nodes, the leaf nodes are level one and the height is one.
+     * Thus the lowest level is 1.
+     */
+    int getHeight(Node rootNode, int height) {
+        Node child = null;
+        // iterate over all children, as an iterator that is left open keeps its cursor until the transaction ends
+        for (Relationship relationship : rootNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+            if (child == null) {
+                child = relationship.getEndNode();
+            }
+        }
+        if (child != null) {
+            return getHeight(child, height + 1);
+        } else {
+            // Add one to account for the step to leaf nodes.
+            return height + 1; // todo should this really be +1 ?
+        }
+    }
+
+    List<NodeWithEnvelope> getIndexChildren(Node rootNode) {
+        List<NodeWithEnvelope> result = new ArrayList<>();
+        for (Relationship r : rootNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+            Node child = r.getEndNode();
+            result.add(new NodeWithEnvelope(child, getIndexNodeEnvelope(child)));
+        }
+        return result;
+    }
+
+    private List<NodeWithEnvelope> bulkInsertion(Transaction tx, Node rootNode, int rootNodeHeight, final List<NodeWithEnvelope> geomNodes, final double loadingFactor) {
+        List<NodeWithEnvelope> children = getIndexChildren(rootNode);
+        if (children.isEmpty()) {
+            return geomNodes;
+        }
+        children.sort(new IndexNodeAreaComparator());
+
+        Map<NodeWithEnvelope, List<NodeWithEnvelope>> map = new HashMap<>(children.size());
+        int nodesPerRootSubTree = Math.max(16, geomNodes.size() / children.size());
+        for (NodeWithEnvelope n : children) {
+            map.put(n, new ArrayList<>(nodesPerRootSubTree));
+        }
+
+        // The outliers are those nodes which do not fit into the existing tree hierarchy.
+        List<NodeWithEnvelope> outliers = new ArrayList<>(geomNodes.size() / 10); // 10% outliers
+        for (NodeWithEnvelope n : geomNodes) {
+            Envelope env = n.envelope;
+            boolean flag = true;
+
+            //exploits that the iterator returns the list inorder, which is sorted by size, as above. Thus child
+            //is always added to the smallest existing envelope which contains it.
+            for (NodeWithEnvelope c : children) {
+                if (c.envelope.contains(env)) {
+                    map.get(c).add(n); //add to smallest area envelope which contains the child;
+                    flag = false;
+                    break;
+                }
+            }
+            // else add to outliers.
+            if (flag) {
+                outliers.add(n);
+            }
+        }
+        for (NodeWithEnvelope child : children) {
+            List<NodeWithEnvelope> cluster = map.get(child);
+
+            if (cluster.isEmpty()) continue;
+
+            // todo move each branch into a named method
+            int expectedHeight = expectedHeight(loadingFactor, cluster.size());
 
             //In an rtree is this height it will add as a single child to the current child node.
             int currentRTreeHeight = rootNodeHeight - 2;
@@ -377,24 +1655,25 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
                 }
 
             } else {
-                Node newRootNode = tx.createNode();
-                buildRtreeFromScratch(tx, newRootNode, cluster, loadingFactor);
-                int newHeight = getHeight(newRootNode, 0);
+                // the buffer tree is only planned in memory, and just the subtrees that are moved into the index are written
+                PlannedNode bufferTree = planRtree(cluster, loadingFactor);
+                int newHeight = bufferTree.getHeight();
                 if (newHeight == 1) {
                     monitor.addCase("h_i > l_t (d==1)");
-                    for (Relationship geom : newRootNode.getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE)) {
-                        addBelow(tx, child.node, geom.getEndNode());
-                        geom.delete();
+                    for (NodeWithEnvelope geom : bufferTree.entries) {
+                        addBelow(tx, child.node, geom.node);
                     }
                 } else {
                     monitor.addCase("h_i > l_t (d>1)");
                     int insertDepth = newHeight - (currentRTreeHeight);
-                    List<NodeWithEnvelope> childrenToBeInserted = getIndexChildren(newRootNode, insertDepth);
-                    for (NodeWithEnvelope n : childrenToBeInserted) {
-                        Relationship relationship = n.node.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHILD, Direction.INCOMING);
-                        relationship.delete();
+                    List<PlannedNode> subtrees = new ArrayList<>();
+                    collectPlannedSubtrees(bufferTree, insertDepth, subtrees, outliers);
+                    List<NodeWithEnvelope> childrenToBeInserted = new ArrayList<>(subtrees.size());
+                    for (PlannedNode subtree : subtrees) {
+                        Node subtreeRoot = writePlannedTree(tx, subtree);
+                        childrenToBeInserted.add(new NodeWithEnvelope(subtreeRoot, subtree.envelope));
                         if (!shouldMergeTrees) {
-                            insertIndexNodeOnParent(tx, child.node, n.node);
+                            insertIndexNodeOnParent(tx, child.node, subtreeRoot);
                         }
                     }
                     if (shouldMergeTrees) {
@@ -403,8 +1682,6 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
                         monitor.afterMergeTree(child.node);
                     }
                 }
-                // todo wouldn't it be better for this temporary tree to only live in memory?
-                deleteRecursivelySubtree(newRootNode, null); // remove the buffer tree remnants
             }
         }
         monitor.addSplit(rootNode); // for debugging via images
@@ -450,6 +1727,10 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
             List<NodeWithEnvelope> rightChildren = getIndexChildren(pair.right.node);
             pairs.removeIf(t -> t.contains(pair.left) || t.contains(pair.right));
             for (Relationship rel : pair.right.node.getRelationships()) {
+                if (rel.isType(RTreeRelationshipTypes.RTREE_CHILD) && rel.getEndNodeId() == pair.right.node.getId()) {
+                    indexNodeChanged(rel.getStartNode());
+                    packedChildRemoved(rel.getStartNode(), pair.right.node.getId());
+                }
                 rel.delete();
             }
             disconnectedChildren.add(pair.right);
@@ -464,6 +1745,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
             parent.node.createRelationshipTo(n.node, RTreeRelationshipTypes.RTREE_CHILD);
             parent.envelope.expandToInclude(n.envelope);
         }
+        packedChildrenAdded(parent.node, right);
         setIndexNodeEnvelope(parent.node, parent.envelope);
         if (countChildren(parent.node, RTreeRelationshipTypes.RTREE_CHILD) > maxNodeReferences) {
             splitAndAdjustPathBoundingBox(tx, parent.node);
@@ -484,80 +1766,305 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
     /**
      * This algorithm is based on Overlap Minimizing Top-down Bulk Loading Algorithm for R-tree by T Lee and S Lee.
-     * This is effectively a wrapper function around the function Partition which will attempt to parallelise the task.
-     * This can work better or worse since the top level may have as few as two nodes, in which case it fails is not optimal.
      * The loadingFactor must be between 0.1 and 1, this is how full each node will be, approximately.
      * Use 1 for static trees (will not be added to after build built), lower numbers if there are to be many subsequent updates.
-     * //TODO - Better parallelisation strategy.
+     * <p>
+     * If the index is configured with the STR or Hilbert bulk load, the tree is instead packed bottom-up, see
+     * planPackedRtree.
+     * <p>
+     * The tree is built in two phases. Sorting and partitioning only need the decoded envelopes, so the layout of
+     * the whole tree is first planned in memory, using all cores through the common fork-join pool. The plan is then
+     * written in a single pass on the thread of the transaction, which is the only thread that may use it.
      */
     private void buildRtreeFromScratch(Transaction tx, Node rootNode, final List<NodeWithEnvelope> geomNodes, double loadingFactor) {
-        partition(tx, rootNode, geomNodes, 0, loadingFactor);
+        PlannedNode plan = planRtree(geomNodes, loadingFactor);
+        if (plan.envelope == null) {
+            return;
+        }
+        writePlannedEntries(tx, rootNode, plan);
+        boolean expandRootNodeBoundingBox = expandParentBoundingBoxAfterNewChild(rootNode, new double[]{
+                plan.envelope.getMinX(), plan.envelope.getMinY(), plan.envelope.getMaxX(), plan.envelope.getMaxY()});
+        indexNodeChanged(rootNode);
+        if (expandRootNodeBoundingBox) {
+            adjustPathBoundingBox(rootNode);
+        }
     }
 
     /**
-     * This will partition a collection of nodes under the specified index node. The nodes are clustered into one
-     * or more groups based on the loading factor, and the tree is expanded if necessary. If the nodes all fit
-     * into the parent, they are added directly, otherwise the depth is increased and partition called for each
-     * cluster at the deeper depth based on a new root node for each cluster.
+     * Sort-Tile-Recursive grouping: the entries are cut into vertical slices and each slice into runs along the y
+     * axis. The sorts run in parallel for large levels.
      */
-    private void partition(Transaction tx, Node indexNode, List<NodeWithEnvelope> nodes, int depth, final double loadingFactor) {
-
-        // We want to split by the longest dimension to avoid degrading into extremely thin envelopes
-        int longestDimension = findLongestDimension(nodes);
-
-        // Sort the entries by the longest dimension and then create envelopes around left and right halves
-        nodes.sort(new SingleDimensionNodeEnvelopeComparator(longestDimension));
-
-        //work out the number of times to partition it:
-        final int targetLoading = (int) Math.round(maxNodeReferences * loadingFactor);
-        int nodeCount = nodes.size();
-
-        if (nodeCount <= targetLoading) {
-            // We have few enough nodes to add them directly to the current index node
-            boolean expandRootNodeBoundingBox = false;
-            for (NodeWithEnvelope n : nodes) {
-                expandRootNodeBoundingBox |= insertInLeaf(indexNode, n.node);
-            }
-            if (expandRootNodeBoundingBox) {
-                adjustPathBoundingBox(indexNode);
+    private List<List<NodeWithEnvelope>> sortTileRecursive(List<NodeWithEnvelope> entries, int groupCount) {
+        int[] groupSizes = evenSizes(entries.size(), groupCount);
+        int sliceCount = (int) Math.ceil(Math.sqrt(groupCount));
+        int[] groupsPerSlice = evenSizes(groupCount, sliceCount);
+
+        NodeWithEnvelope[] sorted = entries.toArray(new NodeWithEnvelope[0]);
+        Arrays.parallelSort(sorted, new SingleDimensionNodeEnvelopeComparator(0));
+        List<NodeWithEnvelope> sortedList = Arrays.asList(sorted);
+        List<List<NodeWithEnvelope>> groups = new ArrayList<>(groupCount);
+        int group = 0;
+        int start = 0;
+        for (int slice = 0; slice < sliceCount; slice++) {
+            int sliceSize = 0;
+            for (int i = 0; i < groupsPerSlice[slice]; i++) {
+                sliceSize += groupSizes[group + i];
             }
-        } else {
-            // We have more geometries than can fit in the current index node - create clusters and index them
-            final int height = expectedHeight(loadingFactor, nodeCount); //exploit change of base formula
-            final int subTreeSize = (int) Math.round(Math.pow(targetLoading, height - 1));
-            final int numberOfPartitions = (int) Math.ceil((double) nodeCount / (double) subTreeSize);
-            // - TODO change this to use the sort function above
-            List<List<NodeWithEnvelope>> partitions = partitionList(nodes, numberOfPartitions);
-
-            //recurse on each partition
-            for (List<NodeWithEnvelope> partition : partitions) {
-                Node newIndexNode = tx.createNode();
-                if (partition.size() > 1) {
-                    partition(tx, newIndexNode, partition, depth + 1, loadingFactor);
-                } else {
-                    addBelow(tx, newIndexNode, partition.get(0).node);
-                }
-                insertIndexNodeOnParent(tx, indexNode, newIndexNode);
+            Arrays.parallelSort(sorted, start, start + sliceSize, new SingleDimensionNodeEnvelopeComparator(1));
+            List<NodeWithEnvelope> sliceEntries = sortedList.subList(start, start + sliceSize);
+            int offset = 0;
+            for (int i = 0; i < groupsPerSlice[slice]; i++, group++) {
+                groups.add(sliceEntries.subList(offset, offset + groupSizes[group]));
+                offset += groupSizes[group];
             }
-            monitor.addSplit(indexNode);
+            start += sliceSize;
         }
+        return groups;
     }
 
-    // quick dirty way to partition a set into equal sized disjoint subsets
-    // - TODO why not use list.sublist() without copying ?
+    /**
+     * Hilbert packing: the entries are grouped in the order of their centres along a Hilbert curve. The curve values
+     * are computed and sorted in parallel for large levels.
+     */
+    private List<List<NodeWithEnvelope>> hilbertPack(List<NodeWithEnvelope> entries, int groupCount) {
+        Envelope extent = new Envelope(entries.get(0).envelope);
+        for (NodeWithEnvelope entry : entries) {
+            extent.expandToInclude(entry.envelope);
+        }
+        // the curve needs a non-empty range in both dimensions
+        double[] min = extent.getMin();
+        double[] max = extent.getMax();
+        for (int i = 0; i < min.length; i++) {
+            if (max[i] <= min[i]) {
+                max[i] = min[i] + 1;
+            }
+        }
+        SpaceFillingCurve curve = new HilbertSpaceFillingCurve2D(new Envelope(min, max), HILBERT_BULK_LOAD_LEVELS);
+        long[] curveValues = new long[entries.size()];
+        IntStream.range(0, curveValues.length).parallel()
+                .forEach(i -> curveValues[i] = curve.derivedValueFor(entries.get(i).envelope.centre()));
+
+        Integer[] order = new Integer[curveValues.length];
+        Arrays.setAll(order, i -> i);
+        Arrays.parallelSort(order, Comparator.comparingLong(i -> curveValues[i]));
+        List<NodeWithEnvelope> sorted = new ArrayList<>(order.length);
+        for (int i : order) {
+            sorted.add(entries.get(i));
+        }
+        List<List<NodeWithEnvelope>> groups = new ArrayList<>(groupCount);
+        int start = 0;
+        for (int size : evenSizes(sorted.size(), groupCount)) {
+            groups.add(sorted.subList(start, start + size));
+            start += size;
+        }
+        return groups;
+    }
+
+    /**
+     * @return the sizes of count parts of total items, differing from each other by at most one
+     */
+    private static int[] evenSizes(int total, int count) {
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = total / count + (i < total % count ? 1 : 0);
+        }
+        return sizes;
+    }
+
+    /**
+     * An index node of a tree that is planned in memory, before anything is written to the database.
+     */
+    private static class PlannedNode {
+        private final List<PlannedNode> children = new ArrayList<>();
+        private final List<NodeWithEnvelope> entries = new ArrayList<>();
+        private Envelope envelope;
+
+        private void addChild(PlannedNode child) {
+            children.add(child);
+            expandToInclude(child.envelope);
+        }
+
+        private void addEntries(List<NodeWithEnvelope> newEntries) {
+            entries.addAll(newEntries);
+            for (NodeWithEnvelope entry : newEntries) {
+                expandToInclude(entry.envelope);
+            }
+        }
+
+        private void expandToInclude(Envelope other) {
+            if (envelope == null) {
+                envelope = new Envelope(other);
+            } else {
+                envelope.expandToInclude(other);
+            }
+        }
+
+        /**
+         * Follows the first child, like getHeight does for a tree in the database.
+         */
+        private int getHeight() {
+            return children.isEmpty() ? 1 : children.get(0).getHeight() + 1;
+        }
+    }
+
+    /**
+     * Plan the layout of a tree for the given entries in memory, with the configured bulk load. Only the envelopes
+     * of the entries are used, so this does not touch the transaction and runs in parallel for large inputs.
+     */
+    private PlannedNode planRtree(List<NodeWithEnvelope> entries, double loadingFactor) {
+        PlannedNode root = new PlannedNode();
+        switch (bulkLoadMode) {
+            case STR_BULK_LOAD:
+            case HILBERT_BULK_LOAD:
+                planPackedRtree(root, entries, loadingFactor);
+                break;
+            default:
+                NodeWithEnvelope[] sorted = entries.toArray(new NodeWithEnvelope[0]);
+                ForkJoinPool.commonPool().invoke(new PartitionPlanner(root, sorted, 0, sorted.length, loadingFactor));
+        }
+        return root;
+    }
 
-    private List<List<NodeWithEnvelope>> partitionList(List<NodeWithEnvelope> nodes, int numberOfPartitions) {
-        int nodeCount = nodes.size();
-        List<List<NodeWithEnvelope>> partitions = new ArrayList<>(numberOfPartitions);
+    /**
+     * Bottom-up packing of a tree, level by level. The entries of each level are grouped into as few nodes as the
+     * loading factor allows, with the group sizes differing by at most one, so that all nodes are equally full and
+     * the resulting height is the one predicted by expectedHeight. The grouping itself is either Sort-Tile-Recursive
+     * or the order of the entry centres along a Hilbert curve. Both keep the nodes of one level close to square and
+     * with little overlap, unlike the single dimension cuts of the top-down partitioning. The planned index nodes of
+     * each level are grouped through placeholder entries, which only carry their envelope.
+     */
+    private void planPackedRtree(PlannedNode root, List<NodeWithEnvelope> entries, double loadingFactor) {
+        final int targetLoading = Math.max(2, (int) Math.floor(maxNodeReferences * loadingFactor));
+        Map<NodeWithEnvelope, PlannedNode> planned = new IdentityHashMap<>();
+        while (entries.size() > targetLoading) {
+            int groupCount = (entries.size() + targetLoading - 1) / targetLoading;
+            List<List<NodeWithEnvelope>> groups = bulkLoadMode.equals(STR_BULK_LOAD)
+                    ? sortTileRecursive(entries, groupCount)
+                    : hilbertPack(entries, groupCount);
+            List<NodeWithEnvelope> parents = new ArrayList<>(groups.size());
+            Map<NodeWithEnvelope, PlannedNode> plannedParents = new IdentityHashMap<>();
+            for (List<NodeWithEnvelope> group : groups) {
+                PlannedNode indexNode = addPlannedEntries(new PlannedNode(), group, planned);
+                NodeWithEnvelope placeholder = new NodeWithEnvelope(null, indexNode.envelope);
+                plannedParents.put(placeholder, indexNode);
+                parents.add(placeholder);
+            }
+            entries = parents;
+            planned = plannedParents;
+        }
+        addPlannedEntries(root, entries, planned);
+    }
+
+    private static PlannedNode addPlannedEntries(PlannedNode indexNode, List<NodeWithEnvelope> entries, Map<NodeWithEnvelope, PlannedNode> planned) {
+        if (planned.isEmpty()) {
+            indexNode.addEntries(entries);
+        } else {
+            for (NodeWithEnvelope entry : entries) {
+                indexNode.addChild(planned.get(entry));
+            }
+        }
+        return indexNode;
+    }
+
+    /**
+     * Top-down partitioning of a range of the entries into the given planned index node. The entries are sorted along
+     * their longest dimension and cut into as many partitions as there are subtrees of the expected height needed,
+     * each of which is partitioned again, until the entries fit into a leaf. The partitions cover disjoint ranges of
+     * the array, so they are planned as separate tasks when they are large enough to be worth it.
+     */
+    private class PartitionPlanner extends RecursiveAction {
+        private final PlannedNode indexNode;
+        private final NodeWithEnvelope[] entries;
+        private final int from;
+        private final int to;
+        private final double loadingFactor;
+
+        private PartitionPlanner(PlannedNode indexNode, NodeWithEnvelope[] entries, int from, int to, double loadingFactor) {
+            this.indexNode = indexNode;
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.loadingFactor = loadingFactor;
+        }
+
+        @Override
+        protected void compute() {
+            List<NodeWithEnvelope> range = Arrays.asList(entries).subList(from, to);
+
+            // We want to split by the longest dimension to avoid degrading into extremely thin envelopes
+            int longestDimension = findLongestDimension(range);
+            Arrays.sort(entries, from, to, new SingleDimensionNodeEnvelopeComparator(longestDimension));
+
+            final int targetLoading = (int) Math.round(maxNodeReferences * loadingFactor);
+            int nodeCount = to - from;
+
+            if (nodeCount <= targetLoading) {
+                indexNode.addEntries(range);
+                return;
+            }
+            final int height = expectedHeight(loadingFactor, nodeCount);
+            final int subTreeSize = (int) Math.round(Math.pow(targetLoading, height - 1));
+            final int numberOfPartitions = (int) Math.ceil((double) nodeCount / (double) subTreeSize);
+            // it is critical that partitionSize is always less than the target loading
+            final int partitionSize = (nodeCount + numberOfPartitions - 1) / numberOfPartitions;
+            List<PartitionPlanner> partitions = new ArrayList<>(numberOfPartitions);
+            for (int start = from; start < to; start += partitionSize) {
+                partitions.add(new PartitionPlanner(new PlannedNode(), entries, start, Math.min(start + partitionSize, to), loadingFactor));
+            }
+            if (nodeCount >= PARALLEL_PLANNING_THRESHOLD) {
+                invokeAll(partitions);
+            } else {
+                for (PartitionPlanner partition : partitions) {
+                    partition.compute();
+                }
+            }
+            for (PartitionPlanner partition : partitions) {
+                indexNode.addChild(partition.indexNode);
+            }
+        }
+    }
 
-        int partitionSize = nodeCount / numberOfPartitions; //it is critical that partitionSize is always less than the target loading.
-        if (nodeCount % numberOfPartitions > 0) {
-            partitionSize++;
+    /**
+     * Collect the planned subtrees at the given depth below the planned node. The entries of a leaf that is found
+     * above that depth, which the clustering of PartitionPlanner can produce for a small last partition, are added to the
+     * outliers instead.
+     */
+    private static void collectPlannedSubtrees(PlannedNode node, int depth, List<PlannedNode> subtrees, List<NodeWithEnvelope> outliers) {
+        if (depth == 0) {
+            subtrees.add(node);
+        } else if (node.children.isEmpty()) {
+            outliers.addAll(node.entries);
+        } else {
+            for (PlannedNode child : node.children) {
+                collectPlannedSubtrees(child, depth - 1, subtrees, outliers);
+            }
         }
-        for (int i = 0; i < numberOfPartitions; i++) {
-            partitions.add(nodes.subList(i * partitionSize, Math.min((i + 1) * partitionSize, nodeCount)));
+    }
+
+    /**
+     * Write a planned subtree to the database, bottom-up, so that every index node is created with its final
+     * children and bounding box.
+     *
+     * @return the root of the new subtree, which is not yet connected to the index
+     */
+    private Node writePlannedTree(Transaction tx, PlannedNode planned) {
+        Node indexNode = tx.createNode();
+        writePlannedEntries(tx, indexNode, planned);
+        setIndexNodeEnvelope(indexNode, planned.envelope);
+        return indexNode;
+    }
+
+    private void writePlannedEntries(Transaction tx, Node indexNode, PlannedNode planned) {
+        if (planned.children.isEmpty()) {
+            connectEntries(indexNode, planned.entries, RTreeRelationshipTypes.RTREE_REFERENCE);
+        } else {
+            List<NodeWithEnvelope> children = new ArrayList<>(planned.children.size());
+            for (PlannedNode child : planned.children) {
+                children.add(new NodeWithEnvelope(writePlannedTree(tx, child), child.envelope));
+            }
+            connectEntries(indexNode, children, RTreeRelationshipTypes.RTREE_CHILD);
+            monitor.addSplit(indexNode);
         }
-        return partitions;
     }
 
     @Override
@@ -574,17 +2081,39 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
                 throw nfe;
             }
         }
-        if (geomNode != null && isGeometryNodeIndexed(geomNode)) {
+        Node bucket = geomNode == null ? null : findIngestBufferBucket(tx, geomNode);
+        if (bucket != null) {
+            trackDirectoryChanges(tx);
+            removeBufferedGeometry(tx, bucket, geomNode);
+            if (deleteGeomNode) {
+                deleteNode(geomNode);
+            }
+            adjustCount(tx, -1);
+        } else if (geomNode != null && isGeometryNodeIndexed(tx, geomNode)) {
+            trackSharedChanges(tx);
+            if (isSharedWriter()) {
+                // a geometry can only be moved to another leaf by a transaction holding its lock
+                tx.acquireWriteLock(geomNode);
+            }
 
-            Node indexNode = findLeafContainingGeometryNode(geomNode);
+            Node indexNode = findLeafContainingGeometryNode(tx, geomNode);
 
             // be sure geomNode is inside this RTree
             if (isIndexNodeInThisIndex(tx, indexNode)) {
+                logChanges(tx, Collections.singletonList(geomNode), true);
+                if (isSharedWriter()) {
+                    lockForRecompute(tx, indexNode, RTreeRelationshipTypes.RTREE_REFERENCE);
+                }
 
                 // remove the entry
-                final Relationship geometryRtreeReference = geomNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING);
-                if (geometryRtreeReference != null) {
-                    geometryRtreeReference.delete();
+                if (isPackedLeaf(indexNode)) {
+                    removeLeafEntry(indexNode, geomNode);
+                } else {
+                    final Relationship geometryRtreeReference = findReference(tx, geomNode);
+                    if (geometryRtreeReference != null) {
+                        geometryRtreeReference.delete();
+                        indexNodeChanged(indexNode);
+                    }
                 }
                 if (deleteGeomNode) {
                     deleteNode(geomNode);
@@ -592,16 +2121,19 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
                 // reorganize the tree if needed
                 if (countChildren(indexNode, RTreeRelationshipTypes.RTREE_REFERENCE) == 0) {
-                    indexNode = deleteEmptyTreeNodes(indexNode, RTreeRelationshipTypes.RTREE_REFERENCE);
+                    indexNode = deleteEmptyTreeNodes(tx, indexNode, RTreeRelationshipTypes.RTREE_REFERENCE);
+                    if (isSharedWriter()) {
+                        lockForRecompute(tx, indexNode, RTreeRelationshipTypes.RTREE_CHILD);
+                    }
                     adjustParentBoundingBox(indexNode, RTreeRelationshipTypes.RTREE_CHILD);
                 } else {
                     adjustParentBoundingBox(indexNode, RTreeRelationshipTypes.RTREE_REFERENCE);
                 }
 
-                adjustPathBoundingBox(indexNode);
+                shrinkPathBoundingBox(tx, indexNode);
 
-                countSaved = false;
-                totalGeometryCount--;
+                adjustCount(tx, -1);
+                flushSubtreeSummaries(tx);
             } else if (throwExceptionIfNotFound) {
                 throw new RuntimeException("GeometryNode not indexed in this RTree: " + geomNodeId);
             }
@@ -610,14 +2142,190 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         }
     }
 
-    private Node deleteEmptyTreeNodes(Node indexNode, RelationshipType relType) {
+    /**
+     * Remove many geometry nodes at once. The geometry nodes are grouped by leaf and removed from each leaf in one
+     * go, and the tree is then condensed bottom-up in a single pass over the touched index nodes: empty nodes are
+     * deleted, nodes that became less than CONDENSE_MIN_FILL_FACTOR full are dissolved and their remaining entries
+     * reinserted, and the bounding boxes are recomputed only where a child changed. All geometry nodes are checked
+     * before anything is changed.
+     */
+    @Override
+    public void remove(Transaction tx, Collection<Long> geomNodeIds, boolean deleteGeomNodes, boolean throwExceptionIfNotFound) {
+        flushBoundingBoxes(tx);
+        flushIngestBuffer(tx);
+        long rootId = getIndexRoot(tx).getId();
+        Map<Long, Boolean> inThisIndex = new HashMap<>();
+        Map<Node, List<Node>> removalsByLeaf = new LinkedHashMap<>();
+        int removed = 0;
+        for (long geomNodeId : new LinkedHashSet<>(geomNodeIds)) {
+            Node geomNode = null;
+            try {
+                geomNode = tx.getNodeById(geomNodeId);
+            } catch (NotFoundException nfe) {
+                if (throwExceptionIfNotFound) {
+                    throw nfe;
+                }
+            }
+            if (geomNode != null && isGeometryNodeIndexed(tx, geomNode)) {
+                Node leaf = findLeafContainingGeometryNode(tx, geomNode);
+                if (isIndexNodeInThisIndex(leaf, rootId, inThisIndex)) {
+                    removalsByLeaf.computeIfAbsent(leaf, k -> new ArrayList<>()).add(geomNode);
+                    removed++;
+                } else if (throwExceptionIfNotFound) {
+                    throw new RuntimeException("GeometryNode not indexed in this RTree: " + geomNodeId);
+                }
+            } else if (throwExceptionIfNotFound) {
+                throw new RuntimeException("GeometryNode not indexed with an RTree: " + geomNodeId);
+            }
+        }
+        if (removalsByLeaf.isEmpty()) {
+            return;
+        }
+        trackDirectoryChanges(tx);
+        for (List<Node> removals : removalsByLeaf.values()) {
+            logChanges(tx, removals, true);
+        }
+
+        for (Map.Entry<Node, List<Node>> removals : removalsByLeaf.entrySet()) {
+            Node leaf = removals.getKey();
+            if (isPackedLeaf(leaf)) {
+                Set<Long> ids = new HashSet<>();
+                for (Node geomNode : removals.getValue()) {
+                    ids.add(geomNode.getId());
+                    geomNode.removeProperty(INDEX_PROP_LEAF);
+                }
+                List<NodeWithEnvelope> entries = getLeafEntries(tx, leaf);
+                entries.removeIf(entry -> ids.contains(entry.node.getId()));
+                setLeafEntries(leaf, entries);
+            } else {
+                for (Node geomNode : removals.getValue()) {
+                    findReference(tx, geomNode).delete();
+                }
+                indexNodeChanged(leaf);
+            }
+            if (deleteGeomNodes) {
+                for (Node geomNode : removals.getValue()) {
+                    deleteNode(geomNode);
+                }
+            }
+        }
+
+        condenseTree(tx, new ArrayList<>(removalsByLeaf.keySet()));
+        adjustCount(tx, -removed);
+        flushSubtreeSummaries(tx);
+    }
+
+    /**
+     * Condense the tree after entries were removed from the given leaves, one level at a time from the leaves up, so
+     * that every touched index node is visited once. Entries orphaned by dissolving underfull nodes are reinserted
+     * at their own level once the whole tree is condensed.
+     */
+    private void condenseTree(Transaction tx, List<Node> leaves) {
+        int minFill = Math.max(1, (int) Math.floor(maxNodeReferences * CONDENSE_MIN_FILL_FACTOR));
+        List<Node> orphanedGeometries = new ArrayList<>();
+        List<Node> orphanedSubtrees = new ArrayList<>();
+        Map<Long, Node> level = new LinkedHashMap<>();
+        for (Node leaf : leaves) {
+            level.put(leaf.getId(), leaf);
+        }
+        RelationshipType relationshipType = RTreeRelationshipTypes.RTREE_REFERENCE;
+        while (!level.isEmpty()) {
+            Map<Long, Node> parents = new LinkedHashMap<>();
+            for (Node indexNode : level.values()) {
+                Node parent = getIndexNodeParent(indexNode);
+                if (parent == null) {
+                    // the root is never dissolved, only its bounding box is recomputed
+                    boolean rootIsLeaf = nodeIsLeaf(indexNode) && countChildren(indexNode, RTreeRelationshipTypes.RTREE_REFERENCE) > 0;
+                    adjustParentBoundingBox(indexNode, rootIsLeaf ? RTreeRelationshipTypes.RTREE_REFERENCE : RTreeRelationshipTypes.RTREE_CHILD);
+                    continue;
+                }
+                int childCount = countChildren(indexNode, relationshipType);
+                if (childCount < minFill) {
+                    if (relationshipType == RTreeRelationshipTypes.RTREE_REFERENCE) {
+                        for (NodeWithEnvelope entry : extractChildNodesWithEnvelopes(tx, indexNode, relationshipType)) {
+                            orphanedGeometries.add(entry.node);
+                        }
+                    } else {
+                        for (NodeWithEnvelope entry : extractChildNodesWithEnvelopes(tx, indexNode, relationshipType)) {
+                            orphanedSubtrees.add(entry.node);
+                        }
+                    }
+                    indexNodeChanged(parent);
+                    indexNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHILD, Direction.INCOMING).delete();
+                    packedChildRemoved(parent, indexNode.getId());
+                    indexNode.delete();
+                    parents.put(parent.getId(), parent);
+                } else if (adjustParentBoundingBox(indexNode, relationshipType)) {
+                    parents.put(parent.getId(), parent);
+                }
+            }
+            level = parents;
+            relationshipType = RTreeRelationshipTypes.RTREE_CHILD;
+        }
+
+        // reinsert the largest subtrees first, so the geometries can go into the new structure
+        orphanedSubtrees.sort(Comparator.comparingInt((Node subtree) -> getHeight(subtree, 0)).reversed());
+        for (Node subtree : orphanedSubtrees) {
+            reinsertSubtree(tx, subtree);
+        }
+        for (Node geomNode : orphanedGeometries) {
+            insertGeometry(tx, geomNode);
+        }
+    }
+
+    /**
+     * Insert an index node orphaned by condenseTree as a child of a node at the right height, so that all leaves stay
+     * on the same level. If the tree has become too low for it, its geometries are inserted one by one instead.
+     */
+    private void reinsertSubtree(Transaction tx, Node subtreeRoot) {
+        int subtreeHeight = getHeight(subtreeRoot, 0);
+        Node parent = getIndexRoot(tx);
+        int parentHeight = getHeight(parent, 0);
+        if (parentHeight <= subtreeHeight) {
+            List<Node> geomNodes = new ArrayList<>();
+            collectSubtreeGeometries(tx, subtreeRoot, geomNodes);
+            for (Node geomNode : geomNodes) {
+                insertGeometry(tx, geomNode);
+            }
+            return;
+        }
+        Envelope envelope = getIndexNodeEnvelope(subtreeRoot);
+        while (parentHeight > subtreeHeight + 1) {
+            parent = chooseSubTree(tx, parent, envelope);
+            parentHeight--;
+        }
+        insertIndexNodeOnParent(tx, parent, subtreeRoot);
+    }
+
+    /**
+     * Detach all geometries below the index node and delete the index nodes.
+     */
+    private void collectSubtreeGeometries(Transaction tx, Node indexNode, List<Node> geomNodes) {
+        if (nodeIsLeaf(indexNode)) {
+            for (NodeWithEnvelope entry : extractChildNodesWithEnvelopes(tx, indexNode, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+                geomNodes.add(entry.node);
+            }
+        } else {
+            for (NodeWithEnvelope child : extractChildNodesWithEnvelopes(tx, indexNode, RTreeRelationshipTypes.RTREE_CHILD)) {
+                collectSubtreeGeometries(tx, child.node, geomNodes);
+            }
+        }
+        indexNode.delete();
+    }
+
+    private Node deleteEmptyTreeNodes(Transaction tx, Node indexNode, RelationshipType relType) {
         if (countChildren(indexNode, relType) == 0) {
             Node parent = getIndexNodeParent(indexNode);
             if (parent != null) {
+                if (isSharedWriter()) {
+                    lockForBoundingBoxChange(tx, parent);
+                }
+                indexNodeChanged(parent);
                 indexNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHILD, Direction.INCOMING).delete();
+                packedChildRemoved(parent, indexNode.getId());
 
                 indexNode.delete();
-                return deleteEmptyTreeNodes(parent, RTreeRelationshipTypes.RTREE_CHILD);
+                return deleteEmptyTreeNodes(tx, parent, RTreeRelationshipTypes.RTREE_CHILD);
             } else {
                 // root
                 return indexNode;
@@ -639,7 +2347,12 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
                 @Override
                 public void onIndexReference(Node geomNode) {
-                    geomNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING).delete();
+                    Relationship reference = findReference(tx, geomNode);
+                    if (reference != null) {
+                        reference.delete();
+                    } else {
+                        geomNode.removeProperty(INDEX_PROP_LEAF);
+                    }
                     if (deleteGeomNodes) {
                         deleteNode(geomNode);
                     }
@@ -654,8 +2367,21 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
     @Override
     public void removeAll(Transaction tx, final boolean deleteGeomNodes, final Listener monitor) {
+        if (hasShadowTree(tx)) {
+            throw new IllegalStateException("RTreeIndex cannot be cleared while it is being rebuilt");
+        }
+        directoryMirror = null;
+        if (concurrentWriters) {
+            // wait for concurrent writers, which hold a shared lock on the metadata node
+            tx.acquireWriteLock(getMetadataNode(tx));
+        }
         Node indexRoot = getIndexRoot(tx);
 
+        for (Node geomNode : drainIngestBuffer(tx)) {
+            if (deleteGeomNodes) {
+                deleteNode(geomNode);
+            }
+        }
         detachGeometryNodes(tx, deleteGeomNodes, indexRoot, monitor);
 
         // delete index root relationship
@@ -667,11 +2393,12 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         // delete tree metadata
         Relationship metadataNodeRelationship = getRootNode(tx).getSingleRelationship(RTreeRelationshipTypes.RTREE_METADATA, Direction.OUTGOING);
         Node metadataNode = metadataNodeRelationship.getEndNode();
+        for (Node stripe : getCountStripes(metadataNode)) {
+            stripe.getSingleRelationship(RTreeRelationshipTypes.RTREE_COUNT_STRIPE, Direction.INCOMING).delete();
+            stripe.delete();
+        }
         metadataNodeRelationship.delete();
         metadataNode.delete();
-
-        countSaved = false;
-        totalGeometryCount = 0;
     }
 
     @Override
@@ -679,33 +2406,287 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         removeAll(tx, false, new NullListener());
         initIndexRoot(tx);
         initIndexMetadata(tx);
+        trackDirectoryChanges(tx).rebuild = true;
     }
 
     @Override
     public Envelope getBoundingBox(Transaction tx) {
-        return getIndexNodeEnvelope(getIndexRoot(tx));
+        flushBoundingBoxes(tx);
+        Envelope bbox = getIndexNodeEnvelope(getIndexRoot(tx));
+        for (Node bucket : getIngestBufferBuckets(getMetadataNode(tx))) {
+            Envelope bucketBBox = getIndexNodeEnvelope(bucket);
+            if (bbox == null) {
+                bbox = bucketBBox;
+            } else if (bucketBBox != null) {
+                bbox.expandToInclude(bucketBBox);
+            }
+        }
+        return bbox;
     }
 
     @Override
     public int count(Transaction tx) {
-        saveCount(tx);
-        return totalGeometryCount;
+        Node metadataNode = getMetadataNode(tx);
+        Object count = metadataNode.getProperty(INDEX_PROP_GEOMETRY_COUNT, null);
+        if (count == null) {
+            // indexes written by older versions did not always save the count
+            SpatialIndexRecordCounter counter = new SpatialIndexRecordCounter();
+            visit(tx, counter, getIndexRoot(tx));
+            count = counter.getResult();
+            metadataNode.setProperty(INDEX_PROP_GEOMETRY_COUNT, count);
+        }
+        int total = (Integer) count;
+        for (Node stripe : getCountStripes(metadataNode)) {
+            total += (Integer) stripe.getProperty(INDEX_PROP_COUNT_DELTA, 0);
+        }
+        return total;
+    }
+
+    /**
+     * Count the geometries whose bounding box lies within the given envelope. Subtrees whose bounding box is covered
+     * by the envelope contribute the count stored on their root, so with subtreeCounts enabled only the index nodes
+     * on the boundary of the envelope are descended into. Without stored counts this visits the same leaves as a
+     * search, but still does not read the geometries.
+     */
+    public int countWithin(Transaction tx, Envelope envelope) {
+        flushBoundingBoxes(tx);
+        return (int) countCovered(getIndexRoot(tx), envelope, Integer.MAX_VALUE) + countBufferedWithin(tx, envelope);
+    }
+
+    /**
+     * Estimate the number of geometries whose bounding box lies within the given envelope, for query planning and
+     * for sizing search windows. Only the top ESTIMATE_COUNT_LEVELS levels below the root are read: covered
+     * subtrees count in full, and subtrees on the boundary of the envelope in proportion to the part of their
+     * bounding box that is covered, which assumes the geometries are spread evenly within each such subtree.
+     */
+    public double estimateCount(Transaction tx, Envelope envelope) {
+        flushBoundingBoxes(tx);
+        return countCovered(getIndexRoot(tx), envelope, ESTIMATE_COUNT_LEVELS) + countBufferedWithin(tx, envelope);
+    }
+
+    private double countCovered(Node indexNode, Envelope envelope, int levels) {
+        Envelope bbox = getIndexNodeEnvelope(indexNode);
+        if (bbox == null || !envelope.intersects(bbox)) {
+            return 0;
+        }
+        if (envelope.covers(bbox)) {
+            return getSubtreeCount(indexNode, false);
+        }
+        if (nodeIsLeaf(indexNode)) {
+            return countLeafEntriesWithin(indexNode, envelope);
+        }
+        if (levels == 0) {
+            int count = getSubtreeCount(indexNode, false);
+            double area = bbox.getArea();
+            // a degenerate bounding box cannot be divided, so its count is taken in full
+            return area > 0 ? count * bbox.intersection(envelope).getArea() / area : count;
+        }
+        double count = 0;
+        for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+            count += countCovered(relationship.getEndNode(), envelope, levels - 1);
+        }
+        return count;
+    }
+
+    private int countLeafEntriesWithin(Node leaf, Envelope envelope) {
+        double[] bboxes = getLeafEntryBBoxes(leaf);
+        if (bboxes != null) {
+            return countEntriesWithin(bboxes, envelope);
+        }
+        int count = 0;
+        for (Relationship relationship : leaf.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+            if (envelope.covers(getLeafNodeEnvelope(relationship.getEndNode()))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int countBufferedWithin(Transaction tx, Envelope envelope) {
+        int count = 0;
+        for (Node bucket : getIngestBufferBuckets(getMetadataNode(tx))) {
+            Envelope bbox = getIndexNodeEnvelope(bucket);
+            if (bbox != null && envelope.intersects(bbox)) {
+                count += countEntriesWithin((double[]) bucket.getProperty(INDEX_PROP_ENTRY_BBOXES), envelope);
+            }
+        }
+        return count;
+    }
+
+    private static int countEntriesWithin(double[] bboxes, Envelope envelope) {
+        int count = 0;
+        for (int i = 0; i < bboxes.length; i += 4) {
+            if (envelope.covers(new Envelope(bboxes[i], bboxes[i + 2], bboxes[i + 1], bboxes[i + 3]))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Summarize the numeric values of an attribute of the geometries whose bounding box lies within the envelope.
+     */
+    public AttributeSummary aggregate(Transaction tx, String attribute, Envelope envelope) {
+        return aggregate(tx, attribute, new SearchCoveredByEnvelope(envelopeDecoder, envelope));
+    }
+
+    /**
+     * Summarize the numeric values of an attribute of the geometries matching the filter. For subtrees that the
+     * filter matches as a whole, the stored summary is used without reading any geometries if the attribute is one
+     * of the aggregated attributes of the index, so only the geometries on the boundary of the filter are read.
+     * Other attributes are summarized from the geometries.
+     */
+    public AttributeSummary aggregate(Transaction tx, String attribute, SearchFilter filter) {
+        flushBoundingBoxes(tx);
+        AttributeSummary summary = new AttributeSummary();
+        aggregate(tx, getIndexRoot(tx), attribute, filter, summary);
+        for (Node bucket : getIngestBufferBuckets(getMetadataNode(tx))) {
+            Envelope bbox = getIndexNodeEnvelope(bucket);
+            if (bbox != null && filter.needsToVisit(bbox)) {
+                for (Node geomNode : getLeafGeometryNodes(tx, bucket)) {
+                    if (filter.geometryMatches(tx, geomNode)) {
+                        summary.add(geomNode.getProperty(attribute, null));
+                    }
+                }
+            }
+        }
+        return summary;
+    }
+
+    private void aggregate(Transaction tx, Node indexNode, String attribute, SearchFilter filter, AttributeSummary summary) {
+        Envelope bbox = getIndexNodeEnvelope(indexNode);
+        if (bbox == null || !filter.needsToVisit(bbox)) {
+            return;
+        }
+        if (filter.matchesAll(bbox)) {
+            summary.add(getSubtreeSummary(tx, indexNode, attribute, false));
+        } else if (nodeIsLeaf(indexNode)) {
+            for (Node geomNode : getLeafGeometryNodes(tx, indexNode)) {
+                if (filter.geometryMatches(tx, geomNode)) {
+                    summary.add(geomNode.getProperty(attribute, null));
+                }
+            }
+        } else {
+            for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+                aggregate(tx, relationship.getEndNode(), attribute, filter, summary);
+            }
+        }
+    }
+
+    /**
+     * Index-only search for the geometries whose bounding box intersects the envelope. Only the bounding boxes are
+     * tested, and the attributes are read from the leaves if they are covered attributes of the index, so with packed
+     * leaves and only covered attributes requested no geometry node is read. Other attributes, and the geometries in
+     * relationship leaves or in the ingest buffer, are read from the geometry nodes.
+     * <p>
+     * The covered values are copied when a geometry is indexed, so changing an attribute afterwards requires
+     * re-adding the geometry.
+     */
+    public Iterable<CoveredEntry> searchCovered(Transaction tx, Envelope envelope, List<String> attributes) {
+        flushBoundingBoxes(tx);
+        Deque<Node> indexNodes = new ArrayDeque<>(getIngestBufferBuckets(getMetadataNode(tx)));
+        indexNodes.push(getIndexRoot(tx));
+        return () -> new Iterator<CoveredEntry>() {
+            private Iterator<CoveredEntry> leafEntries = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!leafEntries.hasNext() && !indexNodes.isEmpty()) {
+                    Node indexNode = indexNodes.pop();
+                    Envelope bbox = getIndexNodeEnvelope(indexNode);
+                    if (bbox == null || !envelope.intersects(bbox)) {
+                        continue;
+                    }
+                    if (nodeIsLeaf(indexNode)) {
+                        leafEntries = getCoveredEntries(tx, indexNode, envelope, attributes).iterator();
+                    } else {
+                        for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+                            indexNodes.push(relationship.getEndNode());
+                        }
+                    }
+                }
+                return leafEntries.hasNext();
+            }
+
+            @Override
+            public CoveredEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return leafEntries.next();
+            }
+        };
+    }
+
+    private List<CoveredEntry> getCoveredEntries(Transaction tx, Node leaf, Envelope envelope, List<String> attributes) {
+        List<CoveredEntry> found = new ArrayList<>();
+        long[] ids = getLeafEntryIds(leaf);
+        if (ids == null) {
+            for (Relationship relationship : leaf.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+                Node geomNode = relationship.getEndNode();
+                Envelope entryEnvelope = getLeafNodeEnvelope(geomNode);
+                if (envelope.intersects(entryEnvelope)) {
+                    found.add(new CoveredEntry(geomNode.getId(), entryEnvelope, geomNode.getProperties(attributes.toArray(new String[0]))));
+                }
+            }
+            return found;
+        }
+        double[] bboxes = getLeafEntryBBoxes(leaf);
+        String[][] covered = new String[attributes.size()][];
+        for (int a = 0; a < covered.length; a++) {
+            if (coveredAttributes.contains(attributes.get(a))) {
+                covered[a] = getCoveredValues(leaf, attributes.get(a), ids.length);
+            }
+        }
+        for (int i = 0; i < ids.length; i++) {
+            Envelope entryEnvelope = packedEnvelope(bboxes, i);
+            if (!envelope.intersects(entryEnvelope)) {
+                continue;
+            }
+            Map<String, Object> values = new HashMap<>();
+            Node geomNode = null;
+            for (int a = 0; a < covered.length; a++) {
+                Object value;
+                if (covered[a] != null && !covered[a][i].equals(CoveredEntry.UNKNOWN)) {
+                    value = CoveredEntry.decode(covered[a][i]);
+                } else {
+                    if (geomNode == null) {
+                        geomNode = tx.getNodeById(ids[i]);
+                    }
+                    value = geomNode.getProperty(attributes.get(a), null);
+                }
+                if (value != null) {
+                    values.put(attributes.get(a), value);
+                }
+            }
+            found.add(new CoveredEntry(ids[i], entryEnvelope, values));
+        }
+        return found;
     }
 
     @Override
     public boolean isEmpty(Transaction tx) {
         Node indexRoot = getIndexRoot(tx);
-        return !indexRoot.hasProperty(INDEX_PROP_BBOX);
+        return !indexRoot.hasProperty(INDEX_PROP_BBOX) && !hasIngestBuffer(tx);
     }
 
     @Override
     public boolean isNodeIndexed(Transaction tx, Long geomNodeId) {
         Node geomNode = tx.getNodeById(geomNodeId);
         // be sure geomNode is inside this RTree
-        return geomNode != null && isGeometryNodeIndexed(geomNode) && isIndexNodeInThisIndex(tx, findLeafContainingGeometryNode(geomNode));
+        if (geomNode != null && findIngestBufferBucket(tx, geomNode) != null) {
+            return true;
+        }
+        return geomNode != null && isGeometryNodeIndexed(tx, geomNode) && isIndexNodeInThisIndex(tx, findLeafContainingGeometryNode(tx, geomNode));
     }
 
     public void warmUp(Transaction tx) {
+        RTreeSnapshot current = getSnapshot(tx);
+        if (current != null) {
+            // searches read the index nodes and leaves from the snapshot, so only its pages need to be loaded
+            current.load();
+            return;
+        }
         visit(tx, new WarmUpVisitor(), getIndexRoot(tx));
     }
 
@@ -720,58 +2701,200 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
     @Override
     public Iterable<Node> getAllIndexedNodes(Transaction tx) {
-        return new IndexNodeToGeometryNodeIterable(getAllIndexInternalNodes(tx));
-    }
-
-    private class SearchEvaluator implements Evaluator {
-        private final SearchFilter filter;
-        private final Transaction tx;
-
-        public SearchEvaluator(Transaction tx, SearchFilter filter) {
-            this.tx = tx;
-            this.filter = filter;
-        }
-
-        @Override
-        public Evaluation evaluate(Path path) {
-            Relationship rel = path.lastRelationship();
-            Node node = path.endNode();
-            if (rel == null) {
-                return Evaluation.EXCLUDE_AND_CONTINUE;
-            } else if (rel.isType(RTreeRelationshipTypes.RTREE_CHILD)) {
-                boolean shouldContinue = filter.needsToVisit(getIndexNodeEnvelope(node));
-                if (shouldContinue) monitor.matchedTreeNode(path.length(), node);
-                monitor.addCase(shouldContinue ? "Index Matches" : "Index Does NOT Match");
-                return shouldContinue ?
-                        Evaluation.EXCLUDE_AND_CONTINUE :
-                        Evaluation.EXCLUDE_AND_PRUNE;
-            } else if (rel.isType(RTreeRelationshipTypes.RTREE_REFERENCE)) {
-                boolean found = filter.geometryMatches(tx, node);
-                monitor.addCase(found ? "Geometry Matches" : "Geometry Does NOT Match");
-                if (found) monitor.setHeight(path.length());
-                return found ?
-                        Evaluation.INCLUDE_AND_PRUNE :
-                        Evaluation.EXCLUDE_AND_PRUNE;
-            }
-            return null;
+        Iterable<Node> indexed = new IndexNodeToGeometryNodeIterable(tx, getAllIndexInternalNodes(tx));
+        if (!hasIngestBuffer(tx)) {
+            return indexed;
         }
+        return Iterables.concat(indexed, getBufferedGeometryNodes(tx));
     }
 
     @Override
     public SearchResults searchIndex(Transaction tx, SearchFilter filter) {
-        SearchEvaluator searchEvaluator = new SearchEvaluator(tx, filter);
-        MonoDirectionalTraversalDescription traversal = new MonoDirectionalTraversalDescription();
-        TraversalDescription td = traversal
-                .depthFirst()
-                .relationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)
-                .relationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)
-                .evaluator(searchEvaluator);
-        Traverser traverser = td.traverse(getIndexRoot(tx));
-        return new SearchResults(traverser.nodes());
+        flushBoundingBoxes(tx);
+        Node root = getIndexRoot(tx);
+        RTreeDirectory directory = getDirectory(tx);
+        long[] bufferBuckets = getIngestBufferBucketIds(tx);
+        // with stored subtree counts, a search skipping results can skip whole subtrees that match as a whole
+        LongToIntFunction subtreeCount = subtreeCounts ? nodeId -> getSubtreeCount(tx.getNodeById(nodeId), false) : null;
+        return new SearchResults((offset, limit) -> new RTreeCursorSearch(tx, root, directory, bufferBuckets, filter, monitor, offset, limit, subtreeCount));
     }
 
-    public void visit(Transaction tx, SpatialIndexVisitor visitor, Node indexNode) {
-        if (!visitor.needsToVisit(getIndexNodeEnvelope(indexNode))) {
+    public static class NodeWithDistance {
+        public final Node node;
+        public final double distance;
+
+        public NodeWithDistance(Node node, double distance) {
+            this.node = node;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * Incremental best-first nearest neighbour search. Index nodes, leaf entries and geometries share one priority
+     * queue ordered by distance, using the MINDIST of the envelope for index nodes and leaf entries, and the exact
+     * distance for geometries. Results are produced lazily in order of increasing distance, so taking the first k
+     * results only visits the part of the tree that is closer than the k-th result.
+     */
+    public Iterator<NodeWithDistance> searchNearest(Transaction tx, SearchDistanceFilter filter) {
+        flushBoundingBoxes(tx);
+        return new NearestNeighbourIterator(tx, filter);
+    }
+
+    private class NearestNeighbourIterator implements Iterator<NodeWithDistance> {
+        private static final int INDEX_NODE = 0;
+        private static final int LEAF_ENTRY = 1;
+        private static final int GEOMETRY = 2;
+
+        private final Transaction tx;
+        private final SearchDistanceFilter filter;
+        private final RTreeDirectory mirror;
+        private final Envelope mirrorEnvelope = new Envelope(0, 0, 0, 0);
+        private final PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        private NodeWithDistance next;
+
+        private class Candidate implements Comparable<Candidate> {
+            private final Node node;
+            private final double distance;
+            private final int kind;
+            private final int mirrorNode;
+
+            private Candidate(Node node, double distance, int kind, int mirrorNode) {
+                this.node = node;
+                this.distance = distance;
+                this.kind = kind;
+                this.mirrorNode = mirrorNode;
+            }
+
+            @Override
+            public int compareTo(Candidate other) {
+                int result = Double.compare(distance, other.distance);
+                // on equal distance prefer finished geometries, so results are returned as early as possible
+                return result == 0 ? Integer.compare(other.kind, kind) : result;
+            }
+        }
+
+        private NearestNeighbourIterator(Transaction tx, SearchDistanceFilter filter) {
+            this.tx = tx;
+            this.filter = filter;
+            this.mirror = getDirectory(tx);
+            Node indexRoot = getIndexRoot(tx);
+            Envelope rootEnvelope = getIndexNodeEnvelope(indexRoot);
+            if (rootEnvelope != null && filter.needsToVisit(rootEnvelope)) {
+                offer(indexRoot, filter.minDistance(rootEnvelope), INDEX_NODE, mirror == null ? -1 : 0);
+            }
+            // buckets of the ingest buffer are expanded like packed leaves
+            for (Node bucket : getIngestBufferBuckets(getMetadataNode(tx))) {
+                Envelope bucketEnvelope = getIndexNodeEnvelope(bucket);
+                if (bucketEnvelope != null && filter.needsToVisit(bucketEnvelope)) {
+                    offer(bucket, filter.minDistance(bucketEnvelope), INDEX_NODE);
+                }
+            }
+        }
+
+        private void offer(Node node, double distance, int kind) {
+            offer(node, distance, kind, -1);
+        }
+
+        private void offer(Node node, double distance, int kind, int mirrorNode) {
+            if (distance <= filter.maxDistance()) {
+                queue.add(new Candidate(node, distance, kind, mirrorNode));
+            }
+        }
+
+        private void expand(Candidate candidate) {
+            if (candidate.mirrorNode >= 0 && !mirror.isLeaf(candidate.mirrorNode)) {
+                expandMirrored(candidate.mirrorNode);
+            } else {
+                expand(candidate.node);
+            }
+        }
+
+        private void expandMirrored(int indexNode) {
+            int first = mirror.firstChild(indexNode);
+            for (int child = first; child < first + mirror.childCount(indexNode); child++) {
+                boolean shouldVisit = mirror.hasBBox(child);
+                if (shouldVisit) {
+                    mirror.readEnvelope(child, mirrorEnvelope);
+                    shouldVisit = filter.needsToVisit(mirrorEnvelope);
+                }
+                monitor.addCase(shouldVisit ? "Index Matches" : "Index Does NOT Match");
+                if (shouldVisit) {
+                    Node childNode = ((InternalTransaction) tx).newNodeEntity(mirror.nodeId(child));
+                    offer(childNode, filter.minDistance(mirrorEnvelope), INDEX_NODE, child);
+                }
+            }
+        }
+
+        private void expand(Node indexNode) {
+            for (Relationship rel : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+                Node child = rel.getEndNode();
+                Envelope envelope = getIndexNodeEnvelope(child);
+                boolean shouldVisit = envelope != null && filter.needsToVisit(envelope);
+                monitor.addCase(shouldVisit ? "Index Matches" : "Index Does NOT Match");
+                if (shouldVisit) {
+                    offer(child, filter.minDistance(envelope), INDEX_NODE);
+                }
+            }
+            long[] entryIds = getLeafEntryIds(indexNode);
+            if (entryIds != null) {
+                // the envelopes of packed entries are read from the leaf, without touching the geometry nodes
+                double[] entryBBoxes = getLeafEntryBBoxes(indexNode);
+                for (int i = 0; i < entryIds.length; i++) {
+                    Envelope envelope = packedEnvelope(entryBBoxes, i);
+                    if (filter.needsToVisit(envelope)) {
+                        offer(((InternalTransaction) tx).newNodeEntity(entryIds[i]), filter.minDistance(envelope), LEAF_ENTRY);
+                    }
+                }
+            } else {
+                for (Relationship rel : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+                    Node geomNode = rel.getEndNode();
+                    offer(geomNode, filter.minDistance(getLeafNodeEnvelope(geomNode)), LEAF_ENTRY);
+                }
+            }
+        }
+
+        private NodeWithDistance computeNext() {
+            while (!queue.isEmpty()) {
+                Candidate candidate = queue.poll();
+                switch (candidate.kind) {
+                    case GEOMETRY:
+                        return new NodeWithDistance(candidate.node, candidate.distance);
+                    case LEAF_ENTRY:
+                        boolean found = filter.geometryMatches(tx, candidate.node);
+                        monitor.addCase(found ? "Geometry Matches" : "Geometry Does NOT Match");
+                        if (found) {
+                            offer(candidate.node, filter.distance(tx, candidate.node), GEOMETRY);
+                        }
+                        break;
+                    default:
+                        expand(candidate);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = computeNext();
+            }
+            return next != null;
+        }
+
+        @Override
+        public NodeWithDistance next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            NodeWithDistance result = next;
+            next = null;
+            return result;
+        }
+    }
+
+    public void visit(Transaction tx, SpatialIndexVisitor visitor, Node indexNode) {
+        flushBoundingBoxes(tx);
+        if (!visitor.needsToVisit(getIndexNodeEnvelope(indexNode))) {
             return;
         }
 
@@ -782,15 +2905,29 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
                 // collect children results
                 visit(tx, visitor, child);
             }
-        } else if (indexNode.hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+        } else {
             // Node is a leaf
-            for (Relationship rel : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+            visitLeafEntries(tx, visitor, indexNode);
+        }
+    }
+
+    private void visitLeafEntries(Transaction tx, SpatialIndexVisitor visitor, Node leaf) {
+        long[] entryIds = getLeafEntryIds(leaf);
+        if (entryIds != null) {
+            for (long entryId : entryIds) {
+                visitor.onIndexReference(tx.getNodeById(entryId));
+            }
+        } else {
+            for (Relationship rel : leaf.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
                 visitor.onIndexReference(rel.getEndNode());
             }
         }
     }
 
     public Node getIndexRoot(Transaction tx) {
+        if (writingShadowTree.get() != null) {
+            return getRootNode(tx).getSingleRelationship(RTreeRelationshipTypes.RTREE_SHADOW_ROOT, Direction.OUTGOING).getEndNode();
+        }
         return getRootNode(tx).getSingleRelationship(RTreeRelationshipTypes.RTREE_ROOT, Direction.OUTGOING).getEndNode();
     }
 
@@ -852,11 +2989,9 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
             for (Long child : children) {
                 visitInTx(tx, visitor, child);
             }
-        } else if (indexNode.hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+        } else {
             // Node is a leaf
-            for (Relationship rel : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
-                visitor.onIndexReference(rel.getEndNode());
-            }
+            visitLeafEntries(tx, visitor, indexNode);
         }
     }
 
@@ -873,9 +3008,8 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
             layerNode.createRelationshipTo(metadataNode, RTreeRelationshipTypes.RTREE_METADATA);
 
             metadataNode.setProperty("maxNodeReferences", maxNodeReferences);
+            metadataNode.setProperty(INDEX_PROP_GEOMETRY_COUNT, 0);
         }
-
-        saveCount(tx);
     }
 
     private void initIndexRoot(Transaction tx) {
@@ -892,92 +3026,887 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
     }
 
     /**
-     * Save the geometry count to the database if it has not been saved yet.
-     * However, if the count is zero, first do an exhaustive search of the
-     * tree and count everything before saving it.
+     * The geometry count is saved on the metadata node by every write, instead of being held in this instance,
+     * so that one index instance can be shared between transactions and initializing it does not require an
+     * exhaustive search of the tree.
      */
-    private void saveCount(Transaction tx) {
-        if (totalGeometryCount == 0) {
-            SpatialIndexRecordCounter counter = new SpatialIndexRecordCounter();
-            visit(tx, counter, getIndexRoot(tx));
-            totalGeometryCount = counter.getResult();
+    private void adjustCount(Transaction tx, int delta) {
+        if (isSharedWriter()) {
+            List<Node> stripes = getCountStripes(getMetadataNode(tx));
+            Node stripe = stripes.get((int) (Thread.currentThread().getId() % stripes.size()));
+            tx.acquireWriteLock(stripe);
+            stripe.setProperty(INDEX_PROP_COUNT_DELTA, (Integer) stripe.getProperty(INDEX_PROP_COUNT_DELTA, 0) + delta);
+        } else {
+            setCount(tx, count(tx) + delta);
+        }
+    }
+
+    /**
+     * Concurrent writers do not update the geometry count on the metadata node, which all of them would have to
+     * lock, but add their changes to one of several count stripe nodes. The stripes are merged into the count on
+     * the metadata node by the next write that holds the exclusive lock on the metadata node anyway.
+     */
+    private List<Node> getCountStripes(Node metadataNode) {
+        List<Node> stripes = new ArrayList<>();
+        for (Relationship relationship : metadataNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_COUNT_STRIPE)) {
+            stripes.add(relationship.getEndNode());
+        }
+        return stripes;
+    }
+
+    private void createCountStripes(Transaction tx, Node metadataNode) {
+        tx.acquireWriteLock(metadataNode);
+        if (!metadataNode.hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_COUNT_STRIPE)) {
+            for (int i = 0; i < COUNT_STRIPES; i++) {
+                Node stripe = tx.createNode();
+                stripe.setProperty(INDEX_PROP_COUNT_DELTA, 0);
+                metadataNode.createRelationshipTo(stripe, RTreeRelationshipTypes.RTREE_COUNT_STRIPE);
+            }
+        }
+    }
+
+    private void mergeCountStripes(Transaction tx, Node metadataNode) {
+        int merged = 0;
+        for (Node stripe : getCountStripes(metadataNode)) {
+            int delta = (Integer) stripe.getProperty(INDEX_PROP_COUNT_DELTA, 0);
+            if (delta != 0) {
+                tx.acquireWriteLock(stripe);
+                delta = (Integer) stripe.getProperty(INDEX_PROP_COUNT_DELTA, 0);
+                stripe.setProperty(INDEX_PROP_COUNT_DELTA, 0);
+                merged += delta;
+            }
+        }
+        if (merged != 0) {
+            metadataNode.setProperty(INDEX_PROP_GEOMETRY_COUNT, (Integer) metadataNode.getProperty(INDEX_PROP_GEOMETRY_COUNT, 0) + merged);
+        }
+    }
+
+    private void setCount(Transaction tx, int count) {
+        getMetadataNode(tx).setProperty(INDEX_PROP_GEOMETRY_COUNT, count);
+    }
+
+    /**
+     * Merge all geometries waiting in the ingest buffer into the tree, with the seeded clustering bulk insertion.
+     * This happens by itself when the buffer reaches ingestBufferSize geometries or the oldest buffered geometry is
+     * older than ingestBufferMaxAge milliseconds, but both are only checked when a geometry is added.
+     */
+    public void flushIngestBuffer(Transaction tx) {
+        if (hasIngestBuffer(tx)) {
+            add(tx, Collections.emptyList());
+        }
+    }
+
+    /**
+     * With ingestBufferSize set, single adds do not descend the tree but append the geometry to the newest of a chain
+     * of buckets hanging off the metadata node, each a packed list of at most maxNodeReferences entries with the
+     * bounding box of all of them. Searches read the buckets after the tree, and the whole buffer is merged into the
+     * tree in one bulk insertion, so that a stream of small writes costs one restructuring per batch instead of one
+     * per geometry.
+     */
+    private void bufferGeometry(Transaction tx, Node geomNode) {
+        Node metadataNode = getMetadataNode(tx);
+        Relationship newest = metadataNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_INGEST_BUFFER, Direction.OUTGOING);
+        Node bucket = newest == null ? null : newest.getEndNode();
+        long[] ids = bucket == null ? null : getLeafEntryIds(bucket);
+        if (bucket == null || ids.length >= maxNodeReferences) {
+            Node newBucket = tx.createNode();
+            if (newest != null) {
+                newest.delete();
+                newBucket.createRelationshipTo(bucket, RTreeRelationshipTypes.RTREE_INGEST_BUFFER);
+            }
+            metadataNode.createRelationshipTo(newBucket, RTreeRelationshipTypes.RTREE_INGEST_BUFFER);
+            bucket = newBucket;
+            ids = new long[0];
+        }
+        Envelope envelope = getLeafNodeEnvelope(geomNode);
+        double[] bboxes = ids.length == 0 ? new double[0] : getLeafEntryBBoxes(bucket);
+        long[] newIds = Arrays.copyOf(ids, ids.length + 1);
+        double[] newBBoxes = Arrays.copyOf(bboxes, bboxes.length + 4);
+        newIds[ids.length] = geomNode.getId();
+        newBBoxes[bboxes.length] = envelope.getMinX();
+        newBBoxes[bboxes.length + 1] = envelope.getMinY();
+        newBBoxes[bboxes.length + 2] = envelope.getMaxX();
+        newBBoxes[bboxes.length + 3] = envelope.getMaxY();
+        setBucketEntries(bucket, newIds, newBBoxes);
+        geomNode.setProperty(INDEX_PROP_BUFFER, bucket.getId());
+
+        metadataNode.setProperty(INDEX_PROP_BUFFERED_COUNT, (Integer) metadataNode.getProperty(INDEX_PROP_BUFFERED_COUNT, 0) + 1);
+        if (!metadataNode.hasProperty(INDEX_PROP_BUFFERED_SINCE)) {
+            metadataNode.setProperty(INDEX_PROP_BUFFERED_SINCE, System.currentTimeMillis());
+        }
+    }
+
+    private boolean isIngestBufferDue(Node metadataNode) {
+        int buffered = (Integer) metadataNode.getProperty(INDEX_PROP_BUFFERED_COUNT, 0);
+        if (buffered >= ingestBufferSize) {
+            return true;
+        }
+        long since = (Long) metadataNode.getProperty(INDEX_PROP_BUFFERED_SINCE, Long.MAX_VALUE);
+        return ingestBufferMaxAge > 0 && System.currentTimeMillis() - since >= ingestBufferMaxAge;
+    }
+
+    /**
+     * Bucket entries are always stored with double precision, and not through setLeafEntries, since the buckets are
+     * not part of the directory of the tree.
+     */
+    private static void setBucketEntries(Node bucket, long[] ids, double[] bboxes) {
+        bucket.setProperty(INDEX_PROP_ENTRY_IDS, ids);
+        bucket.setProperty(INDEX_PROP_ENTRY_BBOXES, bboxes);
+        double[] bbox = new double[]{Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int i = 0; i < bboxes.length; i += 4) {
+            bbox[0] = Math.min(bbox[0], bboxes[i]);
+            bbox[1] = Math.min(bbox[1], bboxes[i + 1]);
+            bbox[2] = Math.max(bbox[2], bboxes[i + 2]);
+            bbox[3] = Math.max(bbox[3], bboxes[i + 3]);
+        }
+        bucket.setProperty(INDEX_PROP_BBOX, bbox);
+    }
+
+    private void removeBufferedGeometry(Transaction tx, Node bucket, Node geomNode) {
+        long[] ids = getLeafEntryIds(bucket);
+        int index = indexOf(ids, geomNode.getId());
+        double[] bboxes = getLeafEntryBBoxes(bucket);
+        long[] newIds = new long[ids.length - 1];
+        double[] newBBoxes = new double[bboxes.length - 4];
+        System.arraycopy(ids, 0, newIds, 0, index);
+        System.arraycopy(ids, index + 1, newIds, index, newIds.length - index);
+        System.arraycopy(bboxes, 0, newBBoxes, 0, index * 4);
+        System.arraycopy(bboxes, index * 4 + 4, newBBoxes, index * 4, newBBoxes.length - index * 4);
+        geomNode.removeProperty(INDEX_PROP_BUFFER);
+        if (newIds.length > 0) {
+            setBucketEntries(bucket, newIds, newBBoxes);
+        } else {
+            // unlink the empty bucket from the chain
+            Relationship newer = bucket.getSingleRelationship(RTreeRelationshipTypes.RTREE_INGEST_BUFFER, Direction.INCOMING);
+            Relationship older = bucket.getSingleRelationship(RTreeRelationshipTypes.RTREE_INGEST_BUFFER, Direction.OUTGOING);
+            if (older != null) {
+                newer.getStartNode().createRelationshipTo(older.getEndNode(), RTreeRelationshipTypes.RTREE_INGEST_BUFFER);
+                older.delete();
+            }
+            newer.delete();
+            bucket.delete();
+        }
+
+        Node metadataNode = getMetadataNode(tx);
+        int buffered = (Integer) metadataNode.getProperty(INDEX_PROP_BUFFERED_COUNT, 1) - 1;
+        if (buffered > 0) {
+            metadataNode.setProperty(INDEX_PROP_BUFFERED_COUNT, buffered);
+        } else {
+            metadataNode.removeProperty(INDEX_PROP_BUFFERED_COUNT);
+            metadataNode.removeProperty(INDEX_PROP_BUFFERED_SINCE);
+        }
+    }
+
+    /**
+     * Remove all geometries from the ingest buffer and delete its buckets. The geometry count is left unchanged.
+     *
+     * @return the geometry nodes that were buffered
+     */
+    private List<Node> drainIngestBuffer(Transaction tx) {
+        Node metadataNode = getMetadataNode(tx);
+        List<Node> drained = new ArrayList<>();
+        for (Node bucket : getIngestBufferBuckets(metadataNode)) {
+            for (long id : getLeafEntryIds(bucket)) {
+                Node geomNode = tx.getNodeById(id);
+                geomNode.removeProperty(INDEX_PROP_BUFFER);
+                drained.add(geomNode);
+            }
+            // the relationship to the next older bucket is deleted as the incoming relationship of that bucket
+            bucket.getSingleRelationship(RTreeRelationshipTypes.RTREE_INGEST_BUFFER, Direction.INCOMING).delete();
+            bucket.delete();
+        }
+        metadataNode.removeProperty(INDEX_PROP_BUFFERED_COUNT);
+        metadataNode.removeProperty(INDEX_PROP_BUFFERED_SINCE);
+        return drained;
+    }
+
+    private boolean hasIngestBuffer(Transaction tx) {
+        return getMetadataNode(tx).hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_INGEST_BUFFER);
+    }
+
+    /**
+     * @return the buckets of the ingest buffer, from the newest to the oldest
+     */
+    private static List<Node> getIngestBufferBuckets(Node metadataNode) {
+        return getBucketChain(metadataNode, RTreeRelationshipTypes.RTREE_INGEST_BUFFER);
+    }
+
+    /**
+     * @return the buckets of a chain like the ingest buffer or the change log of a rebuild, from the newest to the oldest
+     */
+    private static List<Node> getBucketChain(Node head, RelationshipType relationshipType) {
+        List<Node> buckets = new ArrayList<>();
+        Relationship next = head.getSingleRelationship(relationshipType, Direction.OUTGOING);
+        while (next != null) {
+            Node bucket = next.getEndNode();
+            buckets.add(bucket);
+            next = bucket.getSingleRelationship(relationshipType, Direction.OUTGOING);
+        }
+        return buckets;
+    }
+
+    private long[] getIngestBufferBucketIds(Transaction tx) {
+        return getIngestBufferBuckets(getMetadataNode(tx)).stream().mapToLong(Node::getId).toArray();
+    }
+
+    private Iterable<Node> getBufferedGeometryNodes(Transaction tx) {
+        List<Node> geomNodes = new ArrayList<>();
+        for (Node bucket : getIngestBufferBuckets(getMetadataNode(tx))) {
+            for (long id : getLeafEntryIds(bucket)) {
+                geomNodes.add(tx.getNodeById(id));
+            }
+        }
+        return geomNodes;
+    }
+
+    /**
+     * @return the bucket of the ingest buffer of this index that the geometry node is in, or null
+     */
+    private Node findIngestBufferBucket(Transaction tx, Node geomNode) {
+        Object bucketId = geomNode.getProperty(INDEX_PROP_BUFFER, null);
+        if (!(bucketId instanceof Long)) {
+            return null;
+        }
+        Node bucket;
+        try {
+            bucket = tx.getNodeById((Long) bucketId);
+        } catch (NotFoundException e) {
+            // the bucket was deleted with its index
+            return null;
+        }
+        long[] ids = getLeafEntryIds(bucket);
+        if (ids == null || indexOf(ids, geomNode.getId()) < 0) {
+            return null;
+        }
+        Node node = bucket;
+        Relationship newer;
+        while ((newer = node.getSingleRelationship(RTreeRelationshipTypes.RTREE_INGEST_BUFFER, Direction.INCOMING)) != null) {
+            node = newer.getStartNode();
+        }
+        return node.getId() == getMetadataNode(tx).getId() ? bucket : null;
+    }
+
+    /**
+     * Changes made to the directory of the tree by one transaction. Every transaction that writes to an index that
+     * tracks the structure version assigns a new random structure version to the metadata node, so a directory mirror
+     * built at the structure version of that transaction's parent can be brought up to date by re-reading only the
+     * changed index nodes.
+     */
+    private static class DirectoryChanges {
+        private final long baseVersion;
+        private final long version;
+        private final Set<Long> changedNodes = ConcurrentHashMap.newKeySet();
+        private final Set<Long> deferredNodes = ConcurrentHashMap.newKeySet();
+        private final Set<Long> recountNodes = ConcurrentHashMap.newKeySet();
+        private final boolean exclusive;
+        private volatile boolean rebuild = false;
+        // the transaction, while a rebuild reads the tree without its lock, see logAttachedEntries
+        private volatile Transaction scanningTx = null;
+        private final Set<Long> loggedEntries = ConcurrentHashMap.newKeySet();
+
+        private DirectoryChanges(long baseVersion, long version, boolean exclusive) {
+            this.baseVersion = baseVersion;
+            this.version = version;
+            this.exclusive = exclusive;
+        }
+    }
+
+    private DirectoryChanges trackDirectoryChanges(Transaction tx) {
+        DirectoryChanges changes = changesByTransaction.get(tx);
+        if (changes == null || !changes.exclusive) {
+            DirectoryChanges sharedChanges = changes;
+            Node metadataNode = getMetadataNode(tx);
+            // lock first, so the base version read is the one committed by the last writer
+            tx.acquireWriteLock(metadataNode);
+            long baseVersion = (Long) metadataNode.getProperty(INDEX_PROP_STRUCTURE_VERSION, 0L);
+            long version = baseVersion;
+            if (tracksStructureVersion()) {
+                do {
+                    version = versionGenerator.nextLong();
+                } while (version == baseVersion || version == 0L);
+                metadataNode.setProperty(INDEX_PROP_STRUCTURE_VERSION, version);
+            }
+            changes = new DirectoryChanges(baseVersion, version, true);
+            if (isScanningForRebuild(metadataNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHANGE_LOG, Direction.OUTGOING))) {
+                changes.scanningTx = tx;
+            }
+            if (sharedChanges != null) {
+                changes.loggedEntries.addAll(sharedChanges.loggedEntries);
+                changes.changedNodes.addAll(sharedChanges.changedNodes);
+                changes.deferredNodes.addAll(sharedChanges.deferredNodes);
+                changes.recountNodes.addAll(sharedChanges.recountNodes);
+            }
+            changesByTransaction.put(tx, changes);
+            if (version != baseVersion) {
+                changesByVersion.put(version, changes);
+            }
+            if (bboxMaintenance.equals(DEFERRED_BBOX_MAINTENANCE)) {
+                deferredIndexesByTransaction.computeIfAbsent(tx, k -> ConcurrentHashMap.newKeySet()).add(this);
+            }
+            mergeCountStripes(tx, metadataNode);
+        }
+        currentChanges.set(changes);
+        return changes;
+    }
+
+    /**
+     * The structure version is only assigned for the directory mirror and the snapshot, which compare it to the
+     * version they were built at, and for the background reorganization, which counts writes by their changes to the
+     * metadata node. The index that writes to a tree served from a snapshot must therefore be configured with the
+     * snapshotFile too.
+     */
+    private boolean tracksStructureVersion() {
+        return useDirectoryMirror || snapshotFile != null || reorganizesInBackground();
+    }
+
+    /**
+     * With concurrentWriters, single adds and removes only take a shared lock on the metadata node. They do not
+     * serialize on it, but still wait for bulk operations, which take the exclusive lock in trackDirectoryChanges.
+     * They do not assign a new structure version either, which is why the directory mirror is not used together
+     * with concurrent writers.
+     */
+    private DirectoryChanges trackSharedChanges(Transaction tx) {
+        if (!concurrentWriters) {
+            return trackDirectoryChanges(tx);
+        }
+        DirectoryChanges changes = changesByTransaction.get(tx);
+        if (changes == null) {
+            Node metadataNode = getMetadataNode(tx);
+            if (!metadataNode.hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_COUNT_STRIPE)) {
+                createCountStripes(tx, metadataNode);
+            }
+            tx.acquireReadLock(metadataNode);
+            Relationship log = metadataNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHANGE_LOG, Direction.OUTGOING);
+            if (log != null) {
+                // while a rebuild logs the writes, they take the lock of the log before that of any index node
+                tx.acquireWriteLock(log.getEndNode());
+            }
+            changes = new DirectoryChanges(0L, 0L, false);
+            if (isScanningForRebuild(log)) {
+                changes.scanningTx = tx;
+            }
+            changesByTransaction.put(tx, changes);
+            if (bboxMaintenance.equals(DEFERRED_BBOX_MAINTENANCE)) {
+                deferredIndexesByTransaction.computeIfAbsent(tx, k -> ConcurrentHashMap.newKeySet()).add(this);
+            }
+        }
+        currentChanges.set(changes);
+        return changes;
+    }
+
+    /**
+     * True if the write currently executing on this thread may run concurrently with writes of other transactions.
+     */
+    private boolean isSharedWriter() {
+        DirectoryChanges changes = currentChanges.get();
+        return concurrentWriters && changes != null && !changes.exclusive;
+    }
+
+    /**
+     * Recompute the bounding boxes deferred by all RTree indexes written to in the given transaction. With
+     * bboxMaintenance set to "deferred" this must be called before the transaction is committed. The transaction
+     * event listener of the LayerHandleRegistry does that for all databases used through a SpatialDatabaseService.
+     */
+    public static void flushDeferredBoundingBoxes(Transaction tx) {
+        Set<RTreeIndex> indexes = deferredIndexesByTransaction.remove(tx);
+        if (indexes != null) {
+            for (RTreeIndex index : indexes) {
+                index.flushBoundingBoxes(tx);
+            }
+        }
+    }
+
+    /**
+     * In deferred mode, writes only update the bounding boxes of the leaves and record the parents that need to be
+     * recomputed. This recomputes them once, level by level from the bottom up, so that the upper levels of the tree
+     * and the root in particular are written at most once per transaction instead of once per write. It is called
+     * before the transaction commits and before any read that depends on the bounding boxes.
+     */
+    private void flushBoundingBoxes(Transaction tx) {
+        if (!bboxMaintenance.equals(DEFERRED_BBOX_MAINTENANCE)) {
+            return;
+        }
+        DirectoryChanges changes = changesByTransaction.get(tx);
+        if (changes == null || changes.deferredNodes.isEmpty()) {
+            return;
+        }
+        currentChanges.set(changes);
+        long indexRootId = getIndexRoot(tx).getId();
+        TreeMap<Integer, Map<Long, Node>> nodesByDepth = new TreeMap<>();
+        for (Long nodeId : new ArrayList<>(changes.deferredNodes)) {
+            changes.deferredNodes.remove(nodeId);
+            Node indexNode;
+            try {
+                indexNode = tx.getNodeById(nodeId);
+            } catch (NotFoundException e) {
+                // deleted by a later split or removal in this transaction
+                continue;
+            }
+            int depth = 0;
+            Node node = indexNode;
+            for (Node parent = getIndexNodeParent(node); parent != null; parent = getIndexNodeParent(node)) {
+                node = parent;
+                depth++;
+            }
+            if (node.getId() == indexRootId) {
+                nodesByDepth.computeIfAbsent(depth, k -> new LinkedHashMap<>()).put(nodeId, indexNode);
+            }
+        }
+        while (!nodesByDepth.isEmpty()) {
+            Map.Entry<Integer, Map<Long, Node>> level = nodesByDepth.pollLastEntry();
+            for (Node indexNode : level.getValue().values()) {
+                RelationshipType relationshipType = nodeIsLeaf(indexNode) ? RTreeRelationshipTypes.RTREE_REFERENCE : RTreeRelationshipTypes.RTREE_CHILD;
+                if (concurrentWriters) {
+                    lockForRecompute(tx, indexNode, relationshipType);
+                }
+                if (adjustParentBoundingBox(indexNode, relationshipType)) {
+                    Node parent = getIndexNodeParent(indexNode);
+                    if (parent != null) {
+                        nodesByDepth.computeIfAbsent(level.getKey() - 1, k -> new LinkedHashMap<>()).put(parent.getId(), parent);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * With subtreeCounts enabled, every index node stores the number of geometries below it. Writes record the index
+     * nodes whose children changed, and this brings the counts up to date once at the end of the write: the changed
+     * nodes are recounted from their children, level by level from the bottom up, and the difference is then passed
+     * on to the ancestors, so that a single insert or remove only writes the counts along its path.
+     * <p>
+     * With aggregated attributes the index nodes also store an AttributeSummary per attribute. A minimum or maximum
+     * cannot be updated from a difference, so then every ancestor of a changed node is summarized again from its
+     * children, which still only reads the index nodes along the path and their direct children.
+     */
+    private void flushSubtreeSummaries(Transaction tx) {
+        if (!maintainsSubtreeSummaries()) {
+            return;
+        }
+        DirectoryChanges changes = changesByTransaction.get(tx);
+        if (changes == null || changes.recountNodes.isEmpty()) {
+            return;
+        }
+        long indexRootId = getIndexRoot(tx).getId();
+        TreeMap<Integer, Map<Long, Node>> nodesByDepth = new TreeMap<>();
+        Set<Long> recount = new HashSet<>();
+        for (Long nodeId : new ArrayList<>(changes.recountNodes)) {
+            changes.recountNodes.remove(nodeId);
+            Node indexNode;
+            try {
+                indexNode = tx.getNodeById(nodeId);
+            } catch (NotFoundException e) {
+                // deleted by a later split or removal in this transaction
+                continue;
+            }
+            int depth = 0;
+            Node node = indexNode;
+            for (Node parent = getIndexNodeParent(node); parent != null; parent = getIndexNodeParent(node)) {
+                node = parent;
+                depth++;
+            }
+            if (node.getId() == indexRootId) {
+                nodesByDepth.computeIfAbsent(depth, k -> new LinkedHashMap<>()).put(nodeId, indexNode);
+                recount.add(nodeId);
+            }
+        }
+        Map<Long, Integer> deltas = new HashMap<>();
+        while (!nodesByDepth.isEmpty()) {
+            Map.Entry<Integer, Map<Long, Node>> level = nodesByDepth.pollLastEntry();
+            for (Node indexNode : level.getValue().values()) {
+                Integer old = (Integer) indexNode.getProperty(INDEX_PROP_SUBTREE_COUNT, null);
+                int count;
+                boolean changed;
+                if (old == null || recount.contains(indexNode.getId())) {
+                    changed = storeSubtreeSummaries(tx, indexNode);
+                    count = (Integer) indexNode.getProperty(INDEX_PROP_SUBTREE_COUNT);
+                } else {
+                    count = old + deltas.getOrDefault(indexNode.getId(), 0);
+                    changed = count != old;
+                    indexNode.setProperty(INDEX_PROP_SUBTREE_COUNT, count);
+                }
+                if (!changed) {
+                    continue;
+                }
+                Node parent = getIndexNodeParent(indexNode);
+                if (parent != null) {
+                    nodesByDepth.computeIfAbsent(level.getKey() - 1, k -> new LinkedHashMap<>()).put(parent.getId(), parent);
+                    if (old == null || !aggregates.isEmpty()) {
+                        // the parent cannot have had a correct count either, or needs its summaries recomputed
+                        recount.add(parent.getId());
+                    } else {
+                        deltas.merge(parent.getId(), count - old, Integer::sum);
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean maintainsSubtreeSummaries() {
+        return subtreeCounts || !aggregates.isEmpty();
+    }
+
+    /**
+     * Recompute the count and the summaries of the aggregated attributes of an index node from its children.
+     *
+     * @return true if any of them changed
+     */
+    private boolean storeSubtreeSummaries(Transaction tx, Node indexNode) {
+        int count = countSubtree(indexNode, true);
+        boolean changed = !Objects.equals(count, indexNode.getProperty(INDEX_PROP_SUBTREE_COUNT, null));
+        if (changed) {
+            indexNode.setProperty(INDEX_PROP_SUBTREE_COUNT, count);
+        }
+        for (String attribute : aggregates) {
+            double[] summary = summarizeSubtree(tx, indexNode, attribute, true).toArray();
+            if (!Arrays.equals(summary, (double[]) indexNode.getProperty(INDEX_PROP_AGGREGATE_PREFIX + attribute, null))) {
+                indexNode.setProperty(INDEX_PROP_AGGREGATE_PREFIX + attribute, summary);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return the number of geometries below the index node, from the stored count if there is one, otherwise
+     * counted from the children and stored if store is set
+     */
+    private int getSubtreeCount(Node indexNode, boolean store) {
+        Object count = maintainsSubtreeSummaries() ? indexNode.getProperty(INDEX_PROP_SUBTREE_COUNT, null) : null;
+        if (count != null) {
+            return (Integer) count;
+        }
+        int computed = countSubtree(indexNode, store);
+        if (store) {
+            indexNode.setProperty(INDEX_PROP_SUBTREE_COUNT, computed);
+        }
+        return computed;
+    }
+
+    private int countSubtree(Node indexNode, boolean store) {
+        if (nodeIsLeaf(indexNode)) {
+            return countChildren(indexNode, RTreeRelationshipTypes.RTREE_REFERENCE);
+        }
+        int count = 0;
+        for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+            count += getSubtreeCount(relationship.getEndNode(), store);
+        }
+        return count;
+    }
+
+    /**
+     * @return the summary of the attribute over all geometries below the index node, from the stored summary if the
+     * attribute is aggregated, otherwise summarized from the children and stored if store is set
+     */
+    private AttributeSummary getSubtreeSummary(Transaction tx, Node indexNode, String attribute, boolean store) {
+        double[] stored = aggregates.contains(attribute) ? (double[]) indexNode.getProperty(INDEX_PROP_AGGREGATE_PREFIX + attribute, null) : null;
+        if (stored != null) {
+            return AttributeSummary.fromArray(stored);
+        }
+        AttributeSummary summary = summarizeSubtree(tx, indexNode, attribute, store);
+        if (store) {
+            indexNode.setProperty(INDEX_PROP_AGGREGATE_PREFIX + attribute, summary.toArray());
+        }
+        return summary;
+    }
+
+    private AttributeSummary summarizeSubtree(Transaction tx, Node indexNode, String attribute, boolean store) {
+        AttributeSummary summary = new AttributeSummary();
+        if (nodeIsLeaf(indexNode)) {
+            for (Node geomNode : getLeafGeometryNodes(tx, indexNode)) {
+                summary.add(geomNode.getProperty(attribute, null));
+            }
+        } else {
+            for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+                summary.add(getSubtreeSummary(tx, relationship.getEndNode(), attribute, store));
+            }
+        }
+        return summary;
+    }
+
+    private List<Node> getLeafGeometryNodes(Transaction tx, Node leaf) {
+        List<Node> geomNodes = new ArrayList<>();
+        long[] entryIds = getLeafEntryIds(leaf);
+        if (entryIds != null) {
+            for (long id : entryIds) {
+                geomNodes.add(tx.getNodeById(id));
+            }
+        } else {
+            for (Relationship relationship : leaf.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+                geomNodes.add(relationship.getEndNode());
+            }
+        }
+        return geomNodes;
+    }
 
-            int savedGeometryCount = (int) getMetadataNode(tx).getProperty("totalGeometryCount", 0);
-            countSaved = savedGeometryCount == totalGeometryCount;
+    /**
+     * Record that the bounding box or the children of an index node were changed by the write currently executing
+     * on this thread.
+     */
+    private void indexNodeChanged(Node indexNode) {
+        DirectoryChanges changes = currentChanges.get();
+        if (changes != null) {
+            changes.changedNodes.add(indexNode.getId());
+            if (maintainsSubtreeSummaries()) {
+                changes.recountNodes.add(indexNode.getId());
+            }
         }
+    }
 
-        if (!countSaved) {
-            getMetadataNode(tx).setProperty("totalGeometryCount", totalGeometryCount);
-            countSaved = true;
+    /**
+     * @return the snapshot of the tree if it is up to date, otherwise the directory mirror, or null if neither can be
+     * used
+     */
+    private RTreeDirectory getDirectory(Transaction tx) {
+        RTreeDirectory current = getSnapshot(tx);
+        return current == null ? getDirectoryMirror(tx) : current;
+    }
+
+    /**
+     * Write a read-only snapshot of the whole tree to the file, replacing any previous snapshot there. An index
+     * configured with the file in snapshotFile, in this or another database with a copy of the same graph, then
+     * serves searches from the memory-mapped file for as long as the structure version of the tree stays the same.
+     * Geometries in the ingest buffer are not in the snapshot, but are still found by searches.
+     *
+     * @return the number of geometries in the snapshot
+     */
+    public int exportSnapshot(Transaction tx, Path file) throws IOException {
+        flushBoundingBoxes(tx);
+        Node root = getIndexRoot(tx);
+        long version = (Long) getMetadataNode(tx).getProperty(INDEX_PROP_STRUCTURE_VERSION, 0L);
+        RTreeSnapshot.Writer writer = new RTreeSnapshot.Writer(version, root.getId());
+        List<Node> indexNodes = new ArrayList<>();
+        indexNodes.add(root);
+        writer.addIndexNode(root.getId(), getIndexNodeEnvelope(root));
+        int entries = 0;
+        // breadth first, so the children of every index node are numbered consecutively
+        for (int node = 0; node < indexNodes.size(); node++) {
+            Node indexNode = indexNodes.get(node);
+            int firstChild = indexNodes.size();
+            for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+                Node child = relationship.getEndNode();
+                indexNodes.add(child);
+                writer.addIndexNode(child.getId(), getIndexNodeEnvelope(child));
+            }
+            writer.setChildren(node, firstChild, indexNodes.size() - firstChild);
+            if (indexNodes.size() == firstChild) {
+                for (NodeWithEnvelope entry : getLeafEntries(tx, indexNode)) {
+                    writer.addEntry(node, entry.node.getId(), entry.envelope);
+                    entries++;
+                }
+            }
+            // the nodes are not needed again once their children are known
+            indexNodes.set(node, null);
         }
+        RTreeSnapshot.write(file, writer);
+        return entries;
+    }
+
+    /**
+     * Return the snapshot in snapshotFile if it was written at the current structure version of the tree, or null.
+     * The file is mapped again when it has changed since it was last mapped, so a snapshot exported later is picked
+     * up. A transaction that has written to the index always searches the store, like with the directory mirror.
+     */
+    RTreeSnapshot getSnapshot(Transaction tx) {
+        if (snapshotFile == null || concurrentWriters || changesByTransaction.containsKey(tx)) {
+            return null;
+        }
+        long version = (Long) getMetadataNode(tx).getProperty(INDEX_PROP_STRUCTURE_VERSION, 0L);
+        RTreeSnapshot current = snapshot;
+        if (current != null && current.version() == version) {
+            return current;
+        }
+        Path file = Paths.get(snapshotFile);
+        try {
+            long modified = Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : 0;
+            if (modified != 0 && (current == null || modified != snapshotModified)) {
+                snapshotModified = modified;
+                current = RTreeSnapshot.open(file);
+                snapshot = current;
+            }
+        } catch (IOException e) {
+            // an unreadable snapshot is ignored, and searches use the tree in the store
+            snapshot = null;
+            return null;
+        }
+        return current != null && current.version() == version && current.rootId() == getIndexRoot(tx).getId() ? current : null;
+    }
+
+    /**
+     * Return an up to date mirror of the directory of the tree, or null if the mirror is disabled or cannot be used
+     * in this transaction. A transaction that has written to the index sees its own uncommitted changes, which are
+     * not in any mirror, so it always searches the store.
+     */
+    RTreeDirectoryMirror getDirectoryMirror(Transaction tx) {
+        if (!useDirectoryMirror || concurrentWriters || changesByTransaction.containsKey(tx)) {
+            return null;
+        }
+        long version = (Long) getMetadataNode(tx).getProperty(INDEX_PROP_STRUCTURE_VERSION, 0L);
+        RTreeDirectoryMirror mirror = directoryMirror;
+        if (mirror != null && mirror.version == version) {
+            return mirror;
+        }
+        Set<Long> changedNodes = mirror == null ? null : changedNodesSince(mirror.version, version);
+        long rootId = getIndexRoot(tx).getId();
+        try (IndexNodeCursors cursors = new IndexNodeCursors(tx)) {
+            if (changedNodes == null) {
+                mirror = RTreeDirectoryMirror.build(cursors, rootId, version);
+            } else {
+                mirror = mirror.patch(cursors, rootId, changedNodes, version);
+            }
+        }
+        directoryMirror = mirror;
+        return mirror;
+    }
+
+    /**
+     * Follow the chain of committed writes back from the current version to the version of the mirror, collecting
+     * the changed index nodes. Returns null if the chain is broken, for example because some writes were made by
+     * another index instance, and the mirror needs to be rebuilt.
+     */
+    private Set<Long> changedNodesSince(long mirrorVersion, long version) {
+        Set<Long> changedNodes = new HashSet<>();
+        for (int i = 0; i < MAX_TRACKED_VERSIONS && version != mirrorVersion; i++) {
+            DirectoryChanges changes = changesByVersion.get(version);
+            if (changes == null || changes.rebuild) {
+                return null;
+            }
+            changedNodes.addAll(changes.changedNodes);
+            version = changes.baseVersion;
+        }
+        return version == mirrorVersion ? changedNodes : null;
+    }
+
+    /**
+     * Safety net for changes that were made to the tree without going through this index instance, for example by
+     * another instance or directly through the graph. Drops the directory mirror if it contains any of the nodes.
+     */
+    public void invalidateDirectoryMirror(Collection<Long> changedNodeIds) {
+        RTreeDirectoryMirror mirror = directoryMirror;
+        if (mirror != null) {
+            for (long nodeId : changedNodeIds) {
+                if (mirror.contains(nodeId)) {
+                    directoryMirror = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    public boolean hasDirectoryMirror() {
+        return directoryMirror != null;
     }
 
     private boolean nodeIsLeaf(Node node) {
         return !node.hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD);
     }
 
-    private Node chooseSubTree(Node parentIndexNode, Node geomRootNode) {
+    private Node chooseSubTree(Transaction tx, Node parentIndexNode, Envelope entryEnvelope) {
+        List<NodeWithEnvelope> children = getIndexChildren(tx, parentIndexNode);
+
+        if (splitMode.equals(RSTAR_SPLIT) && !children.isEmpty() && nodeIsLeaf(children.get(0).node)) {
+            return chooseLeafByOverlapEnlargement(children, entryEnvelope);
+        }
+
         // children that can contain the new geometry
-        List<Node> indexNodes = new ArrayList<>();
+        List<NodeWithEnvelope> indexNodes = new ArrayList<>();
 
         // pick the child that contains the new geometry bounding box
-        Iterable<Relationship> relationships = parentIndexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD);
-        for (Relationship relation : relationships) {
-            Node indexNode = relation.getEndNode();
-            if (getIndexNodeEnvelope(indexNode).contains(getLeafNodeEnvelope(geomRootNode))) {
-                indexNodes.add(indexNode);
+        for (NodeWithEnvelope child : children) {
+            if (child.envelope.contains(entryEnvelope)) {
+                indexNodes.add(child);
             }
         }
 
         if (indexNodes.size() > 1) {
             return chooseIndexNodeWithSmallestArea(indexNodes);
         } else if (indexNodes.size() == 1) {
-            return indexNodes.get(0);
+            return indexNodes.get(0).node;
         }
 
         // pick the child that needs the minimum enlargement to include the new geometry
         double minimumEnlargement = Double.POSITIVE_INFINITY;
-        relationships = parentIndexNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD);
-        for (Relationship relation : relationships) {
-            Node indexNode = relation.getEndNode();
-            double enlargementNeeded = getAreaEnlargement(indexNode, geomRootNode);
+        for (NodeWithEnvelope child : children) {
+            double enlargementNeeded = getAreaEnlargement(child.envelope, entryEnvelope);
 
             if (enlargementNeeded < minimumEnlargement) {
                 indexNodes.clear();
-                indexNodes.add(indexNode);
+                indexNodes.add(child);
                 minimumEnlargement = enlargementNeeded;
             } else if (enlargementNeeded == minimumEnlargement) {
-                indexNodes.add(indexNode);
+                indexNodes.add(child);
             }
         }
 
         if (indexNodes.size() > 1) {
             return chooseIndexNodeWithSmallestArea(indexNodes);
         } else if (indexNodes.size() == 1) {
-            return indexNodes.get(0);
+            return indexNodes.get(0).node;
         } else {
             // this shouldn't happen
             throw new RuntimeException("No IndexNode found for new geometry");
         }
     }
 
-    private double getAreaEnlargement(Node indexNode, Node geomRootNode) {
-        Envelope before = getIndexNodeEnvelope(indexNode);
-
-        Envelope after = getLeafNodeEnvelope(geomRootNode);
+    private double getAreaEnlargement(Envelope before, Envelope entryEnvelope) {
+        Envelope after = new Envelope(entryEnvelope);
         after.expandToInclude(before);
 
         return getArea(after) - getArea(before);
     }
 
-    private Node chooseIndexNodeWithSmallestArea(List<Node> indexNodes) {
+    /**
+     * R*-tree subtree choice for the level just above the leaves: pick the child whose overlap with its siblings grows
+     * least when it is enlarged to include the new entry, resolving ties by area enlargement and then by area.
+     */
+    private Node chooseLeafByOverlapEnlargement(List<NodeWithEnvelope> children, Envelope entryEnvelope) {
+        Node result = null;
+        double minimumOverlapEnlargement = Double.POSITIVE_INFINITY;
+        double minimumAreaEnlargement = Double.POSITIVE_INFINITY;
+        double minimumArea = Double.POSITIVE_INFINITY;
+        for (NodeWithEnvelope child : children) {
+            Envelope enlarged = new Envelope(child.envelope);
+            enlarged.expandToInclude(entryEnvelope);
+            double overlapEnlargement = 0;
+            for (NodeWithEnvelope sibling : children) {
+                if (sibling != child) {
+                    overlapEnlargement += getOverlapArea(enlarged, sibling.envelope) - getOverlapArea(child.envelope, sibling.envelope);
+                }
+            }
+            double area = getArea(child.envelope);
+            double areaEnlargement = getArea(enlarged) - area;
+            if (overlapEnlargement < minimumOverlapEnlargement
+                    || (overlapEnlargement == minimumOverlapEnlargement && (areaEnlargement < minimumAreaEnlargement
+                    || (areaEnlargement == minimumAreaEnlargement && area < minimumArea)))) {
+                result = child.node;
+                minimumOverlapEnlargement = overlapEnlargement;
+                minimumAreaEnlargement = areaEnlargement;
+                minimumArea = area;
+            }
+        }
+        return result;
+    }
+
+    private static double getOverlapArea(Envelope e1, Envelope e2) {
+        double area = 1;
+        for (int i = 0; i < e1.getDimension(); i++) {
+            double width = Math.min(e1.getMax(i), e2.getMax(i)) - Math.max(e1.getMin(i), e2.getMin(i));
+            if (width <= 0) {
+                return 0;
+            }
+            area *= width;
+        }
+        return area;
+    }
+
+    private Node chooseIndexNodeWithSmallestArea(List<NodeWithEnvelope> indexNodes) {
         Node result = null;
         double smallestArea = -1;
 
-        for (Node indexNode : indexNodes) {
-            double area = getArea(getIndexNodeEnvelope(indexNode));
+        for (NodeWithEnvelope indexNode : indexNodes) {
+            double area = getArea(indexNode.envelope);
             if (result == null || area < smallestArea) {
-                result = indexNode;
+                result = indexNode.node;
                 smallestArea = area;
             }
         }
@@ -985,42 +3914,273 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         return result;
     }
 
-    private int countChildren(Node indexNode, RelationshipType relationshipType) {
-        int counter = 0;
-        for (Relationship ignored : indexNode.getRelationships(Direction.OUTGOING, relationshipType)) {
-            counter++;
+    private int countChildren(Node indexNode, RelationshipType relationshipType) {
+        if (relationshipType == RTreeRelationshipTypes.RTREE_CHILD && indexNode.hasProperty(INDEX_PROP_CHILD_COUNT)) {
+            return (Integer) indexNode.getProperty(INDEX_PROP_CHILD_COUNT);
+        }
+        if (relationshipType == RTreeRelationshipTypes.RTREE_REFERENCE) {
+            long[] entryIds = getLeafEntryIds(indexNode);
+            if (entryIds != null) {
+                return entryIds.length;
+            }
+        }
+        int counter = 0;
+        for (Relationship ignored : indexNode.getRelationships(Direction.OUTGOING, relationshipType)) {
+            counter++;
+        }
+        return counter;
+    }
+
+    /**
+     * @return is enlargement needed?
+     */
+    private boolean insertInLeaf(Node indexNode, Node geomRootNode) {
+        return addChild(indexNode, RTreeRelationshipTypes.RTREE_REFERENCE, geomRootNode);
+    }
+
+    private void splitAndAdjustPathBoundingBox(Transaction tx, Node indexNode) {
+        if (isSharedWriter()) {
+            lockForSplit(tx, indexNode);
+        }
+        // create a new node and distribute the entries
+        Node newIndexNode;
+        switch (splitMode) {
+            case GREENES_SPLIT:
+                newIndexNode = greenesSplit(tx, indexNode);
+                break;
+            case RSTAR_SPLIT:
+                newIndexNode = rstarSplit(tx, indexNode);
+                break;
+            default:
+                newIndexNode = quadraticSplit(tx, indexNode);
+        }
+        Node parent = getIndexNodeParent(indexNode);
+//        System.out.println("spitIndex " + newIndexNode.getId());
+//        System.out.println("parent " + parent.getId());
+        if (parent == null) {
+            // if indexNode is the root
+            createNewRoot(tx, indexNode, newIndexNode);
+        } else {
+            expandParentBoundingBoxAfterNewChild(parent, (double[]) indexNode.getProperty(INDEX_PROP_BBOX));
+
+            addChild(parent, RTreeRelationshipTypes.RTREE_CHILD, newIndexNode);
+
+            if (countChildren(parent, RTreeRelationshipTypes.RTREE_CHILD) > maxNodeReferences) {
+                splitAndAdjustPathBoundingBox(tx, parent);
+            } else {
+                growPathBoundingBox(tx, parent);
+            }
+        }
+        monitor.addSplit(newIndexNode);
+    }
+
+    /**
+     * Lock everything a split changes: the node, the child index nodes that are moved and whose bounding boxes are
+     * read, and the parent that receives the new node, or the layer node if a new root is created.
+     */
+    private void lockForSplit(Transaction tx, Node indexNode) {
+        lockForRecompute(tx, indexNode, RTreeRelationshipTypes.RTREE_CHILD);
+        Node parent = getIndexNodeParent(indexNode);
+        if (parent == null) {
+            tx.acquireWriteLock(getRootNode(tx));
+        } else {
+            lockForBoundingBoxChange(tx, parent);
+        }
+    }
+
+    /**
+     * Insert an entry with the R*-tree algorithm. Geometry nodes are inserted at level 0, the leaves, and index nodes
+     * taken out of a node at level n for reinsertion are put back into some other node at level n.
+     */
+    private void insertRStar(Transaction tx, Node entry, int level, Set<Integer> reinsertedLevels) {
+        RelationshipType relationshipType = level == 0 ? RTreeRelationshipTypes.RTREE_REFERENCE : RTreeRelationshipTypes.RTREE_CHILD;
+        Envelope entryEnvelope = getChildNodeEnvelope(entry, relationshipType);
+
+        // the tree is balanced, so the node at the wanted level is found by counting back from the leaf
+        List<Node> path = new ArrayList<>();
+        Node node = getIndexRoot(tx);
+        path.add(node);
+        while (!nodeIsLeaf(node)) {
+            node = chooseSubTree(tx, node, entryEnvelope);
+            path.add(node);
+        }
+        Node parent = path.get(path.size() - 1 - level);
+
+        if (addChild(parent, relationshipType, entry)) {
+            adjustPathBoundingBox(parent);
+        }
+        if (countChildren(parent, relationshipType) > maxNodeReferences) {
+            overflowRStar(tx, parent, level, reinsertedLevels);
+        }
+    }
+
+    /**
+     * The first overflow on each level during the insertion of one geometry is handled by reinserting the entries
+     * furthest from the centre of the node, which gives entries placed early in the life of the tree a chance to move
+     * to a better node. Further overflows on that level, and overflows of the root, cause a split.
+     */
+    private void overflowRStar(Transaction tx, Node indexNode, int level, Set<Integer> reinsertedLevels) {
+        Node parent = getIndexNodeParent(indexNode);
+        if (parent != null && reinsertedLevels.add(level)) {
+            reinsertRStar(tx, indexNode, level, reinsertedLevels);
+            return;
+        }
+
+        Node newIndexNode = rstarSplit(tx, indexNode);
+        if (parent == null) {
+            createNewRoot(tx, indexNode, newIndexNode);
+        } else {
+            addChild(parent, RTreeRelationshipTypes.RTREE_CHILD, newIndexNode);
+            if (countChildren(parent, RTreeRelationshipTypes.RTREE_CHILD) > maxNodeReferences) {
+                overflowRStar(tx, parent, level + 1, reinsertedLevels);
+            } else {
+                adjustPathBoundingBox(parent);
+            }
+        }
+        monitor.addSplit(newIndexNode);
+    }
+
+    private void reinsertRStar(Transaction tx, Node indexNode, int level, Set<Integer> reinsertedLevels) {
+        RelationshipType relationshipType = level == 0 ? RTreeRelationshipTypes.RTREE_REFERENCE : RTreeRelationshipTypes.RTREE_CHILD;
+        double[] centre = getIndexNodeEnvelope(indexNode).centre();
+
+        List<Node> entries;
+        if (level == 0 && isPackedLeaf(indexNode)) {
+            entries = detachFurthestLeafEntries(tx, indexNode, centre);
+        } else {
+            List<Relationship> relationships = new ArrayList<>();
+            Map<Relationship, Double> distances = new HashMap<>();
+            for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, relationshipType)) {
+                double[] childCentre = getChildNodeEnvelope(relationship.getEndNode(), relationshipType).centre();
+                double dx = childCentre[0] - centre[0];
+                double dy = childCentre[1] - centre[1];
+                relationships.add(relationship);
+                distances.put(relationship, dx * dx + dy * dy);
+            }
+            relationships.sort(Comparator.comparingDouble(distances::get));
+
+            // detach the 30% furthest from the centre and shrink the bounding boxes on the path to the root
+            int reinsertCount = Math.max(1, (int) Math.round(relationships.size() * RSTAR_REINSERT_FACTOR));
+            entries = new ArrayList<>(reinsertCount);
+            for (Relationship relationship : relationships.subList(relationships.size() - reinsertCount, relationships.size())) {
+                Node entry = relationship.getEndNode();
+                entries.add(entry);
+                relationship.delete();
+                if (relationshipType == RTreeRelationshipTypes.RTREE_CHILD) {
+                    packedChildRemoved(indexNode, entry.getId());
+                }
+            }
+        }
+        indexNodeChanged(indexNode);
+        if (adjustParentBoundingBox(indexNode, relationshipType)) {
+            adjustPathBoundingBox(indexNode);
+        }
+
+        // reinsert starting with the entry closest to the centre
+        for (Node entry : entries) {
+            insertRStar(tx, entry, level, reinsertedLevels);
+        }
+    }
+
+    private List<Node> detachFurthestLeafEntries(Transaction tx, Node leaf, double[] centre) {
+        List<NodeWithEnvelope> leafEntries = getLeafEntries(tx, leaf);
+        Map<NodeWithEnvelope, Double> distances = new HashMap<>();
+        for (NodeWithEnvelope entry : leafEntries) {
+            double[] entryCentre = entry.envelope.centre();
+            double dx = entryCentre[0] - centre[0];
+            double dy = entryCentre[1] - centre[1];
+            distances.put(entry, dx * dx + dy * dy);
         }
-        return counter;
+        leafEntries.sort(Comparator.comparingDouble(distances::get));
+
+        int keepCount = leafEntries.size() - Math.max(1, (int) Math.round(leafEntries.size() * RSTAR_REINSERT_FACTOR));
+        List<Node> entries = new ArrayList<>();
+        for (NodeWithEnvelope entry : leafEntries.subList(keepCount, leafEntries.size())) {
+            entries.add(entry.node);
+        }
+        setLeafEntries(leaf, leafEntries.subList(0, keepCount));
+        return entries;
     }
 
     /**
-     * @return is enlargement needed?
+     * R*-tree split: the split axis is the one for which the candidate distributions have the smallest total margin,
+     * and along that axis the distribution with the least overlap between the two groups is taken, resolving ties by
+     * the total area of the groups.
      */
-    private boolean insertInLeaf(Node indexNode, Node geomRootNode) {
-        return addChild(indexNode, RTreeRelationshipTypes.RTREE_REFERENCE, geomRootNode);
-    }
+    private Node rstarSplit(Transaction tx, Node indexNode) {
+        RelationshipType relationshipType = nodeIsLeaf(indexNode) ? RTreeRelationshipTypes.RTREE_REFERENCE : RTreeRelationshipTypes.RTREE_CHILD;
+        List<NodeWithEnvelope> entries = extractChildNodesWithEnvelopes(tx, indexNode, relationshipType);
+        int minEntries = Math.max(1, (int) (entries.size() * RSTAR_MIN_FILL_FACTOR));
+
+        List<List<NodeWithEnvelope>> bestAxisSorts = null;
+        double minimumMarginSum = Double.POSITIVE_INFINITY;
+        for (int dimension = 0; dimension < 2; dimension++) {
+            final int d = dimension;
+            List<NodeWithEnvelope> byMin = new ArrayList<>(entries);
+            byMin.sort(Comparator.comparingDouble((NodeWithEnvelope e) -> e.envelope.getMin(d)).thenComparingDouble(e -> e.envelope.getMax(d)));
+            List<NodeWithEnvelope> byMax = new ArrayList<>(entries);
+            byMax.sort(Comparator.comparingDouble((NodeWithEnvelope e) -> e.envelope.getMax(d)).thenComparingDouble(e -> e.envelope.getMin(d)));
+
+            double marginSum = 0;
+            for (List<NodeWithEnvelope> sorted : Arrays.asList(byMin, byMax)) {
+                Envelope[][] groups = distributionEnvelopes(sorted);
+                for (int splitAt = minEntries; splitAt <= sorted.size() - minEntries; splitAt++) {
+                    marginSum += getMargin(groups[0][splitAt - 1]) + getMargin(groups[1][splitAt]);
+                }
+            }
+            if (marginSum < minimumMarginSum) {
+                minimumMarginSum = marginSum;
+                bestAxisSorts = Arrays.asList(byMin, byMax);
+            }
+        }
 
-    private void splitAndAdjustPathBoundingBox(Transaction tx, Node indexNode) {
-        // create a new node and distribute the entries
-        Node newIndexNode = splitMode.equals(GREENES_SPLIT) ? greenesSplit(tx, indexNode) : quadraticSplit(tx, indexNode);
-        Node parent = getIndexNodeParent(indexNode);
-//        System.out.println("spitIndex " + newIndexNode.getId());
-//        System.out.println("parent " + parent.getId());
-        if (parent == null) {
-            // if indexNode is the root
-            createNewRoot(tx, indexNode, newIndexNode);
-        } else {
-            expandParentBoundingBoxAfterNewChild(parent, (double[]) indexNode.getProperty(INDEX_PROP_BBOX));
+        List<NodeWithEnvelope> best = null;
+        int bestSplitAt = 0;
+        double minimumOverlap = Double.POSITIVE_INFINITY;
+        double minimumArea = Double.POSITIVE_INFINITY;
+        for (List<NodeWithEnvelope> sorted : bestAxisSorts) {
+            Envelope[][] groups = distributionEnvelopes(sorted);
+            for (int splitAt = minEntries; splitAt <= sorted.size() - minEntries; splitAt++) {
+                Envelope left = groups[0][splitAt - 1];
+                Envelope right = groups[1][splitAt];
+                double overlap = getOverlapArea(left, right);
+                double area = getArea(left) + getArea(right);
+                if (overlap < minimumOverlap || (overlap == minimumOverlap && area < minimumArea)) {
+                    best = sorted;
+                    bestSplitAt = splitAt;
+                    minimumOverlap = overlap;
+                    minimumArea = area;
+                }
+            }
+        }
 
-            addChild(parent, RTreeRelationshipTypes.RTREE_CHILD, newIndexNode);
+        return reconnectTwoChildGroups(tx, indexNode, best.subList(0, bestSplitAt), best.subList(bestSplitAt, best.size()), relationshipType);
+    }
 
-            if (countChildren(parent, RTreeRelationshipTypes.RTREE_CHILD) > maxNodeReferences) {
-                splitAndAdjustPathBoundingBox(tx, parent);
-            } else {
-                adjustPathBoundingBox(parent);
+    /**
+     * @return the envelopes of all prefixes, [0][i] covering entries 0..i, and of all suffixes, [1][i] covering
+     * entries i..n-1, of the sorted entries
+     */
+    private static Envelope[][] distributionEnvelopes(List<NodeWithEnvelope> sorted) {
+        int size = sorted.size();
+        Envelope[][] groups = new Envelope[2][size];
+        for (int i = 0; i < size; i++) {
+            groups[0][i] = new Envelope(sorted.get(i).envelope);
+            if (i > 0) {
+                groups[0][i].expandToInclude(groups[0][i - 1]);
             }
         }
-        monitor.addSplit(newIndexNode);
+        for (int i = size - 1; i >= 0; i--) {
+            groups[1][i] = new Envelope(sorted.get(i).envelope);
+            if (i < size - 1) {
+                groups[1][i].expandToInclude(groups[1][i + 1]);
+            }
+        }
+        return groups;
+    }
+
+    private static double getMargin(Envelope e) {
+        return e.getWidth(0) + e.getWidth(1);
     }
 
     private Node quadraticSplit(Transaction tx, Node indexNode) {
@@ -1079,21 +4239,32 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         }
     }
 
-    private List<NodeWithEnvelope> extractChildNodesWithEnvelopes(Node indexNode, RelationshipType relationshipType) {
+    private List<NodeWithEnvelope> extractChildNodesWithEnvelopes(Transaction tx, Node indexNode, RelationshipType relationshipType) {
+        if (relationshipType == RTreeRelationshipTypes.RTREE_REFERENCE && isPackedLeaf(indexNode)) {
+            List<NodeWithEnvelope> entries = getLeafEntries(tx, indexNode);
+            setLeafEntries(indexNode, new long[0], new double[0]);
+            return entries;
+        }
         List<NodeWithEnvelope> entries = new ArrayList<>();
 
+        Map<Long, Envelope> packedEnvelopes = relationshipType == RTreeRelationshipTypes.RTREE_CHILD ? getPackedChildEnvelopes(indexNode) : null;
         Iterable<Relationship> relationships = indexNode.getRelationships(Direction.OUTGOING, relationshipType);
         for (Relationship relationship : relationships) {
             Node node = relationship.getEndNode();
-            entries.add(new NodeWithEnvelope(node, getChildNodeEnvelope(node, relationshipType)));
+            Envelope envelope = packedEnvelopes == null ? null : packedEnvelopes.get(node.getId());
+            entries.add(new NodeWithEnvelope(node, envelope == null ? getChildNodeEnvelope(node, relationshipType) : envelope));
             relationship.delete();
         }
+        indexNodeChanged(indexNode);
+        if (packedEnvelopes != null) {
+            setPackedChildren(indexNode, new long[0], new double[0]);
+        }
         return entries;
     }
 
     private Node greenesSplit(Transaction tx, Node indexNode, RelationshipType relationshipType) {
         // Disconnect all current children from the index and return them with their envelopes
-        List<NodeWithEnvelope> entries = extractChildNodesWithEnvelopes(indexNode, relationshipType);
+        List<NodeWithEnvelope> entries = extractChildNodesWithEnvelopes(tx, indexNode, relationshipType);
 
         // We want to split by the longest dimension to avoid degrading into extremely thin envelopes
         int longestDimension = findLongestDimension(entries);
@@ -1123,7 +4294,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
     private Node quadraticSplit(Transaction tx, Node indexNode, RelationshipType relationshipType) {
         // Disconnect all current children from the index and return them with their envelopes
-        List<NodeWithEnvelope> entries = extractChildNodesWithEnvelopes(indexNode, relationshipType);
+        List<NodeWithEnvelope> entries = extractChildNodesWithEnvelopes(tx, indexNode, relationshipType);
 
         // pick two seed entries such that the dead space is maximal
         NodeWithEnvelope[] seeds = mostDistantByDeadSpace(entries);
@@ -1188,15 +4359,16 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
     private Node reconnectTwoChildGroups(Transaction tx, Node indexNode, List<NodeWithEnvelope> group1, List<NodeWithEnvelope> group2, RelationshipType relationshipType) {
         // reset bounding box and add new children
+        indexNodeChanged(indexNode);
         indexNode.removeProperty(INDEX_PROP_BBOX);
         for (NodeWithEnvelope entry : group1) {
-            addChild(indexNode, relationshipType, entry.node);
+            addChild(indexNode, relationshipType, entry.node, entry.envelope);
         }
 
         // create new node from split
         Node newIndexNode = tx.createNode();
         for (NodeWithEnvelope entry : group2) {
-            addChild(newIndexNode, relationshipType, entry.node);
+            addChild(newIndexNode, relationshipType, entry.node, entry.envelope);
         }
 
         return newIndexNode;
@@ -1208,21 +4380,41 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         addChild(newRoot, RTreeRelationshipTypes.RTREE_CHILD, newIndexNode);
 
         Node layerNode = getRootNode(tx);
-        layerNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_ROOT, Direction.OUTGOING).delete();
-        layerNode.createRelationshipTo(newRoot, RTreeRelationshipTypes.RTREE_ROOT);
+        RelationshipType rootType = writingShadowTree.get() == null ? RTreeRelationshipTypes.RTREE_ROOT : RTreeRelationshipTypes.RTREE_SHADOW_ROOT;
+        layerNode.getSingleRelationship(rootType, Direction.OUTGOING).delete();
+        layerNode.createRelationshipTo(newRoot, rootType);
     }
 
     private boolean addChild(Node parent, RelationshipType type, Node newChild) {
-        Envelope childEnvelope = getChildNodeEnvelope(newChild, type);
+        return addChild(parent, type, newChild, getChildNodeEnvelope(newChild, type));
+    }
+
+    private boolean addChild(Node parent, RelationshipType type, Node newChild, Envelope childEnvelope) {
+        if (type == RTreeRelationshipTypes.RTREE_REFERENCE && addsPackedEntries(parent)) {
+            return addLeafEntries(parent, Collections.singletonList(new NodeWithEnvelope(newChild, childEnvelope)));
+        }
         double[] childBBox = new double[]{
                 childEnvelope.getMinX(), childEnvelope.getMinY(),
                 childEnvelope.getMaxX(), childEnvelope.getMaxY()};
         parent.createRelationshipTo(newChild, type);
+        indexNodeChanged(parent);
+        logAttachedEntries(type, Collections.singletonList(newChild));
+        if (type == RTreeRelationshipTypes.RTREE_CHILD) {
+            packedChildAdded(parent, newChild.getId(), childBBox);
+        }
         return expandParentBoundingBoxAfterNewChild(parent, childBBox);
     }
 
     private void adjustPathBoundingBox(Node node) {
         Node parent = getIndexNodeParent(node);
+        if (parent != null && bboxMaintenance.equals(DEFERRED_BBOX_MAINTENANCE)) {
+            DirectoryChanges changes = currentChanges.get();
+            if (changes != null) {
+                // recomputed once for the whole transaction by flushBoundingBoxes
+                changes.deferredNodes.add(parent.getId());
+                return;
+            }
+        }
         if (parent != null) {
             if (adjustParentBoundingBox(parent, RTreeRelationshipTypes.RTREE_CHILD)) {
                 // entry has been modified: adjust the path for the parent
@@ -1243,13 +4435,26 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
 
         Envelope bbox = null;
 
-        for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, relationshipType)) {
-            Node childNode = relationship.getEndNode();
+        double[] packedBBoxes = relationshipType == RTreeRelationshipTypes.RTREE_CHILD
+                ? (double[]) indexNode.getProperty(INDEX_PROP_CHILD_BBOXES, null) : getLeafEntryBBoxes(indexNode);
+        if (packedBBoxes != null) {
+            for (int i = 0; i < packedBBoxes.length; i += 4) {
+                Envelope childEnvelope = new Envelope(packedBBoxes[i], packedBBoxes[i + 2], packedBBoxes[i + 1], packedBBoxes[i + 3]);
+                if (bbox == null) {
+                    bbox = childEnvelope;
+                } else {
+                    bbox.expandToInclude(childEnvelope);
+                }
+            }
+        } else {
+            for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING, relationshipType)) {
+                Node childNode = relationship.getEndNode();
 
-            if (bbox == null) {
-                bbox = new Envelope(getChildNodeEnvelope(childNode, relationshipType));
-            } else {
-                bbox.expandToInclude(getChildNodeEnvelope(childNode, relationshipType));
+                if (bbox == null) {
+                    bbox = new Envelope(getChildNodeEnvelope(childNode, relationshipType));
+                } else {
+                    bbox.expandToInclude(getChildNodeEnvelope(childNode, relationshipType));
+                }
             }
         }
 
@@ -1271,7 +4476,10 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
     }
 
     protected void setIndexNodeEnvelope(Node indexNode, Envelope bbox) {
-        indexNode.setProperty(INDEX_PROP_BBOX, new double[]{bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(), bbox.getMaxY()});
+        indexNodeChanged(indexNode);
+        double[] indexBBox = new double[]{bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(), bbox.getMaxY()};
+        indexNode.setProperty(INDEX_PROP_BBOX, indexBBox);
+        packedChildEnvelopeChanged(indexNode, indexBBox);
     }
 
     /**
@@ -1283,7 +4491,10 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
      */
     protected boolean expandParentBoundingBoxAfterNewChild(Node parent, double[] childBBox) {
         if (!parent.hasProperty(INDEX_PROP_BBOX)) {
-            parent.setProperty(INDEX_PROP_BBOX, new double[]{childBBox[0], childBBox[1], childBBox[2], childBBox[3]});
+            indexNodeChanged(parent);
+            double[] parentBBox = new double[]{childBBox[0], childBBox[1], childBBox[2], childBBox[3]};
+            parent.setProperty(INDEX_PROP_BBOX, parentBBox);
+            packedChildEnvelopeChanged(parent, parentBBox);
             return true;
         }
 
@@ -1295,7 +4506,9 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         valueChanged = setMax(parentBBox, childBBox, 3) || valueChanged;
 
         if (valueChanged) {
+            indexNodeChanged(parent);
             parent.setProperty(INDEX_PROP_BBOX, parentBBox);
+            packedChildEnvelopeChanged(parent, parentBBox);
         }
 
         return valueChanged;
@@ -1328,6 +4541,505 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         }
     }
 
+    /*
+     * Packed child arrays. With the packedChildren option every internal index node also keeps the ids and bounding
+     * boxes of its child index nodes in the childIds and childBBoxes properties, with their number in childCount, so
+     * that choosing a subtree, counting the children or recomputing the bounding box of a node is one property read
+     * instead of a walk over the child relationships and a property read for every child. Missing arrays are created
+     * from the relationships the first time a node is written to with the option on. Arrays that exist are always
+     * kept exact, whatever the option, so readers can use them whenever they are present.
+     */
+
+    /**
+     * @return the child index nodes and their envelopes, read from the packed arrays if the node has them
+     */
+    private List<NodeWithEnvelope> getIndexChildren(Transaction tx, Node indexNode) {
+        long[] ids = (long[]) indexNode.getProperty(INDEX_PROP_CHILD_IDS, null);
+        if (ids == null) {
+            List<NodeWithEnvelope> children = getIndexChildren(indexNode);
+            if (usePackedChildren && !children.isEmpty() && !isSharedWriter()) {
+                packChildren(indexNode, children);
+            }
+            return children;
+        }
+        double[] bboxes = (double[]) indexNode.getProperty(INDEX_PROP_CHILD_BBOXES);
+        List<NodeWithEnvelope> children = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            children.add(new NodeWithEnvelope(((InternalTransaction) tx).newNodeEntity(ids[i]), packedEnvelope(bboxes, i)));
+        }
+        return children;
+    }
+
+    private Map<Long, Envelope> getPackedChildEnvelopes(Node indexNode) {
+        long[] ids = (long[]) indexNode.getProperty(INDEX_PROP_CHILD_IDS, null);
+        if (ids == null) {
+            return null;
+        }
+        double[] bboxes = (double[]) indexNode.getProperty(INDEX_PROP_CHILD_BBOXES);
+        Map<Long, Envelope> envelopes = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            envelopes.put(ids[i], packedEnvelope(bboxes, i));
+        }
+        return envelopes;
+    }
+
+    private static Envelope packedEnvelope(double[] bboxes, int index) {
+        int offset = index * 4;
+        return new Envelope(bboxes[offset], bboxes[offset + 2], bboxes[offset + 1], bboxes[offset + 3]);
+    }
+
+    private void packChildren(Node indexNode, List<NodeWithEnvelope> children) {
+        long[] ids = new long[children.size()];
+        double[] bboxes = new double[children.size() * 4];
+        for (int i = 0; i < ids.length; i++) {
+            NodeWithEnvelope child = children.get(i);
+            ids[i] = child.node.getId();
+            if (child.envelope == null) {
+                // the child is being reconnected in a split, and its slot is written again when it gets a bounding box
+                Arrays.fill(bboxes, i * 4, i * 4 + 4, Double.NaN);
+            } else {
+                bboxes[i * 4] = child.envelope.getMinX();
+                bboxes[i * 4 + 1] = child.envelope.getMinY();
+                bboxes[i * 4 + 2] = child.envelope.getMaxX();
+                bboxes[i * 4 + 3] = child.envelope.getMaxY();
+            }
+        }
+        setPackedChildren(indexNode, ids, bboxes);
+    }
+
+    private void setPackedChildren(Node indexNode, long[] ids, double[] bboxes) {
+        if (ids.length == 0) {
+            // leaves and empty roots have no arrays
+            indexNode.removeProperty(INDEX_PROP_CHILD_IDS);
+            indexNode.removeProperty(INDEX_PROP_CHILD_BBOXES);
+            indexNode.removeProperty(INDEX_PROP_CHILD_COUNT);
+        } else {
+            indexNode.setProperty(INDEX_PROP_CHILD_IDS, ids);
+            indexNode.setProperty(INDEX_PROP_CHILD_BBOXES, bboxes);
+            indexNode.setProperty(INDEX_PROP_CHILD_COUNT, ids.length);
+        }
+    }
+
+    /**
+     * Call after connecting a child index node to its parent.
+     */
+    private void packedChildAdded(Node parent, long childId, double[] childBBox) {
+        long[] ids = (long[]) parent.getProperty(INDEX_PROP_CHILD_IDS, null);
+        if (ids == null) {
+            if (usePackedChildren) {
+                // the relationships already include the new child
+                packChildren(parent, getIndexChildren(parent));
+            }
+            return;
+        }
+        double[] bboxes = (double[]) parent.getProperty(INDEX_PROP_CHILD_BBOXES);
+        long[] newIds = Arrays.copyOf(ids, ids.length + 1);
+        double[] newBBoxes = Arrays.copyOf(bboxes, bboxes.length + 4);
+        newIds[ids.length] = childId;
+        System.arraycopy(childBBox, 0, newBBoxes, bboxes.length, 4);
+        setPackedChildren(parent, newIds, newBBoxes);
+    }
+
+    /**
+     * Call after connecting several child index nodes to their parent.
+     */
+    private void packedChildrenAdded(Node parent, List<NodeWithEnvelope> children) {
+        if (children.isEmpty()) {
+            return;
+        }
+        long[] ids = (long[]) parent.getProperty(INDEX_PROP_CHILD_IDS, null);
+        if (ids == null) {
+            if (usePackedChildren) {
+                packChildren(parent, getIndexChildren(parent));
+            }
+            return;
+        }
+        double[] bboxes = (double[]) parent.getProperty(INDEX_PROP_CHILD_BBOXES);
+        long[] newIds = Arrays.copyOf(ids, ids.length + children.size());
+        double[] newBBoxes = Arrays.copyOf(bboxes, bboxes.length + children.size() * 4);
+        for (int i = 0; i < children.size(); i++) {
+            Envelope envelope = children.get(i).envelope;
+            int offset = bboxes.length + i * 4;
+            newIds[ids.length + i] = children.get(i).node.getId();
+            newBBoxes[offset] = envelope.getMinX();
+            newBBoxes[offset + 1] = envelope.getMinY();
+            newBBoxes[offset + 2] = envelope.getMaxX();
+            newBBoxes[offset + 3] = envelope.getMaxY();
+        }
+        setPackedChildren(parent, newIds, newBBoxes);
+    }
+
+    /**
+     * Call after disconnecting a child index node from its parent.
+     */
+    private void packedChildRemoved(Node parent, long childId) {
+        long[] ids = (long[]) parent.getProperty(INDEX_PROP_CHILD_IDS, null);
+        if (ids == null) {
+            return;
+        }
+        int index = indexOf(ids, childId);
+        if (index < 0) {
+            return;
+        }
+        double[] bboxes = (double[]) parent.getProperty(INDEX_PROP_CHILD_BBOXES);
+        long[] newIds = new long[ids.length - 1];
+        double[] newBBoxes = new double[bboxes.length - 4];
+        System.arraycopy(ids, 0, newIds, 0, index);
+        System.arraycopy(ids, index + 1, newIds, index, newIds.length - index);
+        System.arraycopy(bboxes, 0, newBBoxes, 0, index * 4);
+        System.arraycopy(bboxes, index * 4 + 4, newBBoxes, index * 4, newBBoxes.length - index * 4);
+        setPackedChildren(parent, newIds, newBBoxes);
+    }
+
+    /**
+     * Call after changing the bounding box of an index node, to update its slot in the arrays of its parent.
+     */
+    private void packedChildEnvelopeChanged(Node indexNode, double[] bbox) {
+        Node parent = getIndexNodeParent(indexNode);
+        if (parent == null) {
+            return;
+        }
+        long[] ids = (long[]) parent.getProperty(INDEX_PROP_CHILD_IDS, null);
+        if (ids == null) {
+            return;
+        }
+        int index = indexOf(ids, indexNode.getId());
+        if (index >= 0) {
+            double[] bboxes = (double[]) parent.getProperty(INDEX_PROP_CHILD_BBOXES);
+            System.arraycopy(bbox, 0, bboxes, index * 4, 4);
+            parent.setProperty(INDEX_PROP_CHILD_BBOXES, bboxes);
+        }
+    }
+
+    private static int indexOf(long[] ids, long id) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Packed leaves. With the packed leaf storage a leaf keeps the ids of its geometry nodes in the entryIds property
+     * and their bounding boxes in entryBBoxes, instead of having an RTREE_REFERENCE relationship to each geometry node.
+     * The bounding boxes are doubles, or floats rounded outwards with the float leaf precision. Each geometry node in a
+     * packed leaf has the id of its leaf in the rtreeLeaf property. The storage of a leaf is decided when it gets its
+     * first entry, so a tree written with different settings can have both kinds of leaves.
+     *
+     * With covered attributes, a packed leaf also copies the values of those attributes from its geometry nodes, in
+     * one string array per attribute parallel to entryIds, so that searchCovered can answer from the leaves alone.
+     * The values are copied when a geometry is added to the leaf, and kept when entries move between leaves.
+     */
+
+    private static boolean isPackedLeaf(Node indexNode) {
+        return indexNode.hasProperty(INDEX_PROP_ENTRY_IDS);
+    }
+
+    private boolean addsPackedEntries(Node leaf) {
+        return isPackedLeaf(leaf) || (leafStorage.equals(PACKED_LEAF_STORAGE) && !leaf.hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE));
+    }
+
+    /**
+     * @return the ids of the geometry nodes in a packed leaf, or null if the node is not a packed leaf
+     */
+    private static long[] getLeafEntryIds(Node leaf) {
+        return (long[]) leaf.getProperty(INDEX_PROP_ENTRY_IDS, null);
+    }
+
+    /**
+     * @return the bounding boxes of the geometry nodes in a packed leaf, or null if the node is not a packed leaf
+     */
+    private static double[] getLeafEntryBBoxes(Node leaf) {
+        Object bboxes = leaf.getProperty(INDEX_PROP_ENTRY_BBOXES, null);
+        if (bboxes instanceof float[]) {
+            float[] floats = (float[]) bboxes;
+            double[] doubles = new double[floats.length];
+            for (int i = 0; i < floats.length; i++) {
+                doubles[i] = floats[i];
+            }
+            return doubles;
+        }
+        return (double[]) bboxes;
+    }
+
+    /**
+     * @return the geometry nodes in the leaf with their envelopes, which are read from the leaf if it is packed and
+     * decoded from the geometry nodes otherwise
+     */
+    private List<NodeWithEnvelope> getLeafEntries(Transaction tx, Node leaf) {
+        List<NodeWithEnvelope> entries = new ArrayList<>();
+        long[] ids = getLeafEntryIds(leaf);
+        if (ids == null) {
+            for (Relationship relationship : leaf.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+                Node geomNode = relationship.getEndNode();
+                entries.add(new NodeWithEnvelope(geomNode, getLeafNodeEnvelope(geomNode)));
+            }
+        } else {
+            double[] bboxes = getLeafEntryBBoxes(leaf);
+            for (int i = 0; i < ids.length; i++) {
+                entries.add(new NodeWithEnvelope(((InternalTransaction) tx).newNodeEntity(ids[i]), packedEnvelope(bboxes, i)));
+            }
+        }
+        return entries;
+    }
+
+    private void setLeafEntries(Node leaf, List<NodeWithEnvelope> entries) {
+        long[] ids = new long[entries.size()];
+        double[] bboxes = new double[entries.size() * 4];
+        for (int i = 0; i < ids.length; i++) {
+            NodeWithEnvelope entry = entries.get(i);
+            ids[i] = entry.node.getId();
+            bboxes[i * 4] = entry.envelope.getMinX();
+            bboxes[i * 4 + 1] = entry.envelope.getMinY();
+            bboxes[i * 4 + 2] = entry.envelope.getMaxX();
+            bboxes[i * 4 + 3] = entry.envelope.getMaxY();
+        }
+        setLeafEntries(leaf, ids, bboxes, entries);
+    }
+
+    private void setLeafEntries(Node leaf, long[] ids, double[] bboxes) {
+        setLeafEntries(leaf, ids, bboxes, Collections.emptyList());
+    }
+
+    /**
+     * @param entries entries that might not be in the leaf yet, whose covered attributes are read from their geometry
+     *                node unless the leaf already has them
+     */
+    private void setLeafEntries(Node leaf, long[] ids, double[] bboxes, List<NodeWithEnvelope> entries) {
+        indexNodeChanged(leaf);
+        if (!coveredAttributes.isEmpty()) {
+            setCoveredValues(leaf, ids, entries);
+        }
+        if (ids.length == 0) {
+            leaf.removeProperty(INDEX_PROP_ENTRY_IDS);
+            leaf.removeProperty(INDEX_PROP_ENTRY_BBOXES);
+        } else if (leafPrecision.equals(FLOAT_LEAF_PRECISION)) {
+            // round outwards, so that the stored box still contains the geometry
+            float[] floats = new float[bboxes.length];
+            for (int i = 0; i < bboxes.length; i++) {
+                float value = (float) bboxes[i];
+                if (i % 4 < 2 && value > bboxes[i]) {
+                    value = Math.nextDown(value);
+                } else if (i % 4 >= 2 && value < bboxes[i]) {
+                    value = Math.nextUp(value);
+                }
+                floats[i] = value;
+            }
+            leaf.setProperty(INDEX_PROP_ENTRY_IDS, ids);
+            leaf.setProperty(INDEX_PROP_ENTRY_BBOXES, floats);
+        } else {
+            leaf.setProperty(INDEX_PROP_ENTRY_IDS, ids);
+            leaf.setProperty(INDEX_PROP_ENTRY_BBOXES, bboxes);
+        }
+    }
+
+    /**
+     * Store the values of the covered attributes for the new entries of a packed leaf. This has to happen before the
+     * new entry ids are stored, since the values of the entries the leaf keeps are found by their old position.
+     */
+    private void setCoveredValues(Node leaf, long[] ids, List<NodeWithEnvelope> entries) {
+        if (ids.length == 0) {
+            for (String attribute : coveredAttributes) {
+                leaf.removeProperty(INDEX_PROP_COVERED_PREFIX + attribute);
+            }
+            return;
+        }
+        long[] oldIds = getLeafEntryIds(leaf);
+        Map<Long, Integer> oldPositions = new HashMap<>();
+        for (int i = 0; oldIds != null && i < oldIds.length; i++) {
+            oldPositions.put(oldIds[i], i);
+        }
+        Map<Long, Node> nodes = new HashMap<>();
+        for (NodeWithEnvelope entry : entries) {
+            nodes.put(entry.node.getId(), entry.node);
+        }
+        for (String attribute : coveredAttributes) {
+            String[] oldValues = getCoveredValues(leaf, attribute, oldIds == null ? 0 : oldIds.length);
+            String[] values = new String[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                Integer oldPosition = oldPositions.get(ids[i]);
+                Node geomNode = nodes.get(ids[i]);
+                if (oldValues != null && oldPosition != null) {
+                    values[i] = oldValues[oldPosition];
+                } else if (geomNode != null) {
+                    values[i] = CoveredEntry.encode(geomNode.getProperty(attribute, null));
+                } else {
+                    values[i] = CoveredEntry.UNKNOWN;
+                }
+            }
+            leaf.setProperty(INDEX_PROP_COVERED_PREFIX + attribute, values);
+        }
+    }
+
+    /**
+     * @return the stored values of a covered attribute for the entries of a packed leaf, or null if the leaf has no
+     * values for it, for example because it was written before the attribute was covered
+     */
+    private static String[] getCoveredValues(Node leaf, String attribute, int entryCount) {
+        Object values = leaf.getProperty(INDEX_PROP_COVERED_PREFIX + attribute, null);
+        if (values instanceof String[] && ((String[]) values).length == entryCount) {
+            return (String[]) values;
+        }
+        return null;
+    }
+
+    /**
+     * Add entries to a leaf that stores them packed, and expand the bounding box of the leaf.
+     *
+     * @return is bbox changed?
+     */
+    private boolean addLeafEntries(Node leaf, List<NodeWithEnvelope> newEntries) {
+        long[] ids = getLeafEntryIds(leaf);
+        double[] bboxes = getLeafEntryBBoxes(leaf);
+        if (ids == null) {
+            ids = new long[0];
+            bboxes = new double[0];
+        }
+        long[] newIds = Arrays.copyOf(ids, ids.length + newEntries.size());
+        double[] newBBoxes = Arrays.copyOf(bboxes, bboxes.length + newEntries.size() * 4);
+        Envelope added = null;
+        for (int i = 0; i < newEntries.size(); i++) {
+            NodeWithEnvelope entry = newEntries.get(i);
+            int offset = bboxes.length + i * 4;
+            newIds[ids.length + i] = entry.node.getId();
+            newBBoxes[offset] = entry.envelope.getMinX();
+            newBBoxes[offset + 1] = entry.envelope.getMinY();
+            newBBoxes[offset + 2] = entry.envelope.getMaxX();
+            newBBoxes[offset + 3] = entry.envelope.getMaxY();
+            if (writingShadowTree.get() == null) {
+                // the geometry nodes point at the leaves of the tree in use until a rebuilt tree is swapped in
+                entry.node.setProperty(INDEX_PROP_LEAF, leaf.getId());
+            }
+            if (added == null) {
+                added = new Envelope(entry.envelope);
+            } else {
+                added.expandToInclude(entry.envelope);
+            }
+        }
+        setLeafEntries(leaf, newIds, newBBoxes, newEntries);
+        logAttachedEntries(RTreeRelationshipTypes.RTREE_REFERENCE, newEntries.stream().map(entry -> entry.node).collect(Collectors.toList()));
+        return added != null && expandParentBoundingBoxAfterNewChild(leaf, new double[]{added.getMinX(), added.getMinY(), added.getMaxX(), added.getMaxY()});
+    }
+
+    private void removeLeafEntry(Node leaf, Node geomNode) {
+        long[] ids = getLeafEntryIds(leaf);
+        int index = indexOf(ids, geomNode.getId());
+        if (index >= 0) {
+            double[] bboxes = getLeafEntryBBoxes(leaf);
+            long[] newIds = new long[ids.length - 1];
+            double[] newBBoxes = new double[bboxes.length - 4];
+            System.arraycopy(ids, 0, newIds, 0, index);
+            System.arraycopy(ids, index + 1, newIds, index, newIds.length - index);
+            System.arraycopy(bboxes, 0, newBBoxes, 0, index * 4);
+            System.arraycopy(bboxes, index * 4 + 4, newBBoxes, index * 4, newBBoxes.length - index * 4);
+            setLeafEntries(leaf, newIds, newBBoxes);
+        }
+        geomNode.removeProperty(INDEX_PROP_LEAF);
+    }
+
+    /**
+     * @return the packed leaf the geometry node is in, or null. The reverse lookup is only trusted if the leaf still
+     * lists the geometry node, since a deleted tree leaves the property behind on its geometry nodes.
+     */
+    private Node findPackedLeaf(Transaction tx, Node geomNode) {
+        Object leafId = geomNode.getProperty(INDEX_PROP_LEAF, null);
+        if (leafId instanceof Long) {
+            try {
+                Node leaf = tx.getNodeById((Long) leafId);
+                long[] ids = getLeafEntryIds(leaf);
+                if (ids != null && indexOf(ids, geomNode.getId()) >= 0) {
+                    if (hasShadowTree(tx) && !isIndexNodeInThisIndex(tx, leaf)) {
+                        // a leaf of the old tree of a rebuild, which is still pointed at until that tree is deleted
+                        Node current = searchLeafContaining(getIndexRoot(tx), geomNode.getId(), getLeafNodeEnvelope(geomNode));
+                        return current != null && isPackedLeaf(current) ? current : null;
+                    }
+                    return leaf;
+                }
+            } catch (NotFoundException e) {
+                // the leaf was deleted with its tree
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the RTREE_REFERENCE to the geometry node from a leaf of this tree, or null. Until the old tree of an
+     * online rebuild is deleted, the geometry node can also be referenced from a leaf of the other tree.
+     */
+    private Relationship findReference(Transaction tx, Node geomNode) {
+        List<Relationship> references = new ArrayList<>();
+        for (Relationship reference : geomNode.getRelationships(Direction.INCOMING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+            references.add(reference);
+        }
+        if (references.size() > 1) {
+            for (Relationship reference : references) {
+                if (isIndexNodeInThisIndex(tx, reference.getStartNode())) {
+                    return reference;
+                }
+            }
+        }
+        return references.isEmpty() ? null : references.get(0);
+    }
+
+    /**
+     * Search the tree below the index node for the leaf holding the geometry node, only descending into the index
+     * nodes whose bounding box intersects the envelope of the geometry.
+     */
+    private Node searchLeafContaining(Node indexNode, long geomNodeId, Envelope envelope) {
+        if (nodeIsLeaf(indexNode)) {
+            return leafContains(indexNode, geomNodeId) ? indexNode : null;
+        }
+        for (NodeWithEnvelope child : getIndexChildren(indexNode)) {
+            if (child.envelope != null && child.envelope.intersects(envelope)) {
+                Node leaf = searchLeafContaining(child.node, geomNodeId, envelope);
+                if (leaf != null) {
+                    return leaf;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean leafContains(Node leaf, long geomNodeId) {
+        long[] ids = getLeafEntryIds(leaf);
+        if (ids != null) {
+            return indexOf(ids, geomNodeId) >= 0;
+        }
+        boolean found = false;
+        for (Relationship reference : leaf.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+            found |= reference.getEndNodeId() == geomNodeId;
+        }
+        return found;
+    }
+
+    /**
+     * @return true while a rebuild is building a new tree, or the old tree of a rebuild is not deleted yet
+     */
+    private boolean hasShadowTree(Transaction tx) {
+        return getRootNode(tx).hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_SHADOW_ROOT);
+    }
+
+    /**
+     * Connect newly grouped entries to a new index node, or to the root, when bulk loading.
+     */
+    private void connectEntries(Node parent, List<NodeWithEnvelope> entries, RelationshipType relationshipType) {
+        if (relationshipType == RTreeRelationshipTypes.RTREE_REFERENCE && addsPackedEntries(parent)) {
+            addLeafEntries(parent, entries);
+            return;
+        }
+        List<Node> children = new ArrayList<>(entries.size());
+        for (NodeWithEnvelope entry : entries) {
+            parent.createRelationshipTo(entry.node, relationshipType);
+            children.add(entry.node);
+        }
+        indexNodeChanged(parent);
+        logAttachedEntries(relationshipType, children);
+        if (relationshipType == RTreeRelationshipTypes.RTREE_CHILD) {
+            packedChildrenAdded(parent, entries);
+        }
+    }
+
     private double getArea(Envelope e) {
         return e.getArea();
     }
@@ -1336,6 +5048,12 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         for (Relationship relationship : rootNode.getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
             deleteRecursivelySubtree(relationship.getEndNode(), relationship);
         }
+        if (rootNode.hasProperty(INDEX_PROP_CHILD_IDS)) {
+            setPackedChildren(rootNode, new long[0], new double[0]);
+        }
+        if (isPackedLeaf(rootNode)) {
+            setLeafEntries(rootNode, new long[0], new double[0]);
+        }
     }
 
     private void deleteRecursivelySubtree(Node node, Relationship incoming) {
@@ -1352,12 +5070,40 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
         node.delete();
     }
 
-    protected boolean isGeometryNodeIndexed(Node geomNode) {
-        return geomNode.hasRelationship(Direction.INCOMING, RTreeRelationshipTypes.RTREE_REFERENCE);
+    protected boolean isGeometryNodeIndexed(Transaction tx, Node geomNode) {
+        return findPackedLeaf(tx, geomNode) != null || geomNode.hasRelationship(Direction.INCOMING, RTreeRelationshipTypes.RTREE_REFERENCE);
+    }
+
+    protected Node findLeafContainingGeometryNode(Transaction tx, Node geomNode) {
+        Node leaf = findPackedLeaf(tx, geomNode);
+        if (leaf != null) {
+            return leaf;
+        }
+        return findReference(tx, geomNode).getStartNode();
     }
 
-    protected Node findLeafContainingGeometryNode(Node geomNode) {
-        return geomNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.INCOMING).getStartNode();
+    /**
+     * Like isIndexNodeInThisIndex, but remembering the answer for every index node on the way up, so that checking
+     * many leaves only walks the shared part of their paths once.
+     */
+    private boolean isIndexNodeInThisIndex(Node indexNode, long rootId, Map<Long, Boolean> inThisIndex) {
+        List<Long> path = new ArrayList<>();
+        Node node = indexNode;
+        Boolean result = inThisIndex.get(node.getId());
+        while (result == null) {
+            path.add(node.getId());
+            Node parent = getIndexNodeParent(node);
+            if (parent == null) {
+                result = node.getId() == rootId;
+            } else {
+                node = parent;
+                result = inThisIndex.get(node.getId());
+            }
+        }
+        for (long id : path) {
+            inThisIndex.put(id, result);
+        }
+        return result;
     }
 
     protected boolean isIndexNodeInThisIndex(Transaction tx, Node indexNode) {
@@ -1412,6 +5158,7 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
      */
     private static class IndexNodeToGeometryNodeIterable implements Iterable<Node> {
 
+        private final Transaction tx;
         private final Iterator<Node> allIndexNodeIterator;
 
         private class GeometryNodeIterator implements Iterator<Node> {
@@ -1437,7 +5184,13 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
                         .evaluator(Evaluators.toDepth(1));
                 while ((geometryNodeIterator == null || !geometryNodeIterator.hasNext()) &&
                         allIndexNodeIterator.hasNext()) {
-                    geometryNodeIterator = td.traverse(allIndexNodeIterator.next()).nodes().iterator();
+                    Node indexNode = allIndexNodeIterator.next();
+                    long[] entryIds = getLeafEntryIds(indexNode);
+                    if (entryIds != null) {
+                        geometryNodeIterator = Arrays.stream(entryIds).mapToObj(tx::getNodeById).iterator();
+                    } else {
+                        geometryNodeIterator = td.traverse(indexNode).nodes().iterator();
+                    }
                 }
             }
 
@@ -1445,7 +5198,8 @@ public class RTreeIndex implements SpatialIndexWriter, Configurable {
             }
         }
 
-        public IndexNodeToGeometryNodeIterable(Iterable<Node> allIndexNodes) {
+        public IndexNodeToGeometryNodeIterable(Transaction tx, Iterable<Node> allIndexNodes) {
+            this.tx = tx;
             this.allIndexNodeIterator = allIndexNodes.iterator();
         }
 
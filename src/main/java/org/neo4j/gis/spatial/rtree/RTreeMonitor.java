@@ -33,6 +33,8 @@ public class RTreeMonitor implements TreeMonitor {
     private int nbrSplit;
     private int height;
     private int nbrRebuilt;
+    private TreeQuality quality;
+    private volatile RuntimeException reorganizeFailure;
     private HashMap<String, Integer> cases = new HashMap<>();
     private ArrayList<ArrayList<Node>> matchedTreeNodes = new ArrayList<>();
 
@@ -101,6 +103,8 @@ public class RTreeMonitor implements TreeMonitor {
         height = 0;
         nbrRebuilt = 0;
         nbrSplit = 0;
+        quality = null;
+        reorganizeFailure = null;
         matchedTreeNodes.clear();
     }
 
@@ -121,4 +125,27 @@ public class RTreeMonitor implements TreeMonitor {
         ensureMatchedTreeNodeLevel(level);
         return matchedTreeNodes.get(level).stream().collect(Collectors.toList());
     }
+
+    @Override
+    public void setQuality(TreeQuality quality) {
+        this.quality = quality;
+    }
+
+    @Override
+    public TreeQuality getQuality() {
+        return quality;
+    }
+
+    @Override
+    public void reorganizeFailed(RuntimeException e) {
+        reorganizeFailure = e;
+    }
+
+    /**
+     * @return the failure of the last background reorganization that failed, if any
+     */
+    @Override
+    public RuntimeException getReorganizeFailure() {
+        return reorganizeFailure;
+    }
 }
@@ -27,6 +27,10 @@ public enum RTreeRelationshipTypes implements RelationshipType {
 	RTREE_METADATA, 
 	RTREE_ROOT, 
 	RTREE_CHILD, 
-	RTREE_REFERENCE
+	RTREE_REFERENCE,
+	RTREE_COUNT_STRIPE,
+	RTREE_INGEST_BUFFER,
+	RTREE_SHADOW_ROOT,
+	RTREE_CHANGE_LOG
 	
 }
\ No newline at end of file
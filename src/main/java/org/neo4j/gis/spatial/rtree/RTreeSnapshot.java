@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2010-2020 "Neo4j,"
+ * Neo4j Sweden AB [http://neo4j.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Read-only copy of a whole RTree in a file: the index nodes with their bounding boxes and children, and the ids and
+ * bounding boxes of the geometry nodes in the leaves. The file is memory-mapped, so opening it costs nothing, and a
+ * search reads only the pages of the file it needs instead of the index nodes in the store. This lets a restarted
+ * database, or a new read replica, serve searches before the tree has been read into the page cache.
+ * <p>
+ * The file starts with a header of the format version, the structure version of the tree it was written from, the id
+ * of the root and the number of index nodes and of leaf entries, followed by arrays of fixed size values. The index
+ * nodes are numbered breadth first from the root like in the {@link RTreeDirectoryMirror}, and the entries of each
+ * leaf are stored consecutively. A snapshot is only valid for the structure version it was written at, which changes
+ * with every write to the tree, and geometries in the ingest buffer are never part of it.
+ * <p>
+ * Since the file is mapped as one buffer, a snapshot can hold at most about 50 million geometries.
+ */
+class RTreeSnapshot implements RTreeDirectory {
+
+    private static final int MAGIC = 0x52545350;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private final Path file;
+    private final long version;
+    private final long rootId;
+    private final int size;
+    private final int entryCount;
+    private final MappedByteBuffer buffer;
+
+    // offsets of the arrays in the file
+    private final int nodeIdsOffset;
+    private final int bboxesOffset;
+    private final int entryIdsOffset;
+    private final int entryBBoxesOffset;
+    private final int firstChildOffset;
+    private final int childCountOffset;
+    private final int firstEntryOffset;
+    private final int leafEntryCountOffset;
+
+    private RTreeSnapshot(Path file, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an RTree snapshot: " + file);
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported RTree snapshot format version " + buffer.getInt(4) + ": " + file);
+        }
+        this.version = buffer.getLong(8);
+        this.rootId = buffer.getLong(16);
+        this.size = buffer.getInt(24);
+        this.entryCount = buffer.getInt(28);
+        this.nodeIdsOffset = HEADER_SIZE;
+        this.bboxesOffset = nodeIdsOffset + size * 8;
+        this.entryIdsOffset = bboxesOffset + size * 32;
+        this.entryBBoxesOffset = entryIdsOffset + entryCount * 8;
+        this.firstChildOffset = entryBBoxesOffset + entryCount * 32;
+        this.childCountOffset = firstChildOffset + size * 4;
+        this.firstEntryOffset = childCountOffset + size * 4;
+        this.leafEntryCountOffset = firstEntryOffset + size * 4;
+        if (buffer.capacity() != fileSize(size, entryCount)) {
+            throw new IOException("Truncated RTree snapshot: " + file);
+        }
+    }
+
+    private static long fileSize(long size, long entryCount) {
+        return HEADER_SIZE + size * (8 + 32 + 4 * 4) + entryCount * (8 + 32);
+    }
+
+    /**
+     * Map a snapshot file written by {@link #write}.
+     */
+    static RTreeSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("RTree snapshot too large to map: " + file);
+            }
+            // the mapping stays valid after the channel is closed
+            return new RTreeSnapshot(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Write a snapshot through a temporary file, which then replaces the file in one move, so that a reader never
+     * maps a partially written snapshot.
+     */
+    static void write(Path file, Writer writer) throws IOException {
+        if (fileSize(writer.size, writer.entryCount) > Integer.MAX_VALUE) {
+            throw new IOException("RTree too large for a snapshot: " + writer.entryCount + " geometries");
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temporary = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(writer.version);
+                out.writeLong(writer.rootId);
+                out.writeInt(writer.size);
+                out.writeInt(writer.entryCount);
+                for (int i = 0; i < writer.size; i++) {
+                    out.writeLong(writer.nodeIds[i]);
+                }
+                for (int i = 0; i < writer.size * 4; i++) {
+                    out.writeDouble(writer.bboxes[i]);
+                }
+                for (int i = 0; i < writer.entryCount; i++) {
+                    out.writeLong(writer.entryIds[i]);
+                }
+                for (int i = 0; i < writer.entryCount * 4; i++) {
+                    out.writeDouble(writer.entryBBoxes[i]);
+                }
+                for (int[] values : new int[][]{writer.firstChild, writer.childCount, writer.firstEntry, writer.leafEntryCount}) {
+                    for (int i = 0; i < writer.size; i++) {
+                        out.writeInt(values[i]);
+                    }
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    @Override
+    public long version() {
+        return version;
+    }
+
+    long rootId() {
+        return rootId;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    int entryCount() {
+        return entryCount;
+    }
+
+    @Override
+    public long nodeId(int node) {
+        return buffer.getLong(nodeIdsOffset + node * 8);
+    }
+
+    @Override
+    public boolean hasBBox(int node) {
+        // index nodes without a bounding box are written with NaN bounds
+        return !Double.isNaN(buffer.getDouble(bboxesOffset + node * 32));
+    }
+
+    @Override
+    public void readEnvelope(int node, Envelope envelope) {
+        readBounds(bboxesOffset + node * 32, envelope);
+    }
+
+    @Override
+    public int firstChild(int node) {
+        return buffer.getInt(firstChildOffset + node * 4);
+    }
+
+    @Override
+    public int childCount(int node) {
+        return buffer.getInt(childCountOffset + node * 4);
+    }
+
+    int firstEntry(int node) {
+        return buffer.getInt(firstEntryOffset + node * 4);
+    }
+
+    int leafEntryCount(int node) {
+        return buffer.getInt(leafEntryCountOffset + node * 4);
+    }
+
+    long entryId(int entry) {
+        return buffer.getLong(entryIdsOffset + entry * 8);
+    }
+
+    void readEntryEnvelope(int entry, Envelope envelope) {
+        readBounds(entryBBoxesOffset + entry * 32, envelope);
+    }
+
+    private void readBounds(int offset, Envelope envelope) {
+        envelope.setBounds(buffer.getDouble(offset), buffer.getDouble(offset + 16), buffer.getDouble(offset + 8), buffer.getDouble(offset + 24));
+    }
+
+    /**
+     * Read the whole file into memory, which is what warming up the index means for a snapshot.
+     */
+    void load() {
+        buffer.load();
+    }
+
+    @Override
+    public String toString() {
+        return "RTreeSnapshot[" + file + ", version=" + version + ", indexNodes=" + size + ", geometries=" + entryCount + "]";
+    }
+
+    /**
+     * Collects the index nodes of a tree, breadth first from the root, and the entries of its leaves for
+     * {@link #write}.
+     */
+    static class Writer {
+        private final long version;
+        private final long rootId;
+
+        private int size = 0;
+        private long[] nodeIds = new long[64];
+        private double[] bboxes = new double[256];
+        private int[] firstChild = new int[64];
+        private int[] childCount = new int[64];
+        private int[] firstEntry = new int[64];
+        private int[] leafEntryCount = new int[64];
+
+        private int entryCount = 0;
+        private long[] entryIds = new long[256];
+        private double[] entryBBoxes = new double[1024];
+
+        Writer(long version, long rootId) {
+            this.version = version;
+            this.rootId = rootId;
+        }
+
+        /**
+         * Add an index node, after its parent and all index nodes before it in breadth first order.
+         *
+         * @return the number of the index node
+         */
+        int addIndexNode(long nodeId, Envelope bbox) {
+            if (size == nodeIds.length) {
+                int capacity = size * 2;
+                nodeIds = Arrays.copyOf(nodeIds, capacity);
+                bboxes = Arrays.copyOf(bboxes, capacity * 4);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                childCount = Arrays.copyOf(childCount, capacity);
+                firstEntry = Arrays.copyOf(firstEntry, capacity);
+                leafEntryCount = Arrays.copyOf(leafEntryCount, capacity);
+            }
+            nodeIds[size] = nodeId;
+            setBounds(bboxes, size, bbox);
+            return size++;
+        }
+
+        void setChildren(int node, int first, int count) {
+            firstChild[node] = first;
+            childCount[node] = count;
+        }
+
+        /**
+         * Add an entry to a leaf. The entries of one leaf have to be added together.
+         */
+        void addEntry(int leaf, long geomNodeId, Envelope bbox) {
+            if (leafEntryCount[leaf] == 0) {
+                firstEntry[leaf] = entryCount;
+            }
+            leafEntryCount[leaf]++;
+            if (entryCount == entryIds.length) {
+                entryIds = Arrays.copyOf(entryIds, entryCount * 2);
+                entryBBoxes = Arrays.copyOf(entryBBoxes, entryCount * 8);
+            }
+            entryIds[entryCount] = geomNodeId;
+            setBounds(entryBBoxes, entryCount, bbox);
+            entryCount++;
+        }
+
+        private static void setBounds(double[] bboxes, int index, Envelope bbox) {
+            int offset = index * 4;
+            if (bbox == null) {
+                Arrays.fill(bboxes, offset, offset + 4, Double.NaN);
+            } else {
+                bboxes[offset] = bbox.getMinX();
+                bboxes[offset + 1] = bbox.getMinY();
+                bboxes[offset + 2] = bbox.getMaxX();
+                bboxes[offset + 3] = bbox.getMaxY();
+            }
+        }
+    }
+}
@@ -54,4 +54,12 @@ public interface TreeMonitor
     void matchedTreeNode(int level, Node node);
 
     List<Node> getMatchedTreeNodes(int level);
+
+    void setQuality(TreeQuality quality);
+
+    TreeQuality getQuality();
+
+    void reorganizeFailed(RuntimeException e);
+
+    RuntimeException getReorganizeFailure();
 }
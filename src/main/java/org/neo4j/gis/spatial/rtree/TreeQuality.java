@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2010-2020 "Neo4j,"
+ * Neo4j Sweden AB [http://neo4j.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures of how well an RTree, or a subtree of it, is shaped for searching, per level of index nodes with level 0
+ * at the top. Trees built by the bulk loaders start out with full nodes and little overlap, while many single inserts
+ * and removals leave nodes half empty and their bounding boxes overlapping, which makes searches visit more nodes.
+ * <ul>
+ * <li>The fill factor is the number of entries of the nodes of a level relative to their capacity, the
+ * maxNodeReferences of the index.</li>
+ * <li>The overlap area is the sum of the areas where the bounding boxes of two entries of the same node intersect.</li>
+ * <li>The dead space is the area of the bounding box of a node that is not covered by the bounding boxes of its
+ * entries. It is estimated from the sum of the entry areas, so where entries overlap it is underestimated.</li>
+ * </ul>
+ * Overlap and dead space are also given as ratios to the total area of the nodes, so that they compare between trees
+ * of different extent.
+ */
+public class TreeQuality {
+
+    private final int capacity;
+    private final List<Level> levels = new ArrayList<>();
+
+    TreeQuality(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * The measures of all index nodes at the same distance from the top of the tree.
+     */
+    public static class Level {
+        private final int level;
+        private final int capacity;
+        private int nodeCount = 0;
+        private long entryCount = 0;
+        private double area = 0;
+        private double overlapArea = 0;
+        private double deadSpace = 0;
+
+        private Level(int level, int capacity) {
+            this.level = level;
+            this.capacity = capacity;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public int getNodeCount() {
+            return nodeCount;
+        }
+
+        public long getEntryCount() {
+            return entryCount;
+        }
+
+        public double getFillFactor() {
+            return nodeCount == 0 ? 0 : (double) entryCount / ((long) nodeCount * capacity);
+        }
+
+        public double getArea() {
+            return area;
+        }
+
+        public double getOverlapArea() {
+            return overlapArea;
+        }
+
+        public double getDeadSpace() {
+            return deadSpace;
+        }
+
+        @Override
+        public String toString() {
+            return "Level[" + level + ", nodes=" + nodeCount + ", entries=" + entryCount + ", fill=" + getFillFactor()
+                    + ", overlap=" + overlapArea + ", deadSpace=" + deadSpace + "]";
+        }
+    }
+
+    /**
+     * Add one index node with the bounding boxes of its children or geometries.
+     */
+    void addNode(int level, Envelope bbox, List<Envelope> entries) {
+        while (levels.size() <= level) {
+            levels.add(new Level(levels.size(), capacity));
+        }
+        Level measures = levels.get(level);
+        measures.nodeCount++;
+        measures.entryCount += entries.size();
+        if (bbox == null) {
+            // the root of an empty tree
+            return;
+        }
+        double area = bbox.getArea();
+        double entryArea = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            Envelope entry = entries.get(i);
+            entryArea += entry.getArea();
+            for (int j = i + 1; j < entries.size(); j++) {
+                measures.overlapArea += intersectionArea(entry, entries.get(j));
+            }
+        }
+        measures.area += area;
+        measures.deadSpace += Math.max(0, area - entryArea);
+    }
+
+    private static double intersectionArea(Envelope a, Envelope b) {
+        double width = Math.min(a.getMaxX(), b.getMaxX()) - Math.max(a.getMinX(), b.getMinX());
+        double height = Math.min(a.getMaxY(), b.getMaxY()) - Math.max(a.getMinY(), b.getMinY());
+        return width > 0 && height > 0 ? width * height : 0;
+    }
+
+    /**
+     * @return the number of levels of index nodes, which is 1 for a tree that is a single leaf
+     */
+    public int getHeight() {
+        return levels.size();
+    }
+
+    public List<Level> getLevels() {
+        return Collections.unmodifiableList(levels);
+    }
+
+    public int getNodeCount() {
+        int count = 0;
+        for (Level level : levels) {
+            count += level.nodeCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of entries of all index nodes relative to their capacity
+     */
+    public double getFillFactor() {
+        long entries = 0;
+        long nodeCapacity = 0;
+        for (Level level : levels) {
+            entries += level.entryCount;
+            nodeCapacity += (long) level.nodeCount * capacity;
+        }
+        return nodeCapacity == 0 ? 0 : (double) entries / nodeCapacity;
+    }
+
+    public double getOverlapArea() {
+        double overlap = 0;
+        for (Level level : levels) {
+            overlap += level.overlapArea;
+        }
+        return overlap;
+    }
+
+    /**
+     * @return the overlap area of all levels relative to the total area of their index nodes
+     */
+    public double getOverlapRatio() {
+        double overlap = 0;
+        double area = 0;
+        for (Level level : levels) {
+            overlap += level.overlapArea;
+            area += level.area;
+        }
+        return area > 0 ? overlap / area : 0;
+    }
+
+    /**
+     * @return the dead space of the levels above the leaves relative to the total area of their index nodes. The
+     * leaves are left out, since the whole area of a leaf holding points is dead space.
+     */
+    public double getDeadSpaceRatio() {
+        double deadSpace = 0;
+        double area = 0;
+        for (int i = 0; i < levels.size() - 1; i++) {
+            deadSpace += levels.get(i).deadSpace;
+            area += levels.get(i).area;
+        }
+        return area > 0 ? deadSpace / area : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "TreeQuality[height=" + getHeight() + ", nodes=" + getNodeCount() + ", fill=" + getFillFactor()
+                + ", overlapRatio=" + getOverlapRatio() + ", deadSpaceRatio=" + getDeadSpaceRatio() + "]";
+    }
+}
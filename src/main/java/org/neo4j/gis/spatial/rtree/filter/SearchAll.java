@@ -30,6 +30,11 @@ public class SearchAll implements SearchFilter {
         return true;
     }
 
+    @Override
+    public boolean matchesAll(Envelope indexNodeEnvelope) {
+        return true;
+    }
+
     @Override
     public boolean geometryMatches(Transaction tx, Node geomNode) {
         return true;
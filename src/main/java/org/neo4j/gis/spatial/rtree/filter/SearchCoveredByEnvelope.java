@@ -32,6 +32,11 @@ public class SearchCoveredByEnvelope extends AbstractSearchEnvelopeIntersection
 		super(decoder, referenceEnvelope);
 	}
 
+	@Override
+	public boolean matchesAll(Envelope indexNodeEnvelope) {
+		return referenceEnvelope.contains(indexNodeEnvelope);
+	}
+
 	@Override
 	protected boolean onEnvelopeIntersection(Node geomNode, Envelope geomEnvelope) {
 		// check if every point of this Envelope is a point of the Reference Envelope
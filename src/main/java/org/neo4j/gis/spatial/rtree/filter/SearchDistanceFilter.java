@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2010-2020 "Neo4j,"
+ * Neo4j Sweden AB [http://neo4j.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree.filter;
+
+import org.neo4j.gis.spatial.rtree.Envelope;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * A SearchFilter that also supplies distance bounds, allowing the index to be searched in order of increasing
+ * distance. The distance to any geometry within an envelope must never be smaller than the minDistance of that
+ * envelope, otherwise results will not be returned in distance order.
+ */
+public interface SearchDistanceFilter extends SearchFilter {
+
+	/**
+	 * @return a lower bound for the distance to anything contained in the envelope (MINDIST)
+	 */
+	double minDistance(Envelope envelope);
+
+	/**
+	 * @return the exact distance to the geometry of the specified node
+	 */
+	double distance(Transaction tx, Node geomNode);
+
+	/**
+	 * @return the upper distance bound, geometries further away than this are not returned
+	 */
+	default double maxDistance() {
+		return Double.POSITIVE_INFINITY;
+	}
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2010-2020 "Neo4j,"
+ * Neo4j Sweden AB [http://neo4j.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.rtree.filter;
+
+import org.neo4j.gis.spatial.rtree.Envelope;
+import org.neo4j.gis.spatial.rtree.EnvelopeDecoder;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Orders geometries by the distance between their envelope and the reference envelope. For point layers this is
+ * the exact distance, for other geometries it is the distance to the bounding box.
+ */
+public class SearchEnvelopeDistance implements SearchDistanceFilter {
+
+	private final EnvelopeDecoder decoder;
+	private final Envelope referenceEnvelope;
+	private final double maxDistance;
+
+	public SearchEnvelopeDistance(EnvelopeDecoder decoder, Envelope referenceEnvelope) {
+		this(decoder, referenceEnvelope, Double.POSITIVE_INFINITY);
+	}
+
+	public SearchEnvelopeDistance(EnvelopeDecoder decoder, Envelope referenceEnvelope, double maxDistance) {
+		this.decoder = decoder;
+		this.referenceEnvelope = referenceEnvelope;
+		this.maxDistance = maxDistance;
+	}
+
+	@Override
+	public boolean needsToVisit(Envelope envelope) {
+		return minDistance(envelope) <= maxDistance;
+	}
+
+	@Override
+	public boolean geometryMatches(Transaction tx, Node geomNode) {
+		return true;
+	}
+
+	@Override
+	public double minDistance(Envelope envelope) {
+		return referenceEnvelope.distance(envelope);
+	}
+
+	@Override
+	public double distance(Transaction tx, Node geomNode) {
+		return minDistance(decoder.decodeEnvelope(geomNode));
+	}
+
+	@Override
+	public double maxDistance() {
+		return maxDistance;
+	}
+
+}
@@ -24,8 +24,22 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
 
 public interface SearchFilter {
-	
+
+	/**
+	 * Decide if the subtree below an index node with the given bounding box needs to be searched. The envelope
+	 * instance may be reused by the search for the next index node, so implementations must not keep a reference
+	 * to it.
+	 */
 	boolean needsToVisit(Envelope envelope);
+
+	/**
+	 * Decide if every geometry below an index node with the given bounding box matches, so that the whole subtree
+	 * can be returned without calling geometryMatches for any of them. This is only asked for index nodes that need
+	 * to be visited, and the same rules for reusing the envelope apply as for needsToVisit.
+	 */
+	default boolean matchesAll(Envelope envelope) {
+		return false;
+	}
 	
 	boolean geometryMatches(Transaction tx, Node geomNode);
 	
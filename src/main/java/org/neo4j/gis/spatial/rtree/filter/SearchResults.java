@@ -22,13 +22,35 @@ package org.neo4j.gis.spatial.rtree.filter;
 import org.neo4j.graphdb.Node;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
+/**
+ * The geometry nodes found by an index search. Results can be restricted to a range with {@link #range(int, int)}
+ * before they are iterated. Searches created with a {@link RangedSearch} apply the range during the search itself,
+ * which can then skip whole parts of the index and stop as soon as enough geometries were found, while other
+ * searches are simply skipped and cut off.
+ */
 public class SearchResults implements Iterable<Node> {
     private final Iterable<Node> traverser;
+    private final RangedSearch rangedSearch;
     private int count = -1;
 
+    /**
+     * A search that can skip the first offset results and stop after limit results, where a negative limit means
+     * there is no limit.
+     */
+    public interface RangedSearch {
+        Iterable<Node> search(int offset, int limit);
+    }
+
     public SearchResults(Iterable<Node> traverser) {
         this.traverser = traverser;
+        this.rangedSearch = null;
+    }
+
+    public SearchResults(RangedSearch rangedSearch) {
+        this.traverser = rangedSearch.search(0, -1);
+        this.rangedSearch = rangedSearch;
     }
 
     @Override
@@ -36,6 +58,23 @@ public class SearchResults implements Iterable<Node> {
         return traverser.iterator();
     }
 
+    /**
+     * @return the results without the first offset results and without any results after the first limit ones, or
+     * all remaining results if limit is negative
+     */
+    public SearchResults range(int offset, int limit) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must not be negative: " + offset);
+        }
+        if (offset == 0 && limit < 0) {
+            return this;
+        }
+        if (rangedSearch != null) {
+            return new SearchResults(rangedSearch.search(offset, limit));
+        }
+        return new SearchResults(() -> new RangeIterator(traverser.iterator(), offset, limit));
+    }
+
     public int count() {
         if (count < 0) {
             count = 0;
@@ -46,4 +85,37 @@ public class SearchResults implements Iterable<Node> {
         }
         return count;
     }
+
+    private static class RangeIterator implements Iterator<Node> {
+        private final Iterator<Node> inner;
+        private int toSkip;
+        private int remaining;
+
+        private RangeIterator(Iterator<Node> inner, int offset, int limit) {
+            this.inner = inner;
+            this.toSkip = offset;
+            this.remaining = limit < 0 ? Integer.MAX_VALUE : limit;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (remaining <= 0) {
+                return false;
+            }
+            while (toSkip > 0 && inner.hasNext()) {
+                inner.next();
+                toSkip--;
+            }
+            return inner.hasNext();
+        }
+
+        @Override
+        public Node next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            remaining--;
+            return inner.next();
+        }
+    }
 }
@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2010-2020 "Neo4j,"
+ * Neo4j Sweden AB [http://neo4j.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.utilities;
+
+import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.gis.spatial.Constants;
+import org.neo4j.gis.spatial.GeometryCache;
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.index.LayerIndexReader;
+import org.neo4j.gis.spatial.rtree.RTreeIndex;
+import org.neo4j.gis.spatial.rtree.RTreeRelationshipTypes;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.DatabaseEventContext;
+import org.neo4j.graphdb.event.DatabaseEventListenerAdapter;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventListenerAdapter;
+import org.neo4j.kernel.impl.coreapi.InternalTransaction;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Database-wide registry of initialized layer handles. Building a layer from its node means reading the layer
+ * configuration, instantiating the encoder and index, resolving the CRS and initializing the index, which is far too
+ * much work to repeat on every procedure call. Handles are keyed by layer name and are dropped again by a transaction
+ * event listener whenever a committed transaction changes the layer node or the index metadata node.
+ * <p>
+ * Since a handle may be looked up in a transaction that has itself modified the layer node or the index metadata
+ * node, each hit is also validated against the current properties of both nodes before it is returned. Handles are
+ * only registered from transactions without uncommitted changes, because an explicitly rolled back or unfinished
+ * transaction is never reported to the listener, and a handle built from its state would otherwise stay cached.
+ * <p>
+ * The same listener also drops the directory mirror of a cached RTree index when a committed transaction changed
+ * the index nodes of that tree without going through the index, which would otherwise leave the mirror stale, and
+ * recomputes the bounding boxes deferred by RTree indexes configured with deferred bounding box maintenance before a
+ * transaction commits. Committed changes to nodes and relationships are also passed on to the geometry caches of the
+ * cached layers, and committed writes to their RTree indexes start the background reorganization of those indexes.
+ */
+public class LayerHandleRegistry implements Constants {
+
+    private static final Map<GraphDatabaseAPI, LayerHandleRegistry> registries = new ConcurrentHashMap<>();
+
+    private final Map<String, LayerHandle> handles = new ConcurrentHashMap<>();
+    private final Map<Long, String> trackedNodes = new ConcurrentHashMap<>();
+
+    private static class LayerHandle {
+        private final long layerNodeId;
+        private final long metadataNodeId;
+        private final Map<String, Object> layerProperties;
+        private final Map<String, Object> metadataProperties;
+        private final Layer layer;
+
+        private LayerHandle(Node layerNode, Layer layer) {
+            this.layerNodeId = layerNode.getId();
+            Node metadataNode = getMetadataNode(layerNode);
+            this.metadataNodeId = metadataNode == null ? -1 : metadataNode.getId();
+            this.layerProperties = layerNode.getAllProperties();
+            this.metadataProperties = metadataNode == null ? null : getConfigProperties(metadataNode);
+            this.layer = layer;
+        }
+
+        private boolean isValidFor(Node layerNode) {
+            if (!layerNode.hasLabel(LABEL_LAYER) || !sameProperties(layerProperties, layerNode.getAllProperties())) {
+                return false;
+            }
+            Node metadataNode = getMetadataNode(layerNode);
+            if (metadataNode == null) {
+                return metadataNodeId < 0;
+            }
+            return metadataNode.getId() == metadataNodeId && sameProperties(metadataProperties, getConfigProperties(metadataNode));
+        }
+
+        private static Node getMetadataNode(Node layerNode) {
+            Relationship metadata = layerNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_METADATA, Direction.OUTGOING);
+            return metadata == null ? null : metadata.getEndNode();
+        }
+
+        /**
+         * The index configuration on the metadata node, without the per-write index state that changes on every write.
+         */
+        private static Map<String, Object> getConfigProperties(Node metadataNode) {
+            Map<String, Object> properties = metadataNode.getAllProperties();
+            properties.keySet().removeIf(LayerHandleRegistry::isPerWriteIndexProperty);
+            return properties;
+        }
+
+        private static boolean sameProperties(Map<String, Object> expected, Map<String, Object> current) {
+            if (!current.keySet().equals(expected.keySet())) {
+                return false;
+            }
+            for (Map.Entry<String, Object> entry : expected.entrySet()) {
+                if (!Arrays.deepEquals(new Object[]{entry.getValue()}, new Object[]{current.get(entry.getKey())})) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private LayerHandleRegistry() {
+    }
+
+    /**
+     * Find or create the registry for the specified database. If the database does not allow transaction event
+     * listeners to be registered, for example because it is not managed by a DatabaseManagementService, null is
+     * returned and callers should build layers without caching.
+     */
+    public static LayerHandleRegistry forDatabase(GraphDatabaseAPI db) {
+        if (db == null) {
+            return null;
+        }
+        LayerHandleRegistry registry = registries.get(db);
+        if (registry == null) {
+            synchronized (registries) {
+                registry = registries.get(db);
+                if (registry == null) {
+                    registry = new LayerHandleRegistry();
+                    if (!registry.register(db)) {
+                        return null;
+                    }
+                    registries.put(db, registry);
+                }
+            }
+        }
+        return registry;
+    }
+
+    private boolean register(GraphDatabaseAPI db) {
+        DatabaseManagementService managementService;
+        try {
+            managementService = db.getDependencyResolver().resolveDependency(DatabaseManagementService.class);
+        } catch (Exception e) {
+            return false;
+        }
+        final String databaseName = db.databaseName();
+        final InvalidationListener listener = new InvalidationListener();
+        managementService.registerTransactionEventListener(databaseName, listener);
+        managementService.registerDatabaseEventListener(new DatabaseEventListenerAdapter() {
+            @Override
+            public void databaseShutdown(DatabaseEventContext eventContext) {
+                if (databaseName.equals(eventContext.getDatabaseName())) {
+                    registries.remove(db);
+                    managementService.unregisterDatabaseEventListener(this);
+                    try {
+                        managementService.unregisterTransactionEventListener(databaseName, listener);
+                    } catch (Exception e) {
+                        // the whole DBMS is shutting down and the listener is already gone
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Return the cached layer for the given name, or null if there is no valid handle for it. A handle that does not
+     * match the uncommitted state of the given transaction is still kept for other transactions.
+     */
+    public Layer getLayer(Transaction tx, String name) {
+        LayerHandle handle = handles.get(name);
+        if (handle == null) {
+            return null;
+        }
+        try {
+            Node layerNode = tx.getNodeById(handle.layerNodeId);
+            if (name.equals(layerNode.getProperty(PROP_LAYER, null)) && handle.isValidFor(layerNode)) {
+                return handle.layer;
+            }
+        } catch (NotFoundException e) {
+            // layer was deleted, possibly in the current transaction
+        }
+        if (!hasUncommittedChanges(tx)) {
+            invalidate(name);
+        }
+        return null;
+    }
+
+    /**
+     * Cache the layer built from the given layer node, unless the transaction it was built in has uncommitted changes
+     * that the layer might have been built from.
+     */
+    public void register(Transaction tx, Node layerNode, Layer layer) {
+        if (hasUncommittedChanges(tx)) {
+            return;
+        }
+        LayerHandle handle = new LayerHandle(layerNode, layer);
+        String name = layer.getName();
+        LayerHandle previous = handles.put(name, handle);
+        if (previous != null) {
+            untrack(previous);
+        }
+        trackedNodes.put(handle.layerNodeId, name);
+        if (handle.metadataNodeId >= 0) {
+            trackedNodes.put(handle.metadataNodeId, name);
+        }
+    }
+
+    public void invalidate(String name) {
+        LayerHandle handle = handles.remove(name);
+        if (handle != null) {
+            untrack(handle);
+        }
+    }
+
+    public void invalidateAll() {
+        handles.clear();
+        trackedNodes.clear();
+    }
+
+    private static boolean hasUncommittedChanges(Transaction tx) {
+        return ((InternalTransaction) tx).kernelTransaction().dataRead().transactionStateHasChanges();
+    }
+
+    private static boolean isPerWriteIndexProperty(String key) {
+        return key.equals(RTreeIndex.INDEX_PROP_GEOMETRY_COUNT)
+                || key.equals(RTreeIndex.INDEX_PROP_STRUCTURE_VERSION)
+                || key.equals(RTreeIndex.INDEX_PROP_BUFFERED_COUNT)
+                || key.equals(RTreeIndex.INDEX_PROP_BUFFERED_SINCE);
+    }
+
+    private void untrack(LayerHandle handle) {
+        trackedNodes.remove(handle.layerNodeId);
+        trackedNodes.remove(handle.metadataNodeId);
+    }
+
+    private void invalidateNode(long nodeId) {
+        String name = trackedNodes.get(nodeId);
+        if (name != null) {
+            invalidate(name);
+        }
+    }
+
+    private class InvalidationListener extends TransactionEventListenerAdapter<Object> {
+        @Override
+        public Object beforeCommit(TransactionData data, Transaction transaction, GraphDatabaseService databaseService) {
+            RTreeIndex.flushDeferredBoundingBoxes(transaction);
+            return null;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Object state, GraphDatabaseService databaseService) {
+            if (trackedNodes.isEmpty()) {
+                return;
+            }
+            invalidateDirectoryMirrors(data);
+            invalidateGeometryCaches(data);
+            countIndexWrites(data, databaseService);
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                // the geometry count, structure version and ingest buffer state are read from the metadata node on demand, and change on every write
+                if (!isPerWriteIndexProperty(entry.key())) {
+                    invalidateNode(entry.entity().getId());
+                }
+            }
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                if (!isPerWriteIndexProperty(entry.key())) {
+                    invalidateNode(entry.entity().getId());
+                }
+            }
+            for (Node node : data.deletedNodes()) {
+                invalidateNode(node.getId());
+            }
+        }
+
+        /**
+         * Writes through an RTreeIndex assign a new structure version to the index metadata node, and the index keeps
+         * its own mirror up to date. Any other change to bounding boxes or child relationships is only seen here.
+         */
+        private void invalidateDirectoryMirrors(TransactionData data) {
+            List<RTreeIndex> mirrored = new ArrayList<>();
+            for (LayerHandle handle : handles.values()) {
+                LayerIndexReader index = handle.layer.getIndex();
+                if (index instanceof RTreeIndex && ((RTreeIndex) index).hasDirectoryMirror()) {
+                    mirrored.add((RTreeIndex) index);
+                }
+            }
+            if (mirrored.isEmpty()) {
+                return;
+            }
+            Set<Long> versioned = new HashSet<>();
+            Set<Long> changed = new HashSet<>();
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                if (entry.key().equals(RTreeIndex.INDEX_PROP_STRUCTURE_VERSION)) {
+                    versioned.add(entry.entity().getId());
+                } else if (entry.key().equals(RTreeIndex.INDEX_PROP_BBOX)) {
+                    changed.add(entry.entity().getId());
+                }
+            }
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                if (entry.key().equals(RTreeIndex.INDEX_PROP_BBOX)) {
+                    changed.add(entry.entity().getId());
+                }
+            }
+            for (Node node : data.deletedNodes()) {
+                changed.add(node.getId());
+            }
+            for (Relationship relationship : data.createdRelationships()) {
+                if (relationship.isType(RTreeRelationshipTypes.RTREE_CHILD)) {
+                    changed.add(relationship.getStartNodeId());
+                }
+            }
+            for (Relationship relationship : data.deletedRelationships()) {
+                if (relationship.isType(RTreeRelationshipTypes.RTREE_CHILD)) {
+                    changed.add(relationship.getStartNodeId());
+                }
+            }
+            if (changed.isEmpty()) {
+                return;
+            }
+            for (LayerHandle handle : handles.values()) {
+                LayerIndexReader index = handle.layer.getIndex();
+                if (mirrored.contains(index) && !versioned.contains(handle.metadataNodeId)) {
+                    ((RTreeIndex) index).invalidateDirectoryMirror(changed);
+                }
+            }
+        }
+
+        /**
+         * Every write through an RTreeIndex changes its metadata node, and counts towards the next background
+         * reorganization of indexes with a reorganization policy.
+         */
+        private void countIndexWrites(TransactionData data, GraphDatabaseService databaseService) {
+            Map<Long, RTreeIndex> reorganizing = new HashMap<>();
+            for (LayerHandle handle : handles.values()) {
+                LayerIndexReader index = handle.layer.getIndex();
+                if (index instanceof RTreeIndex && ((RTreeIndex) index).reorganizesInBackground()) {
+                    reorganizing.put(handle.metadataNodeId, (RTreeIndex) index);
+                }
+            }
+            if (reorganizing.isEmpty()) {
+                return;
+            }
+            Set<RTreeIndex> written = new HashSet<>();
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                RTreeIndex index = reorganizing.get(entry.entity().getId());
+                if (index != null) {
+                    written.add(index);
+                }
+            }
+            for (RTreeIndex index : written) {
+                index.writeCommitted(databaseService);
+            }
+        }
+
+        private void invalidateGeometryCaches(TransactionData data) {
+            List<GeometryCache> caches = new ArrayList<>();
+            for (LayerHandle handle : handles.values()) {
+                GeometryCache cache = handle.layer.getGeometryCache();
+                if (cache != null) {
+                    caches.add(cache);
+                }
+            }
+            if (caches.isEmpty()) {
+                return;
+            }
+            Set<Long> changed = new HashSet<>();
+            for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                changed.add(entry.entity().getId());
+            }
+            for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+                changed.add(entry.entity().getId());
+            }
+            for (Node node : data.deletedNodes()) {
+                changed.add(node.getId());
+            }
+            for (Relationship relationship : data.createdRelationships()) {
+                changed.add(relationship.getStartNodeId());
+                changed.add(relationship.getEndNodeId());
+            }
+            for (Relationship relationship : data.deletedRelationships()) {
+                changed.add(relationship.getStartNodeId());
+                changed.add(relationship.getEndNodeId());
+            }
+            for (GeometryCache cache : caches) {
+                cache.committed(changed);
+            }
+        }
+    }
+}
@@ -19,12 +19,15 @@
  */
 package org.neo4j.gis.spatial;
 
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.CoordinateList;
 import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.LineString;
 import org.neo4j.dbms.api.DatabaseManagementService;
 import org.neo4j.exceptions.KernelException;
@@ -41,6 +44,8 @@ import org.neo4j.gis.spatial.osm.OSMLayer;
 import org.neo4j.gis.spatial.pipes.GeoPipeline;
 import org.neo4j.gis.spatial.procedures.SpatialProcedures;
 import org.neo4j.gis.spatial.rtree.ProgressLoggingListener;
+import org.neo4j.gis.spatial.rtree.RTreeIndex;
+import org.neo4j.gis.spatial.rtree.RTreeRelationshipTypes;
 import org.neo4j.graphdb.*;
 import org.neo4j.internal.kernel.api.security.SecurityContext;
 import org.neo4j.kernel.api.procedure.GlobalProcedures;
@@ -90,6 +95,99 @@ public class LayersTest {
         inTx(tx -> assertNull(spatial.getLayer(tx, layerName)));
     }
 
+    @Test
+    public void testLayerHandleCache() {
+        String layerName = "cachedHandle";
+        SpatialDatabaseService spatial = new SpatialDatabaseService(new IndexManager((GraphDatabaseAPI) graphDb, SecurityContext.AUTH_DISABLED));
+        inTx(tx -> spatial.getOrCreateEditableLayer(tx, layerName));
+        Layer[] cached = new Layer[1];
+        inTx(tx -> cached[0] = spatial.getLayer(tx, layerName));
+        inTx(tx -> assertSame(cached[0], spatial.getLayer(tx, layerName)));
+        // writes through the layer only change per-write index state, and keep the handle
+        inTx(tx -> {
+            EditableLayer layer = (EditableLayer) spatial.getLayer(tx, layerName);
+            layer.add(tx, layer.getGeometryFactory().createPoint(new Coordinate(15.0, 56.0)));
+        });
+        inTx(tx -> assertSame(cached[0], spatial.getLayer(tx, layerName)));
+
+        // a change to the layer node is seen by the changing transaction, and drops the handle once committed
+        inTx(tx -> {
+            spatial.getLayer(tx, layerName).getLayerNode(tx).setProperty("description", "changed");
+            Layer changed = spatial.getLayer(tx, layerName);
+            assertNotSame(cached[0], changed);
+            assertEquals("changed", changed.getLayerNode(tx).getProperty("description"));
+        });
+        inTx(tx -> {
+            Layer layer = spatial.getLayer(tx, layerName);
+            assertNotSame(cached[0], layer);
+            cached[0] = layer;
+        });
+        inTx(tx -> assertSame(cached[0], spatial.getLayer(tx, layerName)));
+
+        // a change to the index metadata node drops the handle once committed
+        inTx(tx -> {
+            Node layerNode = spatial.getLayer(tx, layerName).getLayerNode(tx);
+            Node metadataNode = layerNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_METADATA, Direction.OUTGOING).getEndNode();
+            metadataNode.setProperty("description", "changed");
+        });
+        inTx(tx -> {
+            Layer layer = spatial.getLayer(tx, layerName);
+            assertNotSame(cached[0], layer);
+            cached[0] = layer;
+        });
+
+        // a handle built from the uncommitted state of a rolled back transaction is not kept
+        try (Transaction tx = graphDb.beginTx()) {
+            spatial.getLayer(tx, layerName).getLayerNode(tx).setProperty("description", "rolled back");
+            assertNotSame(cached[0], spatial.getLayer(tx, layerName));
+            tx.rollback();
+        }
+        inTx(tx -> {
+            Layer layer = spatial.getLayer(tx, layerName);
+            assertEquals("changed", layer.getLayerNode(tx).getProperty("description"));
+            assertSame(layer, spatial.getLayer(tx, layerName));
+        });
+    }
+
+    @Test
+    public void testLayerHandleCacheAfterRolledBackConfigChange() {
+        String layerName = "rolledBackConfig";
+        SpatialDatabaseService spatial = new SpatialDatabaseService(new IndexManager((GraphDatabaseAPI) graphDb, SecurityContext.AUTH_DISABLED));
+        inTx(tx -> spatial.getOrCreateEditableLayer(tx, layerName));
+        Layer[] cached = new Layer[1];
+        long[] committed = new long[1];
+        inTx(tx -> {
+            cached[0] = spatial.getLayer(tx, layerName);
+            committed[0] = getMaxNodeReferences(cached[0]);
+        });
+
+        // a change to the index configuration is seen by the changing transaction, and the cached handle survives the explicit rollback
+        try (Transaction tx = graphDb.beginTx()) {
+            getMetadataNode(tx, layerName).setProperty(RTreeIndex.KEY_MAX_NODE_REFERENCES, 50);
+            Layer changed = spatial.getLayer(tx, layerName);
+            assertNotSame(cached[0], changed);
+            assertEquals(50, getMaxNodeReferences(changed));
+            tx.rollback();
+        }
+        inTx(tx -> {
+            Layer layer = spatial.getLayer(tx, layerName);
+            assertSame(cached[0], layer);
+            assertEquals(committed[0], getMaxNodeReferences(layer));
+        });
+
+        // without a cached handle, the handle built by a transaction closed without commit is not kept either
+        inTx(tx -> getMetadataNode(tx, layerName).setProperty("description", "changed"));
+        try (Transaction tx = graphDb.beginTx()) {
+            getMetadataNode(tx, layerName).setProperty(RTreeIndex.KEY_MAX_NODE_REFERENCES, 50);
+            assertEquals(50, getMaxNodeReferences(spatial.getLayer(tx, layerName)));
+        }
+        inTx(tx -> {
+            Layer layer = spatial.getLayer(tx, layerName);
+            assertEquals(committed[0], getMaxNodeReferences(layer));
+            assertSame(layer, spatial.getLayer(tx, layerName));
+        });
+    }
+
     @Test
     public void testSimplePointLayerWithRTree() {
         testPointLayer(LayerRTreeIndex.class, SimplePointEncoder.class);
@@ -204,6 +302,91 @@ public class LayersTest {
         }
     }
 
+    @Test
+    public void testGeometryCache() {
+        String layerName = "cached";
+        SpatialDatabaseService spatial = new SpatialDatabaseService(new IndexManager((GraphDatabaseAPI) graphDb, SecurityContext.AUTH_DISABLED));
+        inTx(tx -> {
+            EditableLayer layer = spatial.getOrCreateEditableLayer(tx, layerName);
+            layer.getLayerNode(tx).setProperty(Constants.PROP_GEOMETRY_CACHE, "{\"maxEntries\":2}");
+        });
+        List<Long> nodeIds = new ArrayList<>();
+        inTx(tx -> {
+            EditableLayer layer = (EditableLayer) spatial.getLayer(tx, layerName);
+            for (int i = 0; i < 3; i++) {
+                nodeIds.add(layer.add(tx, layer.getGeometryFactory().createPoint(new Coordinate(15.0 + i, 56.0))).getNodeId());
+            }
+        });
+        inTx(tx -> {
+            Layer layer = spatial.getLayer(tx, layerName);
+            GeometryCache cache = layer.getGeometryCache();
+            assertNotNull(cache);
+            // geometries written through the layer are only cached once the writing transaction has committed
+            assertEquals(0, cache.size());
+            for (long nodeId : nodeIds) {
+                assertEquals(15.0 + nodeIds.indexOf(nodeId), layer.decodeGeometry(tx.getNodeById(nodeId)).getCoordinate().x);
+            }
+            assertEquals(3, cache.getMisses());
+            assertEquals(1, cache.getEvictions());
+            assertEquals(2, cache.size());
+            Geometry geometry = layer.decodeGeometry(tx.getNodeById(nodeIds.get(2)));
+            assertSame(geometry, layer.decodeGeometry(tx.getNodeById(nodeIds.get(2))));
+            assertEquals(2, cache.getHits());
+        });
+        inTx(tx -> {
+            EditableLayer layer = (EditableLayer) spatial.getLayer(tx, layerName);
+            layer.update(tx, nodeIds.get(2), layer.getGeometryFactory().createPoint(new Coordinate(20.0, 56.0)));
+            assertEquals(20.0, layer.decodeGeometry(tx.getNodeById(nodeIds.get(2))).getCoordinate().x);
+        });
+        inTx(tx -> {
+            Layer layer = spatial.getLayer(tx, layerName);
+            assertEquals(20.0, layer.decodeGeometry(tx.getNodeById(nodeIds.get(2))).getCoordinate().x);
+            // changes made without the layer are seen once they are committed
+            layer.getGeometryEncoder().encodeGeometry(tx, layer.getGeometryFactory().createPoint(new Coordinate(21.0, 56.0)), tx.getNodeById(nodeIds.get(2)));
+        });
+        inTx(tx -> {
+            Layer layer = spatial.getLayer(tx, layerName);
+            assertEquals(21.0, layer.decodeGeometry(tx.getNodeById(nodeIds.get(2))).getCoordinate().x);
+        });
+    }
+
+    @Test
+    public void testGeometryCacheRedecodesUpdatedGeometry() {
+        String layerName = "cachedUpdates";
+        SpatialDatabaseService spatial = new SpatialDatabaseService(new IndexManager((GraphDatabaseAPI) graphDb, SecurityContext.AUTH_DISABLED));
+        inTx(tx -> {
+            EditableLayer layer = spatial.getOrCreateEditableLayer(tx, layerName);
+            layer.getLayerNode(tx).setProperty(Constants.PROP_GEOMETRY_CACHE, "{\"maxEntries\":10}");
+        });
+        long[] nodeId = new long[1];
+        inTx(tx -> {
+            EditableLayer layer = (EditableLayer) spatial.getLayer(tx, layerName);
+            nodeId[0] = layer.add(tx, layer.getGeometryFactory().createPoint(new Coordinate(15.0, 56.0))).getNodeId();
+        });
+        Geometry[] cached = new Geometry[1];
+        inTx(tx -> {
+            Layer layer = spatial.getLayer(tx, layerName);
+            cached[0] = layer.decodeGeometry(tx.getNodeById(nodeId[0]));
+            assertSame(cached[0], layer.decodeGeometry(tx.getNodeById(nodeId[0])));
+            assertEquals(1, layer.getGeometryCache().size());
+        });
+        inTx(tx -> {
+            EditableLayer layer = (EditableLayer) spatial.getLayer(tx, layerName);
+            layer.update(tx, nodeId[0], layer.getGeometryFactory().createPoint(new Coordinate(20.0, 57.0)));
+            // the updating transaction reads its own write, not the cached geometry
+            assertEquals(new Coordinate(20.0, 57.0), layer.decodeGeometry(tx.getNodeById(nodeId[0])).getCoordinate());
+        });
+        inTx(tx -> {
+            Layer layer = spatial.getLayer(tx, layerName);
+            long misses = layer.getGeometryCache().getMisses();
+            Geometry geometry = layer.decodeGeometry(tx.getNodeById(nodeId[0]));
+            assertNotSame(cached[0], geometry);
+            assertEquals(new Coordinate(20.0, 57.0), geometry.getCoordinate());
+            assertEquals(misses + 1, layer.getGeometryCache().getMisses(), "Committed update should be decoded again");
+            assertSame(geometry, layer.decodeGeometry(tx.getNodeById(nodeId[0])));
+        });
+    }
+
     @Test
     public void testSnapToLine() {
         SpatialDatabaseService spatial = new SpatialDatabaseService(new IndexManager((GraphDatabaseAPI) graphDb, SecurityContext.AUTH_DISABLED));
@@ -351,6 +534,17 @@ public class LayersTest {
         }
     }
 
+    private static Node getMetadataNode(Transaction tx, String layerName) {
+        // found without going through the layer handle cache
+        Node layerNode = tx.findNode(Constants.LABEL_LAYER, Constants.PROP_LAYER, layerName);
+        return layerNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_METADATA, Direction.OUTGOING).getEndNode();
+    }
+
+    private static long getMaxNodeReferences(Layer layer) {
+        JSONObject config = (JSONObject) JSONValue.parse(((RTreeIndex) layer.getIndex()).getConfiguration());
+        return ((Number) config.get(RTreeIndex.KEY_MAX_NODE_REFERENCES)).longValue();
+    }
+
     private void inTx(Consumer<Transaction> txFunction) {
         try (Transaction tx = graphDb.beginTx()) {
             txFunction.accept(tx);
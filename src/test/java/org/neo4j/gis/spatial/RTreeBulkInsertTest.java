@@ -494,6 +494,16 @@ public class RTreeBulkInsertTest {
         insertManyNodesInBulk(RTreeIndex.GREENES_SPLIT, 5000, 10, testConfigs.get("very_small"));
     }
 
+    @Test
+    public void shouldInsertManyNodesIndividuallyWithRStarSplit_very_small_10() throws FactoryException, IOException {
+        insertManyNodesIndividually(RTreeIndex.RSTAR_SPLIT, 5000, 10, testConfigs.get("very_small"));
+    }
+
+    @Test
+    public void shouldInsertManyNodesInBulkWithRStarSplit_very_small_10() throws FactoryException, IOException {
+        insertManyNodesInBulk(RTreeIndex.RSTAR_SPLIT, 5000, 10, testConfigs.get("very_small"));
+    }
+
     /*
      * Small model 250*250 nodes
      */
@@ -548,6 +558,16 @@ public class RTreeBulkInsertTest {
         insertManyNodesInBulk(RTreeIndex.GREENES_SPLIT, 5000, 10, testConfigs.get("small"));
     }
 
+    @Ignore // takes too long, change to @Test when benchmarking
+    public void shouldInsertManyNodesIndividuallyWithRStarSplit_small_10() throws FactoryException, IOException {
+        insertManyNodesIndividually(RTreeIndex.RSTAR_SPLIT, 5000, 10, testConfigs.get("small"));
+    }
+
+    @Test
+    public void shouldInsertManyNodesInBulkWithRStarSplit_small_10() throws FactoryException, IOException {
+        insertManyNodesInBulk(RTreeIndex.RSTAR_SPLIT, 5000, 10, testConfigs.get("small"));
+    }
+
     /*
      * Small model 250*250 nodes (shallow tree)
      */
@@ -572,6 +592,16 @@ public class RTreeBulkInsertTest {
         insertManyNodesInBulk(RTreeIndex.GREENES_SPLIT, 5000, 100, testConfigs.get("small"));
     }
 
+    @Ignore // takes too long, change to @Test when benchmarking
+    public void shouldInsertManyNodesIndividuallyWithRStarSplit_small_100() throws FactoryException, IOException {
+        insertManyNodesIndividually(RTreeIndex.RSTAR_SPLIT, 5000, 100, testConfigs.get("small"));
+    }
+
+    @Test
+    public void shouldInsertManyNodesInBulkWithRStarSplit_small_100() throws FactoryException, IOException {
+        insertManyNodesInBulk(RTreeIndex.RSTAR_SPLIT, 5000, 100, testConfigs.get("small"));
+    }
+
     /*
      * Medium model 500*500 nodes (deep tree - factor 10)
      */
@@ -626,6 +656,16 @@ public class RTreeBulkInsertTest {
         insertManyNodesInBulk(RTreeIndex.GREENES_SPLIT, 5000, 10, testConfigs.get("medium"));
     }
 
+    @Ignore
+    public void shouldInsertManyNodesIndividuallyWithRStarSplit_medium_10() throws FactoryException, IOException {
+        insertManyNodesIndividually(RTreeIndex.RSTAR_SPLIT, 5000, 10, testConfigs.get("medium"));
+    }
+
+    @Test
+    public void shouldInsertManyNodesInBulkWithRStarSplit_medium_10() throws FactoryException, IOException {
+        insertManyNodesInBulk(RTreeIndex.RSTAR_SPLIT, 5000, 10, testConfigs.get("medium"));
+    }
+
     @Ignore
     public void shouldInsertManyNodesInBulkWithQuadraticSplit_medium_10_merge() throws FactoryException, IOException {
         insertManyNodesInBulk(RTreeIndex.QUADRATIC_SPLIT, 5000, 10, testConfigs.get("medium"), true);
@@ -660,6 +700,16 @@ public class RTreeBulkInsertTest {
         insertManyNodesInBulk(RTreeIndex.GREENES_SPLIT, 5000, 100, testConfigs.get("medium"));
     }
 
+    @Ignore
+    public void shouldInsertManyNodesIndividuallyWithRStarSplit_medium_100() throws FactoryException, IOException {
+        insertManyNodesIndividually(RTreeIndex.RSTAR_SPLIT, 5000, 100, testConfigs.get("medium"));
+    }
+
+    @Ignore // takes too long, change to @Test when benchmarking
+    public void shouldInsertManyNodesInBulkWithRStarSplit_medium_100() throws FactoryException, IOException {
+        insertManyNodesInBulk(RTreeIndex.RSTAR_SPLIT, 5000, 100, testConfigs.get("medium"));
+    }
+
     @Ignore
     public void shouldInsertManyNodesInBulkWithQuadraticSplit_medium_100_merge() throws FactoryException, IOException {
         insertManyNodesInBulk(RTreeIndex.QUADRATIC_SPLIT, 5000, 100, testConfigs.get("medium"), true);
@@ -1406,6 +1456,7 @@ public class RTreeBulkInsertTest {
         stats.put("Touched", touched);
         stats.put("Index Found", indexMatched);
         stats.put("Index Touched", indexTouched);
+        stats.put("Index Visits", indexMatched + indexTouched);
         System.out.println("Searched index of " + indexSize + " nodes in tree of height " + monitor.getHeight());
         System.out.println("Matched " + matched + "/" + touched + " touched nodes (" + (100.0 * matched / touched) + "%)");
         System.out.println("Having matched " + indexMatched + "/" + indexTouched + " touched index nodes (" + (100.0 * indexMatched / indexTouched) + "%)");
@@ -29,6 +29,7 @@ import org.neo4j.dbms.api.DatabaseManagementService;
 import org.neo4j.gis.spatial.*;
 import org.neo4j.gis.spatial.filter.SearchIntersect;
 import org.neo4j.gis.spatial.filter.SearchIntersectWindow;
+import org.neo4j.gis.spatial.filter.SearchRecords;
 import org.neo4j.gis.spatial.pipes.GeoPipeFlow;
 import org.neo4j.gis.spatial.rtree.NullListener;
 import org.neo4j.gis.spatial.rtree.filter.SearchResults;
@@ -261,4 +262,30 @@ public abstract class LayerIndexTestBase {
             tx.commit();
         }
     }
+
+    @Test
+    public void shouldPageThroughSearchResults() {
+        SimplePointLayer layer = makeTestPointLayer();
+        try (Transaction tx = graph.beginTx()) {
+            for (int i = 0; i < 10; i++) {
+                layer.add(tx, i, i);
+            }
+            tx.commit();
+        }
+        Envelope window = new Envelope(-1.0, 11.0, -1.0, 11.0);
+        try (Transaction tx = graph.beginTx()) {
+            SearchResults results = layer.getIndex().searchIndex(tx, new SearchIntersectWindow(layer, window));
+            List<Node> all = StreamSupport.stream(results.spliterator(), false).collect(Collectors.toList());
+            assertThat("Index should contain all points", all.size(), equalTo(10));
+            for (int offset = 0; offset < 10; offset += 3) {
+                List<Node> page = StreamSupport.stream(results.range(offset, 3).spliterator(), false).collect(Collectors.toList());
+                assertThat("Page should match the same slice of the full results", page, equalTo(all.subList(offset, Math.min(10, offset + 3))));
+            }
+            SearchRecords records = layer.getIndex().search(tx, new SearchIntersectWindow(layer, window));
+            assertThat("Range should apply before iteration starts", records.applyRange(0, 1), is(true));
+            List<Node> firstTwo = StreamSupport.stream(records.spliterator(), false).map(SpatialDatabaseRecord::getGeomNode).collect(Collectors.toList());
+            assertThat("Ranged records should start at the first hit", firstTwo, equalTo(all.subList(0, 2)));
+            tx.commit();
+        }
+    }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2010-2020 "Neo4j,"
+ * Neo4j Sweden AB [http://neo4j.com]
+ *
+ * This file is part of Neo4j Spatial.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.gis.spatial.pipes;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.neo4j.gis.spatial.EditableLayer;
+import org.neo4j.gis.spatial.Layer;
+import org.neo4j.gis.spatial.Neo4jTestCase;
+import org.neo4j.gis.spatial.SpatialDatabaseService;
+import org.neo4j.gis.spatial.filter.SearchCoveredBy;
+import org.neo4j.gis.spatial.filter.SearchIntersect;
+import org.neo4j.gis.spatial.index.IndexManager;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.internal.kernel.api.security.SecurityContext;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The geometric filter pipes and search filters skip decoding or use prepared geometries where they can. These tests
+ * check that they still find exactly the geometries the plain JTS predicates find, for rectangles, polygons with holes
+ * and concave polygons, with many geometries on their boundaries.
+ */
+public class GeoPipesFilterTest extends Neo4jTestCase {
+    private static final String LAYER = "filters";
+
+    private final List<Geometry> geometries = new ArrayList<>();
+    private SpatialDatabaseService spatial;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        super.setUp(true);
+        spatial = new SpatialDatabaseService(new IndexManager((GraphDatabaseAPI) graphDb(), SecurityContext.AUTH_DISABLED));
+        try (Transaction tx = graphDb().beginTx()) {
+            EditableLayer layer = spatial.getOrCreateEditableLayer(tx, LAYER);
+            WKTReader reader = new WKTReader(layer.getGeometryFactory());
+            List<String> wkts = new ArrayList<>();
+            // points on a grid, including the corners and edges of all reference polygons and their holes
+            for (int i = 0; i <= 20; i++) {
+                for (int j = 0; j <= 20; j++) {
+                    wkts.add("POINT (" + i * 0.5 + " " + j * 0.5 + ")");
+                }
+            }
+            // unit squares sharing their edges with the reference polygons
+            for (int i = 0; i < 10; i++) {
+                for (int j = 0; j < 10; j++) {
+                    wkts.add("POLYGON ((" + i + " " + j + ", " + i + " " + (j + 1) + ", " + (i + 1) + " " + (j + 1) + ", "
+                            + (i + 1) + " " + j + ", " + i + " " + j + "))");
+                }
+            }
+            // lines along and across the edges of the reference polygons
+            for (int i = 0; i <= 10; i++) {
+                wkts.add("LINESTRING (0 " + i + ", 10 " + i + ")");
+                wkts.add("LINESTRING (" + i + " 0, " + i + " 10)");
+            }
+            wkts.add("POLYGON ((1 1, 1 9, 9 9, 9 1, 1 1), (3 3, 3 7, 7 7, 7 3, 3 3))");
+            wkts.add("POLYGON ((2 2, 2 8, 8 8, 8 2, 2 2), (4 4, 4 6, 6 6, 6 4, 4 4))");
+            wkts.add("POLYGON ((4.5 4.5, 4.5 5.5, 5.5 5.5, 5.5 4.5, 4.5 4.5))");
+            for (String wkt : wkts) {
+                Geometry geometry = reader.read(wkt);
+                layer.add(tx, geometry);
+                geometries.add(geometry);
+            }
+            tx.commit();
+        }
+    }
+
+    @Test
+    public void testFiltersMatchPlainPredicates() throws ParseException {
+        try (Transaction tx = graphDb().beginTx()) {
+            Layer layer = spatial.getLayer(tx, LAYER);
+            WKTReader reader = new WKTReader(layer.getGeometryFactory());
+            String[] references = new String[]{
+                    "POLYGON ((2 2, 2 8, 8 8, 8 2, 2 2))",
+                    "POLYGON ((2 2, 2 8, 8 8, 8 2, 2 2), (4 4, 4 6, 6 6, 6 4, 4 4))",
+                    "POLYGON ((2 2, 2 8, 5 5, 8 8, 8 2, 2 2))",
+                    "POLYGON ((4.2 4.2, 4.2 4.8, 4.8 4.8, 4.8 4.2, 4.2 4.2))",
+                    "LINESTRING (2 2, 8 2)",
+                    "POINT (2 2)"
+            };
+            for (String wkt : references) {
+                Geometry reference = reader.read(wkt);
+                assertMatches("intersects " + wkt, g -> g.intersects(reference),
+                        GeoPipeline.start(tx, layer).intersectionFilter(reference),
+                        GeoPipeline.startIntersectSearch(tx, layer, reference),
+                        GeoPipeline.start(tx, layer, new SearchIntersect(layer, reference)));
+                assertMatches("covered by " + wkt, g -> g.coveredBy(reference),
+                        GeoPipeline.start(tx, layer).coveredByFilter(reference),
+                        GeoPipeline.startCoveredBySearch(tx, layer, reference),
+                        GeoPipeline.start(tx, layer, new SearchCoveredBy(layer, reference)));
+                assertMatches("within " + wkt, g -> g.within(reference),
+                        GeoPipeline.start(tx, layer).withinFilter(reference),
+                        GeoPipeline.startWithinSearch(tx, layer, reference));
+                assertMatches("contains " + wkt, g -> g.contains(reference),
+                        GeoPipeline.start(tx, layer).containFilter(reference),
+                        GeoPipeline.startContainSearch(tx, layer, reference));
+                assertMatches("covers " + wkt, g -> g.covers(reference),
+                        GeoPipeline.start(tx, layer).coverFilter(reference),
+                        GeoPipeline.startCoverSearch(tx, layer, reference));
+                assertMatches("disjoint " + wkt, g -> g.disjoint(reference),
+                        GeoPipeline.start(tx, layer).disjointFilter(reference));
+                assertMatches("crosses " + wkt, g -> g.crosses(reference),
+                        GeoPipeline.start(tx, layer).crossFilter(reference),
+                        GeoPipeline.startCrossSearch(tx, layer, reference));
+                assertMatches("overlaps " + wkt, g -> g.overlaps(reference),
+                        GeoPipeline.start(tx, layer).overlapFilter(reference),
+                        GeoPipeline.startOverlapSearch(tx, layer, reference));
+                assertMatches("touches " + wkt, g -> g.touches(reference),
+                        GeoPipeline.start(tx, layer).touchFilter(reference),
+                        GeoPipeline.startTouchSearch(tx, layer, reference));
+
+                Envelope window = reference.getEnvelopeInternal();
+                Geometry windowGeometry = layer.getGeometryFactory().toGeometry(window);
+                assertMatches("intersects window of " + wkt, g -> g.intersects(windowGeometry),
+                        GeoPipeline.start(tx, layer).windowIntersectionFilter(window),
+                        GeoPipeline.startIntersectWindowSearch(tx, layer, window));
+            }
+            tx.commit();
+        }
+    }
+
+    private void assertMatches(String description, Predicate<Geometry> predicate, GeoPipeline... pipelines) {
+        List<String> expected = new ArrayList<>();
+        for (Geometry geometry : geometries) {
+            if (predicate.test(geometry)) {
+                expected.add(geometry.toText());
+            }
+        }
+        Collections.sort(expected);
+        for (GeoPipeline pipeline : pipelines) {
+            List<String> found = new ArrayList<>();
+            for (GeoPipeFlow flow : pipeline) {
+                found.add(flow.getGeometry().toText());
+            }
+            Collections.sort(found);
+            assertEquals(expected, found, description);
+        }
+    }
+}
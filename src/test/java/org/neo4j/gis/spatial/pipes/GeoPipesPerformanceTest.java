@@ -20,8 +20,11 @@
 package org.neo4j.gis.spatial.pipes;
 
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.util.GeometricShapeFactory;
 import org.neo4j.gis.spatial.*;
 import org.neo4j.gis.spatial.index.IndexManager;
 import org.neo4j.graphdb.Transaction;
@@ -30,6 +33,7 @@ import org.neo4j.kernel.internal.GraphDatabaseAPI;
 
 import java.util.ArrayList;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class GeoPipesPerformanceTest extends Neo4jTestCase {
@@ -178,4 +182,59 @@ public class GeoPipesPerformanceTest extends Neo4jTestCase {
             tx.commit();
         }
     }
+
+    @Test
+    @Disabled // takes too long, enable when benchmarking
+    public void benchmarkPolygonFilters() {
+        SpatialDatabaseService spatial = new SpatialDatabaseService(new IndexManager((GraphDatabaseAPI) graphDb(), SecurityContext.AUTH_DISABLED));
+        try (Transaction tx = graphDb().beginTx()) {
+            Layer layer = spatial.getLayer(tx, "GeoPipesPerformanceTest");
+            System.out.println("Filtering " + records + " points with polygons of increasing size");
+            for (int vertices : new int[]{10, 100, 1000, 10000, 100000}) {
+                GeometricShapeFactory shapes = new GeometricShapeFactory(layer.getGeometryFactory());
+                shapes.setCentre(new Coordinate(15.0, 15.0));
+                shapes.setSize(8.0);
+                shapes.setNumPoints(vertices);
+                Geometry polygon = shapes.createCircle();
+
+                long start = System.currentTimeMillis();
+                int plain = 0;
+                for (GeoPipeFlow flow : GeoPipeline.start(tx, layer)) {
+                    if (polygon.intersects(flow.getGeometry())) {
+                        plain++;
+                    }
+                }
+                long plainTime = System.currentTimeMillis() - start;
+
+                start = System.currentTimeMillis();
+                int filtered = count(GeoPipeline.start(tx, layer).intersectionFilter(polygon));
+                long filterTime = System.currentTimeMillis() - start;
+
+                start = System.currentTimeMillis();
+                int searched = count(GeoPipeline.startIntersectSearch(tx, layer, polygon));
+                long searchTime = System.currentTimeMillis() - start;
+
+                start = System.currentTimeMillis();
+                int within = count(GeoPipeline.startWithinSearch(tx, layer, polygon));
+                long withinTime = System.currentTimeMillis() - start;
+
+                System.out.println("\t" + vertices + " vertices: plain intersects " + plainTime + "ms, intersection filter "
+                        + filterTime + "ms, intersect search " + searchTime + "ms, within search " + withinTime + "ms ("
+                        + searched + " matches)");
+                assertEquals(plain, filtered);
+                assertEquals(plain, searched);
+                assertEquals(plain, within);
+            }
+            tx.commit();
+        }
+    }
+
+    private static int count(GeoPipeline pipeline) {
+        int count = 0;
+        while (pipeline.hasNext()) {
+            pipeline.next();
+            count++;
+        }
+        return count;
+    }
 }
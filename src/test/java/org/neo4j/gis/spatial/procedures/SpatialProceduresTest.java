@@ -215,6 +215,21 @@ public class SpatialProceduresTest {
         testCall(db, "CALL spatial.withinDistance('geom',{lon:15.0,lat:60.0},100)", r -> assertEquals(node, r.get("node")));
     }
 
+    @Test
+    public void add_nodes_and_search_nearest() {
+        execute("CALL spatial.addPointLayerXY('geom','lon','lat')");
+        execute("UNWIND range(1,20) AS i CREATE (n:Node {lon: 15.0 + i * 0.1, lat: 60.0}) WITH n CALL spatial.addNode('geom',n) YIELD node RETURN node");
+        testResult(db, "CALL spatial.nearest('geom',{lon:15.0,lat:60.0},3) YIELD node, distance RETURN node.lon AS lon, distance", res -> {
+            for (double expected : new double[]{15.1, 15.2, 15.3}) {
+                assertTrue(res.hasNext());
+                Map<String, Object> row = res.next();
+                assertEquals(expected, (Double) row.get("lon"), 0.000001);
+                assertEquals(expected - 15.0, (Double) row.get("distance"), 0.000001);
+            }
+            assertFalse(res.hasNext());
+        });
+    }
+
     @Test
     // This tests issue https://github.com/neo4j-contrib/spatial/issues/298
     public void add_node_point_layer_and_search_multiple_points_precision() {
@@ -600,7 +615,7 @@ public class SpatialProceduresTest {
             assertEquals("spatial.addLayer(name :: STRING?, type :: STRING?, encoderConfig :: STRING?) :: (node :: NODE?)", procs.get("spatial.addLayer"));
             assertEquals("spatial.addNode(layerName :: STRING?, node :: NODE?) :: (node :: NODE?)", procs.get("spatial.addNode"));
             assertEquals("spatial.addWKT(layerName :: STRING?, geometry :: STRING?) :: (node :: NODE?)", procs.get("spatial.addWKT"));
-            assertEquals("spatial.intersects(layerName :: STRING?, geometry :: ANY?) :: (node :: NODE?)", procs.get("spatial.intersects"));
+            assertEquals("spatial.intersects(layerName :: STRING?, geometry :: ANY?, limit = -1 :: INTEGER?) :: (node :: NODE?)", procs.get("spatial.intersects"));
         });
     }
 
@@ -1062,6 +1077,56 @@ public class SpatialProceduresTest {
         testCall(db, "CALL spatial.intersects('geom','" + polygon + "') YIELD node RETURN node.name as name", r -> assertEquals("b", r.get("name")));
     }
 
+    @Test
+    public void aggregate_attribute_in_a_polygon() {
+        execute("CALL spatial.addPointLayer('geom') YIELD node SET node.index_config = '{\"aggregates\":\"population\"}'");
+        executeWrite("UNWIND range(0, 99) as i CREATE (n:Node {latitude: 60.0 + (i / 10) * 0.1, longitude: 15.0 + (i % 10) * 0.1, population: i}) WITH n CALL spatial.addNode('geom',n) YIELD node RETURN node");
+        String polygon = "POLYGON((15.05 60.05, 15.05 60.45, 15.45 60.45, 15.45 60.05, 15.05 60.05))";
+        // rows 1 to 4 and columns 1 to 4, so i is 11 to 14, 21 to 24, 31 to 34 and 41 to 44
+        testCall(db, "CALL spatial.aggregate('geom','" + polygon + "','population','count') YIELD value RETURN value", r -> assertEquals(16L, r.get("value")));
+        testCall(db, "CALL spatial.aggregate('geom','" + polygon + "','population','sum') YIELD value RETURN value", r -> assertEquals(440.0, r.get("value")));
+        testCall(db, "CALL spatial.aggregate('geom','" + polygon + "','population','min') YIELD value RETURN value", r -> assertEquals(11.0, r.get("value")));
+        testCall(db, "CALL spatial.aggregate('geom','" + polygon + "','population','max') YIELD value RETURN value", r -> assertEquals(44.0, r.get("value")));
+        testCall(db, "CALL spatial.aggregate('geom','" + polygon + "','population','avg') YIELD value RETURN value", r -> assertEquals(27.5, r.get("value")));
+    }
+
+    @Test
+    public void find_limited_geometries_in_a_polygon_and_a_bounding_box() {
+        execute("CALL spatial.addPointLayer('geom')");
+        executeWrite("UNWIND range(0, 99) as i CREATE (n:Node {latitude: 60.0 + (i / 10) * 0.1, longitude: 15.0 + (i % 10) * 0.1}) WITH n CALL spatial.addNode('geom',n) YIELD node RETURN node");
+        String polygon = "POLYGON((14.95 59.95, 14.95 61.05, 16.05 61.05, 16.05 59.95, 14.95 59.95))";
+        testCallCount(db, "CALL spatial.intersects('geom','" + polygon + "')", null, 100);
+        testCallCount(db, "CALL spatial.intersects('geom','" + polygon + "', 7)", null, 7);
+        testCallCount(db, "CALL spatial.intersects('geom','" + polygon + "', 0)", null, 0);
+        testCallCount(db, "CALL spatial.bbox('geom',{lon:14.95,lat:59.95}, {lon:16.05, lat:61.05}, 12)", null, 12);
+        testCallCount(db, "CALL spatial.withinDistance('geom',{lon:15.0,lat:60.0}, 1000, 3)", null, 3);
+    }
+
+    @Test
+    public void reuse_cached_geometries_in_a_polygon_search() {
+        execute("CALL spatial.addPointLayer('geom') YIELD node SET node.geometry_cache = '{\"maxEntries\":100}'");
+        executeWrite("UNWIND [{name:'a',latitude:60.1,longitude:15.2},{name:'b',latitude:60.3,longitude:15.5}] as point CREATE (n:Node) SET n += point WITH n CALL spatial.addNode('geom',n) YIELD node RETURN node.name as name");
+        String polygon = "POLYGON((15.3 60.2, 15.7 60.2, 15.5 60.45, 15.3 60.2))";
+        testCall(db, "CALL spatial.intersects('geom','" + polygon + "') YIELD node RETURN node.name as name", r -> assertEquals("b", r.get("name")));
+        testCall(db, "CALL spatial.intersects('geom','" + polygon + "') YIELD node RETURN node.name as name", r -> assertEquals("b", r.get("name")));
+        testCall(db, "CALL spatial.geometryCacheStats('geom')", r -> {
+            assertEquals(1L, r.get("size"));
+            assertEquals(1L, r.get("misses"));
+            assertEquals(1L, r.get("hits"));
+        });
+    }
+
+    @Test
+    public void find_covered_attributes_in_a_bounding_box() {
+        execute("CALL spatial.addPointLayer('geom') YIELD node SET node.index_config = '{\"leafStorage\":\"packed\",\"coveredAttributes\":\"name,highway\"}'");
+        executeWrite("UNWIND [{name:'a',highway:'primary',latitude:60.1,longitude:15.2},{name:'b',latitude:60.3,longitude:15.5}] as point CREATE (n:Node) SET n += point WITH n CALL spatial.addNode('geom',n) YIELD node RETURN node.name as name");
+        testCall(db, "CALL spatial.bboxCovered('geom',{lon:15.0,lat:60.0}, {lon:15.3, lat:60.2}, ['name','highway'])", r -> {
+            assertEquals(List.of(15.2, 60.1, 15.2, 60.1), r.get("bbox"));
+            assertEquals(Map.of("name", "a", "highway", "primary"), r.get("properties"));
+        });
+        testCall(db, "CALL spatial.bboxCovered('geom',{lon:15.4,lat:60.2}, {lon:15.6, lat:60.4}, ['name','highway'])", r -> assertEquals(Map.of("name", "b"), r.get("properties")));
+    }
+
     @Test
     public void find_geometries_in_a_bounding_box_geohash() {
         execute("CALL spatial.addPointLayerGeohash('geom')");
@@ -22,22 +22,61 @@ package org.neo4j.gis.spatial.rtree;
 import org.geotools.data.neo4j.Neo4jFeatureBuilder;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.neo4j.dbms.api.DatabaseManagementService;
 import org.neo4j.gis.spatial.Constants;
 import org.neo4j.gis.spatial.encoders.SimplePointEncoder;
+import org.neo4j.gis.spatial.rtree.filter.SearchAll;
+import org.neo4j.gis.spatial.rtree.filter.SearchCoveredByEnvelope;
+import org.neo4j.gis.spatial.rtree.filter.SearchEnvelopeDistance;
+import org.neo4j.gis.spatial.rtree.filter.SearchFilter;
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.TransientFailureException;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventListenerAdapter;
+import org.neo4j.graphdb.traversal.Evaluation;
+import org.neo4j.graphdb.traversal.Evaluator;
+import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.internal.helpers.collection.Iterables;
 import org.neo4j.test.TestDatabaseManagementServiceBuilder;
 import org.opengis.feature.simple.SimpleFeatureType;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Proxy;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.neo4j.configuration.GraphDatabaseSettings.DEFAULT_DATABASE_NAME;
 
 public class RTreeTests {
@@ -103,6 +142,1271 @@ public class RTreeTests {
         }
     }
 
+    @Test
+    public void shouldFindTheSameGeometriesAsTraversalSearch() {
+        rtree.configure(Map.of(RTreeIndex.KEY_MAX_NODE_REFERENCES, 10));
+        RTreeMonitor monitor = new RTreeMonitor();
+        rtree.addMonitor(monitor);
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 2000, points);
+            for (int i = 0; i < 300; i++) {
+                rtree.remove(tx, points.remove(random.nextInt(points.size())).getId(), true, true);
+            }
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertSameAsTraversalSearch(tx, random, monitor);
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            // index nodes without a bounding box are skipped, which is ok after an index node split
+            List<Relationship> children = Iterables.asList(rtree.getIndexRoot(tx).getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD));
+            Iterables.asList(children.get(0).getEndNode().getRelationships(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)).get(0).getEndNode().removeProperty(RTreeIndex.INDEX_PROP_BBOX);
+            children.get(1).getEndNode().removeProperty(RTreeIndex.INDEX_PROP_BBOX);
+            assertSameAsTraversalSearch(tx, random, monitor);
+            tx.rollback();
+        }
+    }
+
+    @Test
+    public void shouldFindNothingInEmptyTreeLikeTraversalSearch() {
+        RTreeMonitor monitor = new RTreeMonitor();
+        rtree.addMonitor(monitor);
+        Random random = new Random(1);
+        try (Transaction tx = db.beginTx()) {
+            // no reference relationship was ever created in this database
+            assertSameAsTraversalSearch(tx, random, monitor);
+            assertEquals(0, rtree.searchIndex(tx, new SearchAll()).count());
+            tx.commit();
+        }
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 100, points);
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            for (Node point : points) {
+                rtree.remove(tx, point.getId(), true, true);
+            }
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            // the tree is empty again, but now there are reference relationships in the database
+            assertSameAsTraversalSearch(tx, random, monitor);
+            assertEquals(0, rtree.searchIndex(tx, new SearchAll()).count());
+            tx.commit();
+        }
+    }
+
+    @Test
+    public void shouldSearchWithDirectoryMirror() {
+        rtree.configure(Collections.singletonMap(RTreeIndex.KEY_DIRECTORY_MIRROR, true));
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 2000, points);
+            tx.commit();
+        }
+        assertSearchMatches(random, points);
+        assertTrue(rtree.hasDirectoryMirror());
+
+        // changes made through the index are applied to the mirror
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 500, points);
+            for (int i = 0; i < 300; i++) {
+                rtree.remove(tx, points.remove(random.nextInt(points.size())).getId(), true, true);
+            }
+            // this transaction sees its own changes
+            assertSearchMatches(tx, random, points);
+            tx.commit();
+        }
+        assertSearchMatches(random, points);
+        assertTrue(rtree.hasDirectoryMirror());
+    }
+
+    @Test
+    public void shouldOnlyAssignStructureVersionWithDirectoryMirror() {
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 100, points);
+            rtree.remove(tx, points.remove(0).getId(), true, true);
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertFalse(getMetadataNode(tx).hasProperty(RTreeIndex.INDEX_PROP_STRUCTURE_VERSION));
+            tx.commit();
+        }
+
+        rtree.configure(Collections.singletonMap(RTreeIndex.KEY_DIRECTORY_MIRROR, true));
+        long[] versions = new long[2];
+        for (int i = 0; i < versions.length; i++) {
+            try (Transaction tx = db.beginTx()) {
+                addPoints(tx, random, 10, points);
+                tx.commit();
+            }
+            try (Transaction tx = db.beginTx()) {
+                versions[i] = (Long) getMetadataNode(tx).getProperty(RTreeIndex.INDEX_PROP_STRUCTURE_VERSION);
+                tx.commit();
+            }
+        }
+        assertNotEquals(versions[0], versions[1]);
+        assertSearchMatches(random, points);
+        assertTrue(rtree.hasDirectoryMirror());
+    }
+
+    @Test
+    public void shouldReturnSubtreesMatchedAsAWholeWithoutCheckingGeometries() {
+        rtree.configure(Map.of(RTreeIndex.KEY_MAX_NODE_REFERENCES, 10));
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 2000, points);
+            tx.commit();
+        }
+        EnvelopeDecoder decoder = rtree.getEnvelopeDecoder();
+        Envelope window = new Envelope(0.2, 0.8, 0.2, 0.8);
+        int[] checked = new int[1];
+        SearchFilter filter = new SearchCoveredByEnvelope(decoder, window) {
+            @Override
+            protected boolean onEnvelopeIntersection(Node geomNode, Envelope geomEnvelope) {
+                checked[0]++;
+                return super.onEnvelopeIntersection(geomNode, geomEnvelope);
+            }
+        };
+        try (Transaction tx = db.beginTx()) {
+            Set<Long> expected = new HashSet<>();
+            for (Node point : points) {
+                if (window.covers(decoder.decodeEnvelope(tx.getNodeById(point.getId())))) {
+                    expected.add(point.getId());
+                }
+            }
+            Set<Long> found = new HashSet<>();
+            for (Node node : rtree.searchIndex(tx, filter)) {
+                found.add(node.getId());
+            }
+            assertEquals(expected, found);
+            // only the geometries in leaves on the boundary of the window are checked
+            assertTrue(checked[0] < expected.size() / 2, "checked " + checked[0] + " of " + expected.size());
+            tx.commit();
+        }
+    }
+
+    @Test
+    public void shouldSkipAndLimitSearchResults() {
+        rtree.configure(Map.of(RTreeIndex.KEY_MAX_NODE_REFERENCES, 10, RTreeIndex.KEY_SUBTREE_COUNTS, true));
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 2000, points);
+            tx.commit();
+        }
+        Envelope window = new Envelope(0.1, 0.9, 0.1, 0.9);
+        int[] checked = new int[1];
+        SearchFilter filter = new SearchCoveredByEnvelope(rtree.getEnvelopeDecoder(), window) {
+            @Override
+            protected boolean onEnvelopeIntersection(Node geomNode, Envelope geomEnvelope) {
+                checked[0]++;
+                return super.onEnvelopeIntersection(geomNode, geomEnvelope);
+            }
+        };
+        try (Transaction tx = db.beginTx()) {
+            List<Long> all = new ArrayList<>();
+            for (Node node : rtree.searchIndex(tx, filter)) {
+                all.add(node.getId());
+            }
+            int checkedAll = checked[0];
+            for (int[] range : new int[][]{{0, 10}, {100, 50}, {all.size() - 5, 100}, {1000, -1}, {all.size() + 1, 10}}) {
+                int offset = range[0];
+                int limit = range[1];
+                List<Long> expected = all.subList(Math.min(offset, all.size()), limit < 0 ? all.size() : Math.min(offset + limit, all.size()));
+                List<Long> found = new ArrayList<>();
+                checked[0] = 0;
+                for (Node node : rtree.searchIndex(tx, filter, offset, limit)) {
+                    found.add(node.getId());
+                }
+                assertEquals(expected, found, "offset " + offset + ", limit " + limit);
+                assertTrue(checked[0] <= checkedAll, "checked " + checked[0] + " of " + checkedAll);
+                if (limit >= 0 && offset + limit < all.size() / 2) {
+                    // nothing is read once the limit is reached
+                    assertTrue(checked[0] < checkedAll / 2, "checked " + checked[0] + " of " + checkedAll);
+                }
+            }
+            tx.commit();
+        }
+    }
+
+    @Test
+    public void shouldBulkLoadWithSortTileRecursive() {
+        shouldBulkLoadPackedTree(RTreeIndex.STR_BULK_LOAD);
+    }
+
+    @Test
+    public void shouldBulkLoadWithHilbertPacking() {
+        shouldBulkLoadPackedTree(RTreeIndex.HILBERT_BULK_LOAD);
+    }
+
+    @Test
+    public void shouldBulkLoadWithExternalSort() {
+        shouldBulkLoadPackedTree(RTreeIndex.EXTERNAL_BULK_LOAD);
+    }
+
+    @Test
+    public void shouldRebuildInBatchesWithExternalSort() throws Exception {
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        List<Long> added = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 500, points);
+            for (int i = 0; i < 2000; i++) {
+                Node point = createPoint(tx, random);
+                points.add(point);
+                added.add(point.getId());
+            }
+            tx.commit();
+        }
+        rtree.rebuild(db, added, 100).get();
+        try (Transaction tx = db.beginTx()) {
+            // the change log is gone once the rebuilt tree was swapped in
+            assertFalse(getMetadataNode(tx).hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHANGE_LOG));
+            assertEquals(points.size(), rtree.count(tx));
+            for (Node point : points) {
+                assertEquals(1, Iterables.count(tx.getNodeById(point.getId()).getRelationships(Direction.INCOMING, RTreeRelationshipTypes.RTREE_REFERENCE)));
+            }
+            assertBoundingBoxesMatchChildren(tx);
+            tx.commit();
+        }
+        assertSearchMatches(random, points);
+    }
+
+    @Test
+    public void shouldRebuildOnlineWhileWritesContinue() throws Exception {
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        List<Node> removed = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 3000, points);
+            tx.commit();
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Future<?>> rebuild = executor.submit(() -> rtree.rebuild(db, Collections.emptyList(), 10));
+        int loggedWrites = 0;
+        for (int i = 0; !rebuild.isDone(); i++) {
+            if (writeDuringRebuild(random, i, points, removed)) {
+                loggedWrites++;
+            }
+        }
+        Future<?> oldTreeDeleted = rebuild.get();
+        for (int i = 0; i < 30; i++) {
+            // the leaves of the old tree still reference the geometries until it is deleted
+            writeDuringRebuild(random, i, points, removed);
+        }
+        oldTreeDeleted.get();
+        executor.shutdown();
+        assertTrue(loggedWrites > 0, "no writes while the new tree was built");
+        try (Transaction tx = db.beginTx()) {
+            Node metadataNode = getMetadataNode(tx);
+            assertFalse(metadataNode.hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHANGE_LOG));
+            assertFalse(metadataNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_METADATA, Direction.INCOMING).getStartNode()
+                    .hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_SHADOW_ROOT));
+            assertEquals(points.size(), rtree.count(tx));
+            assertEquals(points.size(), Iterables.count(rtree.getAllIndexedNodes(tx)));
+            for (Node point : points) {
+                assertEquals(1, Iterables.count(tx.getNodeById(point.getId()).getRelationships(Direction.INCOMING, RTreeRelationshipTypes.RTREE_REFERENCE)));
+            }
+            for (Node point : removed) {
+                assertFalse(rtree.isNodeIndexed(tx, point.getId()));
+            }
+            assertBoundingBoxesMatchChildren(tx);
+            tx.commit();
+        }
+        assertSearchMatches(random, points);
+    }
+
+    @Test
+    public void shouldRebuildOnlineWhileWritesCommitDuringScan() throws Exception {
+        CountDownLatch scanning = new CountDownLatch(1);
+        CountDownLatch written = new CountDownLatch(1);
+        Thread[] rebuildThread = new Thread[1];
+        try (Transaction tx = db.beginTx()) {
+            // the first envelope the rebuild reads is that of the first geometry of the old tree
+            rtree = new TestRTreeIndex(tx) {
+                @Override
+                public Envelope getLeafNodeEnvelope(Node geomNode) {
+                    if (Thread.currentThread() == rebuildThread[0] && scanning.getCount() > 0) {
+                        scanning.countDown();
+                        try {
+                            written.await();
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                    return super.getLeafNodeEnvelope(geomNode);
+                }
+            };
+            tx.commit();
+        }
+        // small nodes, so that the writes split and condense nodes the rebuild has and has not read yet
+        rtree.configure(Map.of(RTreeIndex.KEY_MAX_NODE_REFERENCES, 10));
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        List<Node> removed = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 2000, points);
+            tx.commit();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<Future<?>> rebuild = executor.submit(() -> {
+            rebuildThread[0] = Thread.currentThread();
+            return rtree.rebuild(db, Collections.emptyList(), 100);
+        });
+        scanning.await();
+        // the writes would wait for the scan, and time out, if it held the lock of the index
+        executor.submit(() -> {
+            for (int i = 0; i < 300; i++) {
+                assertTrue(writeDuringRebuild(random, i, points, removed), "write was not logged for the rebuild");
+            }
+        }).get(60, TimeUnit.SECONDS);
+        written.countDown();
+        rebuild.get().get();
+        executor.shutdown();
+        try (Transaction tx = db.beginTx()) {
+            assertFalse(getMetadataNode(tx).hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHANGE_LOG));
+            assertEquals(points.size(), rtree.count(tx));
+            assertEquals(points.size(), Iterables.count(rtree.getAllIndexedNodes(tx)));
+            for (Node point : points) {
+                assertEquals(1, Iterables.count(tx.getNodeById(point.getId()).getRelationships(Direction.INCOMING, RTreeRelationshipTypes.RTREE_REFERENCE)));
+            }
+            for (Node point : removed) {
+                assertFalse(rtree.isNodeIndexed(tx, point.getId()));
+            }
+            assertBoundingBoxesMatchChildren(tx);
+            tx.commit();
+        }
+        assertSearchMatches(random, points);
+    }
+
+    /**
+     * Add a point, or remove one and every other time also delete it.
+     *
+     * @return true if the write was logged for a rebuild
+     */
+    private boolean writeDuringRebuild(Random random, int i, List<Node> points, List<Node> removed) {
+        try (Transaction tx = db.beginTx()) {
+            if (i % 3 == 2) {
+                Node point = points.remove(random.nextInt(points.size()));
+                boolean delete = i % 2 == 0;
+                rtree.remove(tx, point.getId(), delete, true);
+                if (!delete) {
+                    removed.add(point);
+                }
+            } else {
+                addPoints(tx, random, 1, points);
+            }
+            boolean logged = getMetadataNode(tx).hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHANGE_LOG);
+            tx.commit();
+            return logged;
+        }
+    }
+
+    @Test
+    public void shouldPlanLargeBulkLoadInParallel() {
+        // large enough for the partitions to be planned as separate fork-join tasks
+        rtree.configure(Map.of(RTreeIndex.KEY_MAX_NODE_REFERENCES, 10));
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 12000; i++) {
+                points.add(createPoint(tx, random));
+            }
+            rtree.add(tx, points);
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(points.size(), rtree.count(tx));
+            assertEquals(points.size(), Iterables.count(rtree.getAllIndexedNodes(tx)));
+            assertBoundingBoxesMatchChildren(tx);
+            tx.commit();
+        }
+        assertSearchMatches(random, points);
+    }
+
+    @Test
+    public void shouldBulkInsertIntoExistingTree() {
+        shouldBulkInsertIntoExistingTree(RTreeIndex.OMT_BULK_LOAD);
+    }
+
+    @Test
+    public void shouldBulkInsertIntoExistingTreeWithSortTileRecursive() {
+        shouldBulkInsertIntoExistingTree(RTreeIndex.STR_BULK_LOAD);
+    }
+
+    private void shouldBulkInsertIntoExistingTree(String bulkLoad) {
+        rtree.configure(Map.of(RTreeIndex.KEY_BULK_LOAD, bulkLoad, RTreeIndex.KEY_MAX_NODE_REFERENCES, 10));
+        RTreeMonitor monitor = new RTreeMonitor();
+        rtree.addMonitor(monitor);
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 5000, points);
+            tx.commit();
+        }
+        monitor.reset();
+        try (Transaction tx = db.beginTx()) {
+            long indexNodesBefore = Iterables.count(rtree.getAllIndexInternalNodes(tx));
+            List<Node> inserted = new ArrayList<>();
+            for (int i = 0; i < 1500; i++) {
+                inserted.add(createPoint(tx, random));
+            }
+            long firstId = tx.createNode().getId();
+            rtree.add(tx, inserted);
+            long lastId = tx.createNode().getId();
+            points.addAll(inserted);
+
+            // the buffer trees are planned in memory, so every node created is still part of the index
+            assertTrue(monitor.getCaseCounts().containsKey("h_i > l_t (d>1)"));
+            assertEquals(lastId - firstId - 1, Iterables.count(rtree.getAllIndexInternalNodes(tx)) - indexNodesBefore);
+            assertEquals(points.size(), rtree.count(tx));
+            assertEquals(points.size(), Iterables.count(rtree.getAllIndexedNodes(tx)));
+            assertBoundingBoxesMatchChildren(tx);
+            tx.commit();
+        }
+        assertSearchMatches(random, points);
+    }
+
+    @Test
+    public void shouldMaintainPackedChildArrays() {
+        shouldMaintainPackedChildArrays(RTreeIndex.GREENES_SPLIT);
+    }
+
+    @Test
+    public void shouldMaintainPackedChildArraysWithRStarSplit() {
+        shouldMaintainPackedChildArrays(RTreeIndex.RSTAR_SPLIT);
+    }
+
+    private void shouldMaintainPackedChildArrays(String splitMode) {
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            // a tree built without the arrays gets them on the first writes with the option on
+            addPoints(tx, random, 300, points);
+            tx.commit();
+        }
+        rtree.configure(Map.of(RTreeIndex.KEY_SPLIT, splitMode, RTreeIndex.KEY_PACKED_CHILDREN, true));
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 1000, points);
+            List<Node> bulk = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                bulk.add(createPoint(tx, random));
+            }
+            rtree.add(tx, bulk);
+            points.addAll(bulk);
+            for (int i = 0; i < 400; i++) {
+                rtree.remove(tx, points.remove(random.nextInt(points.size())).getId(), false, true);
+            }
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            int packed = 0;
+            for (Node indexNode : rtree.getAllIndexInternalNodes(tx)) {
+                List<RTreeIndex.NodeWithEnvelope> children = rtree.getIndexChildren(indexNode);
+                if (!indexNode.hasProperty(RTreeIndex.INDEX_PROP_CHILD_IDS)) {
+                    continue;
+                }
+                long[] ids = (long[]) indexNode.getProperty(RTreeIndex.INDEX_PROP_CHILD_IDS);
+                double[] bboxes = (double[]) indexNode.getProperty(RTreeIndex.INDEX_PROP_CHILD_BBOXES);
+                assertEquals(children.size(), indexNode.getProperty(RTreeIndex.INDEX_PROP_CHILD_COUNT));
+                assertEquals(children.size(), ids.length);
+                for (RTreeIndex.NodeWithEnvelope child : children) {
+                    int index = 0;
+                    while (index < ids.length && ids[index] != child.node.getId()) {
+                        index++;
+                    }
+                    assertTrue(index < ids.length, "child " + child.node + " missing from packed ids");
+                    assertArrayEquals(new double[]{child.envelope.getMinX(), child.envelope.getMinY(), child.envelope.getMaxX(), child.envelope.getMaxY()},
+                            Arrays.copyOfRange(bboxes, index * 4, index * 4 + 4));
+                }
+                packed++;
+            }
+            assertTrue(packed > 0, "expected packed child arrays on the internal nodes");
+            assertEquals(points.size(), rtree.count(tx));
+            tx.commit();
+        }
+        assertSearchMatches(random, points);
+    }
+
+    @Test
+    public void shouldStoreEntriesInPackedLeaves() {
+        shouldStoreEntriesInPackedLeaves(RTreeIndex.GREENES_SPLIT, RTreeIndex.DOUBLE_LEAF_PRECISION, RTreeIndex.OMT_BULK_LOAD);
+    }
+
+    @Test
+    public void shouldStoreEntriesInPackedLeavesWithFloatPrecision() {
+        shouldStoreEntriesInPackedLeaves(RTreeIndex.RSTAR_SPLIT, RTreeIndex.FLOAT_LEAF_PRECISION, RTreeIndex.STR_BULK_LOAD);
+    }
+
+    private void shouldStoreEntriesInPackedLeaves(String splitMode, String leafPrecision, String bulkLoad) {
+        rtree.configure(Map.of(RTreeIndex.KEY_LEAF_STORAGE, RTreeIndex.PACKED_LEAF_STORAGE, RTreeIndex.KEY_LEAF_PRECISION, leafPrecision,
+                RTreeIndex.KEY_SPLIT, splitMode, RTreeIndex.KEY_BULK_LOAD, bulkLoad));
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        List<Node> removed = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            List<Node> bulk = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                bulk.add(createPoint(tx, random));
+            }
+            rtree.add(tx, bulk);
+            points.addAll(bulk);
+            addPoints(tx, random, 1000, points);
+            bulk.clear();
+            for (int i = 0; i < 300; i++) {
+                bulk.add(createPoint(tx, random));
+            }
+            rtree.add(tx, bulk);
+            points.addAll(bulk);
+            for (int i = 0; i < 300; i++) {
+                Node point = points.remove(random.nextInt(points.size()));
+                rtree.remove(tx, point.getId(), false, true);
+                removed.add(point);
+            }
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(points.size(), rtree.count(tx));
+            assertEquals(points.size(), Iterables.count(rtree.getAllIndexedNodes(tx)));
+            for (Node point : points) {
+                assertTrue(rtree.isNodeIndexed(tx, point.getId()));
+                assertEquals(0, Iterables.count(tx.getNodeById(point.getId()).getRelationships(RTreeRelationshipTypes.RTREE_REFERENCE)));
+            }
+            for (Node point : removed) {
+                assertFalse(rtree.isNodeIndexed(tx, point.getId()));
+            }
+            tx.commit();
+        }
+        assertSearchMatches(random, points);
+    }
+
+    @Test
+    public void shouldRemoveInBulk() {
+        shouldRemoveInBulk(RTreeIndex.GREENES_SPLIT, RTreeIndex.RELATIONSHIP_LEAF_STORAGE);
+    }
+
+    @Test
+    public void shouldRemoveInBulkFromPackedLeaves() {
+        shouldRemoveInBulk(RTreeIndex.RSTAR_SPLIT, RTreeIndex.PACKED_LEAF_STORAGE);
+    }
+
+    private void shouldRemoveInBulk(String splitMode, String leafStorage) {
+        rtree.configure(Map.of(RTreeIndex.KEY_SPLIT, splitMode, RTreeIndex.KEY_LEAF_STORAGE, leafStorage));
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        List<Node> removed = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 2000, points);
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            // remove a whole region, which empties leaves, and a random sample, which leaves other leaves underfull
+            List<Long> ids = new ArrayList<>();
+            for (Iterator<Node> it = points.iterator(); it.hasNext(); ) {
+                Node point = it.next();
+                if ((double) tx.getNodeById(point.getId()).getProperty(SimplePointEncoder.DEFAULT_X) < 0.3 || random.nextInt(4) == 0) {
+                    ids.add(point.getId());
+                    removed.add(point);
+                    it.remove();
+                }
+            }
+            rtree.remove(tx, ids, false, true);
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(points.size(), rtree.count(tx));
+            assertEquals(points.size(), Iterables.count(rtree.getAllIndexedNodes(tx)));
+            for (Node point : points) {
+                assertTrue(rtree.isNodeIndexed(tx, point.getId()));
+            }
+            for (Node point : removed) {
+                assertFalse(rtree.isNodeIndexed(tx, point.getId()));
+            }
+            Set<Integer> leafDepths = new HashSet<>();
+            for (Node indexNode : rtree.getAllIndexInternalNodes(tx)) {
+                if (!indexNode.hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_CHILD)) {
+                    int depth = 0;
+                    for (Node node = indexNode; node.hasRelationship(Direction.INCOMING, RTreeRelationshipTypes.RTREE_CHILD); depth++) {
+                        node = node.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHILD, Direction.INCOMING).getStartNode();
+                    }
+                    leafDepths.add(depth);
+                }
+            }
+            assertEquals(1, leafDepths.size());
+            tx.commit();
+        }
+        assertSearchMatches(random, points);
+    }
+
+    @Test
+    public void shouldDeferBoundingBoxMaintenanceUntilCommit() {
+        databases.registerTransactionEventListener(DEFAULT_DATABASE_NAME, new TransactionEventListenerAdapter<Object>() {
+            @Override
+            public Object beforeCommit(TransactionData data, Transaction transaction, GraphDatabaseService databaseService) {
+                RTreeIndex.flushDeferredBoundingBoxes(transaction);
+                return null;
+            }
+        });
+        rtree.configure(Map.of(RTreeIndex.KEY_BBOX_MAINTENANCE, RTreeIndex.DEFERRED_BBOX_MAINTENANCE));
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 1000, points);
+            // reads in the writing transaction see complete bounding boxes
+            assertSearchMatches(tx, random, points);
+            addPoints(tx, random, 1000, points);
+            for (int i = 0; i < 200; i++) {
+                rtree.remove(tx, points.remove(random.nextInt(points.size())).getId(), false, true);
+            }
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(points.size(), rtree.count(tx));
+            assertBoundingBoxesMatchChildren(tx);
+            tx.commit();
+        }
+        assertSearchMatches(random, points);
+    }
+
+    @Test
+    public void shouldSearchAndMergeIngestBuffer() {
+        rtree.configure(Map.of(RTreeIndex.KEY_INGEST_BUFFER_SIZE, 250));
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 1000, points);
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 120, points);
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            // the last geometries are still buffered, but are found by all reads
+            Node metadataNode = getMetadataNode(tx);
+            assertEquals(120, metadataNode.getProperty(RTreeIndex.INDEX_PROP_BUFFERED_COUNT));
+            assertEquals(points.size(), rtree.count(tx));
+            assertEquals(points.size(), Iterables.count(rtree.getAllIndexedNodes(tx)));
+            for (Node point : points) {
+                assertTrue(rtree.isNodeIndexed(tx, point.getId()));
+            }
+            Node buffered = tx.getNodeById(points.get(points.size() - 1).getId());
+            Envelope envelope = rtree.getEnvelopeDecoder().decodeEnvelope(buffered);
+            Iterator<RTreeIndex.NodeWithDistance> nearest = rtree.searchNearest(tx, new SearchEnvelopeDistance(rtree.getEnvelopeDecoder(), envelope));
+            assertEquals(buffered.getId(), nearest.next().node.getId());
+            while (nearest.hasNext()) {
+                nearest.next();
+            }
+            assertTrue(rtree.getBoundingBox(tx).covers(envelope));
+            assertSearchMatches(tx, random, points);
+
+            // removing a buffered geometry only touches the buffer
+            rtree.remove(tx, buffered.getId(), false, true);
+            points.remove(points.size() - 1);
+            assertFalse(rtree.isNodeIndexed(tx, buffered.getId()));
+            assertEquals(119, metadataNode.getProperty(RTreeIndex.INDEX_PROP_BUFFERED_COUNT));
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            // reaching the threshold merges the whole buffer into the tree
+            addPoints(tx, random, 131, points);
+            assertFalse(getMetadataNode(tx).hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_INGEST_BUFFER));
+            assertEquals(points.size(), rtree.count(tx));
+            for (Node point : points) {
+                assertTrue(rtree.isNodeIndexed(tx, point.getId()));
+            }
+            assertBoundingBoxesMatchChildren(tx);
+            tx.commit();
+        }
+        assertSearchMatches(random, points);
+    }
+
+    @Test
+    public void shouldMaintainSubtreeCounts() {
+        rtree.configure(Map.of(RTreeIndex.KEY_SUBTREE_COUNTS, true, RTreeIndex.KEY_MAX_NODE_REFERENCES, 10));
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 1000, points);
+            tx.commit();
+        }
+        assertCountsMatch(random, points);
+        try (Transaction tx = db.beginTx()) {
+            // bulk insertion into the existing tree, and single removes that condense it
+            List<Node> added = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                added.add(createPoint(tx, random));
+            }
+            rtree.add(tx, added);
+            points.addAll(added);
+            for (int i = 0; i < 100; i++) {
+                rtree.remove(tx, points.remove(random.nextInt(points.size())).getId(), false, true);
+            }
+            tx.commit();
+        }
+        assertCountsMatch(random, points);
+        try (Transaction tx = db.beginTx()) {
+            List<Long> ids = new ArrayList<>();
+            for (Iterator<Node> it = points.iterator(); it.hasNext(); ) {
+                Node point = it.next();
+                if ((double) tx.getNodeById(point.getId()).getProperty(SimplePointEncoder.DEFAULT_X) < 0.3) {
+                    ids.add(point.getId());
+                    it.remove();
+                }
+            }
+            rtree.remove(tx, ids, false, true);
+            tx.commit();
+        }
+        assertCountsMatch(random, points);
+        try (Transaction tx = db.beginTx()) {
+            // a large insertion rebuilds the whole tree
+            List<Node> added = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                added.add(createPoint(tx, random));
+            }
+            rtree.add(tx, added);
+            points.addAll(added);
+            tx.commit();
+        }
+        assertCountsMatch(random, points);
+    }
+
+    @Test
+    public void shouldMaintainAggregatedAttributes() {
+        rtree.configure(Map.of(RTreeIndex.KEY_AGGREGATES, "value", RTreeIndex.KEY_MAX_NODE_REFERENCES, 10));
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 1000; i++) {
+                Node point = createPoint(tx, random);
+                point.setProperty("value", random.nextInt(1000));
+                rtree.add(tx, point);
+                points.add(point);
+            }
+            tx.commit();
+        }
+        assertAggregatesMatch(random, points);
+        try (Transaction tx = db.beginTx()) {
+            List<Node> added = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                Node point = createPoint(tx, random);
+                point.setProperty("value", random.nextInt(1000));
+                added.add(point);
+            }
+            rtree.add(tx, added);
+            points.addAll(added);
+            for (int i = 0; i < 100; i++) {
+                rtree.remove(tx, points.remove(random.nextInt(points.size())).getId(), false, true);
+            }
+            tx.commit();
+        }
+        assertAggregatesMatch(random, points);
+    }
+
+    @Test
+    public void shouldSearchCoveredAttributesInPackedLeaves() {
+        rtree.configure(Map.of(RTreeIndex.KEY_LEAF_STORAGE, RTreeIndex.PACKED_LEAF_STORAGE, RTreeIndex.KEY_COVERED_ATTRIBUTES, "name,value",
+                RTreeIndex.KEY_MAX_NODE_REFERENCES, 10));
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 1000; i++) {
+                Node point = createPoint(tx, random);
+                if (i % 3 != 0) {
+                    point.setProperty("name", "point " + i);
+                }
+                point.setProperty("value", i);
+                rtree.add(tx, point);
+                points.add(point);
+            }
+            List<Node> added = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                Node point = createPoint(tx, random);
+                point.setProperty("name", "added " + i);
+                point.setProperty("value", i * 0.5);
+                added.add(point);
+            }
+            rtree.add(tx, added);
+            points.addAll(added);
+            List<Long> removed = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                removed.add(points.remove(random.nextInt(points.size())).getId());
+            }
+            rtree.remove(tx, removed, false, true);
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            EnvelopeDecoder decoder = rtree.getEnvelopeDecoder();
+            for (int i = 0; i < 20; i++) {
+                double x = random.nextDouble() * 0.8;
+                double y = random.nextDouble() * 0.8;
+                Envelope window = new Envelope(x, x + 0.2, y, y + 0.2);
+                Set<Long> expected = new HashSet<>();
+                for (Node point : points) {
+                    if (window.intersects(decoder.decodeEnvelope(tx.getNodeById(point.getId())))) {
+                        expected.add(point.getId());
+                    }
+                }
+                Set<Long> found = new HashSet<>();
+                for (CoveredEntry entry : rtree.searchCovered(tx, window, List.of("name", "value"))) {
+                    found.add(entry.getNodeId());
+                    Node point = tx.getNodeById(entry.getNodeId());
+                    assertEquals(point.getProperty("name", null), entry.getValue("name"));
+                    assertEquals(((Number) point.getProperty("value")).doubleValue(), ((Number) entry.getValue("value")).doubleValue());
+                }
+                assertEquals(expected, found);
+            }
+            tx.commit();
+        }
+        Node changed = points.get(0);
+        try (Transaction tx = db.beginTx()) {
+            Node point = tx.getNodeById(changed.getId());
+            point.setProperty("name", "changed");
+            point.setProperty("other", "not covered");
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            // covered values are read from the leaf, which still has the value copied when the point was added
+            Envelope envelope = rtree.getEnvelopeDecoder().decodeEnvelope(tx.getNodeById(changed.getId()));
+            CoveredEntry entry = Iterables.single(Iterables.filter(e -> e.getNodeId() == changed.getId(),
+                    rtree.searchCovered(tx, envelope, List.of("name", "other"))));
+            assertFalse("changed".equals(entry.getValue("name")));
+            assertEquals("not covered", entry.getValue("other"));
+            tx.commit();
+        }
+    }
+
+    @Test
+    public void shouldSearchFromSnapshotWhileItIsUpToDate() throws IOException {
+        rtree.configure(Map.of(RTreeIndex.KEY_MAX_NODE_REFERENCES, 10));
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 1000, points);
+            tx.commit();
+        }
+        Path file = Path.of("target", "rtree-snapshot", "tree.snapshot");
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(points.size(), rtree.exportSnapshot(tx, file));
+            tx.commit();
+        }
+        rtree.configure(Map.of(RTreeIndex.KEY_SNAPSHOT_FILE, file.toString()));
+        try (Transaction tx = db.beginTx()) {
+            RTreeSnapshot snapshot = rtree.getSnapshot(tx);
+            assertNotNull(snapshot);
+            assertEquals(points.size(), snapshot.entryCount());
+            assertSearchMatches(tx, random, points);
+            rtree.warmUp(tx);
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 100, points);
+            // the writing transaction sees its own changes in the store
+            assertNull(rtree.getSnapshot(tx));
+            assertSearchMatches(tx, random, points);
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            // the tree has changed since the snapshot was written
+            assertNull(rtree.getSnapshot(tx));
+            assertSearchMatches(tx, random, points);
+            tx.commit();
+        }
+        Path newFile = Path.of("target", "rtree-snapshot", "tree2.snapshot");
+        try (Transaction tx = db.beginTx()) {
+            rtree.exportSnapshot(tx, newFile);
+            tx.commit();
+        }
+        rtree.configure(Map.of(RTreeIndex.KEY_SNAPSHOT_FILE, newFile.toString()));
+        try (Transaction tx = db.beginTx()) {
+            assertNotNull(rtree.getSnapshot(tx));
+            assertSearchMatches(tx, random, points);
+            tx.commit();
+        }
+    }
+
+    @Test
+    public void shouldMeasureQualityAndReorganizeDegradedSubtrees() {
+        rtree.configure(Map.of(RTreeIndex.KEY_MAX_NODE_REFERENCES, 10, RTreeIndex.KEY_SUBTREE_COUNTS, true));
+        RTreeMonitor monitor = new RTreeMonitor();
+        rtree.addMonitor(monitor);
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            addPoints(tx, random, 2000, points);
+            for (int i = 0; i < 1000; i++) {
+                rtree.remove(tx, points.remove(random.nextInt(points.size())).getId(), false, true);
+            }
+            tx.commit();
+        }
+        TreeQuality before;
+        try (Transaction tx = db.beginTx()) {
+            before = rtree.measureQuality(tx);
+            assertSame(before, monitor.getQuality());
+            assertEquals(rtree.getHeight(rtree.getIndexRoot(tx), 0), before.getHeight());
+            TreeQuality.Level leaves = before.getLevels().get(before.getHeight() - 1);
+            assertEquals(points.size(), leaves.getEntryCount());
+            assertTrue(before.getFillFactor() > 0 && before.getFillFactor() <= 1);
+            assertTrue(before.getOverlapArea() > 0);
+            tx.commit();
+        }
+        // without a policy nothing is reorganized
+        assertEquals(0, rtree.reorganize(db, 100));
+
+        rtree.configure(Map.of(RTreeIndex.KEY_REORGANIZE_MIN_FILL, 0.9, RTreeIndex.KEY_REORGANIZE_SUBTREE_SIZE, 200));
+        int reorganized = rtree.reorganize(db, 100);
+        assertTrue(reorganized > 0);
+        assertEquals(reorganized, (int) monitor.getCaseCounts().get("Reorganized subtree"));
+        try (Transaction tx = db.beginTx()) {
+            TreeQuality after = rtree.measureQuality(tx);
+            assertEquals(before.getHeight(), after.getHeight());
+            assertTrue(after.getNodeCount() < before.getNodeCount(), "reorganized into fewer nodes: " + before + " -> " + after);
+            assertTrue(after.getFillFactor() > before.getFillFactor(), "fill improved: " + before + " -> " + after);
+            assertEquals(points.size(), rtree.count(tx));
+            assertBoundingBoxesMatchChildren(tx);
+            tx.commit();
+        }
+        assertCountsMatch(random, points);
+        assertSearchMatches(random, points);
+    }
+
+    @Test
+    public void shouldReportFailedBackgroundReorganization() throws Exception {
+        rtree.configure(Map.of(RTreeIndex.KEY_REORGANIZE_MIN_FILL, 0.9, RTreeIndex.KEY_REORGANIZE_INTERVAL, 1));
+        RTreeMonitor monitor = new RTreeMonitor();
+        rtree.addMonitor(monitor);
+        RuntimeException failure = new IllegalStateException("database unavailable");
+        GraphDatabaseService unavailable = (GraphDatabaseService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{GraphDatabaseService.class}, (proxy, method, args) -> {
+                    throw failure;
+                });
+        rtree.writeCommitted(unavailable);
+        for (int i = 0; i < 100 && monitor.getReorganizeFailure() == null; i++) {
+            Thread.sleep(50);
+        }
+        assertSame(failure, monitor.getReorganizeFailure());
+    }
+
+    @Test
+    public void shouldAddAndRemoveFromConcurrentWriters() throws Exception {
+        rtree.configure(Map.of(RTreeIndex.KEY_CONCURRENT_WRITERS, true, RTreeIndex.KEY_MAX_NODE_REFERENCES, 10));
+        List<Node> points = ingestConcurrently(4, 300);
+        List<Node> removed = new ArrayList<>(points.subList(0, points.size() / 4));
+        points.removeAll(removed);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> removals = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            List<Node> toRemove = removed.subList(t * removed.size() / 4, (t + 1) * removed.size() / 4);
+            removals.add(executor.submit(() -> {
+                for (Node point : toRemove) {
+                    retryOnTransientFailure(tx -> {
+                        rtree.remove(tx, point.getId(), false, true);
+                        return point;
+                    });
+                }
+            }));
+        }
+        for (Future<?> removal : removals) {
+            removal.get();
+        }
+        executor.shutdown();
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(points.size(), rtree.count(tx));
+            assertEquals(points.size(), Iterables.count(rtree.getAllIndexedNodes(tx)));
+            for (Node point : removed) {
+                assertFalse(rtree.isNodeIndexed(tx, point.getId()));
+            }
+            assertBoundingBoxesMatchChildren(tx);
+            tx.commit();
+        }
+        assertSearchMatches(new Random(1), points);
+        try (Transaction tx = db.beginTx()) {
+            // bulk writes merge the count stripes into the metadata node
+            rtree.add(tx, List.of(createPoint(tx, new Random(2))));
+            assertEquals(points.size() + 1, rtree.count(tx));
+            tx.commit();
+        }
+    }
+
+    @Test
+    @Disabled // takes too long, enable when benchmarking
+    public void benchmarkConcurrentIngest() throws Exception {
+        for (boolean concurrentWriters : new boolean[]{false, true}) {
+            for (int threads : new int[]{1, 2, 4, 8}) {
+                try (Transaction tx = db.beginTx()) {
+                    this.rtree = new TestRTreeIndex(tx);
+                    tx.commit();
+                }
+                rtree.configure(Map.of(RTreeIndex.KEY_CONCURRENT_WRITERS, concurrentWriters));
+                long start = System.currentTimeMillis();
+                List<Node> points = ingestConcurrently(threads, 20000 / threads);
+                long time = System.currentTimeMillis() - start;
+                System.out.printf("concurrentWriters=%s threads=%d: %d geometries in %dms, %.0f/s%n",
+                        concurrentWriters, threads, points.size(), time, 1000.0 * points.size() / time);
+            }
+        }
+    }
+
+    /**
+     * Add geometries from several threads, one geometry per transaction.
+     */
+    private List<Node> ingestConcurrently(int threads, int geometriesPerThread) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<List<Node>>> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(t);
+            writers.add(executor.submit(() -> {
+                List<Node> added = new ArrayList<>();
+                for (int i = 0; i < geometriesPerThread; i++) {
+                    added.add(retryOnTransientFailure(tx -> {
+                        Node point = createPoint(tx, random);
+                        rtree.add(tx, point);
+                        return point;
+                    }));
+                }
+                return added;
+            }));
+        }
+        List<Node> points = new ArrayList<>();
+        for (Future<List<Node>> writer : writers) {
+            points.addAll(writer.get());
+        }
+        executor.shutdown();
+        return points;
+    }
+
+    private Node retryOnTransientFailure(Function<Transaction, Node> work) {
+        while (true) {
+            try (Transaction tx = db.beginTx()) {
+                Node node = work.apply(tx);
+                tx.commit();
+                return node;
+            } catch (TransientFailureException e) {
+                // deadlock with another writer, try again
+            }
+        }
+    }
+
+    private void assertBoundingBoxesMatchChildren(Transaction tx) {
+        EnvelopeDecoder decoder = rtree.getEnvelopeDecoder();
+        for (Node indexNode : rtree.getAllIndexInternalNodes(tx)) {
+            Envelope expected = null;
+            for (Relationship relationship : indexNode.getRelationships(Direction.OUTGOING)) {
+                Node child = relationship.getEndNode();
+                Envelope envelope = relationship.isType(RTreeRelationshipTypes.RTREE_CHILD) ? rtree.getIndexNodeEnvelope(child) : decoder.decodeEnvelope(child);
+                if (expected == null) {
+                    expected = new Envelope(envelope);
+                } else {
+                    expected.expandToInclude(envelope);
+                }
+            }
+            Envelope actual = rtree.getIndexNodeEnvelope(indexNode);
+            assertArrayEquals(new double[]{expected.getMinX(), expected.getMinY(), expected.getMaxX(), expected.getMaxY()},
+                    new double[]{actual.getMinX(), actual.getMinY(), actual.getMaxX(), actual.getMaxY()});
+        }
+    }
+
+    private void assertCountsMatch(Random random, List<Node> points) {
+        EnvelopeDecoder decoder = rtree.getEnvelopeDecoder();
+        try (Transaction tx = db.beginTx()) {
+            for (Node indexNode : rtree.getAllIndexInternalNodes(tx)) {
+                SpatialIndexRecordCounter counter = new SpatialIndexRecordCounter();
+                rtree.visit(tx, counter, indexNode);
+                assertEquals(counter.getResult(), indexNode.getProperty(RTreeIndex.INDEX_PROP_SUBTREE_COUNT));
+            }
+            assertEquals(points.size(), rtree.countWithin(tx, rtree.getBoundingBox(tx)));
+            for (int i = 0; i < 20; i++) {
+                double x = random.nextDouble() * 0.6;
+                double y = random.nextDouble() * 0.6;
+                Envelope window = new Envelope(x, x + 0.4, y, y + 0.4);
+                int expected = 0;
+                for (Node point : points) {
+                    if (window.covers(decoder.decodeEnvelope(tx.getNodeById(point.getId())))) {
+                        expected++;
+                    }
+                }
+                assertEquals(expected, rtree.countWithin(tx, window));
+                double estimate = rtree.estimateCount(tx, window);
+                assertTrue(Math.abs(estimate - expected) <= expected * 0.25 + 10, "estimated " + estimate + " for " + expected);
+            }
+            tx.commit();
+        }
+    }
+
+    private void assertAggregatesMatch(Random random, List<Node> points) {
+        EnvelopeDecoder decoder = rtree.getEnvelopeDecoder();
+        try (Transaction tx = db.beginTx()) {
+            for (Node indexNode : rtree.getAllIndexInternalNodes(tx)) {
+                AttributeSummary expected = new AttributeSummary();
+                rtree.visit(tx, new SpatialIndexVisitor() {
+                    @Override
+                    public boolean needsToVisit(Envelope indexNodeEnvelope) {
+                        return true;
+                    }
+
+                    @Override
+                    public void onIndexReference(Node geomNode) {
+                        expected.add(geomNode.getProperty("value"));
+                    }
+                }, indexNode);
+                assertArrayEquals(expected.toArray(), (double[]) indexNode.getProperty(RTreeIndex.INDEX_PROP_AGGREGATE_PREFIX + "value"));
+            }
+            for (int i = 0; i < 20; i++) {
+                double x = random.nextDouble() * 0.6;
+                double y = random.nextDouble() * 0.6;
+                Envelope window = new Envelope(x, x + 0.4, y, y + 0.4);
+                AttributeSummary expected = new AttributeSummary();
+                for (Node point : points) {
+                    Node node = tx.getNodeById(point.getId());
+                    if (window.covers(decoder.decodeEnvelope(node))) {
+                        expected.add(node.getProperty("value"));
+                    }
+                }
+                assertArrayEquals(expected.toArray(), rtree.aggregate(tx, "value", window).toArray());
+            }
+            tx.commit();
+        }
+    }
+
+    private void shouldBulkLoadPackedTree(String bulkLoad) {
+        rtree.configure(Collections.singletonMap(RTreeIndex.KEY_BULK_LOAD, bulkLoad));
+        Random random = new Random(1);
+        List<Node> points = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 2000; i++) {
+                points.add(createPoint(tx, random));
+            }
+            rtree.add(tx, points);
+            tx.commit();
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(points.size(), rtree.count(tx));
+            // all leaves are on the same level
+            Set<Integer> leafDepths = new HashSet<>();
+            for (Node indexNode : rtree.getAllIndexInternalNodes(tx)) {
+                if (indexNode.hasRelationship(Direction.OUTGOING, RTreeRelationshipTypes.RTREE_REFERENCE)) {
+                    int depth = 0;
+                    for (Node node = indexNode; node.hasRelationship(Direction.INCOMING, RTreeRelationshipTypes.RTREE_CHILD); depth++) {
+                        node = node.getSingleRelationship(RTreeRelationshipTypes.RTREE_CHILD, Direction.INCOMING).getStartNode();
+                    }
+                    leafDepths.add(depth);
+                }
+            }
+            assertEquals(1, leafDepths.size());
+            tx.commit();
+        }
+        assertSearchMatches(random, points);
+    }
+
+    private Node getMetadataNode(Transaction tx) {
+        Node layerNode = rtree.getIndexRoot(tx).getSingleRelationship(RTreeRelationshipTypes.RTREE_ROOT, Direction.INCOMING).getStartNode();
+        return layerNode.getSingleRelationship(RTreeRelationshipTypes.RTREE_METADATA, Direction.OUTGOING).getEndNode();
+    }
+
+    private void addPoints(Transaction tx, Random random, int count, List<Node> points) {
+        for (int i = 0; i < count; i++) {
+            Node point = createPoint(tx, random);
+            rtree.add(tx, point);
+            points.add(point);
+        }
+    }
+
+    private Node createPoint(Transaction tx, Random random) {
+        Node point = tx.createNode();
+        point.setProperty(SimplePointEncoder.DEFAULT_X, random.nextDouble());
+        point.setProperty(SimplePointEncoder.DEFAULT_Y, random.nextDouble());
+        return point;
+    }
+
+    private void assertSearchMatches(Random random, List<Node> points) {
+        try (Transaction tx = db.beginTx()) {
+            assertSearchMatches(tx, random, points);
+            tx.commit();
+        }
+    }
+
+    private void assertSearchMatches(Transaction tx, Random random, List<Node> points) {
+        EnvelopeDecoder decoder = rtree.getEnvelopeDecoder();
+        for (int i = 0; i < 20; i++) {
+            double x = random.nextDouble() * 0.8;
+            double y = random.nextDouble() * 0.8;
+            Envelope window = new Envelope(x, x + 0.2, y, y + 0.2);
+            int expected = 0;
+            for (Node point : points) {
+                if (window.covers(decoder.decodeEnvelope(tx.getNodeById(point.getId())))) {
+                    expected++;
+                }
+            }
+            assertEquals(expected, rtree.searchIndex(tx, new SearchCoveredByEnvelope(decoder, window)).count());
+        }
+    }
+
+    private void assertSameAsTraversalSearch(Transaction tx, Random random, RTreeMonitor monitor) {
+        EnvelopeDecoder decoder = rtree.getEnvelopeDecoder();
+        for (int i = 0; i < 20; i++) {
+            double x = random.nextDouble() * 0.8;
+            double y = random.nextDouble() * 0.8;
+            Envelope window = new Envelope(x, x + 0.2, y, y + 0.2);
+            for (SearchFilter filter : new SearchFilter[]{new SearchCoveredByEnvelope(decoder, window), new SearchEnvelopeDistance(decoder, window, 0.05)}) {
+                Map<Integer, Set<Long>> expectedIndexNodes = new HashMap<>();
+                List<Long> expected = traversalSearch(tx, filter, expectedIndexNodes);
+                monitor.reset();
+                List<Long> found = new ArrayList<>();
+                for (Node node : rtree.searchIndex(tx, filter)) {
+                    found.add(node.getId());
+                }
+                assertEquals(expected, found, "search in " + window);
+                for (Map.Entry<Integer, Set<Long>> level : expectedIndexNodes.entrySet()) {
+                    Set<Long> matched = new HashSet<>();
+                    for (Node indexNode : monitor.getMatchedTreeNodes(level.getKey())) {
+                        matched.add(indexNode.getId());
+                    }
+                    assertEquals(level.getValue(), matched, "index nodes matched at level " + level.getKey() + " in " + window);
+                }
+            }
+        }
+    }
+
+    /**
+     * The search through the traversal framework that the cursor based search replaced, as a reference for its results.
+     */
+    private List<Long> traversalSearch(Transaction tx, SearchFilter filter, Map<Integer, Set<Long>> matchedIndexNodes) {
+        List<Long> found = new ArrayList<>();
+        Evaluator evaluator = path -> {
+            Relationship rel = path.lastRelationship();
+            Node node = path.endNode();
+            if (rel == null) {
+                return Evaluation.EXCLUDE_AND_CONTINUE;
+            } else if (rel.isType(RTreeRelationshipTypes.RTREE_CHILD)) {
+                Envelope envelope = rtree.getIndexNodeEnvelope(node);
+                if (envelope == null || !filter.needsToVisit(envelope)) {
+                    return Evaluation.EXCLUDE_AND_PRUNE;
+                }
+                matchedIndexNodes.computeIfAbsent(path.length(), level -> new HashSet<>()).add(node.getId());
+                return Evaluation.EXCLUDE_AND_CONTINUE;
+            }
+            return filter.geometryMatches(tx, node) ? Evaluation.INCLUDE_AND_PRUNE : Evaluation.EXCLUDE_AND_PRUNE;
+        };
+        TraversalDescription td = tx.traversalDescription()
+                .depthFirst()
+                .relationships(RTreeRelationshipTypes.RTREE_CHILD, Direction.OUTGOING)
+                .relationships(RTreeRelationshipTypes.RTREE_REFERENCE, Direction.OUTGOING)
+                .evaluator(evaluator);
+        for (Node node : td.traverse(rtree.getIndexRoot(tx)).nodes()) {
+            found.add(node.getId());
+        }
+        return found;
+    }
+
     @SuppressWarnings("SameParameterValue")
     private RTreeIndex.NodeWithEnvelope createSimpleRTree(double minx, double maxx, int depth) {
         double[] min = new double[]{minx, minx};